@@ -0,0 +1,74 @@
+package com.williamquast;
+
+import com.drew.imaging.ImageMetadataReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per file cost of the metadata extraction done by ProcessPhotoFileRunnable, the header read plus the GPS parse,
+ * against a full metadata-extractor read of the same files as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    private static final int DIRECTORIES = 10;
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int FILES = DIRECTORIES * FILES_PER_DIRECTORY;
+
+    private PhotoCorpus corpus;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = PhotoCorpus.generate(Files.createTempDirectory("photo2kml-extract").toFile(), DIRECTORIES, FILES_PER_DIRECTORY, 80);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void photoMetadataReader(Blackhole blackhole) throws Exception {
+        for (File file : corpus.getFiles()) {
+            blackhole.consume(PhotoMetadataReader.read(file));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void headerOnly(Blackhole blackhole) throws Exception {
+        for (File file : corpus.getFiles()) {
+            blackhole.consume(PhotoMetadataReader.readHeader(file));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void metadataExtractor(Blackhole blackhole) throws Exception {
+        for (File file : corpus.getFiles()) {
+            blackhole.consume(ImageMetadataReader.readMetadata(file));
+        }
+    }
+}
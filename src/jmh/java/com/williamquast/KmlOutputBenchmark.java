@@ -0,0 +1,80 @@
+package com.williamquast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * KmlOutputWorker.writeFile for large placemark counts, sorted by filename as the GUI does by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class KmlOutputBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int placemarks;
+
+    private WaypointStore items;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        items = new WaypointStore();
+        for (int i = 0; i < placemarks; i++) {
+            String name = String.format("IMG_%07d.jpg", random.nextInt(10_000_000));
+            Date date = new Date(1_500_000_000_000L + random.nextInt(Integer.MAX_VALUE) * 1000L);
+            Waypoint waypoint = new Waypoint(name, date, random.nextDouble() * 360 - 180, random.nextDouble() * 170 - 85);
+            items.add(new ExtractItem(name, date, waypoint));
+        }
+        outputFile = File.createTempFile("photo2kml-bench", ".kml");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public long writeFile() throws Exception {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<KmlOutputWorker.Result> result = new AtomicReference<>();
+        new KmlOutputWorker()
+                .items(items)
+                .sort(WaypointStore::nameSortComparator)
+                .outputFile(outputFile)
+                .callbackExecutor(Runnable::run)
+                .callback(r -> {
+                    result.set(r);
+                    finished.countDown();
+                })
+                .start();
+        finished.await();
+
+        if (!result.get().success) {
+            throw new IllegalStateException("KML output failed. (" + result.get().failureReason + ")");
+        }
+        return outputFile.length();
+    }
+}
@@ -0,0 +1,203 @@
+package com.williamquast;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic photo corpus for the benchmarks: small JPEGs with an Exif APP1 segment, some with a
+ * GPS IFD and some without, spread over nested directories.
+ *
+ * Run standalone to keep a corpus around for manual testing:
+ * {@code java com.williamquast.PhotoCorpus <dir> <directories> <filesPerDirectory> <gpsPercent>}
+ */
+public class PhotoCorpus {
+
+    private static final int DEPTH = 3; // directories are nested this deep, round robin
+
+    private final File root;
+    private final List<File> files = new ArrayList<>();
+
+    private PhotoCorpus(File root) {
+        this.root = root;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: PhotoCorpus <dir> <directories> <filesPerDirectory> <gpsPercent>");
+            System.exit(2);
+        }
+        PhotoCorpus corpus = generate(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        System.out.println("Wrote " + corpus.getFiles().size() + " photos to " + corpus.getRoot().getAbsolutePath());
+    }
+
+    /**
+     * Writes directories * filesPerDirectory JPEGs below root. gpsPercent of them carry a GPS position.
+     * The same arguments always produce the same corpus.
+     */
+    public static PhotoCorpus generate(File root, int directories, int filesPerDirectory, int gpsPercent) throws IOException {
+        PhotoCorpus corpus = new PhotoCorpus(root);
+        byte[] jpeg = baseJpeg();
+        Random random = new Random(42);
+
+        for (int d = 0; d < directories; d++) {
+            File dir = root;
+            for (int level = 0, n = d; level < DEPTH; level++, n /= 4) {
+                dir = new File(dir, "dir" + (n % 4) + (level == DEPTH - 1 ? "_" + d : ""));
+            }
+            dir.mkdirs();
+
+            for (int f = 0; f < filesPerDirectory; f++) {
+                boolean gps = random.nextInt(100) < gpsPercent;
+                double latitude = random.nextDouble() * 170 - 85;
+                double longitude = random.nextDouble() * 360 - 180;
+                long time = 1_500_000_000_000L + random.nextInt(Integer.MAX_VALUE) * 1000L;
+
+                File file = new File(dir, String.format("IMG_%05d.jpg", f));
+                try (OutputStream out = new FileOutputStream(file)) {
+                    writeJpeg(out, jpeg, exif(random.nextBoolean(), gps, latitude, longitude, time));
+                }
+                corpus.files.add(file);
+            }
+        }
+        return corpus;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public void delete() throws IOException {
+        if (!root.exists()) return;
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static byte[] baseJpeg() throws IOException {
+        BufferedImage image = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 255 / image.getWidth()) << 16 | (y * 255 / image.getHeight()) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes jpeg with an APP1 Exif segment inserted right after SOI.
+     */
+    private static void writeJpeg(OutputStream out, byte[] jpeg, byte[] tiff) throws IOException {
+        int length = 2 + 6 + tiff.length;
+        out.write(jpeg, 0, 2);
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length});
+        out.write("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+        out.write(tiff);
+        out.write(jpeg, 2, jpeg.length - 2);
+    }
+
+    /**
+     * Builds a TIFF block with IFD0 (DateTime, Exif and GPS pointers), an Exif SubIFD (DateTimeOriginal)
+     * and optionally a GPS IFD with position, date stamp and time stamp.
+     */
+    static byte[] exif(boolean littleEndian, boolean gps, double latitude, double longitude, long time) {
+        ByteBuffer buffer = ByteBuffer.allocate(512).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        String dateTime = String.format("%tY:%<tm:%<td %<tH:%<tM:%<tS", time);
+        byte[] dateTimeBytes = (dateTime + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        int ifd0Entries = gps ? 3 : 2;
+        int ifd0 = 8;
+        int dateTimeOffset = ifd0 + 2 + ifd0Entries * 12 + 4;
+        int exifIfd = dateTimeOffset + dateTimeBytes.length;
+        int dateTimeOriginalOffset = exifIfd + 2 + 12 + 4;
+        int gpsIfd = dateTimeOriginalOffset + dateTimeBytes.length;
+
+        buffer.put((byte) (littleEndian ? 'I' : 'M')).put((byte) (littleEndian ? 'I' : 'M')).putShort((short) 42).putInt(ifd0);
+        buffer.putShort((short) ifd0Entries);
+        entry(buffer, ExifGpsParser.TAG_DATETIME, 2, dateTimeBytes.length, dateTimeOffset);
+        entry(buffer, ExifGpsParser.TAG_EXIF_SUB_IFD_OFFSET, 4, 1, exifIfd);
+        if (gps) {
+            entry(buffer, ExifGpsParser.TAG_GPS_INFO_OFFSET, 4, 1, gpsIfd);
+        }
+        buffer.putInt(0);
+        buffer.put(dateTimeBytes);
+
+        buffer.putShort((short) 1);
+        entry(buffer, ExifGpsParser.TAG_DATETIME_ORIGINAL, 2, dateTimeBytes.length, dateTimeOriginalOffset);
+        buffer.putInt(0);
+        buffer.put(dateTimeBytes);
+
+        if (gps) {
+            int entries = 6;
+            int data = gpsIfd + 2 + entries * 12 + 4;
+            buffer.putShort((short) entries);
+            inlineAscii(buffer, ExifGpsParser.TAG_GPS_LATITUDE_REF, latitude < 0 ? 'S' : 'N');
+            entry(buffer, ExifGpsParser.TAG_GPS_LATITUDE, 5, 3, data);
+            inlineAscii(buffer, ExifGpsParser.TAG_GPS_LONGITUDE_REF, longitude < 0 ? 'W' : 'E');
+            entry(buffer, ExifGpsParser.TAG_GPS_LONGITUDE, 5, 3, data + 24);
+            entry(buffer, ExifGpsParser.TAG_GPS_TIME_STAMP, 5, 3, data + 48);
+            entry(buffer, ExifGpsParser.TAG_GPS_DATE_STAMP, 2, 11, data + 72);
+            buffer.putInt(0);
+
+            degrees(buffer, Math.abs(latitude));
+            degrees(buffer, Math.abs(longitude));
+            long secondOfDay = (time / 1000) % 86400;
+            buffer.putInt((int) (secondOfDay / 3600)).putInt(1);
+            buffer.putInt((int) (secondOfDay / 60 % 60)).putInt(1);
+            buffer.putInt((int) (secondOfDay % 60)).putInt(1);
+            buffer.put((dateTime.substring(0, 10) + "\0").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        byte[] tiff = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(tiff);
+        return tiff;
+    }
+
+    private static void entry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+
+    private static void inlineAscii(ByteBuffer buffer, int tag, char value) {
+        buffer.putShort((short) tag).putShort((short) 2).putInt(2).put((byte) value).put((byte) 0).putShort((short) 0);
+    }
+
+    private static void degrees(ByteBuffer buffer, double value) {
+        int degrees = (int) value;
+        int minutes = (int) ((value - degrees) * 60);
+        long seconds = Math.round(((value - degrees) * 60 - minutes) * 60 * 10000);
+        buffer.putInt(degrees).putInt(1).putInt(minutes).putInt(1).putInt((int) seconds).putInt(10000);
+    }
+}
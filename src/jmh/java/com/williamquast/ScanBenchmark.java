@@ -0,0 +1,89 @@
+package com.williamquast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * End-to-end PhotoLocationWorker throughput, walk plus extraction, at several thread counts and in both execution
+ * modes. A threadCount of 0 leaves the pool sizes to the scheduler. Scores are per photo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    static final int DIRECTORIES = 40;
+    static final int FILES_PER_DIRECTORY = 100;
+    static final int FILES = DIRECTORIES * FILES_PER_DIRECTORY;
+
+    @Param({"1", "4", "20", "0"})
+    int threadCount;
+
+    @Param({"POOLED", "THREAD_PER_TASK"})
+    TaskScheduler.Mode mode;
+
+    private PhotoCorpus corpus;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = PhotoCorpus.generate(Files.createTempDirectory("photo2kml-scan").toFile(), DIRECTORIES, FILES_PER_DIRECTORY, 80);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public PhotoLocationWorker.Result scan() throws Exception {
+        return scan(corpus.getRoot(), threadCount, mode, null);
+    }
+
+    /**
+     * Runs a PhotoLocationWorker to completion on the calling thread's behalf and returns its Result.
+     */
+    static PhotoLocationWorker.Result scan(File sourceDir, int threadCount, TaskScheduler.Mode mode, File indexFile) throws Exception {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<PhotoLocationWorker.Result> result = new AtomicReference<>();
+        new PhotoLocationWorker()
+                .sourceDir(sourceDir)
+                .indexFile(indexFile)
+                .threadCount(threadCount)
+                .executionMode(mode)
+                .callbackExecutor(Runnable::run)
+                .progressListener((found, processed, items) -> {})
+                .finishListener(r -> {
+                    result.set(r);
+                    finished.countDown();
+                })
+                .start();
+        finished.await();
+
+        if (!result.get().success) {
+            throw new IllegalStateException("Scan failed. (" + result.get().failureReason + ")");
+        }
+        return result.get();
+    }
+}
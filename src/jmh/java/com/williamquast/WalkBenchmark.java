@@ -0,0 +1,59 @@
+package com.williamquast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory walking throughput of SearchDirectoryTask. The scan index is warmed in setup so every file is answered
+ * from the index after its stat, which leaves the listing, stat and hand-off as the measured work. Scores are per
+ * photo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalkBenchmark {
+
+    private static final int DIRECTORIES = 100;
+    private static final int FILES_PER_DIRECTORY = 50;
+
+    private PhotoCorpus corpus;
+    private File indexFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = PhotoCorpus.generate(Files.createTempDirectory("photo2kml-walk").toFile(), DIRECTORIES, FILES_PER_DIRECTORY, 80);
+        indexFile = File.createTempFile("photo2kml-walk", ".idx");
+        indexFile.delete();
+        ScanBenchmark.scan(corpus.getRoot(), 0, TaskScheduler.Mode.POOLED, indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.delete();
+        indexFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DIRECTORIES * FILES_PER_DIRECTORY)
+    public PhotoLocationWorker.Result walk() throws Exception {
+        return ScanBenchmark.scan(corpus.getRoot(), 0, TaskScheduler.Mode.POOLED, indexFile);
+    }
+}
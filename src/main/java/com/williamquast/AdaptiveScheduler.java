@@ -0,0 +1,313 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs blocking file I/O and CPU bound metadata parsing on two separately sized thread pools.
+ * A controller thread samples the throughput and latency of each pool once per interval and resizes it by
+ * hill-climbing: keep moving the size in the direction that raised throughput, back off when throughput drops
+ * or latency climbs without a throughput gain. A local NVMe disk settles on few I/O threads, while a high latency
+ * network mount climbs until the device stops giving more throughput.
+ */
+public class AdaptiveScheduler implements TaskScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveScheduler.class);
+
+    static final int MIN_IO_THREADS = 2;
+    static final int MAX_IO_THREADS = 256;
+    static final int INITIAL_IO_THREADS = 8;
+    private static final long CONTROL_INTERVAL = 1000; // ms between resize decisions
+
+    private final TimedThreadPoolExecutor ioExecutor;
+    private final TimedThreadPoolExecutor cpuExecutor;
+    private final ConcurrencyController ioController;
+    private final ConcurrencyController cpuController;
+    private final ScheduledExecutorService controlThread;
+    private final AdaptiveScheduler parent; // owner of the shared CPU pool, null if this is the owner
+    private final List<AdaptiveScheduler> ioStages = new CopyOnWriteArrayList<>(); // resized by this controller
+
+    /**
+     * Creates a scheduler that adapts both pools at runtime.
+     */
+    public AdaptiveScheduler() {
+        this(INITIAL_IO_THREADS, true);
+    }
+
+    /**
+     * Creates a scheduler with a fixed I/O pool size. The CPU pool is sized to the processor count.
+     */
+    public AdaptiveScheduler(int ioThreads) {
+        this(ioThreads, false);
+    }
+
+    private AdaptiveScheduler(int ioThreads, boolean adaptive) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ioController = new ConcurrencyController("io", adaptive ? MIN_IO_THREADS : ioThreads,
+                adaptive ? MAX_IO_THREADS : ioThreads, ioThreads);
+        cpuController = new ConcurrencyController("cpu", 1, cores, cores);
+
+        ioExecutor = new TimedThreadPoolExecutor(ioController, "photo-io-");
+        cpuExecutor = new TimedThreadPoolExecutor(cpuController, "photo-cpu-");
+
+        if (adaptive) {
+            controlThread = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("photo-scheduler"));
+            controlThread.scheduleAtFixedRate(this::adjust, CONTROL_INTERVAL, CONTROL_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            controlThread = null;
+        }
+        parent = null;
+    }
+
+    /**
+     * Creates an I/O stage for another device, sharing the CPU pool and controller thread of parent.
+     */
+    private AdaptiveScheduler(AdaptiveScheduler parent) {
+        boolean adaptive = parent.controlThread != null;
+        ioController = new ConcurrencyController("io", parent.ioController.min, parent.ioController.max,
+                adaptive ? INITIAL_IO_THREADS : parent.ioController.max);
+        ioExecutor = new TimedThreadPoolExecutor(ioController, "photo-io-");
+        cpuController = parent.cpuController;
+        cpuExecutor = parent.cpuExecutor;
+        controlThread = null;
+        this.parent = parent;
+    }
+
+    @Override
+    public TaskScheduler newIoStage() {
+        AdaptiveScheduler ioStage = new AdaptiveScheduler(parent != null ? parent : this);
+        ioStage.parent.ioStages.add(ioStage);
+        return ioStage;
+    }
+
+    @Override
+    public void executeIo(Runnable task) {
+        ioExecutor.executeBounded(task);
+    }
+
+    @Override
+    public void executeCpu(Runnable task) {
+        cpuExecutor.executeBounded(task);
+    }
+
+    @Override
+    public int getIoConcurrency() {
+        return ioController.current;
+    }
+
+    @Override
+    public int getCpuConcurrency() {
+        return cpuController.current;
+    }
+
+    @Override
+    public int getIoQueueDepth() {
+        return ioExecutor.getQueue().size();
+    }
+
+    @Override
+    public int getCpuQueueDepth() {
+        return cpuExecutor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveIoThreads() {
+        return ioExecutor.getActiveCount();
+    }
+
+    @Override
+    public int getActiveCpuThreads() {
+        return cpuExecutor.getActiveCount();
+    }
+
+    @Override
+    public void shutdownNow() {
+        if (parent != null) {
+            parent.ioStages.remove(this);
+            ioExecutor.shutdownNow();
+            log.info("I/O stage shutdown. ioConcurrency=" + getIoConcurrency());
+            return;
+        }
+        if (controlThread != null) {
+            controlThread.shutdownNow();
+        }
+        ioExecutor.shutdownNow();
+        cpuExecutor.shutdownNow();
+        log.info("Scheduler shutdown. ioConcurrency=" + getIoConcurrency() + " cpuConcurrency=" + getCpuConcurrency());
+    }
+
+    private void adjust() {
+        try {
+            double seconds = CONTROL_INTERVAL / 1000.0;
+            ioExecutor.resize(ioController.adjust(seconds, ioExecutor.getQueue().size()));
+            cpuExecutor.resize(cpuController.adjust(seconds, cpuExecutor.getQueue().size()));
+            for (AdaptiveScheduler ioStage : ioStages) {
+                ioStage.ioExecutor.resize(ioStage.ioController.adjust(seconds, ioStage.ioExecutor.getQueue().size()));
+            }
+        } catch (Exception ex) {
+            log.error("Scheduler adjust failed.", ex);
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Hill-climbing controller for the size of one pool. Throughput is smoothed with an EWMA to ride out noise,
+     * growth is additive and a drop in throughput is answered with a multiplicative decrease.
+     */
+    static class ConcurrencyController {
+
+        private static final double SMOOTHING = 0.5; // EWMA weight of the newest sample
+        private static final double TOLERANCE = 0.05; // changes within 5% count as a plateau
+        private static final double LATENCY_RISE = 1.5; // latency growth that signals a saturated device
+
+        final String name;
+        final int min;
+        final int max;
+        volatile int current;
+
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private double throughput = -1; // smoothed tasks per second at the previous decision
+        private double latency = -1; // mean task latency in nanos at the previous decision
+        private int direction = 1;
+
+        ConcurrencyController(String name, int min, int max, int initial) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.current = Math.max(min, Math.min(max, initial));
+        }
+
+        void record(long nanos) {
+            completed.increment();
+            latencyNanos.add(nanos);
+        }
+
+        /**
+         * Returns the pool size to use for the next interval.
+         */
+        int adjust(double seconds, int queued) {
+            long done = completed.sumThenReset();
+            long nanos = latencyNanos.sumThenReset();
+            if (done == 0 || min == max) {
+                return current; // idle, nothing to learn from
+            }
+
+            double sample = done / seconds;
+            double meanLatency = nanos / (double) done;
+            double smoothed = throughput < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput;
+
+            int next = current;
+            if (throughput < 0) {
+                next = current + 1; // first sample, probe upward
+            } else if (smoothed > throughput * (1 + TOLERANCE)) {
+                next = current + direction * step(); // the last move helped, keep going
+            } else if (smoothed < throughput * (1 - TOLERANCE)) {
+                if (direction > 0) {
+                    next = current * 3 / 4; // overshot the device, multiplicative decrease
+                } else {
+                    next = current + step();
+                }
+                direction = -direction;
+            } else if (latency > 0 && meanLatency > latency * LATENCY_RISE) {
+                next = current - step(); // same throughput but longer waits, threads are just queueing
+                direction = -1;
+            } else if (queued > current) {
+                next = current + 1; // plateau with a backlog, keep probing
+                direction = 1;
+            }
+
+            if (queued == 0 && next > current) {
+                next = current; // no backlog, extra threads would sit idle
+            }
+            next = Math.max(min, Math.min(max, next));
+
+            if (next != current) {
+                log.debug("Resize " + name + " pool " + current + " -> " + next + ". throughput=" + Math.round(smoothed)
+                        + "/s latency=" + Math.round(meanLatency / 1000) + "us queued=" + queued);
+            }
+            throughput = smoothed;
+            latency = meanLatency;
+            current = next;
+            return next;
+        }
+
+        private int step() {
+            return Math.max(1, current / 8);
+        }
+    }
+
+    /**
+     * ThreadPoolExecutor that reports the run time of every task to its controller and limits the count of
+     * queued and running tasks to STAGE_CAPACITY.
+     */
+    private static class TimedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        private final ConcurrencyController controller;
+        private final ThreadLocal<Long> startTime = new ThreadLocal<>();
+        private final Semaphore backlog = new Semaphore(STAGE_CAPACITY);
+
+        TimedThreadPoolExecutor(ConcurrencyController controller, String threadPrefix) {
+            super(controller.current, controller.current, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    daemonThreadFactory(threadPrefix));
+            this.controller = controller;
+        }
+
+        void executeBounded(Runnable task) {
+            try {
+                backlog.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted waiting for stage capacity.", ex);
+            }
+            try {
+                execute(task);
+            } catch (RejectedExecutionException ex) {
+                backlog.release();
+                throw ex;
+            }
+        }
+
+        void resize(int size) {
+            if (size > getMaximumPoolSize()) {
+                setMaximumPoolSize(size);
+                setCorePoolSize(size);
+            } else if (size < getCorePoolSize()) {
+                setCorePoolSize(size);
+                setMaximumPoolSize(size);
+            }
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable task) {
+            startTime.set(System.nanoTime());
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable throwable) {
+            controller.record(System.nanoTime() - startTime.get());
+            backlog.release();
+        }
+    }
+}
@@ -17,6 +17,10 @@ public class Application extends javafx.application.Application {
     private static final Logger log = LoggerFactory.getLogger(Application.class);
 
     public static void main(String[] args) {
+        if (CommandLine.isHeadless(args)) {
+            log.info("Starting Application headless.");
+            System.exit(CommandLine.run(args));
+        }
         log.info("Starting Application.");
         launch(args);
     }
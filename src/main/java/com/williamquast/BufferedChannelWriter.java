@@ -0,0 +1,185 @@
+package com.williamquast;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Base of the text exporters. Output is encoded as UTF-8 straight into one reusable byte buffer, which is written
+ * to the channel when full, and numbers and dates are formatted into it without creating any garbage.
+ * Subclasses put their markup with the protected methods and call flush once done.
+ */
+public abstract class BufferedChannelWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int COORDINATE_DECIMALS = 7; // about 1cm at the equator, finer than any phone GPS
+    private static final long COORDINATE_SCALE = 10_000_000L; // 10^COORDINATE_DECIMALS
+    private static final double MAX_FAST_COORDINATE = 1e11; // larger values would overflow the scaled long
+    protected static final int MAX_COORDINATE_BYTES = 32;
+    protected static final int MAX_TIMESTAMP_BYTES = 40;
+
+    protected final WritableByteChannel channel;
+    protected final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    protected int position;
+
+    /**
+     * Writes to channel, which close closes.
+     */
+    protected BufferedChannelWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes what is buffered and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    protected void put(byte[] bytes) throws IOException {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    protected void putAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    protected void putCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            buffer[position++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (codePoint >> 6));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            buffer[position++] = (byte) (0xE0 | (codePoint >> 12));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    /**
+     * Writes value rounded to COORDINATE_DECIMALS places in plain decimal notation, trailing zeros removed.
+     * KML does not accept the exponent notation that Double.toString produces for small values.
+     */
+    protected void putCoordinate(double value) throws IOException {
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("Coordinate is not a finite number. (" + value + ")");
+        }
+        if (Math.abs(value) >= MAX_FAST_COORDINATE) {
+            put(ascii(BigDecimal.valueOf(value).toPlainString()));
+            return;
+        }
+
+        ensureCapacity(MAX_COORDINATE_BYTES);
+        long scaled = Math.round(Math.abs(value) * COORDINATE_SCALE);
+        if (value < 0 && scaled != 0) {
+            buffer[position++] = '-';
+        }
+        putDigits(scaled / COORDINATE_SCALE, 1);
+
+        long fraction = scaled % COORDINATE_SCALE;
+        if (fraction != 0) {
+            int digits = COORDINATE_DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            buffer[position++] = '.';
+            putDigits(fraction, digits);
+        }
+    }
+
+    /**
+     * Writes epoch millis as an XML Schema dateTime in UTC, like 2020-06-01T14:03:22Z, with milliseconds only when
+     * there are any.
+     */
+    protected void putTimestamp(long millis) throws IOException {
+        ensureCapacity(MAX_TIMESTAMP_BYTES);
+        LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC);
+        if (time.getYear() < 0) {
+            buffer[position++] = '-';
+        }
+        putDigits(Math.abs(time.getYear()), 4);
+        buffer[position++] = '-';
+        putDigits(time.getMonthValue(), 2);
+        buffer[position++] = '-';
+        putDigits(time.getDayOfMonth(), 2);
+        buffer[position++] = 'T';
+        putDigits(time.getHour(), 2);
+        buffer[position++] = ':';
+        putDigits(time.getMinute(), 2);
+        buffer[position++] = ':';
+        putDigits(time.getSecond(), 2);
+        long fraction = Math.floorMod(millis, 1000);
+        if (fraction != 0) {
+            buffer[position++] = '.';
+            putDigits(fraction, 3);
+        }
+        buffer[position++] = 'Z';
+    }
+
+    protected void putInteger(int value) throws IOException {
+        ensureCapacity(MAX_COORDINATE_BYTES);
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        putDigits(Math.abs((long) value), 1);
+    }
+
+    /**
+     * Writes a non negative number, left padded with zeros to at least minDigits.
+     */
+    protected void putDigits(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    protected void ensureCapacity(int length) throws IOException {
+        if (position + length > buffer.length) {
+            flush();
+            if (length > buffer.length) {
+                throw new IOException("Fragment larger than the write buffer. (" + length + " bytes)");
+            }
+        }
+    }
+
+    protected void flush() throws IOException {
+        byteBuffer.clear().limit(position);
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        position = 0;
+    }
+
+    protected static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
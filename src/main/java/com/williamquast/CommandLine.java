@@ -0,0 +1,621 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Headless entry point that runs the same extraction pipeline as the GUI without starting the JavaFX toolkit.
+ * With no sort order, each placemark is streamed to the KML file as soon as it is extracted, so memory stays flat
+ * regardless of the size of the directory tree.
+ */
+public class CommandLine {
+
+    private static final Logger log = LoggerFactory.getLogger(CommandLine.class);
+
+    private static final long PROGRESS_LOG_INTERVAL = 5000; // ms between progress log lines
+
+    enum SortOrder {
+        NONE, FILENAME, TIMESTAMP, LOCATION;
+
+        /**
+         * Returns the comparator for this order over the slots of store, null for NONE.
+         */
+        WaypointStore.IndexComparator comparator(WaypointStore store) {
+            switch (this) {
+                case FILENAME:
+                    return store.nameSortComparator();
+                case TIMESTAMP:
+                    return store.timestampSortComparator();
+                case LOCATION:
+                    return store.locationSortComparator();
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final List<File> sourceDirs = new ArrayList<>();
+    private String pathList; // file with one path per line, "-" for stdin, null for none
+    private File outputFile;
+    private SortOrder sortOrder = SortOrder.NONE;
+    private int threadCount = 0; // 0 lets the scheduler size the pools
+    private TaskScheduler.Mode executionMode = TaskScheduler.Mode.POOLED;
+    private boolean useIndex = true;
+    private boolean allFiles; // read files the PhotoFileFilter would skip
+    private boolean thumbnails;
+    private KmlWriter.TrackGeometry trackGeometry; // null writes placemarks
+    private final TrackBuilder trackBuilder = new TrackBuilder();
+    private TilePyramid tilePyramid; // null writes one document
+    private Function<SpatialIndex, int[]> filter; // null writes every photo
+    private Deduplicator deduplicator; // null keeps duplicates
+    private long metricsInterval = ScanMetrics.DEFAULT_LOG_INTERVAL; // ms, 0 for no metrics lines
+    private DirectoryWatcher.Mode watchMode; // null scans once
+    private boolean places; // group placemarks into a folder per place
+    private File gazetteerFile = Gazetteer.defaultFile();
+    private double placeDistance = Gazetteer.DEFAULT_MAX_DISTANCE;
+    private File geonamesFile; // build the gazetteer index from it instead of scanning
+    private final List<File> trackLogs = new ArrayList<>(); // GPX or CSV logs to geotag photos without GPS from
+    private final TrackCorrelator correlator = new TrackCorrelator();
+
+    private PlacemarkWriter placemarkWriter;
+    private IncrementalKmlDocument watchDocument; // only in watch mode
+    private final WaypointStore sortBuffer = new WaypointStore(); // only used when isBuffered
+    private long lastProgressLog;
+
+    /**
+     * Returns true if the arguments ask for headless mode rather than the GUI.
+     */
+    public static boolean isHeadless(String[] args) {
+        return args != null && args.length > 0;
+    }
+
+    /**
+     * Runs the command line and returns the process exit code.
+     */
+    public static int run(String[] args) {
+        CommandLine commandLine = new CommandLine();
+        try {
+            if (!commandLine.parse(args)) {
+                printUsage(System.out);
+                return 0;
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+        return commandLine.execute();
+    }
+
+    /**
+     * Parses the arguments into this instance. Returns false if help was requested.
+     */
+    boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h":
+                case "--help":
+                    return false;
+                case "-o":
+                case "--output":
+                    outputFile = new File(requireValue(args, ++i, arg));
+                    break;
+                case "-s":
+                case "--sort":
+                    String sort = requireValue(args, ++i, arg);
+                    try {
+                        sortOrder = SortOrder.valueOf(sort.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Unknown sort order. (" + sort + ")");
+                    }
+                    break;
+                case "-t":
+                case "--threads":
+                    String threads = requireValue(args, ++i, arg);
+                    try {
+                        threadCount = Integer.parseInt(threads);
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Thread count is not a number. (" + threads + ")");
+                    }
+                    if (threadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1.");
+                    break;
+                case "-m":
+                case "--mode":
+                    String mode = requireValue(args, ++i, arg);
+                    try {
+                        executionMode = TaskScheduler.Mode.valueOf(mode.toUpperCase(Locale.ROOT).replace('-', '_'));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Unknown execution mode. (" + mode + ")");
+                    }
+                    break;
+                case "--no-index":
+                    useIndex = false;
+                    break;
+                case "--all-files":
+                    allFiles = true;
+                    break;
+                case "--thumbnails":
+                    thumbnails = true;
+                    break;
+                case "--track":
+                    String geometry = requireValue(args, ++i, arg);
+                    try {
+                        trackGeometry = KmlWriter.TrackGeometry.valueOf(geometry.toUpperCase(Locale.ROOT).replace('-', '_'));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Unknown track geometry. (" + geometry + ")");
+                    }
+                    break;
+                case "--track-tolerance":
+                    trackBuilder.tolerance(parseNumber(requireValue(args, ++i, arg), "Track tolerance"));
+                    break;
+                case "--track-time-gap":
+                    trackBuilder.maxTimeGap(Math.round(parseNumber(requireValue(args, ++i, arg), "Track time gap") * 60_000));
+                    break;
+                case "--tiles":
+                    if (tilePyramid == null) tilePyramid = new TilePyramid();
+                    break;
+                case "--tile-size":
+                    String tileSize = requireValue(args, ++i, arg);
+                    try {
+                        if (tilePyramid == null) tilePyramid = new TilePyramid();
+                        tilePyramid.maxPlacemarks(Integer.parseInt(tileSize));
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Tile size is not a number. (" + tileSize + ")");
+                    }
+                    break;
+                case "--bbox":
+                    double[] box = parseNumbers(requireValue(args, ++i, arg), 4, "Bounding box");
+                    filter = index -> index.bbox(box[0], box[1], box[2], box[3]);
+                    break;
+                case "--within":
+                    double[] circle = parseNumbers(requireValue(args, ++i, arg), 3, "Radius filter");
+                    filter = index -> index.radius(circle[0], circle[1], circle[2]);
+                    break;
+                case "--nearest":
+                    double[] nearest = parseNumbers(requireValue(args, ++i, arg), 3, "Nearest filter");
+                    filter = index -> index.nearest(nearest[0], nearest[1], (int) nearest[2]);
+                    break;
+                case "--dedupe":
+                    if (deduplicator == null) deduplicator = new Deduplicator();
+                    break;
+                case "--dedupe-distance":
+                    if (deduplicator == null) deduplicator = new Deduplicator();
+                    deduplicator.distance(parseNumber(requireValue(args, ++i, arg), "De-duplication distance"));
+                    break;
+                case "--dedupe-window":
+                    if (deduplicator == null) deduplicator = new Deduplicator();
+                    deduplicator.timeWindow(Math.round(parseNumber(requireValue(args, ++i, arg), "De-duplication window") * 1000));
+                    break;
+                case "--paths-from":
+                    pathList = requireValue(args, ++i, arg);
+                    break;
+                case "--metrics-interval":
+                    double interval = parseNumber(requireValue(args, ++i, arg), "Metrics interval");
+                    if (interval < 0) throw new IllegalArgumentException("Metrics interval must be 0 or more seconds.");
+                    metricsInterval = Math.round(interval * 1000);
+                    break;
+                case "--watch":
+                    if (watchMode == null) watchMode = DirectoryWatcher.Mode.AUTO;
+                    break;
+                case "--watch-poll":
+                    watchMode = DirectoryWatcher.Mode.POLLING;
+                    break;
+                case "--places":
+                    places = true;
+                    break;
+                case "--gazetteer":
+                    gazetteerFile = new File(requireValue(args, ++i, arg));
+                    places = true;
+                    break;
+                case "--place-distance":
+                    placeDistance = parseNumber(requireValue(args, ++i, arg), "Place distance");
+                    places = true;
+                    break;
+                case "--build-gazetteer":
+                    geonamesFile = new File(requireValue(args, ++i, arg));
+                    break;
+                case "--geotag":
+                    trackLogs.add(new File(requireValue(args, ++i, arg)));
+                    break;
+                case "--geotag-offset":
+                    correlator.clockOffset(parseClockOffset(requireValue(args, ++i, arg)));
+                    break;
+                case "--geotag-max-gap":
+                    double gap = parseNumber(requireValue(args, ++i, arg), "Geotag max gap");
+                    if (gap < 0) throw new IllegalArgumentException("Geotag max gap must be 0 or more minutes.");
+                    correlator.maxGap(Math.round(gap * 60_000));
+                    break;
+                case "--track-distance-gap":
+                    trackBuilder.maxDistanceGap(parseNumber(requireValue(args, ++i, arg), "Track distance gap"));
+                    break;
+                default:
+                    if (arg.startsWith("-")) throw new IllegalArgumentException("Unknown option. (" + arg + ")");
+                    sourceDirs.add(new File(arg));
+            }
+        }
+
+        if (geonamesFile != null) {
+            if (!sourceDirs.isEmpty() || pathList != null) {
+                throw new IllegalArgumentException("--build-gazetteer only builds the index, it does not scan.");
+            }
+            return true;
+        }
+        if (sourceDirs.isEmpty() && pathList == null) {
+            throw new IllegalArgumentException("At least one source directory or --paths-from is required.");
+        }
+        if (outputFile == null) throw new IllegalArgumentException("Output file is required.");
+        if (trackGeometry != null && (thumbnails || sortOrder != SortOrder.NONE)) {
+            throw new IllegalArgumentException("Tracks are always in time order and have no thumbnails.");
+        }
+        if ((trackGeometry != null || thumbnails) && !PlacemarkWriter.isKml(outputFile)) {
+            throw new IllegalArgumentException("Tracks and thumbnails need a .kml or .kmz output file.");
+        }
+        if (tilePyramid != null && (thumbnails || trackGeometry != null || !outputFile.getName().toLowerCase(Locale.ROOT).endsWith(".kml"))) {
+            throw new IllegalArgumentException("Tiles need a .kml output file and cannot be combined with tracks or thumbnails.");
+        }
+        if (places && (trackGeometry != null || tilePyramid != null)) {
+            throw new IllegalArgumentException("Place folders cannot be combined with tracks or tiles.");
+        }
+        if (watchMode != null && (sourceDirs.isEmpty() || isBuffered() || thumbnails || deduplicator != null
+                || !outputFile.getName().toLowerCase(Locale.ROOT).endsWith(".kml"))) {
+            throw new IllegalArgumentException("Watch mode needs a source directory and a .kml output file, and cannot be combined with sorting, filters, places, tracks, tiles, thumbnails or de-duplication.");
+        }
+        return true;
+    }
+
+    /**
+     * Parses count comma separated numbers, like a bounding box.
+     */
+    private static double[] parseNumbers(String value, int count, String name) {
+        String[] parts = value.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException(name + " needs " + count + " comma separated numbers. (" + value + ")");
+        }
+        double[] numbers = new double[count];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = parseNumber(parts[i].trim(), name);
+        }
+        return numbers;
+    }
+
+    /**
+     * Parses a camera clock offset as seconds, like 7230, or as a zone offset, like +02:00 or -05:30:15.
+     */
+    private static long parseClockOffset(String value) {
+        if (value.indexOf(':') < 0) {
+            return Math.round(parseNumber(value, "Clock offset") * 1000);
+        }
+        boolean negative = value.startsWith("-");
+        String[] parts = value.replaceFirst("^[+-]", "").split(":");
+        if (parts.length > 3) throw new IllegalArgumentException("Clock offset is not [+-]hh:mm[:ss]. (" + value + ")");
+        double seconds = 0;
+        for (String part : parts) {
+            seconds = seconds * 60 + parseNumber(part, "Clock offset");
+        }
+        for (int i = parts.length; i < 3; i++) {
+            seconds *= 60;
+        }
+        return Math.round((negative ? -seconds : seconds) * 1000);
+    }
+
+    private static double parseNumber(String value, String name) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " is not a number. (" + value + ")");
+        }
+    }
+
+    private static String requireValue(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    static void printUsage(PrintStream out) {
+        out.println("Usage: photo2kml [options] <sourceDir>...");
+        out.println("Source directories on different drives are scanned at the same time.");
+        out.println("  -o, --output <file>    file to write (required): KML or KMZ, or by extension GeoJSON (.geojson),");
+        out.println("                         newline delimited GeoJSON (.geojsonl), CSV (.csv) or FlatGeobuf (.fgb)");
+        out.println("  -s, --sort <order>     none, filename, timestamp or location. (default none, streams placemarks as found)");
+        out.println("  -t, --threads <count>  fixed I/O thread count, or I/O concurrency limit for thread-per-task.");
+        out.println("  -m, --mode <mode>      pooled or thread-per-task. (default pooled)");
+        out.println("      --no-index         do not use the incremental scan index");
+        out.println("      --all-files        also read files that cannot be photos by extension or size");
+        out.println("      --thumbnails       show a photo thumbnail in each placemark, embedded in KMZ or next to KML");
+        out.println("      --track <geometry> write simplified tracks instead of placemarks, line-string or gx-track");
+        out.println("      --track-tolerance <meters>     max distance of dropped track points. (default " + TrackBuilder.DEFAULT_TOLERANCE + ")");
+        out.println("      --track-time-gap <minutes>     split tracks at longer gaps. (default " + TrackBuilder.DEFAULT_MAX_TIME_GAP / 60_000 + ")");
+        out.println("      --track-distance-gap <meters>  split tracks at longer jumps. (default " + TrackBuilder.DEFAULT_MAX_DISTANCE_GAP + ")");
+        out.println("      --tiles            write a level of detail pyramid of KML tiles next to the output file");
+        out.println("      --tile-size <count>            photo placemarks per tile before it is split. (default " + TilePyramid.DEFAULT_MAX_PLACEMARKS + ")");
+        out.println("      --bbox <west,south,east,north>  only photos inside the box, in degrees");
+        out.println("      --within <lon,lat,meters>       only photos within meters of a point");
+        out.println("      --nearest <lon,lat,count>       only the count photos nearest to a point");
+        out.println("      --dedupe           merge burst shots and RAW+JPEG pairs into one placemark per group");
+        out.println("      --dedupe-distance <meters>     max distance within a group. (default " + Deduplicator.DEFAULT_DISTANCE + ")");
+        out.println("      --dedupe-window <seconds>      max time between photos of a group. (default " + Deduplicator.DEFAULT_TIME_WINDOW / 1000.0 + ")");
+        out.println("      --geotag <file>    place photos without GPS on a GPX or CSV track log by time, repeatable");
+        out.println("      --geotag-offset <offset>       camera clock ahead of UTC, seconds or [+-]hh:mm. (default 0)");
+        out.println("      --geotag-max-gap <minutes>     longest track gap to interpolate across. (default " + TrackCorrelator.DEFAULT_MAX_GAP / 60_000 + ")");
+        out.println("      --paths-from <file>            also scan the files and directories listed one per line, - for stdin");
+        out.println("      --metrics-interval <seconds>   seconds between scan metrics log lines, 0 for none. (default " + ScanMetrics.DEFAULT_LOG_INTERVAL / 1000 + ")");
+        out.println("      --places           group placemarks into a folder per nearest place from the gazetteer");
+        out.println("      --gazetteer <file>             gazetteer index to use or build. (default " + Gazetteer.defaultFile() + ")");
+        out.println("      --place-distance <meters>      photos farther from any place go in Unknown place. (default " + Gazetteer.DEFAULT_MAX_DISTANCE + ")");
+        out.println("      --build-gazetteer <geonames>   build the gazetteer index from a GeoNames dump, like cities500.txt, and exit");
+        out.println("      --watch            keep running and update the output as photos are added, changed or deleted");
+        out.println("      --watch-poll       watch by polling, for network drives that do not report changes");
+        out.println("  -h, --help             show this help");
+        out.println("Run without arguments to start the GUI.");
+    }
+
+    int execute() {
+        if (geonamesFile != null) {
+            return buildGazetteer();
+        }
+        for (File trackLog : trackLogs) {
+            try {
+                correlator.load(trackLog);
+            } catch (IOException ex) {
+                log.error("Failed reading track log. file=" + trackLog.getPath() + " reason=" + ex.getMessage());
+                return 1;
+            }
+        }
+        if (watchMode != null) {
+            return watch();
+        }
+        log.info("Begin headless run. sourceDirs=" + sourceDirs + " pathList=" + pathList + " output=" + outputFile.getAbsolutePath()
+                + " sort=" + sortOrder + " filter=" + (filter != null) + " places=" + places + " dedupe=" + (deduplicator != null) + " track=" + trackGeometry + " tiles=" + (tilePyramid != null) + " mode=" + executionMode + " threads=" + (threadCount > 0 ? threadCount : "default"));
+        int exitCode = 0;
+        PlaceFolders placeFolders = null;
+        if (places) {
+            try {
+                placeFolders = new PlaceFolders(Gazetteer.open(gazetteerFile).maxDistance(placeDistance));
+            } catch (IOException ex) {
+                log.error("Failed opening gazetteer, build it with --build-gazetteer. file=" + gazetteerFile.getPath() + " reason=" + ex.getMessage());
+                return 1;
+            }
+        }
+        try (PlacemarkWriter writer = tilePyramid == null ? PlacemarkWriter.open(outputFile, thumbnails) : null) {
+            placemarkWriter = writer;
+            if (deduplicator != null) {
+                deduplicator.sink(this::handleItem);
+            }
+            PhotoLocationWorker.Result result = scan();
+            if (result.success) {
+                log.info("Completed scan. found=" + result.foundItems + " processed=" + result.processedItems
+                        + " skipped=" + result.skippedItems + " correlated=" + result.correlatedItems + " ioConcurrency=" + result.ioConcurrency + " cpuConcurrency=" + result.cpuConcurrency);
+            } else {
+                log.error("Failed scan. reason=" + result.failureReason);
+                exitCode = 1;
+            }
+
+            if (deduplicator != null) {
+                deduplicator.finish();
+            }
+
+            if (!isBuffered()) {
+                log.info("Wrote " + writer.getPlacemarkCount() + " placemarks. file=" + outputFile.getAbsolutePath());
+                return exitCode;
+            }
+
+            int[] order;
+            if (filter != null) {
+                order = filter.apply(SpatialIndex.build(sortBuffer));
+                Arrays.sort(order);
+                log.info("Filter matched " + order.length + " of " + sortBuffer.getSuccessCount() + " placemarks.");
+            } else {
+                order = sortBuffer.successIndexes();
+            }
+            if (sortOrder != SortOrder.NONE) {
+                WaypointStore.parallelSort(order, sortOrder.comparator(sortBuffer));
+            }
+
+            if (tilePyramid != null) {
+                TilePyramid.Result tiles = tilePyramid.write(sortBuffer, order, outputFile, () -> false, written -> {});
+                log.info("Wrote " + order.length + " placemarks in " + tiles.getTiles() + " tiles. file=" + outputFile.getAbsolutePath());
+                return exitCode;
+            } else if (trackGeometry != null) {
+                trackBuilder.build(sortBuffer, order, () -> false,
+                        segment -> ((KmlWriter) writer).writeTrack("Track " + segment.getNumber(), segment, trackGeometry));
+            } else if (placeFolders != null) {
+                placeFolders.write(sortBuffer, order, writer, () -> false, written -> {});
+            } else {
+                for (int index : order) {
+                    ExtractItem item = sortBuffer.get(index);
+                    writer.writePlacemark(item.waypoint, item.file);
+                }
+            }
+            log.info("Wrote " + writer.getPlacemarkCount() + " placemarks. file=" + outputFile.getAbsolutePath());
+        } catch (IOException ex) {
+            log.error("Failed writing placemarks to file.", ex);
+            return 1;
+        } catch (InterruptedException ex) {
+            log.error("Interrupted while waiting for scan.", ex);
+            return 1;
+        }
+        return exitCode;
+    }
+
+    /**
+     * Scans the source directories once into an IncrementalKmlDocument, then keeps it up to date with a
+     * DirectoryWatcher until the process is stopped. Each batch of changes is scanned as a path list.
+     */
+    private int watch() {
+        log.info("Begin watch. sourceDirs=" + sourceDirs + " pathList=" + pathList + " output=" + outputFile.getAbsolutePath() + " mode=" + watchMode);
+        watchDocument = new IncrementalKmlDocument(outputFile);
+        BlockingQueue<Changes> batches = new LinkedBlockingQueue<>();
+        try (DirectoryWatcher watcher = new DirectoryWatcher()
+                .roots(sourceDirs)
+                .mode(watchMode)
+                .listener((changed, deleted) -> batches.add(new Changes(changed, deleted)))) {
+            // watch before the first scan, so photos added during it are not missed
+            watcher.start();
+            PhotoLocationWorker.Result result = scan();
+            if (!result.success) {
+                log.error("Failed scan. reason=" + result.failureReason);
+                return 1;
+            }
+            watchDocument.flush();
+            log.info("Wrote " + watchDocument.size() + " placemarks, watching for changes. file=" + outputFile.getAbsolutePath());
+
+            while (true) {
+                Changes batch = batches.take();
+                long start = System.nanoTime();
+                for (File file : batch.deleted) {
+                    watchDocument.remove(file);
+                }
+                if (!batch.changed.isEmpty()) {
+                    StringBuilder paths = new StringBuilder();
+                    for (File file : batch.changed) {
+                        paths.append(file.getPath()).append('\n');
+                    }
+                    result = scan(new ArrayList<>(), new BufferedReader(new StringReader(paths.toString())), false);
+                    if (!result.success) {
+                        log.error("Failed scan of changes. reason=" + result.failureReason);
+                    }
+                }
+                int parts = watchDocument.flush();
+                log.info("Updated " + batch.changed.size() + " changed and " + batch.deleted.size() + " deleted files in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms. parts=" + parts + " placemarks=" + watchDocument.size());
+            }
+        } catch (IOException ex) {
+            log.error("Failed writing placemarks to file.", ex);
+            return 1;
+        } catch (InterruptedException ex) {
+            log.info("Watch interrupted.");
+            return 0;
+        }
+    }
+
+    private PhotoLocationWorker.Result scan() throws InterruptedException, IOException {
+        if (pathList == null) {
+            return scan(sourceDirs, null, useIndex);
+        } else if (pathList.equals("-")) {
+            return scan(sourceDirs, new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), useIndex);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(new File(pathList).toPath(), StandardCharsets.UTF_8)) {
+            return scan(sourceDirs, reader, useIndex);
+        }
+    }
+
+    private PhotoLocationWorker.Result scan(List<File> dirs, BufferedReader pathReader, boolean index) throws InterruptedException, IOException {
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<PhotoLocationWorker.Result> result = new AtomicReference<>();
+        AtomicReference<IOException> writeFailure = new AtomicReference<>();
+
+        PhotoLocationWorker worker = new PhotoLocationWorker()
+                .sourceDirs(dirs)
+                .pathList(pathReader)
+                .fileFilter(allFiles ? null : new PhotoFileFilter())
+                .correlator(trackLogs.isEmpty() ? null : correlator)
+                .threadCount(threadCount)
+                .executionMode(executionMode)
+                .metricsLogInterval(dirs.isEmpty() && watchDocument != null ? 0 : metricsInterval)
+                .callbackExecutor(Runnable::run) // no FX thread, listeners are called serially from the workers
+                .progressListener((found, processed, items) -> {
+                    try {
+                        handleItems(items);
+                    } catch (IOException ex) {
+                        writeFailure.compareAndSet(null, ex);
+                    }
+                    logProgress(found, processed);
+                })
+                .finishListener(r -> {
+                    result.set(r);
+                    finished.countDown();
+                });
+        if (index) {
+            worker.indexFiles(ScanIndex::defaultIndexFile);
+        }
+        worker.start();
+        finished.await();
+
+        if (writeFailure.get() != null) throw writeFailure.get();
+        return result.get();
+    }
+
+    private void handleItems(List<ExtractItem> items) throws IOException {
+        if (items == null) return;
+        for (ExtractItem item : items) {
+            if (deduplicator != null) {
+                deduplicator.accept(item);
+            } else {
+                handleItem(item);
+            }
+        }
+    }
+
+    private int buildGazetteer() {
+        try {
+            File dir = gazetteerFile.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed creating directory. (" + dir + ")");
+            int count = Gazetteer.build(geonamesFile, gazetteerFile, 0);
+            log.info("Wrote " + count + " places. file=" + gazetteerFile.getAbsolutePath());
+            return 0;
+        } catch (IOException ex) {
+            log.error("Failed building gazetteer. file=" + geonamesFile.getPath(), ex);
+            return 1;
+        }
+    }
+
+    private void handleItem(ExtractItem item) throws IOException {
+        if (watchDocument != null) {
+            watchDocument.put(item); // a failed item removes the placemark of a photo that was there before
+        } else if (!item.isSuccess()) {
+            log.debug("Skipped file=" + item.getFilename() + " reason=" + item.getFailureReason());
+        } else if (!isBuffered()) {
+            placemarkWriter.writePlacemark(item.waypoint, item.file);
+        } else {
+            sortBuffer.add(item);
+        }
+    }
+
+    /**
+     * Returns true if the items are kept until the scan is done, rather than written as they are found.
+     */
+    private boolean isBuffered() {
+        return sortOrder != SortOrder.NONE || trackGeometry != null || tilePyramid != null || filter != null || places;
+    }
+
+    private void logProgress(int found, int processed) {
+        long now = System.currentTimeMillis();
+        if (now - lastProgressLog >= PROGRESS_LOG_INTERVAL) {
+            lastProgressLog = now;
+            log.info("Processed " + processed + " of " + found + " photos");
+        }
+    }
+
+    /**
+     * One batch of changes from the DirectoryWatcher, handed to the main thread.
+     */
+    private static class Changes {
+        final Set<File> changed;
+        final Set<File> deleted;
+
+        Changes(Set<File> changed, Set<File> deleted) {
+            this.changed = changed;
+            this.deleted = deleted;
+        }
+    }
+}
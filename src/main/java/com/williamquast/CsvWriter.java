@@ -0,0 +1,91 @@
+package com.williamquast;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams placemarks as RFC 4180 CSV, one row per photo with a header row:
+ * name, latitude, longitude, timestamp (ISO 8601 UTC), description and file. Fields holding a comma, quote or
+ * line break are quoted, empty fields stand for no value.
+ */
+public class CsvWriter extends BufferedChannelWriter implements PlacemarkWriter {
+
+    private static final int MAX_QUOTED_CHAR_BYTES = 4; // a supplementary code point, or a doubled quote
+    private static final byte[] HEADER = ascii("name,latitude,longitude,timestamp,description,file\r\n");
+    private static final byte[] LINE_END = ascii("\r\n");
+
+    private int placemarkCount;
+
+    public CsvWriter(File outputFile) throws IOException {
+        super(FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        put(HEADER);
+    }
+
+    @Override
+    public void writePlacemark(Waypoint waypoint, File photo) throws IOException {
+        putField(waypoint.name);
+        putSeparator();
+        putCoordinate(waypoint.y);
+        putSeparator();
+        putCoordinate(waypoint.x);
+        putSeparator();
+        if (waypoint.timestamp != null) {
+            putTimestamp(waypoint.timestamp.getTime());
+        }
+        putSeparator();
+        putField(waypoint.description);
+        putSeparator();
+        putField(photo != null ? photo.getPath() : null);
+        put(LINE_END);
+        placemarkCount++;
+    }
+
+    @Override
+    public int getPlacemarkCount() {
+        return placemarkCount;
+    }
+
+    private void putSeparator() throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = ',';
+    }
+
+    /**
+     * Writes text UTF-8 encoded, quoted if it needs to be. Unpaired surrogates are replaced with U+FFFD.
+     */
+    private void putField(String text) throws IOException {
+        if (text == null) return;
+        boolean quoted = false;
+        for (int i = 0; i < text.length() && !quoted; i++) {
+            char c = text.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (quoted) {
+            ensureCapacity(1);
+            buffer[position++] = '"';
+        }
+        for (int i = 0; i < text.length(); i++) {
+            ensureCapacity(MAX_QUOTED_CHAR_BYTES);
+            char c = text.charAt(i);
+            if (c == '"') {
+                buffer[position++] = '"';
+                buffer[position++] = '"';
+            } else if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                putCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                putCodePoint(0xFFFD);
+            } else {
+                putCodePoint(c);
+            }
+        }
+        if (quoted) {
+            ensureCapacity(1);
+            buffer[position++] = '"';
+        }
+    }
+}
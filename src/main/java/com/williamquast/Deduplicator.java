@@ -0,0 +1,281 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming de-duplication of near identical photos, like burst shots and RAW+JPEG pairs, so they become one
+ * placemark instead of a pile of them at the same spot.
+ *
+ * Photos join a group when they are within distance meters of the group's first photo and within timeWindow of one
+ * of its photos, or when they share a directory and base name with one of its photos, like IMG_0001.CR2 and
+ * IMG_0001.JPG. Each group is passed on as its first photo, a JPEG if it has one, named with the size of the group.
+ * Failed items are passed on unchanged.
+ *
+ * Groups are found through a grid of cells twice distance wide and twice timeWindow long, so each photo only looks
+ * at the 8 cells nearest to it. Only recently used cells are kept: when more than maxOpenKeys cells and base names are
+ * open, the least recently used group is closed and passed on. That bounds the memory however many photos pass
+ * through, at the cost of splitting a group whose photos arrive far apart in the stream. Time ordered input never
+ * splits groups.
+ *
+ * Not thread safe. Call finish after the last photo to pass on the groups still open.
+ */
+public class Deduplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(Deduplicator.class);
+
+    public static final double DEFAULT_DISTANCE = 10; // meters
+    public static final long DEFAULT_TIME_WINDOW = 2000; // ms
+    public static final int DEFAULT_MAX_OPEN_KEYS = 100_000;
+
+    private static final double METERS_PER_DEGREE = 6_371_008.8 * Math.PI / 180;
+    private static final double MIN_COS = 0.01; // caps the cell width near the poles
+    private static final int CELL_BITS = 21; // per axis in a cell key, wraps around for finer grids
+    private static final int BUCKET_BITS = 64 - 2 * CELL_BITS;
+
+    private double distance = DEFAULT_DISTANCE;
+    private long timeWindow = DEFAULT_TIME_WINDOW;
+    private int maxOpenKeys = DEFAULT_MAX_OPEN_KEYS;
+    private boolean siblings = true;
+    private Sink sink;
+
+    private final LinkedHashMap<Object, Group> openKeys = new LinkedHashMap<>(1024, 0.75f, true); // least recently used first
+    private double cellDegrees;
+    private int inputCount;
+    private int outputCount;
+
+    /**
+     * Receives the photos that remain.
+     */
+    public interface Sink {
+        void accept(ExtractItem item) throws IOException;
+    }
+
+    public Deduplicator sink(final Sink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * Sets how far apart in meters photos of one group may be.
+     */
+    public Deduplicator distance(final double distance) {
+        if (!(distance > 0)) throw new IllegalArgumentException("Distance must be positive. (" + distance + ")");
+        this.distance = distance;
+        return this;
+    }
+
+    /**
+     * Sets how far apart in ms consecutive photos of one group may be.
+     */
+    public Deduplicator timeWindow(final long timeWindow) {
+        if (timeWindow <= 0) throw new IllegalArgumentException("Time window must be positive. (" + timeWindow + ")");
+        this.timeWindow = timeWindow;
+        return this;
+    }
+
+    public Deduplicator maxOpenKeys(final int maxOpenKeys) {
+        if (maxOpenKeys < 1) throw new IllegalArgumentException("Max open keys must be at least 1.");
+        this.maxOpenKeys = maxOpenKeys;
+        return this;
+    }
+
+    /**
+     * Sets whether photos with the same directory and base name are grouped whatever their position and time.
+     */
+    public Deduplicator siblings(final boolean siblings) {
+        this.siblings = siblings;
+        return this;
+    }
+
+    public void accept(ExtractItem item) throws IOException {
+        inputCount++;
+        if (!item.success) {
+            emit(item);
+            return;
+        }
+        cellDegrees = 2 * distance / METERS_PER_DEGREE;
+
+        String siblingKey = siblings ? siblingKey(item) : null;
+        Group group = siblingKey != null ? openKeys.get(siblingKey) : null;
+        if (group == null && item.timestamp != null) {
+            group = findNearby(item.waypoint.x, item.waypoint.y, item.timestamp.getTime());
+        }
+
+        if (group == null) {
+            group = new Group(item);
+        } else {
+            group.add(item);
+        }
+        if (siblingKey != null) {
+            addKey(siblingKey, group);
+        }
+        if (item.timestamp != null) {
+            long row = (long) Math.floor((item.waypoint.y + 90) / cellDegrees);
+            long column = (long) Math.floor((item.waypoint.x + 180) / columnDegrees(row));
+            addKey(cellKey(row, column, Math.floorDiv(item.timestamp.getTime(), 2 * timeWindow)), group);
+        }
+        if (group.keys.isEmpty()) {
+            emit(group.toItem()); // no time and no sibling key, nothing can ever join it
+        }
+        while (openKeys.size() > maxOpenKeys) {
+            close(openKeys.values().iterator().next());
+        }
+    }
+
+    /**
+     * Passes on all groups still open.
+     */
+    public void finish() throws IOException {
+        while (!openKeys.isEmpty()) {
+            close(openKeys.values().iterator().next());
+        }
+        log.info("De-duplicated photos. input=" + inputCount + " output=" + outputCount);
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    public int getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * Finds an open group that x, y and timestamp belong to. Cells are twice distance and timeWindow, so a match is
+     * either in the cell of the photo or in the neighbour on the side of the half the photo is in, 8 cells in all.
+     */
+    private Group findNearby(double x, double y, long timestamp) {
+        double rowPosition = (y + 90) / cellDegrees;
+        long baseRow = (long) Math.floor(rowPosition);
+        long rowStep = rowPosition - baseRow < 0.5 ? -1 : 1;
+        long baseBucket = Math.floorDiv(timestamp, 2 * timeWindow);
+        long bucketStep = timestamp - baseBucket * 2 * timeWindow < timeWindow ? -1 : 1;
+        for (long row = baseRow; row != baseRow + 2 * rowStep; row += rowStep) {
+            double columnDegrees = columnDegrees(row);
+            double columnPosition = (x + 180) / columnDegrees;
+            long baseColumn = (long) Math.floor(columnPosition);
+            long columnStep = columnPosition - baseColumn < 0.5 ? -1 : 1;
+            for (long column = baseColumn; column != baseColumn + 2 * columnStep; column += columnStep) {
+                for (long bucket = baseBucket; bucket != baseBucket + 2 * bucketStep; bucket += bucketStep) {
+                    Group group = openKeys.get(cellKey(row, column, bucket));
+                    if (group != null && group.matches(x, y, timestamp)) {
+                        return group;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Width in degrees of the cells in row, at least twice distance at its widest latitude.
+     */
+    private double columnDegrees(long row) {
+        double rowLatitude = Math.min(90, Math.max(Math.abs(row * cellDegrees - 90), Math.abs((row + 1) * cellDegrees - 90)));
+        return cellDegrees / Math.max(MIN_COS, Math.cos(Math.toRadians(rowLatitude)));
+    }
+
+    private static long cellKey(long row, long column, long bucket) {
+        long cellMask = (1L << CELL_BITS) - 1;
+        return (row & cellMask) << (CELL_BITS + BUCKET_BITS) | (column & cellMask) << BUCKET_BITS | (bucket & ((1L << BUCKET_BITS) - 1));
+    }
+
+    /**
+     * Directory and lower case base name, or null if the item has no file.
+     */
+    private static String siblingKey(ExtractItem item) {
+        File file = item.file;
+        if (file == null) return null;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return file.getParent() + File.separator + (dot > 0 ? name.substring(0, dot) : name).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Points key at group. A group that loses its last key to another one can no longer be found and is passed on.
+     */
+    private void addKey(Object key, Group group) throws IOException {
+        Group previous = openKeys.put(key, group);
+        if (previous != group) {
+            group.keys.add(key);
+            if (previous != null) {
+                previous.keys.remove(key);
+                if (previous.keys.isEmpty()) {
+                    emit(previous.toItem());
+                }
+            }
+        }
+    }
+
+    private void close(Group group) throws IOException {
+        for (Object key : group.keys) {
+            openKeys.remove(key);
+        }
+        emit(group.toItem());
+    }
+
+    private void emit(ExtractItem item) throws IOException {
+        outputCount++;
+        sink.accept(item);
+    }
+
+    private static boolean isJpeg(ExtractItem item) {
+        String name = item.filename.toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    private class Group {
+        ExtractItem representative;
+        final double anchorX; // position of the first photo, distances are measured from it
+        final double anchorY;
+        int count = 1;
+        long first; // time range of the photos with a timestamp
+        long last;
+        final List<Object> keys = new ArrayList<>(2);
+
+        Group(ExtractItem item) {
+            representative = item;
+            anchorX = item.waypoint.x;
+            anchorY = item.waypoint.y;
+            first = last = item.timestamp != null ? item.timestamp.getTime() : Long.MIN_VALUE;
+        }
+
+        void add(ExtractItem item) {
+            count++;
+            if (!isJpeg(representative) && isJpeg(item)) {
+                representative = item; // a JPEG shows as a thumbnail everywhere, a RAW file does not, the anchor stays
+            }
+            if (item.timestamp != null) {
+                long timestamp = item.timestamp.getTime();
+                if (first == Long.MIN_VALUE) {
+                    first = last = timestamp;
+                } else {
+                    first = Math.min(first, timestamp);
+                    last = Math.max(last, timestamp);
+                }
+            }
+        }
+
+        boolean matches(double x, double y, long timestamp) {
+            return first != Long.MIN_VALUE && timestamp >= first - timeWindow && timestamp <= last + timeWindow
+                    && SpatialIndex.distance(x, y, anchorX, anchorY) <= distance;
+        }
+
+        ExtractItem toItem() {
+            if (count == 1) return representative;
+            Waypoint waypoint = representative.waypoint;
+            ExtractItem item = new ExtractItem(representative.filename, representative.timestamp,
+                    new Waypoint(waypoint.name + " (" + count + " photos)", waypoint.timestamp, waypoint.x, waypoint.y));
+            item.file = representative.file;
+            return item;
+        }
+    }
+}
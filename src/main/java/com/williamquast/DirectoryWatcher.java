@@ -0,0 +1,447 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directory trees for created, modified and deleted files and hands them to a ChangeListener in batches.
+ * Events are coalesced: a batch is handed over once no event arrived for quietPeriod, or maxDelay after its first
+ * event while a copy keeps the directory busy, so a burst of photos becomes one batch and a file being written is
+ * reported once.
+ *
+ * Local file systems use a WatchService. Network mounts, where change notification does not see changes made by
+ * other machines, are polled instead: every pollInterval the modification time of each directory is checked and
+ * changed directories are listed and compared with the previous listing. A polled file is reported once its size
+ * and modification time are the same on two polls, so a copy in progress is not picked up half written. An edit in
+ * place does not change the directory, so every FULL_LIST_POLLS polls all directories are listed regardless.
+ *
+ * The listener is called on the watcher thread, one batch at a time. Events that arrive meanwhile form the next
+ * batch.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    public static final long DEFAULT_QUIET_PERIOD = 200; // ms
+    public static final long DEFAULT_MAX_DELAY = 500; // ms
+    public static final long DEFAULT_POLL_INTERVAL = 500; // ms
+    private static final int FULL_LIST_POLLS = 20; // 10s at the default poll interval
+    private static final Set<String> NETWORK_FILE_SYSTEMS = Set.of(
+            "nfs", "nfs4", "cifs", "smbfs", "smb2", "smb3", "afpfs", "webdav", "davfs", "9p", "fuse.sshfs", "sshfs");
+
+    public enum Mode {
+        /** A WatchService for local file systems, polling for network mounts. */
+        AUTO,
+        /** Always a WatchService. */
+        NATIVE,
+        /** Always polling. */
+        POLLING
+    }
+
+    @FunctionalInterface
+    public interface ChangeListener {
+        /**
+         * Called with the files created or modified and the paths deleted since the last batch. A deleted path can
+         * also be a directory.
+         */
+        void onChanges(Set<File> changed, Set<File> deleted);
+    }
+
+    private final List<File> roots = new ArrayList<>();
+    private Mode mode = Mode.AUTO;
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+    private ChangeListener listener;
+
+    private Thread thread;
+    private volatile boolean closed;
+    private WatchService watchService; // null when every root is polled
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, PolledDirectory> polledDirectories = new HashMap<>();
+    private final Map<Path, Long> settling = new HashMap<>(); // polled files seen changing, by signature
+    private final Set<Path> changed = new LinkedHashSet<>();
+    private final Set<Path> deleted = new LinkedHashSet<>();
+    private long firstEvent; // nanoTime of the first and last event of the pending batch
+    private long lastEvent;
+    private long lastPoll;
+    private int pollCount;
+
+    public DirectoryWatcher roots(final List<File> roots) {
+        this.roots.clear();
+        this.roots.addAll(roots);
+        return this;
+    }
+
+    public DirectoryWatcher mode(final Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets the ms without events after which a batch is handed over.
+     */
+    public DirectoryWatcher quietPeriod(final long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+        return this;
+    }
+
+    /**
+     * Sets the ms after its first event that a batch is handed over, even while events keep coming.
+     */
+    public DirectoryWatcher maxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    public DirectoryWatcher pollInterval(final long pollInterval) {
+        if (pollInterval <= 0) throw new IllegalArgumentException("Poll interval must be positive. (" + pollInterval + ")");
+        this.pollInterval = pollInterval;
+        return this;
+    }
+
+    public DirectoryWatcher listener(final ChangeListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Registers the roots and starts the watcher thread. Changes made before start returns are not reported.
+     */
+    public DirectoryWatcher start() throws IOException {
+        if (listener == null) throw new IllegalStateException("ChangeListener is required.");
+        for (File root : roots) {
+            Path path = root.toPath().toAbsolutePath();
+            if (isPolled(path)) {
+                log.info("Polling for changes. root=" + path + " interval=" + pollInterval);
+                addPolledTree(path, false);
+            } else {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                }
+                log.info("Watching for changes. root=" + path);
+                registerTree(path, false);
+            }
+        }
+        lastPoll = System.nanoTime();
+        thread = new Thread(this::run, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private boolean isPolled(Path root) {
+        if (mode != Mode.AUTO) return mode == Mode.POLLING;
+        try {
+            return NETWORK_FILE_SYSTEMS.contains(Files.getFileStore(root).type().toLowerCase(Locale.ROOT));
+        } catch (IOException ex) {
+            return true; // unknown store, polling works everywhere
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long wait = nextDeadline() - System.nanoTime();
+                WatchKey key = null;
+                if (wait > 0) {
+                    if (watchService != null) {
+                        key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+                    } else {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll(); // drain what else is ready before handing over
+                }
+                long now = System.nanoTime();
+                if (!polledDirectories.isEmpty() && now - lastPoll >= TimeUnit.MILLISECONDS.toNanos(pollInterval)) {
+                    lastPoll = now;
+                    poll();
+                }
+                if (isBatchDue(System.nanoTime())) {
+                    handOver();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // closed
+        } catch (RuntimeException ex) {
+            log.error("Directory watcher failed.", ex);
+        }
+        log.info("Directory watcher stopped.");
+    }
+
+    /**
+     * Returns the nanoTime at which the next batch or poll is due.
+     */
+    private long nextDeadline() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        if (!polledDirectories.isEmpty()) {
+            deadline = Math.min(deadline, lastPoll + TimeUnit.MILLISECONDS.toNanos(pollInterval));
+        }
+        if (!changed.isEmpty() || !deleted.isEmpty()) {
+            deadline = Math.min(deadline, Math.min(lastEvent + TimeUnit.MILLISECONDS.toNanos(quietPeriod),
+                    firstEvent + TimeUnit.MILLISECONDS.toNanos(maxDelay)));
+        }
+        return deadline;
+    }
+
+    private boolean isBatchDue(long now) {
+        if (changed.isEmpty() && deleted.isEmpty()) return false;
+        return now - lastEvent >= TimeUnit.MILLISECONDS.toNanos(quietPeriod)
+                || now - firstEvent >= TimeUnit.MILLISECONDS.toNanos(maxDelay);
+    }
+
+    private void handOver() {
+        Set<File> changedFiles = new LinkedHashSet<>();
+        for (Path path : changed) {
+            changedFiles.add(path.toFile());
+        }
+        Set<File> deletedFiles = new LinkedHashSet<>();
+        for (Path path : deleted) {
+            deletedFiles.add(path.toFile());
+        }
+        changed.clear();
+        deleted.clear();
+        log.debug("Changes. changed=" + changedFiles.size() + " deleted=" + deletedFiles.size());
+        try {
+            listener.onChanges(changedFiles, deletedFiles);
+        } catch (RuntimeException ex) {
+            log.error("Change listener failed.", ex);
+        }
+    }
+
+    private void fileChanged(Path path) {
+        markEvent();
+        deleted.remove(path);
+        changed.add(path);
+    }
+
+    private void fileDeleted(Path path) {
+        markEvent();
+        changed.remove(path);
+        deleted.add(path);
+    }
+
+    private void markEvent() {
+        long now = System.nanoTime();
+        if (changed.isEmpty() && deleted.isEmpty()) {
+            firstEvent = now;
+        }
+        lastEvent = now;
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) break;
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.info("Watch events overflowed, listing directory. dir=" + dir);
+                registerTree(dir, true);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                fileDeleted(path);
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(path, true); // a directory moved or copied in, its files have no events of their own
+                }
+            } else {
+                fileChanged(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key); // directory deleted
+        }
+    }
+
+    /**
+     * Registers the directories under root with the WatchService. reportFiles reports the files found as changed.
+     */
+    private void registerTree(Path root, boolean reportFiles) {
+        walkTree(root, dir -> {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(key, dir);
+        }, reportFiles ? this::fileChanged : file -> {});
+    }
+
+    /**
+     * Records the directories under root for polling. reportFiles reports the files found as settling.
+     */
+    private void addPolledTree(Path root, boolean reportFiles) {
+        walkTree(root, dir -> polledDirectories.put(dir, new PolledDirectory()), file -> {});
+        for (Map.Entry<Path, PolledDirectory> entry : new ArrayList<>(polledDirectories.entrySet())) {
+            if (entry.getKey().startsWith(root) && entry.getValue().modified == Long.MIN_VALUE) {
+                listPolled(entry.getKey(), entry.getValue(), reportFiles);
+            }
+        }
+    }
+
+    private void poll() {
+        settle();
+        boolean full = ++pollCount % FULL_LIST_POLLS == 0;
+        for (Map.Entry<Path, PolledDirectory> entry : new ArrayList<>(polledDirectories.entrySet())) {
+            Path dir = entry.getKey();
+            PolledDirectory polled = entry.getValue();
+            File file = dir.toFile();
+            long modified = file.lastModified();
+            if (modified == 0 && !file.isDirectory()) {
+                polledDirectories.remove(dir);
+                fileDeleted(dir);
+            } else if (full || modified != polled.modified) {
+                listPolled(dir, polled, true);
+            }
+        }
+    }
+
+    /**
+     * Lists a polled directory and compares it with the previous listing. New and changed files start settling,
+     * new directories are added to the polled tree.
+     */
+    private void listPolled(Path dir, PolledDirectory polled, boolean report) {
+        polled.modified = dir.toFile().lastModified();
+        Map<String, Long> previous = polled.files;
+        Map<String, Long> current = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path path : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    if (!polledDirectories.containsKey(path)) {
+                        polledDirectories.put(path, new PolledDirectory());
+                        addPolledTree(path, report);
+                    }
+                } else {
+                    long signature = signature(attributes);
+                    String name = path.getFileName().toString();
+                    current.put(name, signature);
+                    Long before = previous.get(name);
+                    if (report && (before == null || before != signature)) {
+                        settling.put(path, signature);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.debug("Failed listing polled directory. dir=" + dir + " reason=" + ex.getMessage());
+            return;
+        }
+        if (report) {
+            for (String name : previous.keySet()) {
+                if (!current.containsKey(name)) {
+                    Path path = dir.resolve(name);
+                    settling.remove(path);
+                    fileDeleted(path);
+                }
+            }
+        }
+        polled.files = current;
+    }
+
+    /**
+     * Reports the settling files whose size and modification time did not change since the last poll.
+     */
+    private void settle() {
+        Iterator<Map.Entry<Path, Long>> iterator = settling.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            try {
+                long signature = signature(Files.readAttributes(entry.getKey(), BasicFileAttributes.class));
+                if (signature == entry.getValue()) {
+                    iterator.remove();
+                    fileChanged(entry.getKey());
+                } else {
+                    entry.setValue(signature);
+                    PolledDirectory polled = polledDirectories.get(entry.getKey().getParent());
+                    if (polled != null) {
+                        polled.files.put(entry.getKey().getFileName().toString(), signature);
+                    }
+                }
+            } catch (IOException ex) {
+                iterator.remove(); // deleted while settling, the directory listing reports it
+            }
+        }
+    }
+
+    private static long signature(BasicFileAttributes attributes) {
+        return attributes.size() * 31 + attributes.lastModifiedTime().toMillis();
+    }
+
+    private void walkTree(Path root, DirectoryAction onDirectory, FileAction onFile) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    onDirectory.accept(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        onFile.accept(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    log.debug("Failed visiting. path=" + file + " reason=" + ex.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Failed walking directory tree. root=" + root + " reason=" + ex.getMessage());
+        }
+    }
+
+    private interface DirectoryAction {
+        void accept(Path dir) throws IOException;
+    }
+
+    private interface FileAction {
+        void accept(Path file);
+    }
+
+    private static class PolledDirectory {
+        long modified = Long.MIN_VALUE; // not listed yet
+        Map<String, Long> files = new HashMap<>(); // signature of each file by name
+    }
+}
@@ -0,0 +1,314 @@
+package com.williamquast;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * Minimal TIFF/Exif IFD parser that only visits IFD0, the Exif SubIFD and the GPS IFD, and only decodes
+ * the handful of tags used by PhotoMetadata. Everything else in the Exif block is skipped without decoding.
+ * It can also locate the JPEG thumbnail that IFD1 points to.
+ * The TIFF structure is either a buffer, the Exif segment of a JPEG, or a whole file read through a
+ * PositionalFileReader, for TIFF based RAW files where only the few IFDs visited are read from disk.
+ * Dates are interpreted as UTC to match metadata-extractor's Directory.getDate(int).
+ */
+class ExifGpsParser {
+
+    static final int TAG_DATETIME = 0x0132;
+    static final int TAG_EXIF_SUB_IFD_OFFSET = 0x8769;
+    static final int TAG_GPS_INFO_OFFSET = 0x8825;
+    static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    static final int TAG_GPS_LATITUDE = 0x0002;
+    static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    static final int TAG_GPS_LONGITUDE = 0x0004;
+    static final int TAG_GPS_TIME_STAMP = 0x0007;
+    static final int TAG_GPS_DATE_STAMP = 0x001D;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_SRATIONAL = 10;
+
+    private static final int MAX_IFD_ENTRIES = 1000; // guard against corrupt counts
+
+    private static final DateTimeFormatter EXIF_DATE_TIME = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+    private static final DateTimeFormatter ISO_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private final byte[] data; // null when reading from file
+    private final PositionalFileReader file;
+    private final int tiffStart;
+    private final int tiffLength;
+    private boolean littleEndian;
+
+    /**
+     * @param data buffer holding the TIFF structure
+     * @param tiffStart offset of the TIFF header (byte order mark) within data. All IFD offsets are relative to this.
+     * @param tiffLength count of bytes available from tiffStart
+     */
+    ExifGpsParser(byte[] data, int tiffStart, int tiffLength) {
+        this.data = data;
+        this.file = null;
+        this.tiffStart = tiffStart;
+        this.tiffLength = tiffLength;
+    }
+
+    /**
+     * Reads a TIFF file, TIFF offsets are 32 bits but only files up to 2 GB are followed.
+     */
+    ExifGpsParser(PositionalFileReader file) {
+        this.data = null;
+        this.file = file;
+        this.tiffStart = 0;
+        this.tiffLength = (int) Math.min(file.length(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Populates the GPS and date fields of metadata from the TIFF structure.
+     *
+     * @throws IOException if the TIFF header is not valid
+     */
+    void parse(PhotoMetadata metadata) throws IOException {
+        long ifd0 = readTiffHeader();
+        int exifOffset = -1;
+        int gpsOffset = -1;
+
+        int count = entryCount(ifd0);
+        for (int i = 0; i < count; i++) {
+            int entry = (int) ifd0 + 2 + i * 12;
+            int tag = readUInt16(entry);
+            if (tag == TAG_DATETIME) {
+                metadata.dateTime = parseDateTime(readAscii(entry));
+            } else if (tag == TAG_EXIF_SUB_IFD_OFFSET) {
+                exifOffset = (int) readUInt32(entry + 8);
+            } else if (tag == TAG_GPS_INFO_OFFSET) {
+                gpsOffset = (int) readUInt32(entry + 8);
+            }
+        }
+
+        if (exifOffset > 0) {
+            count = entryCount(exifOffset);
+            for (int i = 0; i < count; i++) {
+                int entry = exifOffset + 2 + i * 12;
+                if (readUInt16(entry) == TAG_DATETIME_ORIGINAL) {
+                    metadata.dateTimeOriginal = parseDateTime(readAscii(entry));
+                    break;
+                }
+            }
+        }
+
+        if (gpsOffset > 0) {
+            parseGps(gpsOffset, metadata);
+        }
+    }
+
+    /**
+     * Returns the offset in data and the length of the JPEG thumbnail in IFD1, or null if there is none.
+     *
+     * @throws IOException if the TIFF header is not valid
+     */
+    int[] findThumbnail() throws IOException {
+        if (data == null) throw new IllegalStateException("Thumbnails are only located in a buffer.");
+        long ifd0 = readTiffHeader();
+        int count = entryCount(ifd0);
+        if (count < 0 || ifd0 + 2 + count * 12L + 4 > tiffLength) return null;
+        long ifd1 = readUInt32((int) ifd0 + 2 + count * 12);
+        if (ifd1 == 0) return null;
+
+        long offset = -1;
+        long length = -1;
+        count = entryCount(ifd1);
+        for (int i = 0; i < count; i++) {
+            int entry = (int) ifd1 + 2 + i * 12;
+            int tag = readUInt16(entry);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                offset = readUInt32(entry + 8);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                length = readUInt32(entry + 8);
+            }
+        }
+        if (offset <= 0 || length < 4 || offset + length > tiffLength) return null;
+        int start = tiffStart + (int) offset;
+        if ((data[start] & 0xFF) != 0xFF || (data[start + 1] & 0xFF) != 0xD8) return null; // not a JPEG
+        return new int[]{start, (int) length};
+    }
+
+    /**
+     * Reads the byte order and returns the offset of IFD0.
+     */
+    private long readTiffHeader() throws IOException {
+        if (tiffLength < 8) throw new IOException("Exif TIFF header is truncated.");
+        int byteOrder = (byteAt(0) << 8) | byteAt(1);
+        if (byteOrder == 0x4949) {
+            littleEndian = true;
+        } else if (byteOrder == 0x4D4D) {
+            littleEndian = false;
+        } else {
+            throw new IOException("Unknown Exif TIFF byte order. (0x" + Integer.toHexString(byteOrder) + ")");
+        }
+        return readUInt32(4);
+    }
+
+    private void parseGps(int gpsOffset, PhotoMetadata metadata) throws IOException {
+        int count = entryCount(gpsOffset);
+        if (count < 0) return;
+        metadata.gpsDirectory = true;
+
+        String latitudeRef = null;
+        String longitudeRef = null;
+        double[] latitude = null;
+        double[] longitude = null;
+        double[] timeStamp = null;
+        String dateStamp = null;
+
+        for (int i = 0; i < count; i++) {
+            int entry = gpsOffset + 2 + i * 12;
+            switch (readUInt16(entry)) {
+                case TAG_GPS_LATITUDE_REF:
+                    latitudeRef = readAscii(entry);
+                    break;
+                case TAG_GPS_LATITUDE:
+                    latitude = readRationals(entry);
+                    break;
+                case TAG_GPS_LONGITUDE_REF:
+                    longitudeRef = readAscii(entry);
+                    break;
+                case TAG_GPS_LONGITUDE:
+                    longitude = readRationals(entry);
+                    break;
+                case TAG_GPS_TIME_STAMP:
+                    timeStamp = readRationals(entry);
+                    break;
+                case TAG_GPS_DATE_STAMP:
+                    dateStamp = readAscii(entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (latitude != null && longitude != null && latitude.length == 3 && longitude.length == 3
+                && latitudeRef != null && longitudeRef != null) {
+            metadata.latitude = toDecimal(latitude, latitudeRef.equalsIgnoreCase("S"));
+            metadata.longitude = toDecimal(longitude, longitudeRef.equalsIgnoreCase("W"));
+            if (metadata.latitude == null || metadata.longitude == null) {
+                metadata.latitude = null;
+                metadata.longitude = null;
+            }
+        }
+
+        if (dateStamp != null && timeStamp != null && timeStamp.length == 3) {
+            try {
+                LocalDate date = LocalDate.parse(dateStamp, EXIF_DATE);
+                long millis = date.atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli()
+                        + (long) timeStamp[0] * 3_600_000L
+                        + (long) timeStamp[1] * 60_000L
+                        + Math.round(timeStamp[2] * 1000.0);
+                metadata.gpsDate = new Date(millis);
+            } catch (DateTimeParseException ex) { /* leave gpsDate null, same as metadata-extractor */ }
+        }
+    }
+
+    /**
+     * Same conversion as GeoLocation.degreesMinutesSecondsToDecimal.
+     */
+    static Double toDecimal(double[] dms, boolean negative) {
+        double decimal = Math.abs(dms[0]) + dms[1] / 60.0d + dms[2] / 3600.0d;
+        if (Double.isNaN(decimal)) return null;
+        return negative ? -decimal : decimal;
+    }
+
+    static Date parseDateTime(String value) {
+        if (value == null || value.isEmpty()) return null;
+        for (DateTimeFormatter format : new DateTimeFormatter[]{EXIF_DATE_TIME, ISO_DATE_TIME}) {
+            try {
+                return Date.from(LocalDateTime.parse(value, format).toInstant(ZoneOffset.UTC));
+            } catch (DateTimeParseException ex) { /* try next */ }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry count of the IFD at offset, or -1 if the IFD does not fit in the buffer.
+     */
+    private int entryCount(long offset) throws IOException {
+        if (offset < 0 || offset + 2 > tiffLength) return -1;
+        int count = readUInt16((int) offset);
+        if (count > MAX_IFD_ENTRIES) return -1;
+        if (offset + 2 + count * 12L > tiffLength) {
+            count = (int) ((tiffLength - offset - 2) / 12); // truncated, read what is there
+        }
+        return count;
+    }
+
+    private int valueOffset(int entry, int byteCount) throws IOException {
+        if (byteCount <= 4) return entry + 8;
+        long offset = readUInt32(entry + 8);
+        if (offset < 0 || offset + byteCount > tiffLength) return -1;
+        return (int) offset;
+    }
+
+    private String readAscii(int entry) throws IOException {
+        if (readUInt16(entry + 2) != TYPE_ASCII) return null;
+        long count = readUInt32(entry + 4);
+        if (count <= 0 || count > 1024) return null;
+        int offset = valueOffset(entry, (int) count);
+        if (offset < 0) return null;
+        byte[] ascii = new byte[(int) count];
+        int end = 0;
+        while (end < count && (ascii[end] = (byte) byteAt(offset + end)) != 0) end++;
+        return new String(ascii, 0, end, StandardCharsets.US_ASCII).trim();
+    }
+
+    private double[] readRationals(int entry) throws IOException {
+        int type = readUInt16(entry + 2);
+        long count = readUInt32(entry + 4);
+        if (count <= 0 || count > 16) return null;
+        if (type == TYPE_RATIONAL || type == TYPE_SRATIONAL) {
+            int offset = valueOffset(entry, (int) count * 8);
+            if (offset < 0) return null;
+            double[] values = new double[(int) count];
+            for (int i = 0; i < count; i++) {
+                long numerator = readUInt32(offset + i * 8);
+                long denominator = readUInt32(offset + i * 8 + 4);
+                if (type == TYPE_SRATIONAL) {
+                    numerator = (int) numerator;
+                    denominator = (int) denominator;
+                }
+                values[i] = numerator == 0 ? 0.0 : (double) numerator / (double) denominator;
+            }
+            return values;
+        }
+        return null;
+    }
+
+    private int readUInt16(int offset) throws IOException {
+        if (file != null) return file.readUInt16(offset, littleEndian);
+        int b0 = data[tiffStart + offset] & 0xFF;
+        int b1 = data[tiffStart + offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private long readUInt32(int offset) throws IOException {
+        if (file != null) return file.readUInt32(offset, littleEndian);
+        long b0 = data[tiffStart + offset] & 0xFF;
+        long b1 = data[tiffStart + offset + 1] & 0xFF;
+        long b2 = data[tiffStart + offset + 2] & 0xFF;
+        long b3 = data[tiffStart + offset + 3] & 0xFF;
+        return littleEndian
+                ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+                : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    private int byteAt(int offset) throws IOException {
+        return file != null ? file.get(offset) : data[tiffStart + offset] & 0xFF;
+    }
+}
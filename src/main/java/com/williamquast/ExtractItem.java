@@ -1,5 +1,6 @@
 package com.williamquast;
 
+import java.io.File;
 import java.util.Date;
 import java.util.Objects;
 
@@ -10,6 +11,8 @@ public class ExtractItem implements Comparable {
     boolean success;
     String failureReason;
     Waypoint waypoint;
+    File file; // the photo, null for directory errors
+    Date captureTime; // camera clock date of a photo without a location, for TrackCorrelator, otherwise null
 
     public ExtractItem(String filename, Date timestamp, Waypoint waypoint) {
         this.success = true;
@@ -45,6 +48,10 @@ public class ExtractItem implements Comparable {
         return timestamp;
     }
 
+    public File getFile() {
+        return file;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
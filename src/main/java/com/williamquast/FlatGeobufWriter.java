@@ -0,0 +1,529 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Writes placemarks as a FlatGeobuf file (https://flatgeobuf.org) of Points in EPSG:4326 with name, timestamp,
+ * description and file columns, and the packed Hilbert R-tree index that lets QGIS, GDAL and PostGIS read just the
+ * features in view.
+ *
+ * The index comes before the features and they must be in Hilbert order, so the features are streamed to a
+ * temporary file next to the output first. Only the position and file offset of each feature is kept in memory,
+ * 24 bytes per placemark. close sorts those, writes the header and index, and copies the features over in order.
+ */
+public class FlatGeobufWriter implements PlacemarkWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(FlatGeobufWriter.class);
+
+    private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00}; // "fgb", version 3
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int NODE_SIZE = 16; // children per index node, the FlatGeobuf default
+    private static final int NODE_ITEM_BYTES = 40; // min x, min y, max x, max y, offset
+    private static final int HILBERT_MAX = 0xFFFF;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // FlatGeobuf schema values
+    private static final byte GEOMETRY_TYPE_POINT = 1;
+    private static final byte COLUMN_TYPE_STRING = 11;
+    private static final byte COLUMN_TYPE_DATE_TIME = 13;
+    private static final int WGS84 = 4326;
+    private static final String[] COLUMN_NAMES = {"name", "timestamp", "description", "file"};
+    private static final byte[] COLUMN_TYPES = {COLUMN_TYPE_STRING, COLUMN_TYPE_DATE_TIME, COLUMN_TYPE_STRING, COLUMN_TYPE_STRING};
+    private static final int COLUMN_NAME = 0;
+    private static final int COLUMN_TIMESTAMP = 1;
+    private static final int COLUMN_DESCRIPTION = 2;
+    private static final int COLUMN_FILE = 3;
+
+    private final File outputFile;
+    private final File tempFile;
+    private final FileChannel temp;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final FlatBuffer feature = new FlatBuffer();
+    private ByteBuffer properties = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long[] tempOffsets = new long[INITIAL_CAPACITY + 1]; // where each feature starts, and the end
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private int count;
+
+    public FlatGeobufWriter(File outputFile) throws IOException {
+        this.outputFile = outputFile;
+        this.tempFile = File.createTempFile(outputFile.getName() + ".", ".tmp", outputFile.getAbsoluteFile().getParentFile());
+        this.temp = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void writePlacemark(Waypoint waypoint, File photo) throws IOException {
+        if (!Double.isFinite(waypoint.x) || !Double.isFinite(waypoint.y)) {
+            throw new IllegalArgumentException("Coordinate is not a finite number. (" + waypoint.x + ", " + waypoint.y + ")");
+        }
+        encodeFeature(waypoint, photo);
+        ByteBuffer bytes = feature.bytes();
+        if (buffer.remaining() < 4 + bytes.remaining()) {
+            flush(temp);
+        }
+        if (buffer.remaining() < 4 + bytes.remaining()) {
+            throw new IOException("Feature larger than the write buffer. (" + bytes.remaining() + " bytes)");
+        }
+        buffer.putInt(bytes.remaining());
+        buffer.put(bytes);
+
+        if (count == x.length) {
+            tempOffsets = Arrays.copyOf(tempOffsets, count * 2 + 1);
+            x = Arrays.copyOf(x, count * 2);
+            y = Arrays.copyOf(y, count * 2);
+        }
+        tempOffsets[count + 1] = temp.position() + buffer.position();
+        x[count] = waypoint.x;
+        y[count] = waypoint.y;
+        count++;
+    }
+
+    @Override
+    public int getPlacemarkCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel out = FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            flush(temp);
+
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, x[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+            int[] order = hilbertOrder(minX, minY, maxX, maxY);
+
+            buffer.put(MAGIC);
+            encodeHeader(minX, minY, maxX, maxY);
+            putSizePrefixed(out, feature.bytes());
+            if (count > 0) {
+                writeIndex(out, order);
+            }
+            for (int i : order) {
+                copyFeature(out, i);
+            }
+            flush(out);
+        } finally {
+            temp.close();
+            Files.deleteIfExists(tempFile.toPath());
+        }
+        log.debug("Wrote FlatGeobuf. features=" + count + " ms=" + (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Returns the feature indexes sorted by the Hilbert value of their position within the extent, the order the
+     * index and the features are written in.
+     */
+    private int[] hilbertOrder(double minX, double minY, double maxX, double maxY) {
+        double width = maxX - minX;
+        double height = maxY - minY;
+        long[] keys = new long[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            int hx = width != 0 ? (int) Math.floor(HILBERT_MAX * (x[i] - minX) / width) : 0;
+            int hy = height != 0 ? (int) Math.floor(HILBERT_MAX * (y[i] - minY) / height) : 0;
+            keys[i] = -(hilbert(hx, hy) & 0xFFFFFFFFL); // descending, as the reference implementation
+            order[i] = i;
+        }
+        return WaypointStore.parallelSort(order, new WaypointStore.KeyedComparator(keys, (a, b) -> 0));
+    }
+
+    /**
+     * Writes the packed R-tree: nodes by level from the root down, the leaves last. A leaf holds the byte offset
+     * of its feature, any other node the index of its first child. Only the levels above the leaves are built in
+     * memory, about one node per NODE_SIZE - 1 features, the leaves are streamed from the sorted features.
+     */
+    private void writeIndex(FileChannel out, int[] order) throws IOException {
+        // node counts per level, leaves first, and where each level starts
+        int[] levelCounts = new int[32];
+        int levels = 0;
+        int n = count;
+        levelCounts[levels++] = n;
+        do {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            levelCounts[levels++] = n;
+        } while (n != 1);
+        int[] levelStarts = new int[levels];
+        for (int level = levels - 2; level >= 0; level--) {
+            levelStarts[level] = levelStarts[level + 1] + levelCounts[level + 1];
+        }
+        int upperNodes = levelStarts[0];
+
+        double[] nodeMinX = new double[upperNodes];
+        double[] nodeMinY = new double[upperNodes];
+        double[] nodeMaxX = new double[upperNodes];
+        double[] nodeMaxY = new double[upperNodes];
+        long[] nodeOffsets = new long[upperNodes];
+        for (int level = 1; level < levels; level++) {
+            int childStart = levelStarts[level - 1];
+            for (int node = 0; node < levelCounts[level]; node++) {
+                int parent = levelStarts[level] + node;
+                int first = node * NODE_SIZE;
+                int last = Math.min(first + NODE_SIZE, levelCounts[level - 1]);
+                nodeOffsets[parent] = childStart + first;
+                nodeMinX[parent] = nodeMinY[parent] = Double.POSITIVE_INFINITY;
+                nodeMaxX[parent] = nodeMaxY[parent] = Double.NEGATIVE_INFINITY;
+                for (int child = first; child < last; child++) {
+                    if (level == 1) {
+                        int feature = order[child];
+                        nodeMinX[parent] = Math.min(nodeMinX[parent], x[feature]);
+                        nodeMinY[parent] = Math.min(nodeMinY[parent], y[feature]);
+                        nodeMaxX[parent] = Math.max(nodeMaxX[parent], x[feature]);
+                        nodeMaxY[parent] = Math.max(nodeMaxY[parent], y[feature]);
+                    } else {
+                        int index = childStart + child;
+                        nodeMinX[parent] = Math.min(nodeMinX[parent], nodeMinX[index]);
+                        nodeMinY[parent] = Math.min(nodeMinY[parent], nodeMinY[index]);
+                        nodeMaxX[parent] = Math.max(nodeMaxX[parent], nodeMaxX[index]);
+                        nodeMaxY[parent] = Math.max(nodeMaxY[parent], nodeMaxY[index]);
+                    }
+                }
+            }
+        }
+
+        for (int node = 0; node < upperNodes; node++) {
+            putNode(out, nodeMinX[node], nodeMinY[node], nodeMaxX[node], nodeMaxY[node], nodeOffsets[node]);
+        }
+        long featureOffset = 0;
+        for (int i : order) {
+            putNode(out, x[i], y[i], x[i], y[i], featureOffset);
+            featureOffset += tempOffsets[i + 1] - tempOffsets[i];
+        }
+    }
+
+    private void putNode(FileChannel out, double minX, double minY, double maxX, double maxY, long offset) throws IOException {
+        if (buffer.remaining() < NODE_ITEM_BYTES) {
+            flush(out);
+        }
+        buffer.putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY).putLong(offset);
+    }
+
+    /**
+     * Copies the size prefixed feature i from the temporary file.
+     */
+    private void copyFeature(FileChannel out, int i) throws IOException {
+        int length = (int) (tempOffsets[i + 1] - tempOffsets[i]);
+        if (buffer.remaining() < length) {
+            flush(out);
+        }
+        ByteBuffer target = buffer.slice().limit(length);
+        long position = tempOffsets[i];
+        while (target.hasRemaining()) {
+            int read = temp.read(target, position + target.position());
+            if (read < 0) throw new IOException("Temporary feature file is truncated. (" + tempFile + ")");
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private void putSizePrefixed(FileChannel out, ByteBuffer bytes) throws IOException {
+        if (buffer.remaining() < 4 + bytes.remaining()) {
+            flush(out);
+        }
+        if (buffer.remaining() < 4 + bytes.remaining()) {
+            throw new IOException("Header larger than the write buffer. (" + bytes.remaining() + " bytes)");
+        }
+        buffer.putInt(bytes.remaining());
+        buffer.put(bytes);
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void encodeFeature(Waypoint waypoint, File photo) {
+        properties.clear();
+        putProperty(COLUMN_NAME, waypoint.name);
+        if (waypoint.timestamp != null) {
+            putProperty(COLUMN_TIMESTAMP, DateTimeFormatter.ISO_INSTANT.format(waypoint.timestamp.toInstant()));
+        }
+        putProperty(COLUMN_DESCRIPTION, waypoint.description);
+        putProperty(COLUMN_FILE, photo != null ? photo.getPath() : null);
+        properties.flip();
+
+        // table Feature { geometry: Geometry; properties: [ubyte]; columns: [Column]; }
+        FlatBuffer fb = feature.reset();
+        int[] featureFields = fb.table(4, 4, 0);
+        // table Geometry { ends: [uint]; xy: [double]; ... }, the type comes from the header
+        int[] geometryFields = fb.table(0, 4);
+        fb.link(featureFields[0], FlatBuffer.tableOf(geometryFields));
+        fb.link(geometryFields[1], fb.doubles(waypoint.x, waypoint.y));
+        fb.link(featureFields[1], fb.bytes(properties));
+        fb.root(FlatBuffer.tableOf(featureFields));
+    }
+
+    /**
+     * Appends a column value to properties: the column index, then a string as its UTF-8 length and bytes.
+     */
+    private void putProperty(int column, String value) {
+        if (value == null) return;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (properties.remaining() < 6 + bytes.length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(properties.capacity() * 2, properties.position() + 6 + bytes.length))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            properties.flip();
+            properties = grown.put(properties);
+        }
+        properties.putShort((short) column);
+        properties.putInt(bytes.length);
+        properties.put(bytes);
+    }
+
+    private void encodeHeader(double minX, double minY, double maxX, double maxY) {
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+
+        // table Header { name; envelope; geometry_type; has_z; has_m; has_t; has_tm; columns; features_count;
+        //                index_node_size; crs; ... }
+        FlatBuffer fb = feature.reset();
+        int[] header = fb.table(4, count > 0 ? 4 : 0, 1, 0, 0, 0, 0, 4, 8, 2, 4);
+        fb.putByte(header[2], GEOMETRY_TYPE_POINT);
+        fb.putLong(header[8], count);
+        fb.putShort(header[9], (short) (count > 0 ? NODE_SIZE : 0));
+        fb.link(header[0], fb.string(dot > 0 ? name.substring(0, dot) : name));
+        if (count > 0) {
+            fb.link(header[1], fb.doubles(minX, minY, maxX, maxY));
+        }
+        int columns = fb.offsets(COLUMN_NAMES.length);
+        fb.link(header[7], columns);
+        for (int i = 0; i < COLUMN_NAMES.length; i++) {
+            // table Column { name: string (required); type: ColumnType; ... }
+            int[] column = fb.table(4, 1);
+            fb.link(columns + 4 + 4 * i, FlatBuffer.tableOf(column));
+            fb.putByte(column[1], COLUMN_TYPES[i]);
+            fb.link(column[0], fb.string(COLUMN_NAMES[i]));
+        }
+        // table Crs { org: string; code: int; ... }, no org means EPSG
+        int[] crs = fb.table(0, 4);
+        fb.link(header[10], FlatBuffer.tableOf(crs));
+        fb.putInt(crs[1], WGS84);
+        fb.root(FlatBuffer.tableOf(header));
+    }
+
+    /**
+     * Hilbert curve index of a point on a 65536 x 65536 grid, as in the FlatGeobuf reference implementation.
+     */
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    /**
+     * Minimal FlatBuffers encoder that lays a buffer out front to back: the root offset, then each table after its
+     * vtable, with the strings, vectors and tables it refers to after it, so every offset points forward as the
+     * format requires. Offset fields are written as placeholders and filled in by link once the target exists.
+     * Readers verify alignment from the start of the 4 byte size prefix, so 8 byte values are placed at positions
+     * that are a multiple of 8 once the prefix is in front.
+     */
+    private static class FlatBuffer {
+        private ByteBuffer bytes = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        FlatBuffer reset() {
+            bytes.clear();
+            bytes.putInt(0); // root offset
+            return this;
+        }
+
+        /**
+         * Returns the encoded buffer, valid until the next reset.
+         */
+        ByteBuffer bytes() {
+            return bytes.duplicate().flip().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void root(int table) {
+            link(0, table);
+        }
+
+        /**
+         * Writes a table whose fields have the given byte sizes in schema order, 0 for absent, zero filled. Returns
+         * the position of each field indexed by field id, followed by the position of the table, see tableOf.
+         */
+        int[] table(int... sizes) {
+            align(4);
+            int vtable = bytes.position();
+            int vtableSize = 4 + 2 * sizes.length;
+            boolean wide = false;
+            for (int size : sizes) {
+                wide |= size == 8;
+            }
+            int table = vtable + vtableSize;
+            while (wide ? table % 8 != 0 : table % 4 != 0) {
+                table++;
+            }
+
+            int[] fields = new int[sizes.length + 1];
+            int cursor = table + 4;
+            for (int size = 8; size >= 1; size /= 2) {
+                for (int id = 0; id < sizes.length; id++) {
+                    if (sizes[id] == size) {
+                        fields[id] = cursor;
+                        cursor += size;
+                    }
+                }
+            }
+            ensure(cursor - vtable);
+            bytes.putShort((short) vtableSize);
+            bytes.putShort((short) (cursor - table));
+            for (int id = 0; id < sizes.length; id++) {
+                bytes.putShort((short) (sizes[id] == 0 ? 0 : fields[id] - table));
+            }
+            while (bytes.position() < cursor) {
+                bytes.put((byte) 0);
+            }
+            bytes.putInt(table, table - vtable); // soffset to the vtable
+            fields[sizes.length] = table;
+            return fields;
+        }
+
+        static int tableOf(int[] fields) {
+            return fields[fields.length - 1];
+        }
+
+        int string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            align(4);
+            ensure(4 + utf8.length + 1);
+            int start = bytes.position();
+            bytes.putInt(utf8.length).put(utf8).put((byte) 0);
+            return start;
+        }
+
+        int doubles(double... values) {
+            while (bytes.position() % 8 != 0) {
+                ensure(1);
+                bytes.put((byte) 0);
+            }
+            ensure(4 + 8 * values.length);
+            int start = bytes.position();
+            bytes.putInt(values.length);
+            for (double value : values) {
+                bytes.putDouble(value);
+            }
+            return start;
+        }
+
+        int bytes(ByteBuffer values) {
+            align(4);
+            ensure(4 + values.remaining());
+            int start = bytes.position();
+            bytes.putInt(values.remaining()).put(values.duplicate());
+            return start;
+        }
+
+        /**
+         * Writes a vector of count offsets, element i at the returned position + 4 + 4 * i, for link.
+         */
+        int offsets(int count) {
+            align(4);
+            ensure(4 + 4 * count);
+            int start = bytes.position();
+            bytes.putInt(count);
+            for (int i = 0; i < count; i++) {
+                bytes.putInt(0);
+            }
+            return start;
+        }
+
+        void link(int field, int target) {
+            bytes.putInt(field, target - field);
+        }
+
+        void putByte(int field, byte value) {
+            bytes.put(field, value);
+        }
+
+        void putShort(int field, short value) {
+            bytes.putShort(field, value);
+        }
+
+        void putInt(int field, int value) {
+            bytes.putInt(field, value);
+        }
+
+        void putLong(int field, long value) {
+            bytes.putLong(field, value);
+        }
+
+        private void align(int alignment) {
+            while (bytes.position() % alignment != 0) {
+                ensure(1);
+                bytes.put((byte) 0);
+            }
+        }
+
+        private void ensure(int length) {
+            if (bytes.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + length))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                bytes.flip();
+                grown.put(bytes);
+                bytes = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Offline reverse geocoder over a compact index file built once from a GeoNames dump, like cities500.txt or
+ * allCountries.txt from https://download.geonames.org/export/dump/. The index is memory mapped, so opening it is
+ * instant whatever its size, and the operating system pages in only the parts that lookups touch.
+ *
+ * The index is a grid of CELLS_PER_DEGREE cells per degree. Places are stored sorted by cell, with a table of where
+ * each cell starts, so a lookup scans the cell of the point and then rings of cells around it until no closer place
+ * can be found. Lookups read the mapped buffer with absolute gets only, so they allocate nothing and any number of
+ * threads can share one Gazetteer.
+ *
+ * File layout, big endian:
+ * <pre>
+ *   header    magic, version, columns, rows, place count, strings offset (long)
+ *   cells     int per cell plus one, index of the first place of each cell
+ *   places    longitude and latitude in micro degrees and label offset, 3 ints per place
+ *   strings   per place: unsigned short byte length, then UTF-8 "name \0 region \0 country code"
+ * </pre>
+ */
+public class Gazetteer {
+
+    private static final Logger log = LoggerFactory.getLogger(Gazetteer.class);
+
+    public static final double DEFAULT_MAX_DISTANCE = 50_000; // meters, farther points have no place
+    private static final int MAGIC = 0x50324B47; // "P2KG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int CELLS_PER_DEGREE = 2;
+    private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+    private static final int ROWS = 180 * CELLS_PER_DEGREE;
+    private static final int PLACE_SIZE = 12;
+    private static final double MICRO = 1_000_000.0;
+    private static final double METERS_PER_DEGREE = 111_195; // mean earth radius
+    private static final char SEPARATOR = '\0';
+
+    // GeoNames dump columns
+    private static final int GEONAMES_NAME = 1;
+    private static final int GEONAMES_LATITUDE = 4;
+    private static final int GEONAMES_LONGITUDE = 5;
+    private static final int GEONAMES_FEATURE_CLASS = 6;
+    private static final int GEONAMES_COUNTRY = 8;
+    private static final int GEONAMES_ADMIN1 = 10;
+    private static final int GEONAMES_POPULATION = 14;
+    private static final String ADMIN1_FILE = "admin1CodesASCII.txt";
+
+    private final ByteBuffer buffer;
+    private final int placeCount;
+    private final int cellsOffset;
+    private final int placesOffset;
+    private final int stringsOffset;
+    private double maxDistance = DEFAULT_MAX_DISTANCE;
+
+    private Gazetteer(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not a gazetteer index.");
+        if (buffer.getInt(4) != VERSION) throw new IOException("Unsupported gazetteer index version. (" + buffer.getInt(4) + ")");
+        if (buffer.getInt(8) != COLUMNS || buffer.getInt(12) != ROWS) throw new IOException("Unsupported gazetteer grid.");
+        this.placeCount = buffer.getInt(16);
+        this.cellsOffset = HEADER_SIZE;
+        this.placesOffset = cellsOffset + (COLUMNS * ROWS + 1) * 4;
+        long strings = buffer.getLong(20);
+        if (strings != placesOffset + (long) placeCount * PLACE_SIZE || strings > buffer.capacity()) {
+            throw new IOException("Gazetteer index is truncated or corrupt.");
+        }
+        this.stringsOffset = (int) strings;
+    }
+
+    /**
+     * Returns the default location of the index, inside the user cache directory.
+     */
+    public static File defaultFile() {
+        return new File(System.getProperty("user.home"), ".photo2kml" + File.separator + "gazetteer.p2kg");
+    }
+
+    /**
+     * Maps an index written by build.
+     */
+    public static Gazetteer open(File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Gazetteer index is larger than 2 GB.");
+            Gazetteer gazetteer = new Gazetteer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            log.info("Opened gazetteer. file=" + indexFile.getPath() + " places=" + gazetteer.placeCount);
+            return gazetteer;
+        }
+    }
+
+    /**
+     * Sets the meters beyond which a point has no nearest place, like out at sea.
+     */
+    public Gazetteer maxDistance(final double maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    public int getPlaceCount() {
+        return placeCount;
+    }
+
+    /**
+     * Returns the place nearest to the point, or -1 if there is none within maxDistance.
+     */
+    public int nearest(double longitude, double latitude) {
+        if (!Double.isFinite(longitude) || !Double.isFinite(latitude)) return -1;
+        int column = column(longitude);
+        int row = row(latitude);
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        double maxDegrees = maxDistance / METERS_PER_DEGREE;
+        double best = maxDegrees * maxDegrees; // squared, in degrees of latitude
+        int bestPlace = -1;
+
+        for (int ring = 0; ring <= COLUMNS / 2; ring++) {
+            if (ring > 0) {
+                // any place outside the rings searched is at least ring - 1 cells away in latitude or longitude
+                double reach = (ring - 1) / (double) CELLS_PER_DEGREE;
+                double poleward = Math.min(89.9, Math.abs(latitude) + reach);
+                double closest = reach * Math.min(1.0, Math.cos(Math.toRadians(poleward)));
+                if (closest * closest > best) break;
+            }
+            int rowFrom = Math.max(0, row - ring);
+            int rowTo = Math.min(ROWS - 1, row + ring);
+            for (int r = rowFrom; r <= rowTo; r++) {
+                boolean edgeRow = r == row - ring || r == row + ring;
+                int step = edgeRow || ring == 0 ? 1 : 2 * ring; // inner rows only have the left and right cell
+                for (int c = column - ring; c <= column + ring; c += step) {
+                    int cell = r * COLUMNS + Math.floorMod(c, COLUMNS);
+                    int end = buffer.getInt(cellsOffset + (cell + 1) * 4);
+                    for (int place = buffer.getInt(cellsOffset + cell * 4); place < end; place++) {
+                        int offset = placesOffset + place * PLACE_SIZE;
+                        double dx = longitude - buffer.getInt(offset) / MICRO;
+                        if (dx > 180) dx -= 360;
+                        else if (dx < -180) dx += 360;
+                        dx *= cosLatitude;
+                        double dy = latitude - buffer.getInt(offset + 4) / MICRO;
+                        double distance = dx * dx + dy * dy;
+                        if (distance < best) {
+                            best = distance;
+                            bestPlace = place;
+                        }
+                    }
+                }
+            }
+        }
+        return bestPlace;
+    }
+
+    /**
+     * Returns the place name, like "Lyon".
+     */
+    public String getName(int place) {
+        return labelPart(place, 0);
+    }
+
+    /**
+     * Returns the first level administrative region, like "Auvergne-Rhone-Alpes", or an empty string.
+     */
+    public String getRegion(int place) {
+        return labelPart(place, 1);
+    }
+
+    /**
+     * Returns the ISO country code, like "FR".
+     */
+    public String getCountry(int place) {
+        return labelPart(place, 2);
+    }
+
+    /**
+     * Returns the name, region and country, like "Lyon, Auvergne-Rhone-Alpes, FR", leaving out empty parts.
+     */
+    public String getLabel(int place) {
+        StringBuilder label = new StringBuilder(getName(place));
+        for (int part = 1; part <= 2; part++) {
+            String value = labelPart(place, part);
+            if (!value.isEmpty()) label.append(", ").append(value);
+        }
+        return label.toString();
+    }
+
+    private String labelPart(int place, int part) {
+        if (place < 0 || place >= placeCount) throw new IndexOutOfBoundsException("Place " + place + " of " + placeCount);
+        int offset = stringsOffset + buffer.getInt(placesOffset + place * PLACE_SIZE + 8);
+        int length = buffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 2, bytes);
+        String[] parts = new String(bytes, StandardCharsets.UTF_8).split(String.valueOf(SEPARATOR), -1);
+        return part < parts.length ? parts[part] : "";
+    }
+
+    private static int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180) * CELLS_PER_DEGREE), COLUMNS);
+    }
+
+    private static int row(double latitude) {
+        return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((latitude + 90) * CELLS_PER_DEGREE)));
+    }
+
+    /**
+     * Converts a GeoNames dump into an index file. Only populated places (feature class P) with at least
+     * minPopulation people are kept. Region names are read from admin1CodesASCII.txt next to the dump if it is
+     * there, otherwise regions are left out. Returns the number of places written.
+     */
+    public static int build(File geonamesFile, File indexFile, long minPopulation) throws IOException {
+        Map<String, String> regions = readRegions(new File(geonamesFile.getAbsoluteFile().getParentFile(), ADMIN1_FILE));
+
+        // read the places, keeping their labels in one pool
+        int count = 0;
+        int[] longitudes = new int[1024];
+        int[] latitudes = new int[1024];
+        int[] labelOffsets = new int[1024];
+        ByteArrayOutputStream labels = new ByteArrayOutputStream(1 << 20);
+        try (BufferedReader reader = Files.newBufferedReader(geonamesFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length <= GEONAMES_POPULATION || !fields[GEONAMES_FEATURE_CLASS].equals("P")) continue;
+                long population = fields[GEONAMES_POPULATION].isEmpty() ? 0 : Long.parseLong(fields[GEONAMES_POPULATION]);
+                if (population < minPopulation) continue;
+
+                if (count == longitudes.length) {
+                    longitudes = Arrays.copyOf(longitudes, count * 2);
+                    latitudes = Arrays.copyOf(latitudes, count * 2);
+                    labelOffsets = Arrays.copyOf(labelOffsets, count * 2);
+                }
+                longitudes[count] = (int) Math.round(Double.parseDouble(fields[GEONAMES_LONGITUDE]) * MICRO);
+                latitudes[count] = (int) Math.round(Double.parseDouble(fields[GEONAMES_LATITUDE]) * MICRO);
+                String country = fields[GEONAMES_COUNTRY];
+                String region = regions.getOrDefault(country + "." + fields[GEONAMES_ADMIN1], "");
+                byte[] label = (fields[GEONAMES_NAME] + SEPARATOR + region + SEPARATOR + country).getBytes(StandardCharsets.UTF_8);
+                if (label.length > 0xFFFF) continue;
+                labelOffsets[count] = labels.size();
+                labels.write(label.length >> 8);
+                labels.write(label.length);
+                labels.write(label, 0, label.length);
+                count++;
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Not a GeoNames dump. (" + ex.getMessage() + ")");
+        }
+
+        // counting sort by cell
+        int[] cellStarts = new int[COLUMNS * ROWS + 1];
+        int[] cells = new int[count];
+        for (int i = 0; i < count; i++) {
+            cells[i] = row(latitudes[i] / MICRO) * COLUMNS + column(longitudes[i] / MICRO);
+            cellStarts[cells[i] + 1]++;
+        }
+        for (int cell = 0; cell < COLUMNS * ROWS; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        int[] sorted = new int[count];
+        int[] next = Arrays.copyOf(cellStarts, COLUMNS * ROWS);
+        for (int i = 0; i < count; i++) {
+            sorted[next[cells[i]]++] = i;
+        }
+
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(COLUMNS);
+            out.writeInt(ROWS);
+            out.writeInt(count);
+            out.writeLong(HEADER_SIZE + (COLUMNS * ROWS + 1) * 4L + (long) count * PLACE_SIZE);
+            for (int start : cellStarts) {
+                out.writeInt(start);
+            }
+            for (int i : sorted) {
+                out.writeInt(longitudes[i]);
+                out.writeInt(latitudes[i]);
+                out.writeInt(labelOffsets[i]);
+            }
+            labels.writeTo(out);
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Built gazetteer. file=" + indexFile.getPath() + " places=" + count + " regions=" + regions.size());
+        return count;
+    }
+
+    /**
+     * Reads region names by "country.code" from a GeoNames admin1CodesASCII.txt, or returns an empty map.
+     */
+    private static Map<String, String> readRegions(File admin1File) throws IOException {
+        Map<String, String> regions = new HashMap<>();
+        if (!admin1File.isFile()) return regions;
+        try (BufferedReader reader = Files.newBufferedReader(admin1File.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length >= 2) regions.put(fields[0], fields[1]);
+            }
+        }
+        return regions;
+    }
+}
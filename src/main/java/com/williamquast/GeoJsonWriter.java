@@ -0,0 +1,138 @@
+package com.williamquast;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams placemarks as GeoJSON Point Features with name, timestamp, description and file properties.
+ * Each Feature is one line, so the output can be read line by line. Newline delimited output has nothing else,
+ * for tools like ogr2ogr, BigQuery or jq. Otherwise the lines are wrapped in a FeatureCollection, for tools that
+ * want a plain .geojson file.
+ */
+public class GeoJsonWriter extends BufferedChannelWriter implements PlacemarkWriter {
+
+    private static final int MAX_ESCAPED_CHAR_BYTES = 6; // a control character as backslash, u and four hex digits
+
+    private static final byte[] COLLECTION_START = ascii("{\"type\":\"FeatureCollection\",\"features\":[\n");
+    private static final byte[] COLLECTION_END = ascii("]}\n");
+    private static final byte[] FEATURE_SEPARATOR = ascii(",\n");
+    private static final byte[] FEATURE_START = ascii("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+    private static final byte[] PROPERTIES_NAME = ascii("]},\"properties\":{\"name\":");
+    private static final byte[] PROPERTY_TIMESTAMP = ascii(",\"timestamp\":\"");
+    private static final byte[] PROPERTY_DESCRIPTION = ascii(",\"description\":");
+    private static final byte[] PROPERTY_FILE = ascii(",\"file\":");
+    private static final byte[] FEATURE_END = ascii("}}");
+    private static final byte[] NULL = ascii("null");
+
+    private final boolean delimited;
+    private int placemarkCount;
+
+    /**
+     * Writes newline delimited GeoJSON if delimited, otherwise a FeatureCollection.
+     */
+    public GeoJsonWriter(File outputFile, boolean delimited) throws IOException {
+        super(FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        this.delimited = delimited;
+        if (!delimited) {
+            put(COLLECTION_START);
+        }
+    }
+
+    @Override
+    public void writePlacemark(Waypoint waypoint, File photo) throws IOException {
+        if (placemarkCount > 0 && !delimited) {
+            put(FEATURE_SEPARATOR);
+        }
+        put(FEATURE_START);
+        putCoordinate(waypoint.x);
+        ensureCapacity(1);
+        buffer[position++] = ',';
+        putCoordinate(waypoint.y);
+        put(PROPERTIES_NAME);
+        putString(waypoint.name);
+        if (waypoint.timestamp != null) {
+            put(PROPERTY_TIMESTAMP);
+            putTimestamp(waypoint.timestamp.getTime());
+            ensureCapacity(1);
+            buffer[position++] = '"';
+        }
+        if (waypoint.description != null) {
+            put(PROPERTY_DESCRIPTION);
+            putString(waypoint.description);
+        }
+        if (photo != null) {
+            put(PROPERTY_FILE);
+            putString(photo.getPath());
+        }
+        put(FEATURE_END);
+        if (delimited) {
+            ensureCapacity(1);
+            buffer[position++] = '\n';
+        }
+        placemarkCount++;
+    }
+
+    @Override
+    public int getPlacemarkCount() {
+        return placemarkCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!delimited) {
+                if (placemarkCount > 0) {
+                    ensureCapacity(1);
+                    buffer[position++] = '\n';
+                }
+                put(COLLECTION_END);
+            }
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * Writes text as a quoted JSON string, UTF-8 encoded. Unpaired surrogates are replaced with U+FFFD.
+     */
+    private void putString(String text) throws IOException {
+        if (text == null) {
+            put(NULL);
+            return;
+        }
+        ensureCapacity(1);
+        buffer[position++] = '"';
+        for (int i = 0; i < text.length(); i++) {
+            ensureCapacity(MAX_ESCAPED_CHAR_BYTES);
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"': putAscii("\\\""); break;
+                    case '\\': putAscii("\\\\"); break;
+                    case '\n': putAscii("\\n"); break;
+                    case '\r': putAscii("\\r"); break;
+                    case '\t': putAscii("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            putAscii("\\u00");
+                            buffer[position++] = (byte) Character.forDigit(c >> 4, 16);
+                            buffer[position++] = (byte) Character.forDigit(c & 0xF, 16);
+                        } else {
+                            buffer[position++] = (byte) c;
+                        }
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                putCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                putCodePoint(0xFFFD);
+            } else {
+                putCodePoint(c);
+            }
+        }
+        ensureCapacity(1);
+        buffer[position++] = '"';
+    }
+}
@@ -0,0 +1,259 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KML document that is kept up to date while photos come and go, without rewriting everything on each change.
+ * The placemarks are split into parts of partSize. The output file only holds a NetworkLink to an index next to it,
+ * which Google Earth reloads every refreshInterval seconds, and the index links to the current version of each part:
+ *
+ * <pre>
+ *   photos.kml                root, written once
+ *   photos_parts/index.kml    rewritten on every flush
+ *   photos_parts/3-v7.kml     part 3, version 7
+ * </pre>
+ *
+ * A flush writes only the parts that changed, each to a new version file, and then replaces the index in one move,
+ * so a reader sees either the old or the new document and reloads just the changed parts. A replaced photo keeps
+ * its place in its part, new photos fill up the last part.
+ *
+ * Items live in an append-only WaypointStore, so replacing or removing a photo leaves its old slot behind. Once the
+ * dead slots outnumber the live ones the store is rebuilt from the live items, which keeps a long running watch at
+ * most about twice the size of its photos at amortized constant cost per put.
+ */
+public class IncrementalKmlDocument {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalKmlDocument.class);
+
+    public static final int DEFAULT_PART_SIZE = 1000;
+    public static final int DEFAULT_REFRESH_INTERVAL = 1; // seconds
+    private static final String INDEX_NAME = "index.kml";
+    private static final int MIN_COMPACT_SLOTS = 10_000; // dead slots before compacting is worth it
+
+    private final File outputFile;
+    private final File partsDir;
+    private int partSize = DEFAULT_PART_SIZE;
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    private WaypointStore store = new WaypointStore(); // replaced and removed items stay behind until compact()
+    private final Map<String, Entry> entries = new HashMap<>(); // by absolute path
+    private final List<Part> parts = new ArrayList<>();
+    private int nextPartNumber;
+    private boolean rootWritten;
+
+    public IncrementalKmlDocument(File outputFile) {
+        this.outputFile = outputFile.getAbsoluteFile();
+        String name = this.outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        this.partsDir = new File(this.outputFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "_parts");
+    }
+
+    public IncrementalKmlDocument partSize(final int partSize) {
+        if (partSize < 1) throw new IllegalArgumentException("Part size must be at least 1. (" + partSize + ")");
+        this.partSize = partSize;
+        return this;
+    }
+
+    public IncrementalKmlDocument refreshInterval(final int refreshInterval) {
+        if (refreshInterval < 1) throw new IllegalArgumentException("Refresh interval must be at least 1 second. (" + refreshInterval + ")");
+        this.refreshInterval = refreshInterval;
+        return this;
+    }
+
+    public File getPartsDir() {
+        return partsDir;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Adds or replaces the placemark of item's file. A failed item removes it, since the file no longer has one.
+     * Items without a file, like directory errors, have no placemark and are ignored.
+     */
+    public void put(ExtractItem item) {
+        if (item.file == null) return;
+        String path = item.file.getAbsolutePath();
+        if (!item.isSuccess()) {
+            remove(path);
+            return;
+        }
+        compactIfNeeded();
+        int slot = store.add(item);
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entry.part.slots[entry.position] = slot;
+            entry.part.dirty = true;
+            return;
+        }
+
+        Part part = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+        if (part == null || part.count == partSize) {
+            part = new Part(nextPartNumber++, partSize);
+            parts.add(part);
+        }
+        entry = new Entry(part, part.count);
+        part.slots[part.count++] = slot;
+        part.live++;
+        part.dirty = true;
+        entries.put(path, entry);
+    }
+
+    /**
+     * Removes the placemark of file, or of every file under it if it was a directory.
+     */
+    public void remove(File file) {
+        String path = file.getAbsolutePath();
+        if (remove(path)) return;
+
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        List<String> under = new ArrayList<>();
+        for (String candidate : entries.keySet()) {
+            if (candidate.startsWith(prefix)) under.add(candidate);
+        }
+        for (String candidate : under) {
+            remove(candidate);
+        }
+    }
+
+    private boolean remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry == null) return false;
+        entry.part.slots[entry.position] = -1;
+        entry.part.live--;
+        entry.part.dirty = true;
+        return true;
+    }
+
+    /**
+     * Rebuilds the store from the live items once the dead slots outnumber them. The placemarks do not change,
+     * so no part becomes dirty.
+     */
+    private void compactIfNeeded() {
+        int dead = store.size() - entries.size();
+        if (dead < MIN_COMPACT_SLOTS || dead < entries.size()) return;
+        WaypointStore compacted = new WaypointStore();
+        for (Part part : parts) {
+            for (int i = 0; i < part.count; i++) {
+                if (part.slots[i] >= 0) part.slots[i] = compacted.add(store.get(part.slots[i]));
+            }
+        }
+        log.debug("Compacted KML store. slots=" + store.size() + " live=" + compacted.size());
+        store = compacted;
+    }
+
+    /**
+     * Writes the changed parts and then the index. Returns the number of parts written.
+     */
+    public int flush() throws IOException {
+        if (!partsDir.isDirectory() && !partsDir.mkdirs()) {
+            throw new IOException("Failed creating directory. (" + partsDir + ")");
+        }
+        if (!rootWritten) {
+            writeRoot();
+            rootWritten = true;
+        }
+
+        List<File> replaced = new ArrayList<>();
+        int written = 0;
+        Iterator<Part> iterator = parts.iterator();
+        while (iterator.hasNext()) {
+            Part part = iterator.next();
+            if (!part.dirty) continue;
+            if (part.version > 0) replaced.add(part.file(partsDir));
+            part.dirty = false;
+            if (part.live == 0 && part.count == partSize) {
+                iterator.remove(); // full and emptied, new photos never go back into it
+                continue;
+            }
+            part.version++;
+            if (part.live > 0) {
+                writePart(part);
+                written++;
+            }
+        }
+        writeIndex();
+        for (File file : replaced) {
+            Files.deleteIfExists(file.toPath());
+        }
+        log.debug("Flushed KML parts. written=" + written + " parts=" + parts.size() + " placemarks=" + entries.size());
+        return written;
+    }
+
+    private void writeRoot() throws IOException {
+        try (KmlWriter writer = new KmlWriter(outputFile)) {
+            writer.writeNetworkLink(outputFile.getName(), partsDir.getName() + "/" + INDEX_NAME, refreshInterval);
+        }
+    }
+
+    private void writePart(Part part) throws IOException {
+        try (KmlWriter writer = new KmlWriter(part.file(partsDir))) {
+            for (int i = 0; i < part.count; i++) {
+                if (part.slots[i] < 0) continue;
+                ExtractItem item = store.get(part.slots[i]);
+                writer.writePlacemark(item.waypoint, item.file);
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the old one, so a reload never sees half of it.
+     */
+    private void writeIndex() throws IOException {
+        File temp = new File(partsDir, INDEX_NAME + ".tmp");
+        try (KmlWriter writer = new KmlWriter(temp)) {
+            for (Part part : parts) {
+                if (part.live > 0) {
+                    writer.writeNetworkLink("Part " + part.number, part.file(partsDir).getName(), 0);
+                }
+            }
+        }
+        try {
+            Files.move(temp.toPath(), new File(partsDir, INDEX_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), new File(partsDir, INDEX_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static class Part {
+        final int number;
+        final int[] slots; // store index of each placemark, -1 where one was removed
+        int count; // slots used, including removed ones
+        int live; // slots not removed
+        int version; // of the file last written, 0 for none
+        boolean dirty;
+
+        Part(int number, int size) {
+            this.number = number;
+            this.slots = new int[size];
+        }
+
+        File file(File dir) {
+            return new File(dir, number + "-v" + version + ".kml");
+        }
+    }
+
+    private static class Entry {
+        final Part part;
+        final int position;
+
+        Entry(Part part, int position) {
+            this.part = part;
+            this.position = position;
+        }
+    }
+}
@@ -3,12 +3,15 @@ package com.williamquast;
 import javafx.application.Platform;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.util.Comparator;
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,18 +20,40 @@ public class KmlOutputWorker {
 
     private static final Logger log = LoggerFactory.getLogger(KmlOutputWorker.class);
 
+    private static final long PROGRESS_INTERVAL = 100; // ms between progress updates
+    private static final int CANCEL_CHECK_INTERVAL = 4096; // items between cancel checks while de-duplicating
+
     private Thread thread;
-    private List<ExtractItem> items;
-    private Comparator<ExtractItem> sort;
+    private volatile boolean cancelled;
+    private WaypointStore items;
+    private Function<WaypointStore, WaypointStore.IndexComparator> sort;
     private File outputFile;
+    private boolean thumbnails;
+    private TrackBuilder track; // null writes one placemark per photo
+    private KmlWriter.TrackGeometry trackGeometry = KmlWriter.TrackGeometry.LINE_STRING;
+    private TilePyramid tiles; // null writes one flat document
+    private Function<SpatialIndex, int[]> filter; // null writes every successful item
+    private Deduplicator deduplicator; // null writes every photo
+    private PlaceFolders places; // null writes the placemarks without folders
     private Consumer<Result> callback;
+    private ProgressListener progressListener;
+    private Executor callbackExecutor = Platform::runLater; // where the callback is called, the FX thread by default
+    private final AtomicBoolean uiReady = new AtomicBoolean(true);
+    private long lastProgress;
 
-    public KmlOutputWorker items(final List<ExtractItem> items) {
+    /**
+     * Sets the items to write. The store must not change while the worker runs, pass a snapshot of a live store.
+     */
+    public KmlOutputWorker items(final WaypointStore items) {
         this.items = items;
         return this;
     }
 
-    public KmlOutputWorker sort(final Comparator<ExtractItem> sort) {
+    /**
+     * Sets the placemark order as a factory for a comparator over the store, like store -> store::compareNames.
+     * Comparators that only read the store columns keep the export sort fast. null writes in insertion order.
+     */
+    public KmlOutputWorker sort(final Function<WaypointStore, WaypointStore.IndexComparator> sort) {
         this.sort = sort;
         return this;
     }
@@ -38,11 +63,82 @@ public class KmlOutputWorker {
         return this;
     }
 
+    /**
+     * Adds a thumbnail of each photo, embedded in a .kmz or written next to a .kml outputFile.
+     */
+    public KmlOutputWorker thumbnails(final boolean thumbnails) {
+        this.thumbnails = thumbnails;
+        return this;
+    }
+
+    /**
+     * Writes the photos as time ordered, simplified tracks built by track instead of one placemark per photo.
+     * Photos without a timestamp are left out. sort and thumbnails do not apply to tracks.
+     */
+    public KmlOutputWorker track(final TrackBuilder track) {
+        this.track = track;
+        return this;
+    }
+
+    public KmlOutputWorker trackGeometry(final KmlWriter.TrackGeometry trackGeometry) {
+        this.trackGeometry = trackGeometry;
+        return this;
+    }
+
+    /**
+     * Writes the placemarks as a level of detail pyramid of KML files built by tiles instead of one flat document.
+     * Needs a .kml outputFile, the tiles are written next to it. thumbnails does not apply to tiles.
+     */
+    public KmlOutputWorker tiles(final TilePyramid tiles) {
+        this.tiles = tiles;
+        return this;
+    }
+
+    /**
+     * Only writes the items that filter returns from a SpatialIndex over the items, like
+     * index -> index.radius(x, y, 2000). Applies to placemarks, tracks and tiles.
+     */
+    public KmlOutputWorker filter(final Function<SpatialIndex, int[]> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Merges burst shots and RAW+JPEG pairs into one placemark per group with deduplicator, after filter. Applies
+     * to placemarks, tracks and tiles.
+     */
+    public KmlOutputWorker deduplicate(final Deduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    /**
+     * Groups the placemarks into one folder per nearest place and names the place in each description, with
+     * places. Applies to placemarks, sort then orders the placemarks within a place.
+     */
+    public KmlOutputWorker places(final PlaceFolders places) {
+        this.places = places;
+        return this;
+    }
+
     public KmlOutputWorker callback(final Consumer<Result> callback) {
         this.callback = callback;
         return this;
     }
 
+    public KmlOutputWorker progressListener(final ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Sets the Executor used to call the callback. Defaults to the JavaFX application thread.
+     */
+    public KmlOutputWorker callbackExecutor(final Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
     public KmlOutputWorker start() {
         thread = new Thread(this::writeFile);
         thread.start();
@@ -50,6 +146,7 @@ public class KmlOutputWorker {
     }
 
     public void cancel() {
+        cancelled = true;
         if (thread != null) {
             thread.interrupt();
             thread = null;
@@ -59,52 +156,195 @@ public class KmlOutputWorker {
     private void writeFile() {
         log.info("Begin writeFile. file=" + outputFile.getAbsolutePath());
 
+        int[] order;
         try {
-            List<ExtractItem> sortedItems = items
-                    .stream()
-                    .filter(ExtractItem::isSuccess)
-                    .sorted(sort)
-                    .collect(Collectors.toList());
-
-            PrintWriter output = new PrintWriter(new FileWriter(outputFile));
-
-            output.println(
-                    "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
-                            "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" +
-                            "  <Document>");
-
-            for (ExtractItem result : sortedItems) {
-                if (result.success) {
-                    output.println(
-                            "    <Placemark>\n" +
-                                    "      <name>" + result.waypoint.name + "</name>\n" +
-                                    "      <Point>\n" +
-                                    "        <coordinates>" + result.waypoint.x + "," + result.waypoint.y + ",0</coordinates>\n" +
-                                    "      </Point>\n" +
-                                    "    </Placemark>");
+            order = prepare();
+        } catch (CancellationException ex) {
+            log.info("Cancelled before writing. file=" + outputFile.getPath());
+            finish(new Result("Cancelled.", true)); // nothing written, leave any existing file alone
+            return;
+        } catch (RuntimeException ex) {
+            log.error("Failed preparing placemarks.", ex);
+            finish(new Result(false, ex.getMessage()));
+            return;
+        }
+
+        if (track != null) {
+            writeTracks(order);
+            log.info("Finished writeFile. file=" + outputFile.getPath());
+            return;
+        }
+        if (tiles != null) {
+            writeTiles(order);
+            log.info("Finished writeFile. file=" + outputFile.getPath());
+            return;
+        }
+
+        try {
+            try (PlacemarkWriter output = PlacemarkWriter.open(outputFile, thumbnails)) {
+                if (places != null) {
+                    places.write(items, order, output, () -> cancelled, written -> submitProgress(order.length, written));
+                } else {
+                    for (int index : order) {
+                        if (cancelled) {
+                            break;
+                        }
+                        ExtractItem item = items.get(index);
+                        output.writePlacemark(item.waypoint, item.file);
+                        submitProgress(order.length, output.getPlacemarkCount());
+                    }
+                }
+            }
+
+            if (cancelled) {
+                finishCancelled();
+            } else {
+                submitProgress(order.length, order.length);
+                finish(new Result());
+            }
+        } catch (Exception ex) {
+            if (cancelled) {
+                // the interrupt from cancel() closes the channel mid write
+                finishCancelled();
+            } else {
+                log.error("Failed writing placemarks to file.", ex);
+                if (thumbnails) {
+                    KmlWriter.deleteImages(outputFile);
                 }
+                finish(new Result(false, ex.getMessage()));
             }
+        }
 
-            output.println(
-                    "  </Document>\n" +
-                            "</kml>");
+        log.info("Finished writeFile. file=" + outputFile.getPath());
+    }
 
-            output.close();
+    private void writeTracks(int[] order) {
+        if (!PlacemarkWriter.isKml(outputFile)) {
+            finish(new Result(false, "Tracks need a .kml or .kmz file."));
+            return;
+        }
+        int total = order.length;
+        int[] processed = new int[1];
+        try {
+            try (KmlWriter output = KmlWriter.open(outputFile, false)) {
+                track.build(items, order, () -> cancelled, segment -> {
+                    output.writeTrack("Track " + segment.number, segment, trackGeometry);
+                    processed[0] += segment.originalCount;
+                    submitProgress(total, processed[0]);
+                });
+            }
+            submitProgress(total, total);
             finish(new Result());
         } catch (Exception ex) {
-            log.error("Failed writing KML document to file.", ex);
-            finish(new Result(false, ex.getMessage()));
+            if (cancelled) {
+                finishCancelled();
+            } else {
+                log.error("Failed writing KML tracks to file.", ex);
+                finish(new Result(false, ex.getMessage()));
+            }
         }
+    }
 
-        log.info("Finished writeFile. file=" + outputFile.getPath());
+    private void writeTiles(int[] order) {
+        if (outputFile.getName().toLowerCase(Locale.ROOT).endsWith(".kmz")) {
+            finish(new Result(false, "Level of detail tiles need a .kml file."));
+            return;
+        }
+        try {
+            tiles.write(items, order, outputFile, () -> cancelled, written -> submitProgress(order.length, written));
+            submitProgress(order.length, order.length);
+            finish(new Result());
+        } catch (Exception ex) {
+            TilePyramid.deleteTiles(outputFile);
+            if (cancelled) {
+                finishCancelled();
+            } else {
+                log.error("Failed writing KML tiles.", ex);
+                outputFile.delete();
+                finish(new Result(false, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Returns the store indexes of the placemarks to write, in export order. The sort is split over the common
+     * ForkJoinPool and checks for cancel between chunks, it throws CancellationException when cancelled.
+     */
+    private int[] prepare() {
+        long start = System.nanoTime();
+        int[] order;
+        if (filter != null) {
+            order = filter.apply(SpatialIndex.build(items));
+            Arrays.sort(order); // insertion order, as without a filter
+        } else {
+            order = items.successIndexes();
+        }
+        if (deduplicator != null) {
+            order = deduplicate(order);
+        }
+        if (sort != null && track == null) {
+            WaypointStore.parallelSort(order, sort.apply(items), () -> cancelled);
+        }
+        if (cancelled) throw new CancellationException("Export cancelled.");
+        log.info("Prepared placemarks=" + order.length + " filtered=" + (filter != null) + " deduplicated=" + (deduplicator != null)
+                + " sorted=" + (sort != null) + " ms=" + (System.nanoTime() - start) / 1_000_000);
+        return order;
+    }
+
+    /**
+     * Streams the items at order through the deduplicator in time order, so every group is complete when it is
+     * passed on, and replaces items with a store of the remaining photos. Returns their indexes.
+     */
+    private int[] deduplicate(int[] order) {
+        WaypointStore.parallelSort(order, items.timestampSortComparator(), () -> cancelled);
+        WaypointStore unique = new WaypointStore();
+        try {
+            deduplicator.sink(unique::add);
+            for (int i = 0; i < order.length; i++) {
+                if (i % CANCEL_CHECK_INTERVAL == 0 && cancelled) throw new CancellationException("Export cancelled.");
+                deduplicator.accept(items.get(order[i]));
+            }
+            deduplicator.finish();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); // the store sink does not do I/O
+        }
+        items = unique;
+        return unique.successIndexes();
+    }
+
+    private void finishCancelled() {
+        if (outputFile.delete()) {
+            log.info("Deleted incomplete file. file=" + outputFile.getPath());
+        }
+        if (thumbnails) {
+            KmlWriter.deleteImages(outputFile);
+        }
+        finish(new Result("Cancelled.", true));
+    }
+
+    private void submitProgress(int total, int written) {
+        if (progressListener == null) return;
+        long now = System.currentTimeMillis();
+        if ((written == total || now - lastProgress >= PROGRESS_INTERVAL) && uiReady.compareAndSet(true, false)) {
+            lastProgress = now;
+            callbackExecutor.execute(() -> {
+                progressListener.onProgress(total, written);
+                uiReady.set(true);
+            });
+        }
     }
 
     private void finish(final Result result) {
-        Platform.runLater(() -> callback.accept(result));
+        callbackExecutor.execute(() -> callback.accept(result));
+    }
+
+    public interface ProgressListener {
+        void onProgress(int totalPlacemarks, int writtenPlacemarks);
     }
 
     public class Result {
         boolean success;
+        boolean cancelled;
         String failureReason;
 
         public Result() {
@@ -115,5 +355,11 @@ public class KmlOutputWorker {
             this.success = success;
             this.failureReason = failureReason;
         }
+
+        public Result(String failureReason, boolean cancelled) {
+            this.success = false;
+            this.failureReason = failureReason;
+            this.cancelled = cancelled;
+        }
     }
 }
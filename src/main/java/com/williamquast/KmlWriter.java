@@ -0,0 +1,499 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a KML document one Placemark at a time, so callers never need to hold all waypoints in memory.
+ * Placemarks are encoded as UTF-8 straight into one reusable byte buffer, which is written to the channel when
+ * full. Names are XML escaped and coordinates are formatted at fixed precision without creating any garbage.
+ * Use open to get a KmzWriter for .kmz files.
+ *
+ * With thumbnails, each photo placemark shows a thumbnail in its balloon. Thumbnails are created on a pool,
+ * several photos ahead of the placemark being written, and placemarks wait in a bounded queue for theirs so the
+ * document keeps the order of the calls. Plain KML writes the images into a directory next to the document and
+ * links to them, KmzWriter stores them in the archive.
+ */
+public class KmlWriter extends BufferedChannelWriter implements PlacemarkWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(KmlWriter.class);
+
+    private static final int MAX_ESCAPED_CHAR_BYTES = 6; // "&quot;"
+    private static final int THUMBNAILS_AHEAD_PER_THREAD = 4;
+
+    private static final byte[] HEADER = ascii(
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                    "<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\">\n" +
+                    "  <Document>\n");
+    private static final byte[] PLACEMARK_START = ascii(
+            "    <Placemark>\n" +
+                    "      <name>");
+    private static final byte[] PLACEMARK_DESCRIPTION = ascii(
+            "</name>\n" +
+                    "      <description>");
+    private static final byte[] PLACEMARK_DESCRIPTION_END = ascii(
+            "</description>\n" +
+                    "      <Point>\n" +
+                    "        <coordinates>");
+    private static final byte[] PLACEMARK_POINT = ascii(
+            "</name>\n" +
+                    "      <Point>\n" +
+                    "        <coordinates>");
+    private static final byte[] PLACEMARK_END = ascii(
+            ",0</coordinates>\n" +
+                    "      </Point>\n" +
+                    "    </Placemark>\n");
+    private static final byte[] TRACK_STYLE = ascii(
+            "</name>\n" +
+                    "      <Style>\n" +
+                    "        <LineStyle><color>ff0000ff</color><width>3</width></LineStyle>\n" +
+                    "      </Style>\n");
+    private static final byte[] LINE_STRING_START = ascii(
+            "      <LineString>\n" +
+                    "        <tessellate>1</tessellate>\n" +
+                    "        <coordinates>");
+    private static final byte[] ZERO_ALTITUDE = ascii(",0");
+    private static final byte[] LINE_STRING_END = ascii(
+            "</coordinates>\n" +
+                    "      </LineString>\n" +
+                    "    </Placemark>\n");
+    private static final byte[] GX_TRACK_START = ascii(
+            "      <gx:Track>\n");
+    private static final byte[] WHEN_START = ascii(
+            "        <when>");
+    private static final byte[] WHEN_END = ascii(
+            "</when>\n");
+    private static final byte[] COORD_START = ascii(
+            "        <gx:coord>");
+    private static final byte[] COORD_END = ascii(
+            " 0</gx:coord>\n");
+    private static final byte[] GX_TRACK_END = ascii(
+            "      </gx:Track>\n" +
+                    "    </Placemark>\n");
+    private static final byte[] FOLDER_START = ascii(
+            "    <Folder>\n" +
+                    "      <name>");
+    private static final byte[] FOLDER_END = ascii(
+            "    </Folder>\n");
+    private static final byte[] NETWORK_LINK_START = ascii(
+            "    <NetworkLink>\n" +
+                    "      <name>");
+    private static final byte[] NETWORK_LINK_HREF = ascii(
+            "      <Link>\n" +
+                    "        <href>");
+    private static final byte[] NETWORK_LINK_END = ascii(
+            "</href>\n" +
+                    "        <viewRefreshMode>onRegion</viewRefreshMode>\n" +
+                    "      </Link>\n" +
+                    "    </NetworkLink>\n");
+    private static final byte[] LINK_REFRESH = ascii(
+            "</href>\n" +
+                    "        <refreshMode>onInterval</refreshMode>\n" +
+                    "        <refreshInterval>");
+    private static final byte[] LINK_REFRESH_END = ascii(
+            "</refreshInterval>\n" +
+                    "      </Link>\n" +
+                    "    </NetworkLink>\n");
+    private static final byte[] LINK_END = ascii(
+            "</href>\n" +
+                    "      </Link>\n" +
+                    "    </NetworkLink>\n");
+    private static final byte[] NAME_END = ascii(
+            "</name>\n");
+    private static final byte[] REGION_NORTH = ascii(
+            "      <Region>\n" +
+                    "        <LatLonAltBox><north>");
+    private static final byte[] REGION_SOUTH = ascii("</north><south>");
+    private static final byte[] REGION_EAST = ascii("</south><east>");
+    private static final byte[] REGION_WEST = ascii("</east><west>");
+    private static final byte[] REGION_MIN_LOD = ascii(
+            "</west></LatLonAltBox>\n" +
+                    "        <Lod><minLodPixels>");
+    private static final byte[] REGION_MAX_LOD = ascii("</minLodPixels><maxLodPixels>");
+    private static final byte[] REGION_END = ascii(
+            "</maxLodPixels></Lod>\n" +
+                    "      </Region>\n");
+    private static final byte[] FOOTER = ascii(
+            "  </Document>\n" +
+                    "</kml>\n");
+
+    /**
+     * Geometry for tracks. LINE_STRING is understood by every KML viewer, GX_TRACK is the Google Earth extension
+     * that keeps the time of each point, for the time slider and elevation profile.
+     */
+    public enum TrackGeometry {
+        LINE_STRING, GX_TRACK
+    }
+
+    private int placemarkCount;
+
+    private ExecutorService thumbnailExecutor; // null without thumbnails
+    private boolean ownsThumbnailExecutor;
+    private ThumbnailCache thumbnailCache;
+    private File imageDir; // plain KML only
+    private int maxPending;
+    private final ArrayDeque<PendingPlacemark> pending = new ArrayDeque<>();
+    private int imageCount;
+
+    public KmlWriter(File outputFile) throws IOException {
+        this(FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Writes the document to channel, which is closed by close.
+     */
+    protected KmlWriter(WritableByteChannel channel) throws IOException {
+        super(channel);
+        put(HEADER);
+    }
+
+    /**
+     * Opens a KmzWriter if outputFile ends in .kmz, otherwise a plain KmlWriter.
+     * thumbnails adds a thumbnail of each photo, embedded in a KMZ or in the imageDirectory of a plain KML file.
+     */
+    public static KmlWriter open(File outputFile, boolean thumbnails) throws IOException {
+        if (outputFile.getName().toLowerCase(Locale.ROOT).endsWith(".kmz")) {
+            return KmzWriter.open(outputFile, thumbnails);
+        }
+        KmlWriter writer = new KmlWriter(outputFile);
+        if (thumbnails) {
+            deleteImages(outputFile); // a shorter export would otherwise leave images of the last one behind
+            int threads = Runtime.getRuntime().availableProcessors();
+            writer.imageDir = imageDirectory(outputFile);
+            writer.startThumbnails(Executors.newFixedThreadPool(threads, AdaptiveScheduler.daemonThreadFactory("thumbnail-")),
+                    threads, ThumbnailCache.getDefault(), true);
+        }
+        return writer;
+    }
+
+    /**
+     * Returns the directory next to a plain KML file that holds its thumbnails, like photos_files for photos.kml.
+     */
+    public static File imageDirectory(File outputFile) {
+        File file = outputFile.getAbsoluteFile();
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "_files");
+    }
+
+    /**
+     * Deletes the thumbnails written for outputFile, and their directory if nothing else is in it.
+     */
+    public static void deleteImages(File outputFile) {
+        File imageDirectory = imageDirectory(outputFile);
+        File[] images = imageDirectory.listFiles((dir, name) -> name.matches("[0-9]+\\.jpg"));
+        if (images != null) {
+            for (File image : images) {
+                image.delete();
+            }
+        }
+        imageDirectory.delete(); // only succeeds when empty
+    }
+
+    /**
+     * Creates thumbnails on executor from now on, up to THUMBNAILS_AHEAD_PER_THREAD per thread ahead of the
+     * placemark being written. ownsExecutor shuts it down on close.
+     */
+    protected void startThumbnails(ExecutorService executor, int threads, ThumbnailCache cache, boolean ownsExecutor) {
+        this.thumbnailExecutor = executor;
+        this.thumbnailCache = cache;
+        this.ownsThumbnailExecutor = ownsExecutor;
+        this.maxPending = threads * THUMBNAILS_AHEAD_PER_THREAD;
+    }
+
+    public void writePlacemark(Waypoint waypoint) throws IOException {
+        writePlacemark(waypoint, null);
+    }
+
+    /**
+     * Writes a placemark for a waypoint read from photo. With thumbnails it is queued behind the thumbnails still
+     * being created, so placemarks keep their order.
+     */
+    public void writePlacemark(Waypoint waypoint, File photo) throws IOException {
+        if (thumbnailExecutor == null) {
+            writePlacemarkElement(waypoint, null);
+            return;
+        }
+        Future<byte[]> thumbnail = null;
+        if (photo != null) {
+            thumbnail = thumbnailExecutor.submit(() -> Thumbnails.create(photo, Thumbnails.DEFAULT_MAX_SIZE, thumbnailCache));
+        }
+        pending.add(new PendingPlacemark(waypoint, photo, thumbnail));
+        while (pending.size() > maxPending) {
+            writeOldestPending();
+        }
+    }
+
+    /**
+     * Writes one Placemark, with the waypoint description and an img tag if imageHref is not null.
+     */
+    protected void writePlacemarkElement(Waypoint waypoint, String imageHref) throws IOException {
+        put(PLACEMARK_START);
+        putEscaped(waypoint.name);
+        if (imageHref != null || waypoint.description != null) {
+            put(PLACEMARK_DESCRIPTION);
+            if (waypoint.description != null) {
+                putEscaped(waypoint.description);
+                if (imageHref != null) putEscaped("<br/>");
+            }
+            if (imageHref != null) {
+                putEscaped("<img src=\"");
+                putEscaped(imageHref);
+                putEscaped("\"/>");
+            }
+            put(PLACEMARK_DESCRIPTION_END);
+        } else {
+            put(PLACEMARK_POINT);
+        }
+        putCoordinate(waypoint.x);
+        ensureCapacity(1);
+        buffer[position++] = ',';
+        putCoordinate(waypoint.y);
+        put(PLACEMARK_END);
+        placemarkCount++;
+    }
+
+    /**
+     * Writes one segment of a track as a Placemark named name.
+     */
+    public void writeTrack(String name, TrackBuilder.Segment segment, TrackGeometry geometry) throws IOException {
+        writeAllPending();
+        put(PLACEMARK_START);
+        putEscaped(name);
+        put(TRACK_STYLE);
+        if (geometry == TrackGeometry.GX_TRACK) {
+            put(GX_TRACK_START);
+            for (int i = 0; i < segment.count; i++) {
+                put(WHEN_START);
+                putTimestamp(segment.timestamps[i]);
+                put(WHEN_END);
+            }
+            for (int i = 0; i < segment.count; i++) {
+                put(COORD_START);
+                putCoordinate(segment.x[i]);
+                ensureCapacity(1);
+                buffer[position++] = ' ';
+                putCoordinate(segment.y[i]);
+                put(COORD_END);
+            }
+            put(GX_TRACK_END);
+        } else {
+            put(LINE_STRING_START);
+            for (int i = 0; i < segment.count; i++) {
+                if (i > 0) {
+                    ensureCapacity(1);
+                    buffer[position++] = ' ';
+                }
+                putCoordinate(segment.x[i]);
+                ensureCapacity(1);
+                buffer[position++] = ',';
+                putCoordinate(segment.y[i]);
+                put(ZERO_ALTITUDE);
+            }
+            put(LINE_STRING_END);
+        }
+        placemarkCount++;
+    }
+
+    /**
+     * Starts a Folder that is only shown while its Region, the box west..east, south..north, is between
+     * minLodPixels and maxLodPixels on screen. maxLodPixels -1 means no upper limit. End it with endFolder.
+     */
+    public void beginFolder(String name, double west, double south, double east, double north,
+                            int minLodPixels, int maxLodPixels) throws IOException {
+        writeAllPending();
+        put(FOLDER_START);
+        putEscaped(name);
+        put(NAME_END);
+        putRegion(west, south, east, north, minLodPixels, maxLodPixels);
+    }
+
+    /**
+     * Starts a Folder that is always shown. End it with endFolder.
+     */
+    public void beginFolder(String name) throws IOException {
+        writeAllPending();
+        put(FOLDER_START);
+        putEscaped(name);
+        put(NAME_END);
+    }
+
+    public void endFolder() throws IOException {
+        writeAllPending();
+        put(FOLDER_END);
+    }
+
+    /**
+     * Writes a NetworkLink that loads href once its Region is at least minLodPixels on screen.
+     */
+    public void writeNetworkLink(String name, String href, double west, double south, double east, double north,
+                                 int minLodPixels, int maxLodPixels) throws IOException {
+        put(NETWORK_LINK_START);
+        putEscaped(name);
+        put(NAME_END);
+        putRegion(west, south, east, north, minLodPixels, maxLodPixels);
+        put(NETWORK_LINK_HREF);
+        putEscaped(href);
+        put(NETWORK_LINK_END);
+    }
+
+    /**
+     * Writes a NetworkLink that always shows href and reloads it every refreshSeconds, or only when it is opened
+     * if refreshSeconds is 0.
+     */
+    public void writeNetworkLink(String name, String href, int refreshSeconds) throws IOException {
+        put(NETWORK_LINK_START);
+        putEscaped(name);
+        put(NAME_END);
+        put(NETWORK_LINK_HREF);
+        putEscaped(href);
+        if (refreshSeconds > 0) {
+            put(LINK_REFRESH);
+            putInteger(refreshSeconds);
+            put(LINK_REFRESH_END);
+        } else {
+            put(LINK_END);
+        }
+    }
+
+    private void putRegion(double west, double south, double east, double north,
+                           int minLodPixels, int maxLodPixels) throws IOException {
+        put(REGION_NORTH);
+        putCoordinate(north);
+        put(REGION_SOUTH);
+        putCoordinate(south);
+        put(REGION_EAST);
+        putCoordinate(east);
+        put(REGION_WEST);
+        putCoordinate(west);
+        put(REGION_MIN_LOD);
+        putInteger(minLodPixels);
+        put(REGION_MAX_LOD);
+        putInteger(maxLodPixels);
+        put(REGION_END);
+    }
+
+    public int getPlacemarkCount() {
+        return placemarkCount + pending.size();
+    }
+
+    public int getImageCount() {
+        return imageCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeAllPending();
+            put(FOOTER);
+            flush();
+        } finally {
+            channel.close();
+            if (ownsThumbnailExecutor) {
+                thumbnailExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Stores the thumbnail of the number'th image and returns the href a placemark uses to show it.
+     * Plain KML writes it into imageDir.
+     */
+    protected String storeImage(int number, byte[] jpeg) throws IOException {
+        if (!imageDir.isDirectory() && !imageDir.mkdirs()) {
+            throw new IOException("Failed creating directory. (" + imageDir + ")");
+        }
+        String name = number + ".jpg";
+        Files.write(new File(imageDir, name).toPath(), jpeg);
+        return imageDir.getName() + "/" + name;
+    }
+
+    /**
+     * Writes the queued placemarks, waiting for their thumbnails, so what comes next is written after them.
+     */
+    private void writeAllPending() throws IOException {
+        while (!pending.isEmpty()) {
+            writeOldestPending();
+        }
+    }
+
+    private void writeOldestPending() throws IOException {
+        PendingPlacemark placemark = pending.remove();
+        String imageHref = null;
+        if (placemark.thumbnail != null) {
+            byte[] jpeg = null;
+            try {
+                jpeg = placemark.thumbnail.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for thumbnail.");
+            } catch (ExecutionException ex) {
+                log.debug("Thumbnail failed. file=" + placemark.photo.getName() + " reason=" + ex.getCause());
+            }
+            if (jpeg != null) {
+                imageHref = storeImage(imageCount++, jpeg);
+            }
+        }
+        writePlacemarkElement(placemark.waypoint, imageHref);
+    }
+
+    /**
+     * Encodes text as UTF-8 with the XML special characters escaped. Characters that are not allowed in XML 1.0,
+     * like control characters and unpaired surrogates, are replaced with U+FFFD.
+     */
+    private void putEscaped(String text) throws IOException {
+        if (text == null) return;
+        for (int i = 0; i < text.length(); i++) {
+            ensureCapacity(MAX_ESCAPED_CHAR_BYTES);
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '&': putAscii("&amp;"); break;
+                    case '<': putAscii("&lt;"); break;
+                    case '>': putAscii("&gt;"); break;
+                    case '"': putAscii("&quot;"); break;
+                    case '\'': putAscii("&apos;"); break;
+                    default:
+                        if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+                            putCodePoint(0xFFFD);
+                        } else {
+                            buffer[position++] = (byte) c;
+                        }
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                putCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else if (Character.isSurrogate(c) || c == 0xFFFE || c == 0xFFFF) {
+                putCodePoint(0xFFFD);
+            } else {
+                putCodePoint(c);
+            }
+        }
+    }
+
+    private static class PendingPlacemark {
+        final Waypoint waypoint;
+        final File photo;
+        final Future<byte[]> thumbnail; // null when the placemark has no photo
+
+        PendingPlacemark(Waypoint waypoint, File photo, Future<byte[]> thumbnail) {
+            this.waypoint = waypoint;
+            this.photo = photo;
+            this.thumbnail = thumbnail;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a KMZ file, a zip holding doc.kml and optionally a thumbnail of every photo.
+ * doc.kml is deflated in parallel by a ParallelDeflateChannel, so a large export is both much smaller and written
+ * faster than plain KML. Thumbnails are created on the same pool and are stored uncompressed as files/N.jpg.
+ *
+ * Zip entries cannot interleave, so with thumbnails doc.kml is compressed to a temporary file next to the output
+ * and appended after the images. Google Earth loads the first .kml entry, wherever it is in the archive.
+ */
+public class KmzWriter extends KmlWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(KmzWriter.class);
+
+    static final String DOCUMENT_ENTRY = "doc.kml";
+    static final String IMAGE_DIRECTORY = "files/";
+
+    private final ZipWriter zip;
+    private final ExecutorService executor;
+    private final ParallelDeflateChannel documentDeflater;
+    private final File documentTempFile; // only used with thumbnails
+    private final FileChannel documentTemp;
+
+    private KmzWriter(ZipWriter zip, ExecutorService executor, int threads, ParallelDeflateChannel documentDeflater,
+                      File documentTempFile, FileChannel documentTemp, boolean thumbnails) throws IOException {
+        super(documentDeflater);
+        this.zip = zip;
+        this.executor = executor;
+        this.documentDeflater = documentDeflater;
+        this.documentTempFile = documentTempFile;
+        this.documentTemp = documentTemp;
+        if (thumbnails) {
+            startThumbnails(executor, threads, ThumbnailCache.getDefault(), false);
+        }
+    }
+
+    public static KmzWriter open(File outputFile, boolean thumbnails) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, AdaptiveScheduler.daemonThreadFactory("kmz-"));
+        ZipWriter zip = null;
+        File documentTempFile = null;
+        FileChannel documentTemp = null;
+        try {
+            zip = new ZipWriter(outputFile);
+            WritableByteChannel documentOut;
+            if (thumbnails) {
+                documentTempFile = File.createTempFile(outputFile.getName() + ".", ".tmp", outputFile.getAbsoluteFile().getParentFile());
+                documentTemp = FileChannel.open(documentTempFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                documentOut = documentTemp;
+            } else {
+                documentOut = zip.beginDeflated(DOCUMENT_ENTRY);
+            }
+            ParallelDeflateChannel deflater = new ParallelDeflateChannel(documentOut, executor, threads, Deflater.DEFAULT_COMPRESSION);
+            return new KmzWriter(zip, executor, threads, deflater, documentTempFile, documentTemp, thumbnails);
+        } catch (IOException | RuntimeException ex) {
+            executor.shutdownNow();
+            if (zip != null) zip.abort();
+            if (documentTemp != null) documentTemp.close();
+            if (documentTempFile != null) documentTempFile.delete();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean complete = false;
+        try {
+            super.close(); // queued placemarks and the footer, then the last compressed chunks
+
+            if (documentTemp != null) {
+                WritableByteChannel entry = zip.beginDeflated(DOCUMENT_ENTRY);
+                long size = documentTemp.size();
+                for (long position = 0; position < size; ) {
+                    position += documentTemp.transferTo(position, size - position, entry);
+                }
+            }
+            zip.endDeflated(documentDeflater.getCrc(), documentDeflater.getUncompressedSize());
+            zip.close();
+            complete = true;
+
+            log.info("Wrote KMZ. placemarks=" + getPlacemarkCount() + " images=" + getImageCount()
+                    + " kmlBytes=" + documentDeflater.getUncompressedSize() + " compressedBytes=" + documentDeflater.getCompressedSize());
+        } finally {
+            executor.shutdownNow();
+            if (!complete) {
+                zip.abort();
+            }
+            if (documentTemp != null) {
+                documentTemp.close();
+                documentTempFile.delete();
+            }
+        }
+    }
+
+    @Override
+    protected String storeImage(int number, byte[] jpeg) throws IOException {
+        String href = IMAGE_DIRECTORY + number + ".jpg";
+        zip.putStored(href, jpeg);
+        return href;
+    }
+}
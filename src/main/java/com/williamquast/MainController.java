@@ -1,8 +1,7 @@
 package com.williamquast;
 
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectWrapper;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
@@ -13,17 +12,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 
 public class MainController {
 
-    private static final SimpleDateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss ZZZZ");
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z")
+            .withZone(ZoneId.systemDefault());
 
     private static final Logger log = LoggerFactory.getLogger(MainController.class);
 
@@ -43,9 +46,10 @@ public class MainController {
     private Button cancelButton;
 
     private Stage primaryStage;
-    private ObservableList<ExtractItem> tableModel;
+    private WaypointStoreList tableModel;
     private PhotoLocationWorker photoLocationWorker;
     private KmlOutputWorker kmlOutputWorker;
+    private volatile TrackCorrelator trackCorrelator; // geotags photos without GPS in the next search, or null
 
     @FXML
     public void initialize() {
@@ -59,25 +63,86 @@ public class MainController {
     }
 
     private void initTable() {
-        tableModel = FXCollections.observableArrayList();
+        tableModel = new WaypointStoreList();
         tableView.setItems(tableModel);
+        tableView.setSortPolicy(table -> {
+            tableModel.sortBy(sortKey(table));
+            return true;
+        });
         filenameColumn.setCellValueFactory(new PropertyValueFactory<>("filename"));
-        timestampColumn.setCellValueFactory(param ->
-                new ReadOnlyObjectWrapper<>(TIMESTAMP_FORMAT.format(param.getValue().timestamp)));
+        timestampColumn.setCellValueFactory(param -> {
+            WaypointStoreList.Row row = (WaypointStoreList.Row) param.getValue();
+            if (row.timestampText == null) {
+                row.timestampText = row.timestamp != null ? TIMESTAMP_FORMAT.format(row.timestamp.toInstant()) : "";
+            }
+            return new ReadOnlyObjectWrapper<>(row.timestampText);
+        });
         resultColumn.setCellValueFactory(param -> {
-            ExtractItem item = param.getValue();
-            if (item == null) {
+            WaypointStoreList.Row row = (WaypointStoreList.Row) param.getValue();
+            if (row == null) {
                 return null;
             }
 
-            if (item.success) {
-                return new ReadOnlyObjectWrapper<>(String.format("%.4f, %.4f", item.waypoint.y, item.waypoint.x));
-            } else {
-                return new ReadOnlyObjectWrapper<>(item.failureReason);
+            if (row.resultText == null) {
+                row.resultText = row.success ? String.format("%.4f, %.4f", row.waypoint.y, row.waypoint.x) : row.failureReason;
             }
+            return new ReadOnlyObjectWrapper<>(row.resultText);
         });
     }
 
+    /**
+     * Builds the store comparator for the table's sort columns, compared in order, or null if no column is sorted.
+     */
+    private Function<WaypointStore, WaypointStore.IndexComparator> sortKey(TableView<ExtractItem> table) {
+        List<Function<WaypointStore, WaypointStore.IndexComparator>> keys = new ArrayList<>();
+        for (TableColumn<ExtractItem, ?> column : table.getSortOrder()) {
+            Function<WaypointStore, WaypointStore.IndexComparator> key;
+            if (column == filenameColumn) {
+                key = WaypointStore::nameSortComparator;
+            } else if (column == timestampColumn) {
+                key = WaypointStore::timestampSortComparator;
+            } else if (column == resultColumn) {
+                key = store -> store::compareResults;
+            } else {
+                continue;
+            }
+            if (column.getSortType() == TableColumn.SortType.DESCENDING) {
+                Function<WaypointStore, WaypointStore.IndexComparator> ascending = key;
+                key = store -> {
+                    WaypointStore.IndexComparator comparator = ascending.apply(store);
+                    if (comparator instanceof WaypointStore.KeyedComparator) {
+                        return ((WaypointStore.KeyedComparator) comparator).reversed();
+                    }
+                    return (a, b) -> comparator.compare(b, a);
+                };
+            }
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        return store -> {
+            WaypointStore.IndexComparator[] comparators = new WaypointStore.IndexComparator[keys.size()];
+            for (int i = 0; i < comparators.length; i++) {
+                comparators[i] = keys.get(i).apply(store);
+            }
+            if (comparators.length == 1) {
+                return comparators[0];
+            }
+            WaypointStore.IndexComparator composed = (a, b) -> {
+                for (WaypointStore.IndexComparator comparator : comparators) {
+                    int result = comparator.compare(a, b);
+                    if (result != 0) return result;
+                }
+                return 0;
+            };
+            if (comparators[0] instanceof WaypointStore.KeyedComparator) { // keep the fast sort of the first column
+                return ((WaypointStore.KeyedComparator) comparators[0]).thenBreakTiesWith(composed);
+            }
+            return composed;
+        };
+    }
+
     @FXML
     public void onSearchDirectoryMenuItem() {
         log.debug("onSearchDirectoryMenuItem.");
@@ -86,31 +151,159 @@ public class MainController {
         if (sourceDir != null) {
             photoLocationWorker = new PhotoLocationWorker()
                     .sourceDir(sourceDir)
+                    .indexFile(ScanIndex.defaultIndexFile(sourceDir))
+                    .correlator(trackCorrelator)
                     .finishListener(this::handlePhotoLocationFinished)
                     .progressListener(this::handleProgressUpdated)
                     .start();
         }
     }
 
+    @FXML
+    public void onLoadTrackLogsMenuItem() {
+        log.debug("onLoadTrackLogsMenuItem.");
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Select GPS Track Logs");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("GPS Track Log (.gpx, .csv)", "*.gpx", "*.csv"));
+        List<File> files = fileChooser.showOpenMultipleDialog(primaryStage);
+        if (files == null || files.isEmpty()) {
+            return;
+        }
+        statusLabel.setText("Loading track logs...");
+        Thread thread = new Thread(() -> {
+            TrackCorrelator correlator = new TrackCorrelator();
+            String status;
+            try {
+                for (File file : files) {
+                    correlator.load(file);
+                }
+                trackCorrelator = correlator;
+                status = String.format("Loaded %d track points, photos without GPS are placed on them in the next search", correlator.getPointCount());
+            } catch (IOException ex) {
+                log.warn("Failed loading track logs. reason=" + ex.getMessage());
+                status = String.format("Failed loading track logs. (%s)", ex.getMessage());
+            }
+            String text = status;
+            Platform.runLater(() -> statusLabel.setText(text));
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     @FXML
     public void onExportAllAsKmlMenuItem() {
         log.debug("onExportAllAsKmlMenuItem.");
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select Export File");
-        fileChooser.getExtensionFilters().add(
-                new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"));
-        File saveFile = fileChooser.showSaveDialog(primaryStage);
+        exportAll(false,
+                new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"),
+                new FileChooser.ExtensionFilter("Compressed KMZ File (.kmz)", "*.kmz"),
+                new FileChooser.ExtensionFilter("GeoJSON File (.geojson)", "*.geojson"),
+                new FileChooser.ExtensionFilter("Newline Delimited GeoJSON File (.geojsonl)", "*.geojsonl"),
+                new FileChooser.ExtensionFilter("CSV File (.csv)", "*.csv"),
+                new FileChooser.ExtensionFilter("FlatGeobuf File (.fgb)", "*.fgb"));
+    }
+
+    @FXML
+    public void onExportAllAsKmzWithPhotosMenuItem() {
+        log.debug("onExportAllAsKmzWithPhotosMenuItem.");
+        exportAll(true,
+                new FileChooser.ExtensionFilter("KMZ File (.kmz)", "*.kmz"),
+                new FileChooser.ExtensionFilter("KML File with photos folder (.kml)", "*.kml"));
+    }
+
+    @FXML
+    public void onExportDeduplicatedMenuItem() {
+        log.debug("onExportDeduplicatedMenuItem.");
+        File saveFile = chooseExportFile(
+                new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"),
+                new FileChooser.ExtensionFilter("Compressed KMZ File (.kmz)", "*.kmz"));
+        if (saveFile != null) {
+            startKmlOutput(new KmlOutputWorker()
+                    .items(tableModel.snapshot())
+                    .sort(sortKey(tableView))
+                    .deduplicate(new Deduplicator())
+                    .outputFile(saveFile));
+        }
+    }
+
+    @FXML
+    public void onExportByPlaceMenuItem() {
+        log.debug("onExportByPlaceMenuItem.");
+        Gazetteer gazetteer;
+        try {
+            gazetteer = Gazetteer.open(Gazetteer.defaultFile());
+        } catch (IOException ex) {
+            log.warn("Failed opening gazetteer. file=" + Gazetteer.defaultFile() + " reason=" + ex.getMessage());
+            showAlert("No gazetteer at " + Gazetteer.defaultFile() + ". Build it with photo2kml --build-gazetteer <GeoNames file>.");
+            return;
+        }
+        File saveFile = chooseExportFile(
+                new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"),
+                new FileChooser.ExtensionFilter("Compressed KMZ File (.kmz)", "*.kmz"));
+        if (saveFile != null) {
+            startKmlOutput(new KmlOutputWorker()
+                    .items(tableModel.snapshot())
+                    .sort(sortKey(tableView))
+                    .places(new PlaceFolders(gazetteer))
+                    .outputFile(saveFile));
+        }
+    }
+
+    @FXML
+    public void onExportTilesMenuItem() {
+        log.debug("onExportTilesMenuItem.");
+        File saveFile = chooseExportFile(new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"));
+        if (saveFile != null) {
+            startKmlOutput(new KmlOutputWorker()
+                    .items(tableModel.snapshot())
+                    .sort(sortKey(tableView))
+                    .tiles(new TilePyramid())
+                    .outputFile(saveFile));
+        }
+    }
+
+    @FXML
+    public void onExportTrackMenuItem() {
+        log.debug("onExportTrackMenuItem.");
+        File saveFile = chooseExportFile(
+                new FileChooser.ExtensionFilter("KML File (.kml)", "*.kml"),
+                new FileChooser.ExtensionFilter("Compressed KMZ File (.kmz)", "*.kmz"));
         if (saveFile != null) {
-            kmlOutputWorker = new KmlOutputWorker()
-                    .items(tableModel)
-                    .sort(tableView.getComparator())
+            startKmlOutput(new KmlOutputWorker()
+                    .items(tableModel.snapshot())
+                    .track(new TrackBuilder())
+                    .trackGeometry(KmlWriter.TrackGeometry.GX_TRACK)
+                    .outputFile(saveFile));
+        }
+    }
+
+    private void exportAll(boolean thumbnails, FileChooser.ExtensionFilter... extensionFilters) {
+        File saveFile = chooseExportFile(extensionFilters);
+        if (saveFile != null) {
+            startKmlOutput(new KmlOutputWorker()
+                    .items(tableModel.snapshot())
+                    .sort(sortKey(tableView))
                     .outputFile(saveFile)
-                    .callback(this::handleKmlOutputFinished)
-                    .start();
-            statusLabel.setText("Writing KML file...");
+                    .thumbnails(thumbnails));
         }
     }
 
+    private File chooseExportFile(FileChooser.ExtensionFilter... extensionFilters) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Select Export File");
+        fileChooser.getExtensionFilters().addAll(extensionFilters);
+        return fileChooser.showSaveDialog(primaryStage);
+    }
+
+    private void startKmlOutput(KmlOutputWorker worker) {
+        kmlOutputWorker = worker
+                .progressListener(this::handleKmlOutputProgress)
+                .callback(this::handleKmlOutputFinished)
+                .start();
+        statusLabel.setText("Writing KML file...");
+        cancelButton.setVisible(true);
+    }
+
     @FXML
     public void onCancelButton() {
         log.debug("onCancelButton.");
@@ -134,7 +327,9 @@ public class MainController {
 
     private void handlePhotoLocationFinished(PhotoLocationWorker.Result result) {
         if (result.success) {
-            statusLabel.setText(String.format("Completed processing %d photos", result.processedItems));
+            statusLabel.setText(result.correlatedItems > 0
+                    ? String.format("Completed processing %d photos, %d placed from track logs", result.processedItems, result.correlatedItems)
+                    : String.format("Completed processing %d photos", result.processedItems));
         } else {
             statusLabel.setText(String.format("Failed. (%s)", result.failureReason));
         }
@@ -155,11 +350,19 @@ public class MainController {
         statusLabel.setText(String.format("Processed %d of %d photos", currentProgress, totalProgress));
     }
 
+    private void handleKmlOutputProgress(int totalPlacemarks, int writtenPlacemarks) {
+        progressBar.setVisible(true);
+        progressBar.setProgress(totalPlacemarks == 0 ? 1.0 : (double) writtenPlacemarks / (double) totalPlacemarks);
+        statusLabel.setText(String.format("Writing KML file... %d of %d placemarks", writtenPlacemarks, totalPlacemarks));
+    }
+
     private void handleKmlOutputFinished(KmlOutputWorker.Result result) {
         progressBar.setVisible(false);
         cancelButton.setVisible(false);
         if (result.success) {
             statusLabel.setText("Save KML file complete. ");
+        } else if (result.cancelled) {
+            statusLabel.setText("Save KML file cancelled.");
         } else {
             statusLabel.setText(String.format("Save KML file failed. (%s)", result.failureReason));
         }
@@ -0,0 +1,169 @@
+package com.williamquast;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates everything written to it into one raw deflate stream, compressing fixed size chunks in parallel the
+ * way pigz does. Each chunk is primed with the last 32KB of the chunk before it as a preset dictionary, so the
+ * compression ratio stays close to a single threaded deflate, and ends on a sync flush so the compressed chunks
+ * can simply be concatenated in order. Only the last chunk sets the final block bit.
+ */
+class ParallelDeflateChannel implements WritableByteChannel {
+
+    private static final int CHUNK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024; // the deflate window
+
+    private final WritableByteChannel out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+    private byte[] previousChunk; // source of the dictionary for the next chunk
+    private long uncompressedSize;
+    private long compressedSize;
+    private boolean open = true;
+
+    /**
+     * @param out channel the compressed stream is written to, not closed by this channel
+     * @param executor runs the chunk compression, at most 2 chunks per thread are kept in flight
+     * @param threads thread count of executor
+     * @param level Deflater compression level
+     */
+    ParallelDeflateChannel(WritableByteChannel out, ExecutorService executor, int threads, int level) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = Math.max(2, threads * 2);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            int count = Math.min(src.remaining(), CHUNK_SIZE - chunkLength);
+            src.get(chunk, chunkLength, count);
+            chunkLength += count;
+            if (chunkLength == CHUNK_SIZE) {
+                submitChunk(false);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Compresses the last chunk and writes all outstanding compressed data. The underlying channel stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        try {
+            submitChunk(true);
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * CRC32 of the uncompressed data, complete after close.
+     */
+    long getCrc() {
+        return crc.getValue();
+    }
+
+    long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    long getCompressedSize() {
+        return compressedSize;
+    }
+
+    private void submitChunk(boolean last) throws IOException {
+        final byte[] data = chunk;
+        final int length = chunkLength;
+        final byte[] dictionary = previousChunk; // always a full chunk, only the last chunk can be short
+        crc.update(data, 0, length);
+        uncompressedSize += length;
+
+        while (pending.size() >= maxPending) {
+            writeOldest();
+        }
+        pending.add(executor.submit(() -> deflate(data, length, dictionary, last)));
+
+        previousChunk = data;
+        chunk = new byte[CHUNK_SIZE]; // the submitted array is still read by its task and the next one
+        chunkLength = 0;
+    }
+
+    private byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(data, 0, length);
+        if (last) {
+            deflater.finish();
+        }
+
+        byte[] output = new byte[length + length / 1000 + 64];
+        int outputLength = 0;
+        while (true) {
+            if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            int space = output.length - outputLength;
+            int count = deflater.deflate(output, outputLength, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            outputLength += count;
+            if (last ? deflater.finished() : count < space) {
+                break; // a sync flush is complete once deflate leaves space in the output buffer
+            }
+        }
+        return Arrays.copyOf(output, outputLength);
+    }
+
+    private void writeOldest() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.remove().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compression.");
+        } catch (ExecutionException ex) {
+            throw new IOException("Compression failed.", ex.getCause());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        compressedSize += compressed.length;
+    }
+}
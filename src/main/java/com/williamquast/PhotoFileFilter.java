@@ -0,0 +1,39 @@
+package com.williamquast;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides from the name and size in the directory listing, before a file is opened, whether it can be a
+ * geotagged photo. Files with a known non-photo extension, AppleDouble "._" files and files too small to hold an
+ * Exif GPS block are skipped. Files with any other extension, or none, are kept, since cameras and phones do not
+ * always add one and new photo formats keep appearing.
+ */
+public class PhotoFileFilter {
+
+    public static final long DEFAULT_MIN_SIZE = 128; // bytes, smaller than the smallest Exif block with a GPS IFD
+
+    // files commonly found next to photos that cannot be one: sidecars, catalogs, documents, archives, audio and
+    // programs. Anything else is opened and detected by its content, so a new or renamed photo format is never missed.
+    private static final Set<String> NON_PHOTO_EXTENSIONS = Set.of(
+            "xmp", "aae", "pp3", "dop", "on1", "lrcat", "lrdata", "db", "ini", "plist", "lnk", "url",
+            "txt", "md", "rtf", "log", "csv", "json", "xml", "html", "htm", "css", "js", "pdf", "doc", "docx", "xls",
+            "xlsx", "ppt", "pptx", "odt", "ods", "pages", "numbers", "key", "kml", "kmz", "gpx", "fgb", "geojson",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "tar", "dmg", "iso", "mp3", "wav", "flac", "aac", "ogg",
+            "m4a", "wma", "exe", "dll", "so", "dylib", "jar", "class", "sh", "bat", "py", "tmp", "bak", "part",
+            "crdownload", "idx", "sqlite", "ttf", "otf");
+
+    private long minSize = DEFAULT_MIN_SIZE;
+
+    public PhotoFileFilter minSize(final long minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    public boolean accept(String name, long size) {
+        if (size < minSize || name.startsWith("._")) return false;
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) return true;
+        return !NON_PHOTO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
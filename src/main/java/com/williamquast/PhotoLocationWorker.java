@@ -1,58 +1,89 @@
 package com.williamquast;
 
 import com.drew.imaging.FileType;
-import com.drew.imaging.FileTypeDetector;
-import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
-import com.drew.lang.GeoLocation;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifIFD0Directory;
-import com.drew.metadata.exif.ExifSubIFDDirectory;
-import com.drew.metadata.exif.GpsDirectory;
-import com.drew.tools.FileUtil;
 import javafx.application.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.function.Function;
+
+/**
+ * Scans one or more source directories, and optionally a list of paths, for geotagged photos.
+ *
+ * Roots are grouped by the device (file store) they are on. Each device gets its own walk pool and I/O stage, so
+ * each is read at the concurrency that suits it and a full I/O stage on a slow network share only holds back the
+ * walk of that share. The scan takes about as long as the slowest device rather than the sum of all of them.
+ * Parsing shares one CPU stage.
+ *
+ * Directories are listed with Files.walkFileTree one level at a time, which reads the attributes of each entry
+ * once (a single stat on Unix, none on Windows where the listing already has them). The attributes travel with the
+ * file to the I/O stage, and the PhotoFileFilter uses them to skip files that cannot be photos before they are
+ * queued. Symbolic links are followed, but each directory is searched only once, which also stops link loops.
+ */
 public class PhotoLocationWorker {
 
-    private static final int THREAD_COUNT = 20; // count of thread to handle processing. mainly disk IO blocking, not CPU
     private static final long TESTING_DELAY = 0; // ms delay used to simulate slow computers for manual UI testing
+    private static final int WALK_PARALLELISM = 4; // threads per device listing directories, with work stealing between them
+    private static final int LIST_BATCH_SIZE = 256; // listed files handed to a device walk pool at once
+    private static final int MAX_PENDING_BATCHES = 64; // per device, before reading the path list waits for it
+    private static final Set<FileVisitOption> FOLLOW_LINKS = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
 
     private static final Logger log = LoggerFactory.getLogger(PhotoLocationWorker.class);
 
     private Thread supervisorThread = new Thread();
-    private ExecutorService executorService =
-            new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
-            0L, TimeUnit.MILLISECONDS,
-            new PriorityBlockingQueue<>());
-    private boolean cancelled = false;
-
-    private File sourceDir;
+    private TaskScheduler scheduler; // parse stage, and I/O stage of the first device
+    private final Map<String, Device> devices = new LinkedHashMap<>(); // by file store, only used by the supervisor
+    private final Map<String, Device> directoryDevices = new HashMap<>(); // path list directories, by path
+    private volatile boolean cancelled = false;
+    private int threadCount = 0; // fixed I/O thread count, or 0 for the scheduler default
+    private TaskScheduler.Mode executionMode = TaskScheduler.Mode.POOLED;
+    private Executor callbackExecutor = Platform::runLater; // where listeners are called, the FX thread by default
+    private long metricsLogInterval = ScanMetrics.DEFAULT_LOG_INTERVAL;
+    private ScanMetrics metrics;
+
+    private final List<File> sourceDirs = new ArrayList<>();
+    private BufferedReader pathList; // optional, one file or directory per line
+    private Function<File, File> indexFiles; // index file of each source dir, null for no incremental scans
+    private final List<ScanIndex> scanIndexes = new ArrayList<>();
+    private PhotoFileFilter fileFilter = new PhotoFileFilter(); // null reads every file
+    private final Set<Object> searchedDirectories = ConcurrentHashMap.newKeySet(); // file keys, or real paths without
+    private TrackCorrelator correlator; // null leaves photos without a location failed
     private FinishListener finishListener;
     private ProgressListener progressListener;
 
-    private Phaser phaser = new Phaser(); // used to keep track of incomplete work in the executorService
     private AtomicInteger foundItems = new AtomicInteger();
     private AtomicInteger processedItems = new AtomicInteger();
+    private AtomicInteger skippedItems = new AtomicInteger(); // rejected by the fileFilter, not counted as found
+    private AtomicInteger correlatedItems = new AtomicInteger(); // placed by the correlator
+    private volatile boolean walkDone = false;
+    private CountDownLatch completion = new CountDownLatch(1); // released once the walk is done and processed == found
 
     private AtomicBoolean uiReady = new AtomicBoolean(true); // used to prevent flooding the UI thread with updates
     private List<ExtractItem> itemsBuffer = new ArrayList<>(); // items waiting to be handled over to the UI thread
+    private long itemsBufferStart; // nanoTime the oldest item in itemsBuffer was added
 
     public PhotoLocationWorker start() {
+        scheduler = TaskScheduler.create(executionMode, threadCount);
+        metrics = new ScanMetrics(scheduler, metricsLogInterval);
+        metrics.start();
         supervisorThread = new Thread(this::processAndWait);
         supervisorThread.start();
         return this;
@@ -64,73 +95,215 @@ public class PhotoLocationWorker {
     }
 
     private void processAndWait() {
-        log.info("Begin processAndWait. sourceDir=" + sourceDir.getAbsolutePath());
-        if (sourceDir == null) throw new IllegalStateException("SourceDir is required.");
+        log.info("Begin processAndWait. sourceDirs=" + sourceDirs + " pathList=" + (pathList != null));
+        if (sourceDirs.isEmpty() && pathList == null) throw new IllegalStateException("SourceDir or pathList is required.");
         if (finishListener == null) throw new IllegalStateException("FinishListener is required.");
         if (progressListener == null) throw new IllegalStateException("ProgressListener is required.");
 
+        Result result;
         try {
-            // search recursively and process photos as they are found
-            phaser.register();
-            executorService.execute(new SearchDirectoryRunnable(sourceDir));
+            // search recursively and process photos as they are found. each walk blocks whenever the
+            // downstream stages of its device are full, so memory stays bounded no matter how many files it finds
+            for (File sourceDir : sourceDirs) {
+                ScanIndex scanIndex = null;
+                File indexFile = indexFiles != null ? indexFiles.apply(sourceDir) : null;
+                if (indexFile != null) {
+                    scanIndex = ScanIndex.open(indexFile, sourceDir);
+                    scanIndexes.add(scanIndex);
+                }
+                Device device = deviceOf(sourceDir);
+                device.walks.add(device.walkPool.submit(new SearchDirectoryTask(device, sourceDir, scanIndex)));
+            }
+            if (pathList != null) {
+                readPathList();
+            }
+            for (Device device : devices.values()) {
+                for (ForkJoinTask<?> walk : device.walks) {
+                    walk.get();
+                }
+            }
+            walkDone = true;
+            checkComplete();
 
-            // wait for all tasks to complete before advancing the SwingWorker
-            phaser.register();
-            phaser.awaitAdvanceInterruptibly(phaser.arriveAndDeregister());
+            // wait for the files still in the stat, parse and deliver stages
+            completion.await();
 
-            finish(new Result(foundItems.get(), processedItems.get()));
+            result = new Result(foundItems.get(), processedItems.get());
+            result.skippedItems = skippedItems.get();
+            result.correlatedItems = correlatedItems.get();
         } catch (InterruptedException ex) {
             log.info("Supervisor thread was interrupted or cancelled. Abort.", ex);
-            finish(new Result("Cancelled. (" + ex.getMessage() + ")", true));
+            result = new Result("Cancelled. (" + ex.getMessage() + ")", true);
         } catch (Exception ex) {
             log.error("Supervisor thread had an exception while waiting.", ex);
-            finish(new Result("Unknown error. (" + ex.getMessage() + ")"));
+            result = new Result("Unknown error. (" + ex.getMessage() + ")");
         } finally {
             // work is done, release threads
-            executorService.shutdownNow();
+            for (Device device : devices.values()) {
+                device.walkPool.shutdownNow();
+                if (device.scheduler != scheduler) {
+                    device.scheduler.shutdownNow();
+                }
+            }
+            scheduler.shutdownNow();
+            metrics.stop();
+        }
+
+        // save the indexes before reporting, so a caller exiting on finish does not lose them
+        for (ScanIndex scanIndex : scanIndexes) {
+            scanIndex.close(result.success && !cancelled);
+        }
+        for (Device device : devices.values()) {
+            log.info("Device done. device=" + device.name + " ioConcurrency=" + device.scheduler.getIoConcurrency());
+            result.ioConcurrency += device.scheduler.getIoConcurrency();
         }
+        result.cpuConcurrency = scheduler.getCpuConcurrency();
+        finish(result);
         log.info("End processAndWait");
     }
 
+    /**
+     * Reads the path list on the supervisor thread. Files are handed to the walk pool of their device in batches
+     * and directories are searched like source directories, without an index. Reading waits while a device has
+     * MAX_PENDING_BATCHES batches queued, so a list much longer than a slow device can keep up with stays bounded.
+     */
+    private void readPathList() throws IOException, InterruptedException {
+        Map<Device, List<File>> batches = new HashMap<>();
+        String line;
+        while ((line = pathList.readLine()) != null && !cancelled) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            File file = new File(line);
+            if (file.isDirectory()) {
+                Device device = deviceOf(file);
+                device.walks.add(device.walkPool.submit(new SearchDirectoryTask(device, file, null)));
+                continue;
+            }
+            File parent = file.getAbsoluteFile().getParentFile();
+            Device device = directoryDevices.get(parent.getPath());
+            if (device == null) {
+                device = deviceOf(parent);
+                directoryDevices.put(parent.getPath(), device);
+            }
+            List<File> batch = batches.computeIfAbsent(device, d -> new ArrayList<>(LIST_BATCH_SIZE));
+            batch.add(file);
+            if (batch.size() == LIST_BATCH_SIZE) {
+                submitBatch(device, batches.remove(device));
+            }
+        }
+        for (Map.Entry<Device, List<File>> batch : batches.entrySet()) {
+            submitBatch(batch.getKey(), batch.getValue());
+        }
+    }
+
+    private void submitBatch(Device device, List<File> files) throws InterruptedException {
+        device.pendingBatches.acquire();
+        device.walks.add(device.walkPool.submit(new ListedFilesTask(device, files)));
+    }
+
+    /**
+     * Returns the Device of the file store holding file, creating its walk pool and I/O stage on first use.
+     * Files whose store cannot be found share one device.
+     */
+    private Device deviceOf(File file) {
+        String name;
+        try {
+            FileStore store = Files.getFileStore(file.toPath());
+            name = store.toString();
+        } catch (IOException | RuntimeException ex) {
+            name = "unknown";
+        }
+        Device device = devices.get(name);
+        if (device == null) {
+            TaskScheduler ioScheduler = devices.isEmpty() ? scheduler : scheduler.newIoStage();
+            if (ioScheduler != scheduler) {
+                metrics.addIoScheduler(ioScheduler);
+            }
+            device = new Device(name, ioScheduler);
+            devices.put(name, device);
+            log.info("Scanning device. device=" + name);
+        }
+        return device;
+    }
+
+    /**
+     * Called after each file finishes and once when the walk ends. Every found file is processed exactly once,
+     * so the scan is complete when the walk is done and the two counters meet.
+     */
+    private void checkComplete() {
+        if (walkDone && processedItems.get() == foundItems.get()) {
+            completion.countDown();
+        }
+    }
+
     private synchronized void finish(final Result result) {
         final List<ExtractItem> itemsDelivery = itemsBuffer;
+        final long bufferStart = itemsBufferStart;
         itemsBuffer = new ArrayList<>();
 
-        Platform.runLater(() -> {
+        callbackExecutor.execute(() -> {
             // deliver any last items to the ui thread, regardless of uiReady
+            recordDelivery(itemsDelivery, bufferStart);
             progressListener.onProgress(foundItems.get(), processedItems.get(), itemsDelivery);
 
             finishListener.onFinished(result);
         });
 
-        log.info("finish. found=" + foundItems.get() + " processed=" + processedItems.get());
+        log.info("finish. found=" + foundItems.get() + " processed=" + processedItems.get() + " skipped=" + skippedItems.get()
+                + " correlated=" + correlatedItems.get());
     }
 
     private synchronized void submitStatus() {
         if (uiReady.get()) {
             uiReady.set(false);
-            Platform.runLater(() -> {
+            callbackExecutor.execute(() -> {
                 progressListener.onProgress(foundItems.get(), processedItems.get(), null);
                 uiReady.set(true);
             });
         }
     }
 
+    /**
+     * Places a photo without a location on the track logs, after the scan index stored it, so the index does not
+     * depend on the logs.
+     */
+    private ExtractItem correlate(ExtractItem item) {
+        if (correlator == null) return item;
+        ExtractItem located = correlator.correlate(item);
+        if (located != item) correlatedItems.incrementAndGet();
+        return located;
+    }
+
     private synchronized void submitResult(ExtractItem extractItem) {
+        if (!extractItem.success) {
+            metrics.recordFailure(extractItem.failureReason);
+        }
+        if (itemsBuffer.isEmpty()) {
+            itemsBufferStart = System.nanoTime();
+        }
         itemsBuffer.add(extractItem);
+        metrics.addDeliveryQueue(1);
 
         if (uiReady.get()) {
             final List<ExtractItem> itemsDelivery = itemsBuffer;
+            final long bufferStart = itemsBufferStart;
             itemsBuffer = new ArrayList<>();
 
             uiReady.set(false);
-            Platform.runLater(() -> {
+            callbackExecutor.execute(() -> {
+                recordDelivery(itemsDelivery, bufferStart);
                 progressListener.onProgress(foundItems.get(), processedItems.get(), itemsDelivery);
                 uiReady.set(true);
             });
         }
     }
 
+    private void recordDelivery(List<ExtractItem> items, long bufferStart) {
+        if (items.isEmpty()) return;
+        metrics.addDeliveryQueue(-items.size());
+        metrics.recordStage(ScanMetrics.Stage.DELIVER, System.nanoTime() - bufferStart);
+    }
+
     private void testingDelay() {
         if (TESTING_DELAY != 0) {
             try {
@@ -140,10 +313,98 @@ public class PhotoLocationWorker {
     }
 
     public PhotoLocationWorker sourceDir(final File sourceDir) {
-        this.sourceDir = sourceDir;
+        return sourceDirs(Collections.singletonList(sourceDir));
+    }
+
+    /**
+     * Sets the directories to search. Directories on different devices are searched at the same time.
+     */
+    public PhotoLocationWorker sourceDirs(final List<File> sourceDirs) {
+        this.sourceDirs.clear();
+        this.sourceDirs.addAll(sourceDirs);
         return this;
     }
 
+    /**
+     * Also scans the files and directories listed in pathList, one per line, like the output of find. The reader
+     * is read to the end on the supervisor thread but not closed.
+     */
+    public PhotoLocationWorker pathList(final BufferedReader pathList) {
+        this.pathList = pathList;
+        return this;
+    }
+
+    /**
+     * Sets the scan index of a single source directory, null for none.
+     */
+    public PhotoLocationWorker indexFile(final File indexFile) {
+        return indexFiles(indexFile != null ? sourceDir -> indexFile : null);
+    }
+
+    /**
+     * Enables incremental scans with the index file that indexFiles returns for each source directory, like
+     * ScanIndex::defaultIndexFile. A null function, or a null index file for a directory, scans it without an index.
+     * Files from the path list are always read.
+     */
+    public PhotoLocationWorker indexFiles(final Function<File, File> indexFiles) {
+        this.indexFiles = indexFiles;
+        return this;
+    }
+
+    /**
+     * Sets the filter that skips files by name and size before they are read, null to read every file.
+     */
+    public PhotoLocationWorker fileFilter(final PhotoFileFilter fileFilter) {
+        this.fileFilter = fileFilter;
+        return this;
+    }
+
+    /**
+     * Geotags photos without a location from the track logs loaded into correlator.
+     */
+    public PhotoLocationWorker correlator(final TrackCorrelator correlator) {
+        this.correlator = correlator;
+        return this;
+    }
+
+    /**
+     * Fixes the count of I/O threads, or the I/O concurrency limit in THREAD_PER_TASK mode.
+     * By default the POOLED I/O and CPU pools are sized at runtime by the AdaptiveScheduler.
+     */
+    public PhotoLocationWorker threadCount(final int threadCount) {
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    public PhotoLocationWorker executionMode(final TaskScheduler.Mode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Sets the Executor used to call the listeners. Defaults to the JavaFX application thread.
+     * Headless callers can pass Runnable::run to be called directly, one call at a time, from the worker threads.
+     */
+    public PhotoLocationWorker callbackExecutor(final Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    /**
+     * Sets the ms between metrics summary lines in the log while scanning, 0 for none.
+     */
+    public PhotoLocationWorker metricsLogInterval(final long metricsLogInterval) {
+        this.metricsLogInterval = metricsLogInterval;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the running scan, or null before start.
+     */
+    public ScanMetrics getMetrics() {
+        return metrics;
+    }
+
     public PhotoLocationWorker finishListener(final FinishListener finishListener) {
         this.finishListener = finishListener;
         return this;
@@ -170,6 +431,10 @@ public class PhotoLocationWorker {
         String failureReason;
         int foundItems;
         int processedItems;
+        int skippedItems; // rejected by the file filter
+        int correlatedItems; // geotagged from track logs
+        int ioConcurrency; // pool sizes chosen by the scheduler when the scan ended
+        int cpuConcurrency;
 
         public Result(int foundItems, int processedItems) {
             this.success = true;
@@ -191,189 +456,355 @@ public class PhotoLocationWorker {
     }
 
     /**
-     * Used by the tasks below to give a priority in the ExecutorService.
-     * For UI status purposes, we want Search tasks to complete before we do Processing tasks.
+     * Walk task to list a directory, hand its files to the I/O stage and fork a task for each sub directory.
+     * Idle walk threads steal sub directory tasks from busy ones.
      */
-    private abstract class PriorityRunnable implements Runnable, Comparable<PriorityRunnable> {
+    protected class SearchDirectoryTask extends RecursiveAction {
+
+        private Device device;
+        private File dir;
+        private ScanIndex scanIndex;
 
-        abstract int getPriority();
+        public SearchDirectoryTask(Device device, File dir, ScanIndex scanIndex) {
+            this.device = device;
+            this.dir = dir;
+            this.scanIndex = scanIndex;
+        }
 
         @Override
-        public int compareTo(PriorityRunnable o) {
-            return this.getPriority() - o.getPriority();
+        protected void compute() {
+            if (cancelled) return;
+            log.debug("SearchDirectoryTask. dir=" + dir.getPath());
+            Path root = dir.toPath();
+            List<SearchDirectoryTask> subTasks = new ArrayList<>();
+            try {
+                testingDelay();
+                // depth 1 lists just this directory, sub directories are forked so idle walk threads can steal them
+                Files.walkFileTree(root, FOLLOW_LINKS, 1, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) throws IOException {
+                        if (!searchedDirectories.add(directoryKey(path, attributes))) {
+                            log.debug("Directory already searched, skipping. dir=" + path);
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                        if (cancelled) return FileVisitResult.TERMINATE;
+                        if (path.equals(root)) {
+                            submitResult(new ExtractItem(dir.getPath(), null, "Source is not a directory."));
+                        } else if (attributes.isDirectory()) {
+                            subTasks.add(new SearchDirectoryTask(device, path.toFile(), scanIndex));
+                        } else if (attributes.isRegularFile()) {
+                            submitFile(device, path.toFile(), attributes, scanIndex);
+                        } else {
+                            log.debug("Skipped special file or broken link. path=" + path);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException ex) {
+                        if (!path.equals(root)) {
+                            log.debug("Failed reading attributes. path=" + path + " reason=" + ex.getMessage());
+                        } else if (ex instanceof AccessDeniedException) {
+                            submitResult(new ExtractItem(dir.getPath(), null, "Source directory is not readable. (permissions)"));
+                        } else if (ex instanceof NoSuchFileException) {
+                            submitResult(new ExtractItem(dir.getPath(), null, "Source is not a directory."));
+                        } else {
+                            submitResult(new ExtractItem(dir.getPath(), null, "Failed to search directory. (" + ex.getMessage() + ")"));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (Exception ex) {
+                log.error("SearchDirectoryTask failed.", ex);
+                submitResult(new ExtractItem(dir.getPath(), null, "Failed to search directory. (" + ex.getMessage() + ")" ));
+            }
+            invokeAll(subTasks);
         }
     }
 
     /**
-     * Task to determine if a file is a directory and recurse, or a regular file that can be processed.
+     * Walk task to hand a batch of files from the path list to the I/O stage of their device.
      */
-    protected class SearchDirectoryRunnable extends PriorityRunnable {
+    protected class ListedFilesTask extends RecursiveAction {
 
-        private File dir;
+        private Device device;
+        private List<File> files;
 
-        public SearchDirectoryRunnable(File dir) {
-            this.dir = dir;
+        public ListedFilesTask(Device device, List<File> files) {
+            this.device = device;
+            this.files = files;
         }
 
         @Override
-        public void run() {
-            log.debug("SearchDirectoryRunnable. dir=" + dir.getPath());
+        protected void compute() {
             try {
-                if (!dir.isDirectory()) {
-                    submitResult(new ExtractItem(dir.getPath(), null, "Source is not a directory."));
-                }
-                if (!dir.canRead()) {
-                    submitResult(new ExtractItem(dir.getPath(), null, "Source directory is not readable. (permissions)"));
+                for (File file : files) {
+                    if (cancelled) return;
+                    BasicFileAttributes attributes = readAttributes(file);
+                    if (attributes != null && attributes.isRegularFile()) {
+                        submitFile(device, file, attributes, null);
+                    } else {
+                        ExtractItem item = new ExtractItem(file.getPath(), null, "Source file not found.");
+                        item.file = file; // vanished since it was listed, watch mode removes its placemark
+                        submitResult(item);
+                    }
                 }
+            } catch (Exception ex) {
+                log.error("ListedFilesTask failed.", ex);
+                submitResult(new ExtractItem(files.get(0).getPath(), null, "Failed to search directory. (" + ex.getMessage() + ")"));
+            } finally {
+                device.pendingBatches.release();
+            }
+        }
+    }
 
-                testingDelay();
-                File[] files = dir.listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.isDirectory()) {
-                            phaser.register(); // deregister in finally of SearchDirectoryRunnable
-                            executorService.execute(new SearchDirectoryRunnable(file));
-                        } else {
-                            if (file.canRead()) {
-                                foundItems.incrementAndGet();
-                                submitStatus();
-                                phaser.register(); // deregister in finally of ProcessPhotoFileRunnable
-                                executorService.execute(new ProcessPhotoFileRunnable(file));
-                            } else {
-                                submitResult(new ExtractItem(file.getName(), null, "Source file is not readable. (permissions)"));
-                            }
+    /**
+     * Counts file as found and hands it to the I/O stage of device, unless the fileFilter skips it. Blocks while
+     * that stage is full. A file that is not readable fails when it is opened, there is no separate check.
+     */
+    private void submitFile(Device device, File file, BasicFileAttributes attributes, ScanIndex scanIndex) {
+        if (fileFilter != null && !fileFilter.accept(file.getName(), attributes.size())) {
+            skippedItems.incrementAndGet();
+            return;
+        }
+        foundItems.incrementAndGet();
+        metrics.recordFound();
+        submitStatus();
+        try {
+            device.scheduler.executeIo(new ProcessPhotoFileRunnable(file, attributes, scanIndex));
+        } catch (RuntimeException ex) {
+            foundItems.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the key identifying a directory however it was reached: its file key, or its real path where the
+     * file system has no file keys.
+     */
+    private static Object directoryKey(Path dir, BasicFileAttributes attributes) throws IOException {
+        Object key = attributes.fileKey();
+        return key != null ? key : dir.toRealPath().toString();
+    }
+
+    /**
+     * Returns the attributes of file, following links, or null if it does not exist.
+     */
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The walk pool and I/O stage of one file store.
+     */
+    private static class Device {
+        final String name;
+        final TaskScheduler scheduler;
+        final ForkJoinPool walkPool = new ForkJoinPool(WALK_PARALLELISM);
+        final List<ForkJoinTask<?>> walks = new ArrayList<>(); // only used by the supervisor
+        final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+
+        Device(String name, TaskScheduler scheduler) {
+            this.name = name;
+            this.scheduler = scheduler;
+        }
+    }
+
+    /**
+     * Builds the ExtractItem for a file from its metadata. date is the file date used when the photo has none.
+     */
+    private static ExtractItem toExtractItem(String fileName, Date date, PhotoMetadata metadata) {
+        if (metadata.getFileType() != FileType.Unknown) {
+            if (metadata.hasGpsDirectory()) {
+                if (metadata.hasGeoLocation()) {
+                    if (!metadata.isValidGeoLocation()) {
+                        return new ExtractItem(fileName, date, "GeoLocation data is invalid or corrupt. (lat/lng out of range)");
+                    } else if (!metadata.isZeroGeoLocation()) {
+
+                        // prefer to use GPS date, then fallback dates not based on file date
+                        if (metadata.getBestDate() != null) {
+                            date = metadata.getBestDate();
                         }
+
+                        Waypoint waypoint = new Waypoint(fileName, date, metadata.getLongitude(), metadata.getLatitude());
+
+                        // successful ExtractItem
+                        return new ExtractItem(fileName, date, waypoint);
+                    } else {
+                        return new ExtractItem(fileName, date, "GeoLocation data is invalid or corrupt. (lat/lng 0,0)");
                     }
+                } else {
+                    return withCaptureTime(new ExtractItem(fileName, date, "No GeoLocation data found."), metadata);
                 }
-            } catch (Exception ex) {
-                log.error("SearchDirectoryRunnable failed.", ex);
-                submitResult(new ExtractItem(dir.getPath(), null, "Failed to search directory. (" + ex.getMessage() + ")" ));
-            } finally {
-                phaser.arriveAndDeregister();
+            } else {
+                return withCaptureTime(new ExtractItem(fileName, date, "No GpsDirectory data found."), metadata);
             }
+        } else {
+            return new ExtractItem(fileName, date, "Unknown media file type.");
         }
+    }
 
-        @Override
-        int getPriority() {
-            return 0;
+    /**
+     * Keeps the date the photo itself holds on an item without a location, so a TrackCorrelator can place it.
+     */
+    private static ExtractItem withCaptureTime(ExtractItem item, PhotoMetadata metadata) {
+        item.captureTime = metadata.getBestDate();
+        return item;
+    }
+
+    /**
+     * Builds the failed ExtractItem for an exception thrown while processing a file.
+     */
+    private static ExtractItem toFailedExtractItem(String fileName, Date date, Exception ex) {
+        if (ex instanceof ImageProcessingException) {
+            log.error("ProcessPhotoFileRunnable failed reading photo metadata.", ex);
+            return new ExtractItem(fileName, date, "Failed to read photo metadata. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
+        } else if (ex instanceof AccessDeniedException) {
+            return new ExtractItem(fileName, date, "Source file is not readable. (permissions)");
+        } else if (ex instanceof NoSuchFileException) {
+            return new ExtractItem(fileName, date, "Source file not found."); // deleted since it was listed
+        } else if (ex instanceof IOException) {
+            log.error("ProcessPhotoFileRunnable failed reading file.", ex);
+            return new ExtractItem(fileName, date, "Failed to read file. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
+        } else {
+            log.error("ProcessPhotoFileRunnable unknown failure.", ex);
+            return new ExtractItem(fileName, date, "Unknown failure while processing file. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
         }
     }
 
     /**
-     * Task to process a single file for GeoLocation and send the ExtractItem to the UI queue
+     * I/O task to read the metadata header of a single file, using the attributes read when it was listed. Parsing
+     * is handed to ParsePhotoRunnable on the CPU pool, unless the index already has the result or the reader already
+     * parsed the file.
      */
-    protected class ProcessPhotoFileRunnable extends PriorityRunnable {
+    protected class ProcessPhotoFileRunnable implements Runnable {
 
         private File file;
+        private BasicFileAttributes attr;
+        private ScanIndex scanIndex; // null when the file is not under an indexed source dir
 
-        public ProcessPhotoFileRunnable(File file) {
+        public ProcessPhotoFileRunnable(File file, BasicFileAttributes attr, ScanIndex scanIndex) {
             this.file = file;
+            this.attr = attr;
+            this.scanIndex = scanIndex;
         }
 
         @Override
         public void run() {
             log.debug("Begin ProcessPhotoFileRunnable. file=" + file.getName());
+            boolean handedOff = false;
             try {
                 String fileName = null;
                 Date date = null;
-                ExtractItem answer;
+                ExtractItem answer = null;
                 try {
                     testingDelay();
 
-                    BasicFileAttributes attr = Files.readAttributes (Paths.get(file.getPath()), BasicFileAttributes.class);
+                    long start = System.nanoTime();
                     FileTime fileTime = attr.creationTime();
                     date = new Date(fileTime.toMillis());
                     fileName = file.getName();
 
-                    FileType fileType = detectFileType(file);
-                    if (fileType != FileType.Unknown) {
-                        Metadata metadata = ImageMetadataReader.readMetadata(file);
-
-                        // log all readable meatadata for debug
-                        if (log.isDebugEnabled()) {
-                            metadata.getDirectories().forEach(directory -> log.debug(file.getName() + " : " + directory.toString()));
-                        }
-
-                        Collection<GpsDirectory> gpsDirectories = metadata.getDirectoriesOfType(GpsDirectory.class);
-                        Iterator<GpsDirectory> itr = gpsDirectories.iterator();
-                        if (itr.hasNext()) {
-                            GpsDirectory gpsDirectory = itr.next();
-                            if (gpsDirectory != null && gpsDirectory.getGeoLocation() != null) {
-                                GeoLocation geoLocation = gpsDirectory.getGeoLocation();
-
-                                if (!geoLocation.isZero()) {
-
-                                    // prefer to use GPS date
-                                    date = gpsDirectory.getGpsDate();
-
-                                    // search for a fallback date not based on file date
-                                    if (date == null) {
-                                        ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-                                        date = directory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-                                    }
-
-                                    if (date == null) {
-                                        ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-                                        date = directory.getDate(ExifIFD0Directory.TAG_DATETIME);
-                                    }
-
-                                    Waypoint waypoint = new Waypoint(fileName, date, geoLocation.getLongitude(), geoLocation.getLatitude());
-
-                                    // successful ExtractItem
-                                    answer = new ExtractItem(fileName, date, waypoint);
-                                } else {
-                                    answer = new ExtractItem(fileName, date, "GeoLocation data is invalid or corrupt. (lat/lng 0,0)");
-                                }
-                            } else {
-                                answer = new ExtractItem(fileName, date, "No GeoLocation data found.");
-                            }
+                    // skip parsing when the index already holds the result for this exact file version
+                    String path = file.getAbsolutePath();
+                    long size = attr.size();
+                    long lastModified = attr.lastModifiedTime().toMillis();
+                    ExtractItem cached = scanIndex != null ? scanIndex.lookup(path, size, lastModified) : null;
+                    metrics.recordStage(ScanMetrics.Stage.STAT, System.nanoTime() - start);
+                    if (cached != null) {
+                        answer = cached;
+                        metrics.recordIndexed();
+                    } else {
+                        PhotoMetadataReader.Header header = PhotoMetadataReader.readHeader(file, size);
+                        metrics.recordBytesRead(header.bytesRead);
+                        metrics.recordStage(ScanMetrics.Stage.DETECT, header.detectNanos);
+                        metrics.recordStage(ScanMetrics.Stage.READ, header.readNanos);
+                        if (header.needsParse()) {
+                            // blocks while the parse stage is full
+                            scheduler.executeCpu(new ParsePhotoRunnable(header, fileName, date, size, lastModified, scanIndex));
+                            handedOff = true;
                         } else {
-                            answer = new ExtractItem(fileName, date, "No GpsDirectory data found.");
+                            long parseStart = System.nanoTime();
+                            answer = toExtractItem(fileName, date, PhotoMetadataReader.parse(header));
+                            metrics.recordStage(ScanMetrics.Stage.PARSE, System.nanoTime() - parseStart);
+                            if (scanIndex != null) {
+                                scanIndex.put(path, size, lastModified, answer);
+                            }
                         }
-                    } else {
-                        answer = new ExtractItem(fileName, date, "Unknown media file type.");
                     }
 
-                } catch (ImageProcessingException ex) {
-                    log.error("ProcessPhotoFileRunnable failed reading photo metadata.", ex);
-                    answer = new ExtractItem(fileName, date, "Failed to read photo metadata. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
-                } catch (IOException ex) {
-                    log.error("ProcessPhotoFileRunnable failed reading file.", ex);
-                    answer = new ExtractItem(fileName, date, "Failed to read file. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
                 } catch (Exception ex) {
-                    log.error("ProcessPhotoFileRunnable unknown failure.", ex);
-                    answer = new ExtractItem(fileName, date, "Unknown failure while processing file. (" + ex.getClass().getSimpleName() + " : " + ex.getMessage() + ")");
+                    answer = toFailedExtractItem(fileName, date, ex);
                 }
 
-                submitResult(answer);
+                if (!handedOff) {
+                    answer.file = file;
+                    submitResult(correlate(answer));
+                }
 
             } finally {
-                processedItems.incrementAndGet();
-                phaser.arriveAndDeregister();
+                if (!handedOff) {
+                    processedItems.incrementAndGet();
+                    metrics.recordProcessed();
+                    checkComplete();
+                }
             }
 
         }
+    }
+
+    /**
+     * CPU task to parse a metadata header read by ProcessPhotoFileRunnable and send the ExtractItem to the UI queue.
+     */
+    protected class ParsePhotoRunnable implements Runnable {
+
+        private PhotoMetadataReader.Header header;
+        private String fileName;
+        private Date date;
+        private long size;
+        private long lastModified;
+        private ScanIndex scanIndex;
+
+        public ParsePhotoRunnable(PhotoMetadataReader.Header header, String fileName, Date date, long size, long lastModified,
+                                  ScanIndex scanIndex) {
+            this.header = header;
+            this.fileName = fileName;
+            this.date = date;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.scanIndex = scanIndex;
+        }
 
-        /**
-         * Returns the FileType of the file using safe resource handling.
-         */
-        private FileType detectFileType(File file) throws IOException {
-            BufferedInputStream fileIn = null;
+        @Override
+        public void run() {
             try {
-                fileIn = new BufferedInputStream(new FileInputStream(file));
-                return FileTypeDetector.detectFileType(fileIn);
-            } finally {
+                ExtractItem answer;
                 try {
-                    if (fileIn != null) {
-                        fileIn.close();
+                    long start = System.nanoTime();
+                    answer = toExtractItem(fileName, date, PhotoMetadataReader.parse(header));
+                    metrics.recordStage(ScanMetrics.Stage.PARSE, System.nanoTime() - start);
+                    if (scanIndex != null) {
+                        scanIndex.put(header.file.getAbsolutePath(), size, lastModified, answer);
                     }
-                } catch (Exception ex) { /* ignore */ }
+                } catch (Exception ex) {
+                    answer = toFailedExtractItem(fileName, date, ex);
+                }
+                answer.file = header.file;
+                submitResult(correlate(answer));
+            } finally {
+                processedItems.incrementAndGet();
+                metrics.recordProcessed();
+                checkComplete();
             }
         }
-
-        @Override
-        int getPriority() {
-            return 1;
-        }
     }
-}
\ No newline at end of file
+}
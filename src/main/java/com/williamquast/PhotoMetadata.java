@@ -0,0 +1,80 @@
+package com.williamquast;
+
+import com.drew.imaging.FileType;
+
+import java.util.Date;
+
+/**
+ * The small subset of photo metadata needed to build a Waypoint: GPS position plus the candidate dates.
+ */
+public class PhotoMetadata {
+
+    FileType fileType;
+    boolean gpsDirectory; // true if the file had a GPS directory at all, even if the position is incomplete
+    Double latitude;
+    Double longitude;
+    Date gpsDate;
+    Date dateTimeOriginal;
+    Date dateTime;
+
+    public PhotoMetadata(FileType fileType) {
+        this.fileType = fileType;
+    }
+
+    public FileType getFileType() {
+        return fileType;
+    }
+
+    public boolean hasGpsDirectory() {
+        return gpsDirectory;
+    }
+
+    public boolean hasGeoLocation() {
+        return latitude != null && longitude != null;
+    }
+
+    public boolean isZeroGeoLocation() {
+        return latitude == 0 && longitude == 0;
+    }
+
+    /**
+     * Returns false for a location no photo can have, like the infinity of a GPS rational with a zero denominator.
+     */
+    public boolean isValidGeoLocation() {
+        return isValidGeoLocation(latitude, longitude);
+    }
+
+    static boolean isValidGeoLocation(double latitude, double longitude) {
+        return Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180; // false for NaN and infinity too
+    }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns the best date available, preferring GPS date, then DateTimeOriginal, then DateTime. May be null.
+     */
+    public Date getBestDate() {
+        if (gpsDate != null) return gpsDate;
+        if (dateTimeOriginal != null) return dateTimeOriginal;
+        return dateTime;
+    }
+
+    @Override
+    public String toString() {
+        return "PhotoMetadata{" +
+                "fileType=" + fileType +
+                ", gpsDirectory=" + gpsDirectory +
+                ", latitude=" + latitude +
+                ", longitude=" + longitude +
+                ", gpsDate=" + gpsDate +
+                ", dateTimeOriginal=" + dateTimeOriginal +
+                ", dateTime=" + dateTime +
+                '}';
+    }
+}
@@ -0,0 +1,366 @@
+package com.williamquast;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.FileTypeDetector;
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.lang.GeoLocation;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+
+/**
+ * Reads PhotoMetadata from a file, opening the file only once.
+ * The file type is detected from the buffered prefix of the stream. JPEG files take a header-only fast path that
+ * walks the segment markers to the APP1 Exif segment, parses just the GPS and date tags, and stops reading.
+ * TIFF based RAW files and QuickTime/MP4 movies are read by positional reads on the same file instead, following
+ * the IFD offsets or skipping from atom to atom, so only the blocks holding the metadata are read, a few kilobytes
+ * whatever the size of the file. All other formats fall back to metadata-extractor on the same stream.
+ */
+public class PhotoMetadataReader {
+
+    private static final Logger log = LoggerFactory.getLogger(PhotoMetadataReader.class);
+
+    private static final int BUFFER_SIZE = 16 * 1024; // large enough for the file type prefix and most APP0/APP1 headers
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final byte[] EXIF_PREAMBLE = {'E', 'x', 'i', 'f', 0, 0};
+
+    private PhotoMetadataReader() {
+    }
+
+    public static PhotoMetadata read(File file) throws IOException, ImageProcessingException {
+        return parse(readHeader(file, file.length()));
+    }
+
+    /**
+     * I/O half of read. Detects the file type and, for JPEG, reads the raw Exif segment without decoding it.
+     * Formats without a fast path are read and parsed by metadata-extractor here, since it does both at once.
+     * length is the file size from its attributes, so it is not looked up again. A file that is not readable
+     * throws AccessDeniedException.
+     */
+    public static Header readHeader(File file, long length) throws IOException, ImageProcessingException {
+        long start = System.nanoTime();
+        FileType fileType;
+        Header header = null;
+        FileInputStream fileIn = open(file);
+        CountingInputStream counter = new CountingInputStream(fileIn);
+        PositionalFileReader positional = null;
+        long detectNanos;
+        try (PrefixInputStream in = new PrefixInputStream(counter, BUFFER_SIZE)) {
+            fileType = FileTypeDetector.detectFileType(in);
+            detectNanos = System.nanoTime() - start;
+            if (fileType == FileType.Unknown) {
+                header = new Header(file, new PhotoMetadata(fileType));
+            } else if (fileType == FileType.Jpeg) {
+                try {
+                    header = new Header(file, readJpegExifSegment(in));
+                } catch (IOException ex) {
+                    // malformed segment structure, let metadata-extractor have a go with its more forgiving reader
+                    log.debug("Fast JPEG path failed, falling back. file=" + file.getName() + " reason=" + ex.getMessage());
+                }
+            } else if ((isTiff(fileType) || isQuickTime(fileType)) && in.hasPrefix()) {
+                positional = new PositionalFileReader(fileIn.getChannel(), length, in.prefix(), in.prefixLength());
+                try {
+                    PhotoMetadata metadata = new PhotoMetadata(fileType);
+                    if (isTiff(fileType)) {
+                        new ExifGpsParser(positional).parse(metadata);
+                        header = new Header(file, metadata);
+                    } else if (new QuickTimeGpsParser(positional).parse(metadata)) {
+                        header = new Header(file, metadata);
+                    } else {
+                        header = new Header(file, readWithMetadataExtractor(file, fileType, ImageMetadataReader.readMetadata(in, length, fileType)));
+                    }
+                } catch (IOException ex) {
+                    // a corrupt or unusual layout, let metadata-extractor have a go with its more forgiving reader
+                    log.debug("Positional read failed, falling back. file=" + file.getName() + " reason=" + ex.getMessage());
+                }
+            } else {
+                header = new Header(file, readWithMetadataExtractor(file, fileType, ImageMetadataReader.readMetadata(in, length, fileType)));
+            }
+        }
+        if (header == null) {
+            header = new Header(file, readWithMetadataExtractor(file, fileType, ImageMetadataReader.readMetadata(file)));
+        }
+        header.bytesRead = counter.count + (positional != null ? positional.getBytesRead() : 0);
+        header.detectNanos = detectNanos;
+        header.readNanos = System.nanoTime() - start - detectNanos;
+        return header;
+    }
+
+    /**
+     * Returns the JPEG thumbnail embedded in the Exif block of a JPEG file, or null if the file is not a JPEG, has
+     * no thumbnail or its segments are malformed. Reading stops at the Exif segment.
+     */
+    public static byte[] readExifThumbnail(File file) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(open(file), BUFFER_SIZE)) {
+            in.mark(2);
+            if (in.read() != 0xFF || in.read() != MARKER_SOI) return null;
+            in.reset();
+            byte[] segment = readJpegExifSegment(in);
+            if (segment == null) return null;
+
+            int tiffStart = EXIF_PREAMBLE.length;
+            int[] thumbnail = new ExifGpsParser(segment, tiffStart, segment.length - tiffStart).findThumbnail();
+            return thumbnail == null ? null : Arrays.copyOfRange(segment, thumbnail[0], thumbnail[0] + thumbnail[1]);
+        } catch (NoSuchFileException | AccessDeniedException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            return null; // malformed segments or Exif block
+        }
+    }
+
+    /**
+     * Returns true for the TIFF based formats ExifGpsParser reads: TIFF, DNG and the Canon CR2, Nikon NEF, Sony ARW
+     * and Olympus ORF RAW files. Panasonic RW2 keeps its GPS in an embedded JPEG and is left to metadata-extractor.
+     */
+    private static boolean isTiff(FileType fileType) {
+        return fileType == FileType.Tiff || fileType == FileType.Cr2 || fileType == FileType.Nef
+                || fileType == FileType.Arw || fileType == FileType.Orf;
+    }
+
+    private static boolean isQuickTime(FileType fileType) {
+        return fileType == FileType.QuickTime || fileType == FileType.Mp4;
+    }
+
+    /**
+     * Opens file with a FileInputStream, which reads faster through a small buffer than Files.newInputStream.
+     * Its FileNotFoundException is turned into the NIO exception for the cause, checked only when opening failed.
+     */
+    private static FileInputStream open(File file) throws IOException {
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException ex) {
+            if (!file.exists()) throw new NoSuchFileException(file.getPath());
+            if (!file.canRead()) throw new AccessDeniedException(file.getPath());
+            throw ex;
+        }
+    }
+
+    /**
+     * CPU half of read. Decodes the GPS and date tags from a Header, touching the file again only if the
+     * Exif block turns out to be corrupt.
+     */
+    public static PhotoMetadata parse(Header header) throws IOException, ImageProcessingException {
+        if (header.metadata != null) {
+            return header.metadata;
+        }
+
+        PhotoMetadata answer = new PhotoMetadata(FileType.Jpeg);
+        if (header.exifSegment != null) {
+            int tiffStart = EXIF_PREAMBLE.length;
+            try {
+                new ExifGpsParser(header.exifSegment, tiffStart, header.exifSegment.length - tiffStart).parse(answer);
+            } catch (IOException ex) {
+                log.debug("Fast Exif parse failed, falling back. file=" + header.file.getName() + " reason=" + ex.getMessage());
+                return readWithMetadataExtractor(header.file, FileType.Jpeg, ImageMetadataReader.readMetadata(header.file));
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Reads JPEG segments up to the first APP1 Exif segment or the start of scan, whichever is first.
+     * Returns the Exif segment including its preamble, or null if the JPEG has none.
+     */
+    static byte[] readJpegExifSegment(InputStream in) throws IOException {
+        if (in.read() != 0xFF || in.read() != MARKER_SOI) {
+            throw new IOException("JPEG does not start with SOI marker.");
+        }
+
+        while (true) {
+            int marker = nextMarker(in);
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null; // no Exif before image data
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue; // standalone markers without a length
+            }
+
+            int length = readUInt16(in) - 2;
+            if (length < 0) throw new IOException("Invalid JPEG segment length.");
+
+            if (marker == MARKER_APP1 && length >= EXIF_PREAMBLE.length + 8) {
+                byte[] segment = new byte[length];
+                readFully(in, segment);
+                if (startsWithExifPreamble(segment)) {
+                    return segment;
+                }
+                // APP1 can also hold XMP, keep looking
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /**
+     * Copies the fields used by PhotoMetadata out of a fully parsed metadata-extractor Metadata.
+     */
+    static PhotoMetadata readWithMetadataExtractor(File file, FileType fileType, Metadata metadata) {
+        // log all readable metadata, at trace since it is several lines for every file
+        if (log.isTraceEnabled()) {
+            metadata.getDirectories().forEach(directory -> log.trace(file.getName() + " : " + directory.toString()));
+        }
+
+        PhotoMetadata answer = new PhotoMetadata(fileType);
+        GpsDirectory gpsDirectory = metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        if (gpsDirectory != null) {
+            answer.gpsDirectory = true;
+            GeoLocation geoLocation = gpsDirectory.getGeoLocation();
+            if (geoLocation != null) {
+                answer.latitude = geoLocation.getLatitude();
+                answer.longitude = geoLocation.getLongitude();
+            }
+            answer.gpsDate = gpsDirectory.getGpsDate();
+        }
+
+        ExifSubIFDDirectory subIFDDirectory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        if (subIFDDirectory != null) {
+            answer.dateTimeOriginal = subIFDDirectory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+        }
+
+        ExifIFD0Directory ifd0Directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        if (ifd0Directory != null) {
+            answer.dateTime = ifd0Directory.getDate(ExifIFD0Directory.TAG_DATETIME);
+        }
+        return answer;
+    }
+
+    private static int nextMarker(InputStream in) throws IOException {
+        int b = in.read();
+        if (b != 0xFF) throw new IOException("Expected JPEG marker but found 0x" + Integer.toHexString(b));
+        while (b == 0xFF) { // fill bytes
+            b = in.read();
+        }
+        if (b < 0) throw new EOFException("Unexpected end of JPEG.");
+        return b;
+    }
+
+    private static boolean startsWithExifPreamble(byte[] segment) {
+        for (int i = 0; i < EXIF_PREAMBLE.length; i++) {
+            if (segment[i] != EXIF_PREAMBLE[i]) return false;
+        }
+        return true;
+    }
+
+    private static int readUInt16(InputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        if ((b0 | b1) < 0) throw new EOFException("Unexpected end of JPEG.");
+        return (b0 << 8) | b1;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count < 0) throw new EOFException("Unexpected end of JPEG.");
+            offset += count;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException("Unexpected end of JPEG.");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the file, under the BufferedInputStream so it sees whole buffer fills.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    /**
+     * BufferedInputStream that hands out its first fill, the prefix of the file, while it is still at the start
+     * after file type detection, so the positional readers do not read it again.
+     */
+    private static class PrefixInputStream extends BufferedInputStream {
+
+        PrefixInputStream(InputStream in, int size) {
+            super(in, size);
+        }
+
+        boolean hasPrefix() {
+            return pos == 0 && markpos <= 0;
+        }
+
+        byte[] prefix() {
+            return buf;
+        }
+
+        int prefixLength() {
+            return count;
+        }
+    }
+
+    /**
+     * Result of readHeader, handed from the I/O stage to the parse stage.
+     */
+    public static class Header {
+        final File file;
+        final byte[] exifSegment; // JPEG APP1 segment including the Exif preamble, null if none
+        final PhotoMetadata metadata; // already complete when no parsing is left to do
+        long bytesRead; // from the file by the fast path, not counting a metadata-extractor fallback that reopens it
+        long detectNanos; // opening the file and detecting its type
+        long readNanos; // the rest of readHeader
+
+        Header(File file, byte[] exifSegment) {
+            this.file = file;
+            this.exifSegment = exifSegment;
+            this.metadata = null;
+        }
+
+        Header(File file, PhotoMetadata metadata) {
+            this.file = file;
+            this.exifSegment = null;
+            this.metadata = metadata;
+        }
+
+        public boolean needsParse() {
+            return metadata == null;
+        }
+    }
+}
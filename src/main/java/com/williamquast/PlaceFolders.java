@@ -0,0 +1,87 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Writes placemarks grouped into one Folder per nearest place from a Gazetteer, like "Lyon, Auvergne-Rhone-Alpes, FR",
+ * with the place in each placemark description. The places are looked up in parallel on the common ForkJoinPool.
+ * Folders are ordered by place name with photos too far from any place last, and the placemarks keep their
+ * order within a folder.
+ */
+public class PlaceFolders {
+
+    private static final Logger log = LoggerFactory.getLogger(PlaceFolders.class);
+
+    public static final String UNKNOWN_PLACE = "Unknown place";
+    private static final int CANCEL_CHECK_INTERVAL = 4096; // placemarks between cancel checks while writing
+
+    private final Gazetteer gazetteer;
+
+    public PlaceFolders(Gazetteer gazetteer) {
+        this.gazetteer = gazetteer;
+    }
+
+    /**
+     * Writes the items at indexes to output, grouped by place. indexes is sorted into folder order in place.
+     * Throws CancellationException once cancelled returns true.
+     */
+    public void write(WaypointStore store, int[] indexes, PlacemarkWriter output, BooleanSupplier cancelled,
+                      IntConsumer progress) throws IOException {
+        long start = System.nanoTime();
+        int[] places = new int[store.size()]; // by slot
+        IntStream.of(indexes).parallel().forEach(index -> places[index] = gazetteer.nearest(store.getX(index), store.getY(index)));
+        if (cancelled.getAsBoolean()) throw new CancellationException("Export cancelled.");
+        long lookupNanos = System.nanoTime() - start;
+
+        // rank the places found by label, the stable sort keeps the order within a place
+        int[] found = IntStream.of(indexes).map(index -> places[index]).filter(place -> place >= 0).distinct().toArray();
+        String[] labels = new String[found.length];
+        Integer[] byLabel = new Integer[found.length];
+        for (int i = 0; i < found.length; i++) {
+            labels[i] = gazetteer.getLabel(found[i]);
+            byLabel[i] = i;
+        }
+        Arrays.sort(byLabel, (a, b) -> labels[a].compareToIgnoreCase(labels[b]));
+        Map<Integer, Integer> rankOfPlace = new HashMap<>();
+        String[] labelOfRank = new String[found.length];
+        for (int rank = 0; rank < found.length; rank++) {
+            rankOfPlace.put(found[byLabel[rank]], rank);
+            labelOfRank[rank] = labels[byLabel[rank]];
+        }
+        long[] keys = new long[store.size()];
+        for (int index : indexes) {
+            keys[index] = places[index] >= 0 ? rankOfPlace.get(places[index]) : Long.MAX_VALUE;
+        }
+        WaypointStore.parallelSort(indexes, new WaypointStore.KeyedComparator(keys, (a, b) -> 0), cancelled);
+
+        long folder = -1;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) throw new CancellationException("Export cancelled.");
+            int index = indexes[i];
+            long rank = keys[index];
+            String label = rank != Long.MAX_VALUE ? labelOfRank[(int) rank] : null;
+            if (rank != folder) {
+                if (folder >= 0) output.endFolder();
+                output.beginFolder(label != null ? label : UNKNOWN_PLACE);
+                folder = rank;
+            }
+            ExtractItem item = store.get(index);
+            item.waypoint.description = label;
+            output.writePlacemark(item.waypoint, item.file);
+            progress.accept(output.getPlacemarkCount());
+        }
+        if (folder >= 0) output.endFolder();
+        log.info("Wrote place folders. placemarks=" + indexes.length + " places=" + found.length
+                + " lookupMs=" + lookupNanos / 1_000_000 + " ms=" + (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,71 @@
+package com.williamquast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Streaming export of placemarks, one photo at a time, in the format chosen by the output file name. KmlWriter is
+ * the implementation for .kml and .kmz, GeoJsonWriter, CsvWriter and FlatGeobufWriter write the formats GIS and
+ * analytics tools load fastest. Every implementation buffers its output and uses bounded memory, whatever the
+ * number of placemarks.
+ */
+public interface PlacemarkWriter extends Closeable {
+
+    /**
+     * Opens the writer for the extension of outputFile:
+     * <pre>
+     *   .geojson                    GeoJSON FeatureCollection, one Feature per line
+     *   .geojsonl .geojsons .ndjson newline delimited GeoJSON, one Feature per line
+     *   .csv                        CSV with a header row
+     *   .fgb                        FlatGeobuf with a spatial index
+     *   anything else               KML, or KMZ for .kmz
+     * </pre>
+     * thumbnails adds a thumbnail of each photo and needs KML or KMZ.
+     */
+    static PlacemarkWriter open(File outputFile, boolean thumbnails) throws IOException {
+        if (!isKml(outputFile) && thumbnails) {
+            throw new IllegalArgumentException("Thumbnails need a .kml or .kmz file. (" + outputFile.getName() + ")");
+        }
+        String name = outputFile.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".geojson")) {
+            return new GeoJsonWriter(outputFile, false);
+        } else if (name.endsWith(".geojsonl") || name.endsWith(".geojsons") || name.endsWith(".ndjson")) {
+            return new GeoJsonWriter(outputFile, true);
+        } else if (name.endsWith(".csv")) {
+            return new CsvWriter(outputFile);
+        } else if (name.endsWith(".fgb")) {
+            return new FlatGeobufWriter(outputFile);
+        }
+        return KmlWriter.open(outputFile, thumbnails);
+    }
+
+    /**
+     * Returns true if open writes KML or KMZ to outputFile, which tracks, tiles and thumbnails need.
+     */
+    static boolean isKml(File outputFile) {
+        String name = outputFile.getName().toLowerCase(Locale.ROOT);
+        return !(name.endsWith(".geojson") || name.endsWith(".geojsonl") || name.endsWith(".geojsons")
+                || name.endsWith(".ndjson") || name.endsWith(".csv") || name.endsWith(".fgb"));
+    }
+
+    /**
+     * Writes a placemark for a waypoint read from photo, which may be null.
+     */
+    void writePlacemark(Waypoint waypoint, File photo) throws IOException;
+
+    /**
+     * Starts a group of placemarks, ended by endFolder. Formats without groups only keep the placemarks.
+     */
+    default void beginFolder(String name) throws IOException {
+    }
+
+    default void endFolder() throws IOException {
+    }
+
+    /**
+     * Returns the number of placemarks written, including any still queued.
+     */
+    int getPlacemarkCount();
+}
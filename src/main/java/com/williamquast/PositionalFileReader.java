@@ -0,0 +1,142 @@
+package com.williamquast;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random access to a file by positional reads, for formats whose metadata is found by following offsets rather
+ * than read from the start, like TIFF based RAW and QuickTime/MP4 movies. The prefix already buffered for file type
+ * detection is reused, anything after it is read in small pages on demand, so a multi gigabyte movie or a RAW file
+ * costs a few kilobytes however far into the file its metadata is.
+ *
+ * Positional reads leave the channel position alone, so the channel can also be under a stream. Not thread safe.
+ */
+class PositionalFileReader {
+
+    static final int PAGE_SIZE = 4 * 1024;
+    private static final int PAGE_COUNT = 8; // cached pages, replaced round robin
+
+    private final FileChannel channel;
+    private final long length;
+    private final byte[] prefix;
+    private final int prefixLength;
+
+    private final long[] pagePositions = new long[PAGE_COUNT];
+    private final int[] pageLengths = new int[PAGE_COUNT];
+    private byte[][] pages; // allocated on the first read past the prefix
+    private int nextPage;
+    private long bytesRead;
+
+    /**
+     * @param channel file to read, closed by the caller
+     * @param length file size
+     * @param prefix the first prefixLength bytes of the file, already read
+     */
+    PositionalFileReader(FileChannel channel, long length, byte[] prefix, int prefixLength) {
+        this.channel = channel;
+        this.length = length;
+        this.prefix = prefix;
+        this.prefixLength = prefixLength;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Returns the bytes read from the file, not counting the prefix.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the unsigned byte at position.
+     */
+    int get(long position) throws IOException {
+        if (position < prefixLength) {
+            if (position < 0) throw new EOFException("Read before the start of the file. (" + position + ")");
+            return prefix[(int) position] & 0xFF;
+        }
+        byte[] page = page(position);
+        return page[(int) (position % PAGE_SIZE)] & 0xFF;
+    }
+
+    /**
+     * Copies count bytes from position into target.
+     */
+    void read(long position, byte[] target, int offset, int count) throws IOException {
+        while (count > 0) {
+            int copied;
+            if (position < prefixLength) {
+                if (position < 0) throw new EOFException("Read before the start of the file. (" + position + ")");
+                copied = (int) Math.min(count, prefixLength - position);
+                System.arraycopy(prefix, (int) position, target, offset, copied);
+            } else {
+                byte[] page = page(position);
+                int start = (int) (position % PAGE_SIZE);
+                copied = Math.min(count, PAGE_SIZE - start);
+                System.arraycopy(page, start, target, offset, copied);
+            }
+            position += copied;
+            offset += copied;
+            count -= copied;
+        }
+    }
+
+    int readUInt16(long position, boolean littleEndian) throws IOException {
+        int b0 = get(position);
+        int b1 = get(position + 1);
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    long readUInt32(long position, boolean littleEndian) throws IOException {
+        long b0 = get(position);
+        long b1 = get(position + 1);
+        long b2 = get(position + 2);
+        long b3 = get(position + 3);
+        return littleEndian
+                ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+                : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    long readInt64(long position, boolean littleEndian) throws IOException {
+        long first = readUInt32(position, littleEndian);
+        long second = readUInt32(position + 4, littleEndian);
+        return littleEndian ? (second << 32) | first : (first << 32) | second;
+    }
+
+    /**
+     * Returns the cached page holding position, reading it if needed. The last page of the file may be short.
+     */
+    private byte[] page(long position) throws IOException {
+        if (position >= length) throw new EOFException("Read past the end of the file. (" + position + ")");
+        long pagePosition = position - position % PAGE_SIZE;
+        if (pages == null) {
+            pages = new byte[PAGE_COUNT][];
+            Arrays.fill(pagePositions, -1);
+        }
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            if (pagePositions[i] == pagePosition && position - pagePosition < pageLengths[i]) return pages[i];
+        }
+
+        int slot = nextPage;
+        nextPage = (nextPage + 1) % PAGE_COUNT;
+        if (pages[slot] == null) pages[slot] = new byte[PAGE_SIZE];
+        ByteBuffer target = ByteBuffer.wrap(pages[slot], 0, (int) Math.min(PAGE_SIZE, length - pagePosition));
+        while (target.hasRemaining()) {
+            int read = channel.read(target, pagePosition + target.position());
+            if (read < 0) break; // the file shrank since its size was read
+        }
+        bytesRead += target.position();
+        pagePositions[slot] = pagePosition;
+        pageLengths[slot] = target.position();
+        if (position - pagePosition >= pageLengths[slot]) {
+            throw new EOFException("Read past the end of the file. (" + position + ")");
+        }
+        return pages[slot];
+    }
+}
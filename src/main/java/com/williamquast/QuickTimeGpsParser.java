@@ -0,0 +1,281 @@
+package com.williamquast;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * Minimal QuickTime/MP4 atom walker that finds the location and dates of a movie without reading its media. Only
+ * the headers of the top level atoms are read to find moov, usually after the media data at the end of the file, and
+ * within moov only mvhd, udta and meta are visited, the track atoms with their large sample tables are skipped.
+ *
+ * The location is the ISO 6709 string of the udta (0xA9)xyz atom that phones and action cameras write, or of the
+ * com.apple.quicktime.location.ISO6709 item in the meta atom of iPhone movies. Finding either sets gpsDirectory,
+ * like a GPS IFD in a photo. com.apple.quicktime.creationdate is the dateTimeOriginal, as local time read as UTC
+ * like Exif dates, and the mvhd creation time the dateTime.
+ */
+class QuickTimeGpsParser {
+
+    private static final int ATOM_FTYP = 0x66747970;
+    private static final int ATOM_MOOV = 0x6D6F6F76;
+    private static final int ATOM_MVHD = 0x6D766864;
+    private static final int ATOM_UDTA = 0x75647461;
+    private static final int ATOM_META = 0x6D657461;
+    private static final int ATOM_KEYS = 0x6B657973;
+    private static final int ATOM_ILST = 0x696C7374;
+    private static final int ATOM_DATA = 0x64617461;
+    private static final int ATOM_XYZ = 0xA978797A; // 0xA9 "xyz"
+    private static final int BRAND_CANON_RAW = 0x63727820; // "crx ", CR3 files are ISO media but not movies
+
+    private static final String KEY_LOCATION = "com.apple.quicktime.location.ISO6709";
+    private static final String KEY_CREATION_DATE = "com.apple.quicktime.creationdate";
+
+    private static final long QUICKTIME_EPOCH_OFFSET = 2_082_844_800L; // seconds from 1904-01-01 to 1970-01-01
+    private static final int MAX_STRING_BYTES = 256;
+    private static final int MAX_KEYS = 1000; // guard against corrupt counts
+
+    private final PositionalFileReader file;
+
+    QuickTimeGpsParser(PositionalFileReader file) {
+        this.file = file;
+    }
+
+    /**
+     * Populates the location and date fields of metadata. Returns false, without reading further, if the file is
+     * ISO media but not a movie, like a Canon CR3.
+     *
+     * @throws IOException if the atom structure is not valid
+     */
+    boolean parse(PhotoMetadata metadata) throws IOException {
+        long position = 0;
+        long end = file.length();
+        while (position + 8 <= end) {
+            int type = (int) file.readUInt32(position + 4, false);
+            long size = atomSize(position, end);
+            if (type == ATOM_FTYP && size >= 12 && file.readUInt32(position + 8, false) == BRAND_CANON_RAW) {
+                return false;
+            }
+            if (type == ATOM_MOOV) {
+                parseMoov(position + headerSize(position), position + size, metadata);
+                break;
+            }
+            position += size;
+        }
+        return true;
+    }
+
+    private void parseMoov(long position, long end, PhotoMetadata metadata) throws IOException {
+        while (position + 8 <= end) {
+            int type = (int) file.readUInt32(position + 4, false);
+            long size = atomSize(position, end);
+            long content = position + headerSize(position);
+            if (type == ATOM_MVHD) {
+                parseMvhd(content, position + size, metadata);
+            } else if (type == ATOM_UDTA) {
+                parseUdta(content, position + size, metadata);
+            } else if (type == ATOM_META) {
+                parseMeta(content, position + size, metadata);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Reads the creation time, seconds since 1904 in UTC, 32 bits in version 0 and 64 bits in version 1.
+     */
+    private void parseMvhd(long position, long end, PhotoMetadata metadata) throws IOException {
+        if (position + 12 > end) return;
+        int version = file.get(position);
+        long seconds = version == 1 ? file.readInt64(position + 4, false) : file.readUInt32(position + 4, false);
+        if (seconds > QUICKTIME_EPOCH_OFFSET) {
+            metadata.dateTime = new Date((seconds - QUICKTIME_EPOCH_OFFSET) * 1000);
+        }
+    }
+
+    /**
+     * Reads the (0xA9)xyz atom: a 16 bit string length, a 16 bit language code and the ISO 6709 string.
+     */
+    private void parseUdta(long position, long end, PhotoMetadata metadata) throws IOException {
+        while (position + 8 <= end) {
+            int type = (int) file.readUInt32(position + 4, false);
+            long size = atomSize(position, end);
+            long content = position + headerSize(position);
+            if (type == ATOM_XYZ && content + 4 <= position + size) {
+                int length = file.readUInt16(content, false);
+                setLocation(readString(content + 4, Math.min(length, position + size - content - 4)), metadata);
+            } else if (type == ATOM_META) {
+                parseMeta(content, position + size, metadata);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Reads the keys and the ilst items they name, or an ilst (0xA9)xyz item. The QuickTime meta atom holds them
+     * directly, the MP4 one after 4 bytes of version and flags, told apart by those bytes being 0 where an atom size
+     * would be.
+     */
+    private void parseMeta(long position, long end, PhotoMetadata metadata) throws IOException {
+        if (position + 4 <= end && file.readUInt32(position, false) == 0) {
+            position += 4;
+        }
+        int locationKey = 0; // keys are numbered from 1
+        int creationDateKey = 0;
+        long ilst = -1;
+        long ilstEnd = -1;
+        while (position + 8 <= end) {
+            int type = (int) file.readUInt32(position + 4, false);
+            long size = atomSize(position, end);
+            long content = position + headerSize(position);
+            if (type == ATOM_KEYS && content + 8 <= position + size) {
+                long count = Math.min(file.readUInt32(content + 4, false), MAX_KEYS);
+                long key = content + 8;
+                for (int index = 1; index <= count && key + 8 <= position + size; index++) {
+                    long keySize = file.readUInt32(key, false);
+                    if (keySize < 8 || key + keySize > position + size) break;
+                    String name = readString(key + 8, keySize - 8);
+                    if (name.equals(KEY_LOCATION)) locationKey = index;
+                    else if (name.equals(KEY_CREATION_DATE)) creationDateKey = index;
+                    key += keySize;
+                }
+            } else if (type == ATOM_ILST) {
+                ilst = content;
+                ilstEnd = position + size;
+            }
+            position += size;
+        }
+        if (ilst < 0) return;
+
+        // items are numbered by key, or named by their atom type in MP4 files without keys
+        for (position = ilst; position + 8 <= ilstEnd; ) {
+            int key = (int) file.readUInt32(position + 4, false);
+            long size = atomSize(position, ilstEnd);
+            boolean location = key == ATOM_XYZ || (locationKey > 0 && key == locationKey);
+            if (location || (creationDateKey > 0 && key == creationDateKey)) {
+                String value = readDataAtom(position + headerSize(position), position + size);
+                if (value != null && location) {
+                    setLocation(value, metadata);
+                } else if (value != null) {
+                    metadata.dateTimeOriginal = parseCreationDate(value);
+                }
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Returns the value of the data atom of an ilst item as text: type and locale, 4 bytes each, then the value.
+     */
+    private String readDataAtom(long position, long end) throws IOException {
+        if (position + 16 > end || file.readUInt32(position + 4, false) != ATOM_DATA) return null;
+        long size = atomSize(position, end);
+        return readString(position + 16, size - 16);
+    }
+
+    private void setLocation(String iso6709, PhotoMetadata metadata) {
+        metadata.gpsDirectory = true;
+        double[] location = parseIso6709(iso6709);
+        if (location != null) {
+            metadata.latitude = location[0];
+            metadata.longitude = location[1];
+        }
+    }
+
+    /**
+     * Parses the latitude and longitude of an ISO 6709 point like "+37.7858-122.4064+012.345/". Degrees may also be
+     * written as degrees and minutes (+DDMM.M) or degrees, minutes and seconds (+DDMMSS.S). Returns null if the
+     * string is not a valid point.
+     */
+    static double[] parseIso6709(String value) {
+        int latEnd = nextSign(value, 1);
+        if (latEnd < 0) return null;
+        int lonEnd = nextSign(value, latEnd + 1);
+        if (lonEnd < 0) lonEnd = value.indexOf('/') > latEnd ? value.indexOf('/') : value.length();
+        double latitude = parseAngle(value.substring(0, latEnd), 2);
+        double longitude = parseAngle(value.substring(latEnd, lonEnd), 3);
+        if (!(Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180)) return null;
+        return new double[]{latitude, longitude};
+    }
+
+    private static int nextSign(String value, int from) {
+        for (int i = from; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '+' || c == '-') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a signed angle with degreeDigits integer digits of degrees, followed by 2 of minutes and 2 of seconds
+     * if there are more integer digits. Returns NaN if it is malformed.
+     */
+    private static double parseAngle(String value, int degreeDigits) {
+        if (value.length() < 2 || (value.charAt(0) != '+' && value.charAt(0) != '-')) return Double.NaN;
+        String digits = value.substring(1);
+        int point = digits.indexOf('.');
+        int integerDigits = point < 0 ? digits.length() : point;
+        double angle;
+        try {
+            double number = Double.parseDouble(digits);
+            if (integerDigits <= degreeDigits) {
+                angle = number;
+            } else if (integerDigits == degreeDigits + 2) {
+                double degrees = Math.floor(number / 100);
+                angle = degrees + (number - degrees * 100) / 60;
+            } else if (integerDigits == degreeDigits + 4) {
+                double degrees = Math.floor(number / 10_000);
+                double minutes = Math.floor((number - degrees * 10_000) / 100);
+                angle = degrees + minutes / 60 + (number - degrees * 10_000 - minutes * 100) / 3600;
+            } else {
+                return Double.NaN;
+            }
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+        return value.charAt(0) == '-' ? -angle : angle;
+    }
+
+    /**
+     * Parses an ISO 8601 date like "2019-05-06T13:14:15+1000", keeping the local time as UTC.
+     */
+    static Date parseCreationDate(String value) {
+        if (value.length() < 19) return null;
+        try {
+            return Date.from(LocalDateTime.parse(value.substring(0, 19)).toInstant(ZoneOffset.UTC));
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the size of the atom at position, which ends at end at the latest. A size of 1 is followed by a
+     * 64 bit size, 0 means up to end.
+     */
+    private long atomSize(long position, long end) throws IOException {
+        long size = file.readUInt32(position, false);
+        if (size == 1) {
+            if (position + 16 > end) throw new IOException("QuickTime atom is truncated.");
+            size = file.readInt64(position + 8, false);
+        } else if (size == 0) {
+            size = end - position;
+        }
+        if (size < headerSize(position) || size > end - position) {
+            throw new IOException("Invalid QuickTime atom size. (" + size + " at " + position + ")");
+        }
+        return size;
+    }
+
+    private long headerSize(long position) throws IOException {
+        return file.readUInt32(position, false) == 1 ? 16 : 8;
+    }
+
+    private String readString(long position, long length) throws IOException {
+        int count = (int) Math.max(0, Math.min(length, MAX_STRING_BYTES));
+        byte[] bytes = new byte[count];
+        file.read(position, bytes, 0, count);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,294 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of previously processed files keyed by path, size and last modified time, so a re-scan
+ * can skip parsing any file that has not changed.
+ *
+ * The file is an append-only log of CRC checked records. A crash can at worst leave a partial record at the tail,
+ * which is ignored on the next load. After a complete scan the log is compacted to only the files seen, written
+ * to a temp file and atomically moved over the old one.
+ */
+public class ScanIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ScanIndex.class);
+
+    private static final int MAGIC = 0x50324B49; // "P2KI"
+    private static final int VERSION = 3;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024; // guard against reading a corrupt length
+    private static final int MAX_STRING_LENGTH = 4096;
+
+    private final File indexFile;
+    private final String sourceDir;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet(); // paths visited during this scan
+    private DataOutputStream appendLog; // opened lazily on the first put
+    private long validLength; // bytes of the index file known to hold complete records
+    private int appendedRecords;
+    private boolean closed;
+
+    private ScanIndex(File indexFile, String sourceDir) {
+        this.indexFile = indexFile;
+        this.sourceDir = sourceDir;
+    }
+
+    /**
+     * Returns the default location of the index for the given source directory inside the user cache directory.
+     */
+    public static File defaultIndexFile(File sourceDir) {
+        String key = UUID.nameUUIDFromBytes(sourceDir.getAbsolutePath().getBytes(StandardCharsets.UTF_8)).toString();
+        return new File(new File(System.getProperty("user.home"), ".photo2kml" + File.separator + "index"), key + ".idx");
+    }
+
+    /**
+     * Loads the index from disk, or returns an empty index if it does not exist or belongs to another source dir.
+     */
+    public static ScanIndex open(File indexFile, File sourceDir) {
+        ScanIndex index = new ScanIndex(indexFile, sourceDir.getAbsolutePath());
+        if (indexFile.isFile()) {
+            try {
+                index.load();
+            } catch (IOException ex) {
+                log.warn("Failed loading scan index, starting empty. file=" + indexFile.getPath(), ex);
+                index.entries.clear();
+                index.validLength = 0;
+            }
+        }
+        log.info("Opened scan index. file=" + indexFile.getPath() + " entries=" + index.entries.size());
+        return index;
+    }
+
+    /**
+     * Returns the cached ExtractItem for path if the file size and modified time still match, otherwise null.
+     */
+    public synchronized ExtractItem lookup(String path, long size, long lastModified) {
+        seen.add(path);
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.item;
+        }
+        return null;
+    }
+
+    /**
+     * Records the result of processing path and appends it to the log on disk.
+     */
+    public synchronized void put(String path, long size, long lastModified, ExtractItem item) {
+        if (closed) return; // late result from a cancelled scan
+        seen.add(path);
+        Entry entry = new Entry(size, lastModified, item);
+        entries.put(path, entry);
+        try {
+            if (appendLog == null) {
+                appendLog = openAppendLog();
+            }
+            writeRecord(appendLog, path, entry);
+            appendedRecords++;
+        } catch (IOException ex) {
+            log.warn("Failed appending to scan index. file=" + indexFile.getPath(), ex);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Flushes the log. If the scan was complete, entries for files not seen during the scan are dropped and the
+     * index is compacted into a fresh file.
+     */
+    public synchronized void close(boolean scanComplete) {
+        closed = true;
+        try {
+            if (appendLog != null) {
+                appendLog.close();
+                appendLog = null;
+            }
+            if (scanComplete && (appendedRecords > 0 || entries.size() != seen.size())) {
+                entries.keySet().retainAll(seen);
+                compact();
+            }
+        } catch (IOException ex) {
+            log.warn("Failed closing scan index. file=" + indexFile.getPath(), ex);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a scan index or unsupported version.");
+            }
+            if (!sourceDir.equals(in.readUTF())) {
+                throw new IOException("Scan index belongs to another source directory.");
+            }
+            validLength = headerLength();
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) break;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                } catch (EOFException ex) {
+                    break; // partial record left by a crash, everything before it is valid
+                }
+                readRecord(record);
+                validLength += 4 + record.length + 4;
+            }
+        }
+    }
+
+    private void readRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String path = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        String filename = in.readUTF();
+        Date timestamp = readDate(in);
+        ExtractItem item;
+        if (in.readBoolean()) {
+            String name = in.readUTF();
+            Date waypointTimestamp = readDate(in);
+            double x = in.readDouble();
+            double y = in.readDouble();
+            if (!PhotoMetadata.isValidGeoLocation(y, x)) return; // cached before such locations were rejected, parse again
+            item = new ExtractItem(filename, timestamp, new Waypoint(name, waypointTimestamp, x, y));
+        } else {
+            item = new ExtractItem(filename, timestamp, in.readUTF());
+            item.captureTime = readDate(in);
+        }
+        entries.put(path, new Entry(size, lastModified, item));
+    }
+
+    private void writeRecord(DataOutputStream out, String path, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        ExtractItem item = entry.item;
+        record.writeUTF(path);
+        record.writeLong(entry.size);
+        record.writeLong(entry.lastModified);
+        record.writeUTF(truncate(item.filename));
+        writeDate(record, item.timestamp);
+        record.writeBoolean(item.success);
+        if (item.success) {
+            record.writeUTF(truncate(item.waypoint.name));
+            writeDate(record, item.waypoint.timestamp);
+            record.writeDouble(item.waypoint.x);
+            record.writeDouble(item.waypoint.y);
+        } else {
+            record.writeUTF(truncate(item.failureReason));
+            writeDate(record, item.captureTime);
+        }
+        record.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private DataOutputStream openAppendLog() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        boolean exists = validLength > 0;
+        if (exists && indexFile.length() != validLength) {
+            // drop a partial record left at the tail by a crash, so new records stay readable
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                file.setLength(validLength);
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, exists)));
+        if (!exists) {
+            writeHeader(out);
+        }
+        return out;
+    }
+
+    private void compact() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            writeHeader(out);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appendedRecords = 0;
+        log.info("Compacted scan index. file=" + indexFile.getPath() + " entries=" + entries.size());
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(sourceDir);
+    }
+
+    private int headerLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(bytes));
+        return bytes.size();
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeBoolean(date != null);
+        if (date != null) {
+            out.writeLong(date.getTime());
+        }
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+
+    private static String truncate(String value) {
+        if (value == null) return "";
+        return value.length() > MAX_STRING_LENGTH ? value.substring(0, MAX_STRING_LENGTH) : value;
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final ExtractItem item;
+
+        Entry(long size, long lastModified, ExtractItem item) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters, stage latencies and queue depths of one scan, to tell whether a slow scan is held up by the disk, the
+ * CPU or the handoff to the UI. Recording is a few LongAdder increments, cheap enough to leave on for every file.
+ *
+ * A sampler thread computes the rates once a second and writes a summary line to the ScanMetrics logger every
+ * logInterval, which log4j2.xml also routes to metrics.txt. The latest scan is published over JMX as
+ * com.williamquast:type=ScanMetrics, see ScanMetricsMXBean.
+ */
+public class ScanMetrics implements ScanMetricsMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ScanMetrics.class);
+
+    public static final long DEFAULT_LOG_INTERVAL = 10_000; // ms
+    static final String OBJECT_NAME = "com.williamquast:type=ScanMetrics";
+    private static final long SAMPLE_INTERVAL = 1000; // ms between rate samples
+
+    /**
+     * Timed stages of a file, in the order a file passes them.
+     */
+    public enum Stage {
+        /** The scan index lookup, the file attributes come with the directory listing. */
+        STAT,
+        /** Opening the file and detecting its type from the first bytes. */
+        DETECT,
+        /** Reading the metadata header, or all metadata for formats without a fast path. */
+        READ,
+        /** Decoding the GPS and date tags. */
+        PARSE,
+        /** Waiting in the delivery buffer for the progress listener, per batch, measured from its oldest item. */
+        DELIVER
+    }
+
+    /**
+     * What limited the scan during the last second.
+     */
+    public enum Bottleneck {
+        NONE, DIRECTORY_WALK, DISK, CPU, UI_HANDOFF
+    }
+
+    private final TaskScheduler scheduler;
+    private final List<TaskScheduler> ioSchedulers = new CopyOnWriteArrayList<>(); // one per device
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final LongAdder[] failures = new LongAdder[WaypointStore.Status.values().length];
+    private final LongAdder found = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final AtomicInteger deliveryQueue = new AtomicInteger();
+    private final long logInterval;
+    private ScheduledExecutorService sampler;
+    private volatile boolean running;
+
+    // written by the sampler thread only
+    private long lastSampleTime;
+    private long lastProcessed;
+    private long lastBytes;
+    private long lastLogTime;
+    private volatile double filesPerSecond;
+    private volatile double bytesPerSecond;
+    private volatile Bottleneck bottleneck = Bottleneck.NONE;
+
+    /**
+     * Creates the metrics of a scan run by scheduler. logInterval is the ms between summary lines, 0 for none.
+     */
+    public ScanMetrics(TaskScheduler scheduler, long logInterval) {
+        this.scheduler = scheduler;
+        this.logInterval = logInterval;
+        ioSchedulers.add(scheduler);
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts the sampler and publishes these metrics over JMX in place of the previous scan.
+     */
+    public void start() {
+        running = true;
+        lastSampleTime = lastLogTime = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(AdaptiveScheduler.daemonThreadFactory("scan-metrics-"));
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        register();
+    }
+
+    /**
+     * Stops the sampler and logs the totals. The metrics stay registered until the next scan starts.
+     */
+    public void stop() {
+        running = false;
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        log.info("Scan totals. " + summary(false));
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (ScanMetrics.class) {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+            }
+        } catch (JMException | RuntimeException ex) {
+            log.warn("Failed registering scan metrics with JMX. reason=" + ex.getMessage());
+        }
+    }
+
+    /**
+     * Adds the I/O stage of another device to the queue depths and thread counts.
+     */
+    void addIoScheduler(TaskScheduler ioScheduler) {
+        ioSchedulers.add(ioScheduler);
+    }
+
+    void recordFound() {
+        found.increment();
+    }
+
+    void recordProcessed() {
+        processed.increment();
+    }
+
+    void recordIndexed() {
+        indexed.increment();
+    }
+
+    void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void recordStage(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    void recordFailure(String failureReason) {
+        failures[WaypointStore.Status.of(failureReason).ordinal()].increment();
+    }
+
+    void addDeliveryQueue(int delta) {
+        deliveryQueue.addAndGet(delta);
+    }
+
+    private void sample() {
+        try {
+            long now = System.nanoTime();
+            long processedNow = processed.sum();
+            long bytesNow = bytesRead.sum();
+            double seconds = (now - lastSampleTime) / 1e9;
+            filesPerSecond = (processedNow - lastProcessed) / seconds;
+            bytesPerSecond = (bytesNow - lastBytes) / seconds;
+            bottleneck = findBottleneck();
+            lastSampleTime = now;
+            lastProcessed = processedNow;
+            lastBytes = bytesNow;
+
+            if (logInterval > 0 && now - lastLogTime >= TimeUnit.MILLISECONDS.toNanos(logInterval)) {
+                lastLogTime = now;
+                log.info("Scan metrics. " + summary(true));
+            }
+        } catch (Exception ex) {
+            log.error("Scan metrics sample failed.", ex);
+        }
+    }
+
+    /**
+     * Work piles up in front of the slowest stage. A full parse stage also stalls the I/O threads handing work to
+     * it, so the CPU is checked before the disk. One saturated device is enough to be the disk bottleneck.
+     */
+    private Bottleneck findBottleneck() {
+        if (deliveryQueue.get() > TaskScheduler.STAGE_CAPACITY) {
+            return Bottleneck.UI_HANDOFF;
+        }
+        if (scheduler.getCpuQueueDepth() > scheduler.getCpuConcurrency()) {
+            return Bottleneck.CPU;
+        }
+        for (TaskScheduler ioScheduler : ioSchedulers) {
+            if (ioScheduler.getActiveIoThreads() >= ioScheduler.getIoConcurrency()) {
+                return Bottleneck.DISK;
+            }
+        }
+        return filesPerSecond > 0 ? Bottleneck.DIRECTORY_WALK : Bottleneck.NONE;
+    }
+
+    private String summary(boolean rates) {
+        StringBuilder line = new StringBuilder();
+        if (rates) {
+            line.append("files/s=").append(Math.round(filesPerSecond))
+                    .append(" MB/s=").append(Math.round(bytesPerSecond / 1e5) / 10.0)
+                    .append(" bottleneck=").append(bottleneck)
+                    .append(" ioQueue=").append(getIoQueueDepth())
+                    .append(" cpuQueue=").append(getCpuQueueDepth())
+                    .append(" deliveryQueue=").append(getDeliveryQueueDepth())
+                    .append(" ioThreads=").append(getActiveIoThreads()).append('/').append(getIoConcurrency())
+                    .append(" cpuThreads=").append(getActiveCpuThreads()).append('/').append(getCpuConcurrency())
+                    .append(' ');
+        }
+        line.append("found=").append(getFoundFiles())
+                .append(" processed=").append(getProcessedFiles())
+                .append(" indexed=").append(getIndexedFiles())
+                .append(" bytes=").append(getBytesRead());
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = stages[stage.ordinal()];
+            String name = stage.name().toLowerCase(Locale.ROOT);
+            line.append(' ').append(name).append("P50us=").append(histogram.percentile(0.5) / 1000)
+                    .append(' ').append(name).append("P99us=").append(histogram.percentile(0.99) / 1000);
+        }
+        line.append(" failures=").append(getFailuresByReason());
+        return line.toString();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public long getFoundFiles() {
+        return found.sum();
+    }
+
+    @Override
+    public long getProcessedFiles() {
+        return processed.sum();
+    }
+
+    @Override
+    public long getIndexedFiles() {
+        return indexed.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        return running ? filesPerSecond : 0;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return running ? bytesPerSecond : 0;
+    }
+
+    @Override
+    public int getIoQueueDepth() {
+        return sumOverDevices(TaskScheduler::getIoQueueDepth);
+    }
+
+    @Override
+    public int getCpuQueueDepth() {
+        return scheduler.getCpuQueueDepth();
+    }
+
+    @Override
+    public int getDeliveryQueueDepth() {
+        return deliveryQueue.get();
+    }
+
+    @Override
+    public int getActiveIoThreads() {
+        return sumOverDevices(TaskScheduler::getActiveIoThreads);
+    }
+
+    @Override
+    public int getActiveCpuThreads() {
+        return scheduler.getActiveCpuThreads();
+    }
+
+    @Override
+    public int getIoConcurrency() {
+        return sumOverDevices(TaskScheduler::getIoConcurrency);
+    }
+
+    @Override
+    public int getCpuConcurrency() {
+        return scheduler.getCpuConcurrency();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByReason() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        WaypointStore.Status[] statuses = WaypointStore.Status.values();
+        for (int i = 0; i < failures.length; i++) {
+            long count = failures[i].sum();
+            if (count > 0) {
+                map.put(statuses[i].name(), count);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        return perStage(Histogram::count);
+    }
+
+    @Override
+    public Map<String, Long> getStageMeanMicros() {
+        return perStage(histogram -> histogram.mean() / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getStageP50Micros() {
+        return perStage(histogram -> histogram.percentile(0.5) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getStageP99Micros() {
+        return perStage(histogram -> histogram.percentile(0.99) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxMicros() {
+        return perStage(histogram -> histogram.max.get() / 1000);
+    }
+
+    @Override
+    public String getBottleneck() {
+        return (running ? bottleneck : Bottleneck.NONE).name();
+    }
+
+    private int sumOverDevices(ToIntFunction<TaskScheduler> value) {
+        int sum = 0;
+        for (TaskScheduler ioScheduler : ioSchedulers) {
+            sum += value.applyAsInt(ioScheduler);
+        }
+        return sum;
+    }
+
+    private Map<String, Long> perStage(ToLongFunction<Histogram> value) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            map.put(stage.name(), value.applyAsLong(stages[stage.ordinal()]));
+        }
+        return map;
+    }
+
+    /**
+     * Latency histogram with one bucket per power of 2 nanos. Lock free, recording is two adds and a compare.
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder totalNanos = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+            totalNanos.add(nanos);
+            long previous = max.get();
+            while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+                previous = max.get();
+            }
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long mean() {
+            long count = count();
+            return count > 0 ? totalNanos.sum() / count : 0;
+        }
+
+        /**
+         * Upper bound of the bucket holding quantile q, capped by the largest value seen.
+         */
+        long percentile(double q) {
+            long count = count();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(max.get(), i >= 62 ? Long.MAX_VALUE : (2L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.williamquast;
+
+import java.util.Map;
+
+/**
+ * JMX view of the running or last finished scan, registered as com.williamquast:type=ScanMetrics.
+ * Rates are over the last second. Latencies are per stage, in microseconds, from log2 histograms, so percentiles
+ * are upper bounds within a factor of 2.
+ */
+public interface ScanMetricsMXBean {
+
+    boolean isRunning();
+
+    long getFoundFiles();
+
+    long getProcessedFiles();
+
+    long getIndexedFiles();
+
+    long getBytesRead();
+
+    double getFilesPerSecond();
+
+    double getBytesPerSecond();
+
+    int getIoQueueDepth();
+
+    int getCpuQueueDepth();
+
+    int getDeliveryQueueDepth();
+
+    int getActiveIoThreads();
+
+    int getActiveCpuThreads();
+
+    int getIoConcurrency();
+
+    int getCpuConcurrency();
+
+    Map<String, Long> getFailuresByReason();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Long> getStageMeanMicros();
+
+    Map<String, Long> getStageP50Micros();
+
+    Map<String, Long> getStageP99Micros();
+
+    Map<String, Long> getStageMaxMicros();
+
+    String getBottleneck();
+}
@@ -0,0 +1,384 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Read only spatial index over the successful items of a WaypointStore, for bounding box, radius and nearest
+ * neighbour queries without scanning every photo.
+ *
+ * The index is a packed R-tree. Points are sorted along a Hilbert curve, so neighbours on the curve are neighbours
+ * on the map, and grouped NODE_SIZE at a time into nodes with a bounding box. The nodes are grouped the same way,
+ * level by level, up to a single root. Points and node boxes live in flat primitive arrays, about 20 bytes per
+ * photo, and a query only visits the nodes whose boxes it touches.
+ *
+ * Coordinates are longitude (x) and latitude (y) in degrees. Distances are great circle meters. Queries return
+ * store indexes and are safe to run from several threads at once.
+ */
+public class SpatialIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SpatialIndex.class);
+
+    private static final int NODE_SIZE = 16;
+    private static final int HILBERT_BITS = 16; // per axis
+    private static final double EARTH_RADIUS = 6_371_008.8; // mean radius, meters
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private final int size;
+    private final double[] x; // points in Hilbert order
+    private final double[] y;
+    private final int[] storeIndexes;
+    private final double[] boxes; // west, south, east, north of every node above the points
+    private final int[] firstChildren; // position of the first child of every node, a point or a node
+    private final int[] levelEnds; // end position of each level, points are level 0 and positions size and up are nodes
+
+    private SpatialIndex(int size, double[] x, double[] y, int[] storeIndexes, double[] boxes, int[] firstChildren, int[] levelEnds) {
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.storeIndexes = storeIndexes;
+        this.boxes = boxes;
+        this.firstChildren = firstChildren;
+        this.levelEnds = levelEnds;
+    }
+
+    /**
+     * Builds the index over the successful items of store. store must not change while this runs, pass a snapshot
+     * of a live store.
+     */
+    public static SpatialIndex build(WaypointStore store) {
+        long start = System.nanoTime();
+        int[] indexes = store.successIndexes();
+        int size = 0;
+        for (int index : indexes) {
+            if (Double.isFinite(store.getX(index)) && Double.isFinite(store.getY(index))) {
+                indexes[size++] = index; // a NaN would poison the boxes above it
+            }
+        }
+
+        long[] keys = new long[size]; // Hilbert value in the high bits, position in indexes in the low bits
+        for (int i = 0; i < size; i++) {
+            long hilbert = hilbert(scale(store.getX(indexes[i]), -180, 180), scale(store.getY(indexes[i]), -90, 90));
+            keys[i] = hilbert << 32 | i;
+        }
+        Arrays.parallelSort(keys);
+
+        double[] x = new double[size];
+        double[] y = new double[size];
+        int[] storeIndexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            int index = indexes[(int) keys[i]];
+            storeIndexes[i] = index;
+            x[i] = store.getX(index);
+            y[i] = store.getY(index);
+        }
+
+        int levels = 1;
+        int nodeCount = 0;
+        for (int count = size; count > 1; levels++) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            nodeCount += count;
+        }
+        int[] levelEnds = new int[levels];
+        double[] boxes = new double[nodeCount * 4];
+        int[] firstChildren = new int[nodeCount];
+
+        levelEnds[0] = size;
+        int node = 0;
+        int levelStart = 0;
+        for (int level = 1; level < levels; level++) {
+            int levelEnd = levelEnds[level - 1];
+            for (int child = levelStart; child < levelEnd; child += NODE_SIZE) {
+                int end = Math.min(child + NODE_SIZE, levelEnd);
+                double west = Double.POSITIVE_INFINITY;
+                double south = Double.POSITIVE_INFINITY;
+                double east = Double.NEGATIVE_INFINITY;
+                double north = Double.NEGATIVE_INFINITY;
+                for (int position = child; position < end; position++) {
+                    if (position < size) {
+                        west = Math.min(west, x[position]);
+                        south = Math.min(south, y[position]);
+                        east = Math.max(east, x[position]);
+                        north = Math.max(north, y[position]);
+                    } else {
+                        int box = (position - size) * 4;
+                        west = Math.min(west, boxes[box]);
+                        south = Math.min(south, boxes[box + 1]);
+                        east = Math.max(east, boxes[box + 2]);
+                        north = Math.max(north, boxes[box + 3]);
+                    }
+                }
+                boxes[node * 4] = west;
+                boxes[node * 4 + 1] = south;
+                boxes[node * 4 + 2] = east;
+                boxes[node * 4 + 3] = north;
+                firstChildren[node] = child;
+                node++;
+            }
+            levelStart = levelEnd;
+            levelEnds[level] = size + node;
+        }
+
+        log.info("Built spatial index. points=" + size + " nodes=" + nodeCount + " ms=" + (System.nanoTime() - start) / 1_000_000);
+        return new SpatialIndex(size, x, y, storeIndexes, boxes, firstChildren, levelEnds);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the store indexes of the points inside the box, edges included, in no particular order.
+     * A box with west greater than east crosses the antimeridian.
+     */
+    public int[] bbox(double west, double south, double east, double north) {
+        IntBuffer result = new IntBuffer();
+        if (west > east) {
+            search(west, south, 180, north, result);
+            search(-180, south, east, north, result);
+        } else {
+            search(west, south, east, north, result);
+        }
+        for (int i = 0; i < result.size; i++) {
+            result.values[i] = storeIndexes[result.values[i]]; // search finds positions in the index
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Returns the store indexes of the points within meters of longitude x, latitude y, in no particular order.
+     */
+    public int[] radius(double x, double y, double meters) {
+        double latitudeDelta = meters / METERS_PER_DEGREE;
+        double south = Math.max(-90, y - latitudeDelta);
+        double north = Math.min(90, y + latitudeDelta);
+        double minCos = Math.min(Math.cos(Math.toRadians(south)), Math.cos(Math.toRadians(north))); // edge nearest a pole
+        double longitudeDelta = minCos > 0 ? latitudeDelta / minCos : 180;
+
+        IntBuffer candidates = new IntBuffer();
+        if (longitudeDelta >= 180 || south == -90 || north == 90) {
+            search(-180, south, 180, north, candidates); // around a pole every longitude is close
+        } else if (x - longitudeDelta < -180) {
+            search(x - longitudeDelta + 360, south, 180, north, candidates);
+            search(-180, south, x + longitudeDelta, north, candidates);
+        } else if (x + longitudeDelta > 180) {
+            search(x - longitudeDelta, south, 180, north, candidates);
+            search(-180, south, x + longitudeDelta - 360, north, candidates);
+        } else {
+            search(x - longitudeDelta, south, x + longitudeDelta, north, candidates);
+        }
+
+        IntBuffer result = new IntBuffer();
+        for (int i = 0; i < candidates.size; i++) {
+            int position = candidates.values[i];
+            if (distance(x, y, this.x[position], this.y[position]) <= meters) {
+                result.add(storeIndexes[position]);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Returns the store indexes of the count points nearest to longitude x, latitude y, nearest first.
+     * Visits nodes in order of their distance, so only the neighbourhood of the point is read.
+     */
+    public int[] nearest(double x, double y, int count) {
+        count = Math.min(count, size);
+        int[] result = new int[count];
+        if (count <= 0) return result;
+
+        MinHeap queue = new MinHeap();
+        queue.add(size + boxes.length / 4 - 1, 0); // the root
+        int found = 0;
+        while (found < count && queue.size > 0) {
+            int position = queue.poll();
+            if (position < size) {
+                result[found++] = storeIndexes[position]; // no node left in the queue can hold anything nearer
+                continue;
+            }
+            int node = position - size;
+            int child = firstChildren[node];
+            int end = Math.min(child + NODE_SIZE, levelEnd(child));
+            for (; child < end; child++) {
+                if (child < size) {
+                    queue.add(child, distance(x, y, this.x[child], this.y[child]));
+                } else {
+                    queue.add(child, boxDistance(x, y, (child - size) * 4));
+                }
+            }
+        }
+        return found == count ? result : Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Adds the positions of the points inside the box to result.
+     */
+    private void search(double west, double south, double east, double north, IntBuffer result) {
+        if (size == 0) return;
+        if (size == 1) {
+            if (x[0] >= west && x[0] <= east && y[0] >= south && y[0] <= north) result.add(0);
+            return;
+        }
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = size + boxes.length / 4 - 1;
+        while (top > 0) {
+            int node = stack[--top] - size;
+            int child = firstChildren[node];
+            int end = Math.min(child + NODE_SIZE, levelEnd(child));
+            for (; child < end; child++) {
+                if (child < size) {
+                    if (x[child] >= west && x[child] <= east && y[child] >= south && y[child] <= north) {
+                        result.add(child);
+                    }
+                } else {
+                    int box = (child - size) * 4;
+                    if (boxes[box] <= east && boxes[box + 1] <= north && boxes[box + 2] >= west && boxes[box + 3] >= south) {
+                        if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                        stack[top++] = child;
+                    }
+                }
+            }
+        }
+    }
+
+    private int levelEnd(int position) {
+        for (int levelEnd : levelEnds) {
+            if (position < levelEnd) return levelEnd;
+        }
+        return levelEnds[levelEnds.length - 1];
+    }
+
+    /**
+     * Great circle distance from the point to the nearest point of a node box, which nearest() relies on never
+     * being more than the distance to any point inside. Clamping longitude and latitude separately is not enough
+     * on the sphere: away from the equator the nearest point of a box edge meridian is poleward of the clamped
+     * latitude. So the point is either within the box longitudes, and its distance is along its own meridian, or
+     * the nearest point is on one of the two edge meridians.
+     */
+    private double boxDistance(double x, double y, int box) {
+        double west = boxes[box];
+        double south = boxes[box + 1];
+        double east = boxes[box + 2];
+        double north = boxes[box + 3];
+        for (int turn = -1; turn <= 1; turn++) {
+            double turnedX = x + turn * 360; // boxes on the other side of the antimeridian
+            if (turnedX >= west && turnedX <= east) {
+                return Math.max(0, Math.max(south - y, y - north)) * METERS_PER_DEGREE;
+            }
+        }
+        return Math.min(meridianDistance(x, y, west, south, north), meridianDistance(x, y, east, south, north));
+    }
+
+    /**
+     * Great circle distance from the point to the part of the meridian at longitude between latitudes south and
+     * north. The cosine of the distance along the meridian peaks at one latitude and falls off to either side, so
+     * the nearest point is that latitude clamped to the range, or a pole when the meridian is on the far side.
+     */
+    private static double meridianDistance(double x, double y, double longitude, double south, double north) {
+        double cosY = Math.cos(Math.toRadians(y));
+        double peak = Math.toDegrees(Math.atan2(Math.sin(Math.toRadians(y)), cosY * Math.cos(Math.toRadians(longitude - x))));
+        return distance(x, y, longitude, Math.max(south, Math.min(north, peak)));
+    }
+
+    /**
+     * Great circle distance in meters.
+     */
+    static double distance(double x1, double y1, double x2, double y2) {
+        double sinY = Math.sin(Math.toRadians(y2 - y1) / 2);
+        double sinX = Math.sin(Math.toRadians(x2 - x1) / 2);
+        double a = sinY * sinY + Math.cos(Math.toRadians(y1)) * Math.cos(Math.toRadians(y2)) * sinX * sinX;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int scale(double value, double min, double max) {
+        double scaled = (value - min) / (max - min) * ((1 << HILBERT_BITS) - 1);
+        return (int) Math.max(0, Math.min((1 << HILBERT_BITS) - 1, scaled));
+    }
+
+    /**
+     * Position of x, y on a Hilbert curve filling a 2^HILBERT_BITS square.
+     */
+    private static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = 1 << (HILBERT_BITS - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Growable int array for query results.
+     */
+    private static class IntBuffer {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Binary min heap of positions keyed by distance, without boxing.
+     */
+    private static class MinHeap {
+        int[] positions = new int[64];
+        double[] distances = new double[64];
+        int size;
+
+        void add(int position, double distance) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance) break;
+                positions[i] = positions[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            positions[i] = position;
+            distances[i] = distance;
+        }
+
+        int poll() {
+            int top = positions[0];
+            int lastPosition = positions[--size];
+            double lastDistance = distances[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && distances[child + 1] < distances[child]) child++;
+                if (distances[child] >= lastDistance) break;
+                positions[i] = positions[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            positions[i] = lastPosition;
+            distances[i] = lastDistance;
+            return top;
+        }
+    }
+}
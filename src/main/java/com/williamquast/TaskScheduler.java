@@ -0,0 +1,70 @@
+package com.williamquast;
+
+/**
+ * Runs the stat/read and parse stages of a scan. File reads are blocking I/O and metadata parsing is CPU bound,
+ * so implementations are free to run them on differently sized or differently built threads.
+ * Each stage holds a bounded backlog and blocks the caller when it is full, which pushes back on the stage before it.
+ */
+public interface TaskScheduler {
+
+    int STAGE_CAPACITY = 1024; // tasks queued or running per stage before the caller blocks
+
+    enum Mode {
+        /** Platform thread pools sized at runtime by the AdaptiveScheduler. */
+        POOLED,
+        /** One thread per file read, virtual threads when the runtime has them. */
+        THREAD_PER_TASK
+    }
+
+    /**
+     * Creates the scheduler for mode. ioThreads fixes the I/O concurrency, or 0 for the mode's default.
+     */
+    static TaskScheduler create(Mode mode, int ioThreads) {
+        if (mode == Mode.THREAD_PER_TASK) {
+            return new ThreadPerTaskScheduler(ioThreads > 0 ? ioThreads : ThreadPerTaskScheduler.DEFAULT_IO_CONCURRENCY);
+        }
+        return ioThreads > 0 ? new AdaptiveScheduler(ioThreads) : new AdaptiveScheduler();
+    }
+
+    /**
+     * Returns a scheduler with an I/O stage of its own, sized like this one's, for the reads of another device.
+     * It shares this scheduler's parse stage, and in adaptive mode is resized by this scheduler's controller, so
+     * no CPU pool or controller thread is created per device. Shutting it down stops only its own I/O stage.
+     */
+    TaskScheduler newIoStage();
+
+    /**
+     * Executes a blocking file read task. Blocks the caller while the I/O stage is full.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if interrupted while waiting or shut down
+     */
+    void executeIo(Runnable task);
+
+    /**
+     * Executes a CPU bound task, such as parsing metadata already read into memory. Blocks the caller while the
+     * parse stage is full.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if interrupted while waiting or shut down
+     */
+    void executeCpu(Runnable task);
+
+    int getIoConcurrency();
+
+    int getCpuConcurrency();
+
+    /**
+     * Returns the count of file reads accepted but still waiting for a thread.
+     */
+    int getIoQueueDepth();
+
+    /**
+     * Returns the count of parse tasks accepted but still waiting for a thread.
+     */
+    int getCpuQueueDepth();
+
+    int getActiveIoThreads();
+
+    int getActiveCpuThreads();
+
+    void shutdownNow();
+}
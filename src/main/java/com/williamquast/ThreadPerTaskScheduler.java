@@ -0,0 +1,155 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Runs every file read on its own thread, limited only by a concurrency semaphore, so thousands of reads can be
+ * outstanding against a high latency network share. Virtual threads are used when the runtime provides them
+ * (Java 21+), otherwise the threads come from a cached pool of platform threads.
+ * Metadata parsing stays on a CPU pool sized to the processor count.
+ *
+ * Permits are taken in the submitting thread, so a fast directory walk is held back instead of parking an
+ * unbounded number of threads.
+ */
+public class ThreadPerTaskScheduler implements TaskScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(ThreadPerTaskScheduler.class);
+
+    static final int DEFAULT_IO_CONCURRENCY = 256;
+
+    private final int ioConcurrency;
+    private final int cpuConcurrency;
+    private final Semaphore ioPermits;
+    private final Semaphore cpuBacklog = new Semaphore(STAGE_CAPACITY);
+    private final ExecutorService taskExecutor;
+    private final ThreadPoolExecutor cpuExecutor;
+    private final boolean ownsExecutors; // false for an I/O stage sharing another scheduler's threads
+
+    public ThreadPerTaskScheduler(int ioConcurrency) {
+        this.ioConcurrency = ioConcurrency;
+        this.cpuConcurrency = Runtime.getRuntime().availableProcessors();
+        this.ioPermits = new Semaphore(ioConcurrency);
+
+        ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+        if (virtualExecutor != null) {
+            taskExecutor = virtualExecutor;
+            log.info("Using virtual threads. ioConcurrency=" + ioConcurrency);
+        } else {
+            taskExecutor = Executors.newCachedThreadPool(AdaptiveScheduler.daemonThreadFactory("photo-task-"));
+            log.info("Virtual threads not available in this runtime, using platform threads. ioConcurrency=" + ioConcurrency);
+        }
+        cpuExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(cpuConcurrency, AdaptiveScheduler.daemonThreadFactory("photo-cpu-"));
+        ownsExecutors = true;
+    }
+
+    /**
+     * Creates an I/O stage for another device, with permits of its own but the threads of owner.
+     */
+    private ThreadPerTaskScheduler(ThreadPerTaskScheduler owner) {
+        this.ioConcurrency = owner.ioConcurrency;
+        this.cpuConcurrency = owner.cpuConcurrency;
+        this.ioPermits = new Semaphore(ioConcurrency);
+        this.taskExecutor = owner.taskExecutor;
+        this.cpuExecutor = owner.cpuExecutor;
+        this.ownsExecutors = false;
+    }
+
+    @Override
+    public TaskScheduler newIoStage() {
+        return new ThreadPerTaskScheduler(this);
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor() if the runtime has it. Looked up reflectively since
+     * the application is still built for Java 14.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null; // older runtime, or virtual threads still a preview feature
+        }
+    }
+
+    @Override
+    public void executeIo(Runnable task) {
+        executeBounded(taskExecutor, ioPermits, task);
+    }
+
+    @Override
+    public void executeCpu(Runnable task) {
+        executeBounded(cpuExecutor, cpuBacklog, task);
+    }
+
+    private static void executeBounded(ExecutorService executor, Semaphore permits, Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted waiting for stage capacity.", ex);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public int getIoConcurrency() {
+        return ioConcurrency;
+    }
+
+    @Override
+    public int getCpuConcurrency() {
+        return cpuConcurrency;
+    }
+
+    /**
+     * Always 0, every file read gets a thread of its own as soon as it has a permit.
+     */
+    @Override
+    public int getIoQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public int getCpuQueueDepth() {
+        return cpuExecutor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveIoThreads() {
+        return ioConcurrency - ioPermits.availablePermits();
+    }
+
+    @Override
+    public int getActiveCpuThreads() {
+        return cpuExecutor.getActiveCount();
+    }
+
+    /**
+     * Stops the shared threads. An I/O stage has none of its own, its reads stop with the scheduler that made it.
+     */
+    @Override
+    public void shutdownNow() {
+        if (ownsExecutors) {
+            taskExecutor.shutdownNow();
+            cpuExecutor.shutdownNow();
+        }
+    }
+}
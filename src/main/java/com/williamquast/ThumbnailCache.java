@@ -0,0 +1,191 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Directory of thumbnail JPEGs that survives between exports, so a re-export reads each thumbnail back instead
+ * of decoding the photo again. An entry is named by a hash of the photo path, size, modification time and
+ * thumbnail size, so an edited photo gets a new entry and the old one ages out.
+ *
+ * The cache is kept under maxBytes by evicting the least recently used entries. The order is held in memory and
+ * persisted as the modification time of each file, which a hit updates, so it carries over to the next run.
+ * All methods are thread safe, file reads and writes happen outside the lock.
+ */
+public class ThumbnailCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final double EVICT_TO = 0.9; // of maxBytes, so eviction does not run on every put
+    private static final String SUFFIX = ".jpg";
+
+    private static ThumbnailCache defaultCache;
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // bytes by key, LRU first
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    private ThumbnailCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache in the user cache directory, opening it on first use.
+     */
+    public static synchronized ThumbnailCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = open(new File(System.getProperty("user.home"), ".photo2kml" + File.separator + "thumbnails"), DEFAULT_MAX_BYTES);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Opens the cache in dir, listing the entries already there from least to most recently used.
+     */
+    public static ThumbnailCache open(File dir, long maxBytes) {
+        ThumbnailCache cache = new ThumbnailCache(dir, maxBytes);
+        File[] stale = dir.listFiles((d, name) -> name.endsWith(".tmp")); // left by a run that was killed mid write
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            long[] lastUsed = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastUsed[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+            for (int i : order) {
+                String name = files[i].getName();
+                long bytes = files[i].length();
+                cache.entries.put(name.substring(0, name.length() - SUFFIX.length()), bytes);
+                cache.totalBytes += bytes;
+            }
+        }
+        synchronized (cache) {
+            cache.evict();
+        }
+        log.info("Opened thumbnail cache. dir=" + dir.getPath() + " entries=" + cache.entries.size() + " bytes=" + cache.totalBytes);
+        return cache;
+    }
+
+    /**
+     * Returns the key of the thumbnail of maxSize for this version of photo.
+     */
+    public static String key(File photo, long size, long lastModified, int maxSize) {
+        String identity = photo.getAbsolutePath() + '\n' + size + '\n' + lastModified + '\n' + maxSize;
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Returns the cached thumbnail for key and marks it most recently used, or null if there is none.
+     */
+    public byte[] get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses++;
+                return null;
+            }
+        }
+        File file = fileOf(key);
+        try {
+            byte[] jpeg = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hits++;
+            }
+            return jpeg;
+        } catch (IOException ex) {
+            log.debug("Cached thumbnail is gone. key=" + key + " reason=" + ex.getMessage());
+            synchronized (this) {
+                Long bytes = entries.remove(key);
+                if (bytes != null) totalBytes -= bytes;
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores the thumbnail for key, evicting the least recently used entries if the cache is over its size.
+     * A failure to write is logged and otherwise ignored, the thumbnail is just not cached.
+     */
+    public void put(String key, byte[] jpeg) {
+        File file = fileOf(key);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed creating directory. (" + dir + ")");
+            }
+            File temp = File.createTempFile(key + "-", ".tmp", dir);
+            Files.write(temp.toPath(), jpeg);
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            log.warn("Failed caching thumbnail. file=" + file.getPath() + " reason=" + ex.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Long previous = entries.put(key, (long) jpeg.length);
+            totalBytes += jpeg.length - (previous != null ? previous : 0);
+            if (totalBytes > maxBytes) {
+                evict();
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void evict() {
+        if (totalBytes <= maxBytes) return;
+        long target = (long) (maxBytes * EVICT_TO);
+        int evicted = 0;
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > target && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            totalBytes -= entry.getValue();
+            fileOf(entry.getKey()).delete();
+            evicted++;
+        }
+        log.debug("Evicted thumbnails. count=" + evicted + " bytes=" + totalBytes);
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+}
@@ -0,0 +1,114 @@
+package com.williamquast;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+/**
+ * Creates small JPEG thumbnails of photos for embedding in exports.
+ * A JPEG with a thumbnail in its Exif block, which most cameras and phones write, uses that one as it is, found by
+ * reading just the file header. Other photos are decoded with source subsampling, so a large photo is never fully
+ * decoded just to be shrunk, and the result is kept in a ThumbnailCache for the next export.
+ */
+public class Thumbnails {
+
+    public static final int DEFAULT_MAX_SIZE = 320; // longest edge in pixels
+    private static final float JPEG_QUALITY = 0.8f;
+
+    private Thumbnails() {
+    }
+
+    /**
+     * Returns the thumbnail of photo, from its Exif block, from cache or decoded and then added to cache.
+     * Returns null if there is no Exif thumbnail and no ImageIO reader can decode the file.
+     */
+    public static byte[] create(File photo, int maxSize, ThumbnailCache cache) throws IOException {
+        byte[] jpeg = PhotoMetadataReader.readExifThumbnail(photo);
+        if (jpeg != null) return jpeg;
+        if (cache == null) return decode(photo, maxSize);
+
+        BasicFileAttributes attributes = Files.readAttributes(photo.toPath(), BasicFileAttributes.class);
+        String key = ThumbnailCache.key(photo, attributes.size(), attributes.lastModifiedTime().toMillis(), maxSize);
+        jpeg = cache.get(key);
+        if (jpeg == null) {
+            jpeg = decode(photo, maxSize);
+            if (jpeg != null) {
+                cache.put(key, jpeg);
+            }
+        }
+        return jpeg;
+    }
+
+    /**
+     * Returns the thumbnail of photo from its Exif block, or decoded if it has none, without a cache.
+     */
+    public static byte[] create(File photo, int maxSize) throws IOException {
+        return create(photo, maxSize, null);
+    }
+
+    /**
+     * Returns a JPEG whose longest edge is at most maxSize pixels, or null if no ImageIO reader can decode the file.
+     */
+    static byte[] decode(File photo, int maxSize) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(photo)) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longestEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longestEdge / (maxSize * 2)); // keep 2x the target for a smooth scale
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = Math.min(1.0, maxSize / (double) Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return encodeJpeg(thumbnail);
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+}
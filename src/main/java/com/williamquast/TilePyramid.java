@@ -0,0 +1,323 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes placemarks as a level of detail pyramid of KML files, so Google Earth only loads what is on screen.
+ *
+ * The world is split into a quadtree of longitude/latitude tiles. A tile holding more than maxPlacemarks photos
+ * shows them as a few cluster placemarks named with their photo count, and links to its four children with
+ * NetworkLinks that load once the child Region is large enough on screen. The clusters hide at the same zoom, so
+ * the view goes from clusters to finer clusters to the photos themselves. Tiles with few enough photos, or at
+ * maxDepth, hold the photo placemarks.
+ *
+ * The output file is the root tile, the other tiles are written next to it into a directory named after it, like
+ * photos.kml and photos_tiles/3_5_2.kml. Tiles are written in parallel, one task per tile.
+ */
+public class TilePyramid {
+
+    private static final Logger log = LoggerFactory.getLogger(TilePyramid.class);
+
+    public static final int DEFAULT_MAX_PLACEMARKS = 500;
+    public static final int DEFAULT_MAX_DEPTH = 22; // tiles of about 10m
+    private static final int CLUSTER_GRID = 4; // clusters per tile side
+    private static final int CHILD_MIN_LOD_PIXELS = 256; // children load when half the parent's MAX_LOD_PIXELS
+    private static final int CLUSTER_MAX_LOD_PIXELS = 512;
+    private static final String TILE_DIRECTORY_SUFFIX = "_tiles";
+
+    private int maxPlacemarks = DEFAULT_MAX_PLACEMARKS;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Sets the most photo placemarks a tile holds before it is split into children.
+     */
+    public TilePyramid maxPlacemarks(final int maxPlacemarks) {
+        if (maxPlacemarks < CLUSTER_GRID * CLUSTER_GRID) {
+            throw new IllegalArgumentException("A tile must hold at least " + CLUSTER_GRID * CLUSTER_GRID + " placemarks. (" + maxPlacemarks + ")");
+        }
+        this.maxPlacemarks = maxPlacemarks;
+        return this;
+    }
+
+    /**
+     * Sets the deepest tile level, tiles at this level hold all of their photos however many there are.
+     */
+    public TilePyramid maxDepth(final int maxDepth) {
+        if (maxDepth < 0 || maxDepth > 30) throw new IllegalArgumentException("Max depth must be 0 to 30. (" + maxDepth + ")");
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public TilePyramid threadCount(final int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("Thread count must be at least 1.");
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    /**
+     * Returns the directory the tiles of outputFile are written to.
+     */
+    public static File tileDirectory(File outputFile) {
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(outputFile.getAbsoluteFile().getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + TILE_DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Writes the photos at indexes of store to outputFile and its tile directory. Photos within a tile keep the
+     * order of indexes. progress is called with the number of photo placemarks written so far, from the tile
+     * threads. Throws CancellationException once cancelled returns true, the partial output is left for the caller
+     * to delete.
+     */
+    public Result write(WaypointStore store, int[] indexes, File outputFile, BooleanSupplier cancelled,
+                        IntConsumer progress) throws IOException {
+        long start = System.nanoTime();
+        File tileDirectory = tileDirectory(outputFile);
+        if (!tileDirectory.isDirectory() && !tileDirectory.mkdirs()) {
+            throw new IOException("Could not create tile directory. (" + tileDirectory.getPath() + ")");
+        }
+
+        Result result = new Result();
+        result.tileDirectory = tileDirectory;
+        Context context = new Context(store, outputFile, tileDirectory, cancelled, progress, result);
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            pool.invoke(new TileTask(context, 0, 0, 0, indexes));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        log.info("Wrote tile pyramid. placemarks=" + indexes.length + " tiles=" + result.tiles.get()
+                + " depth=" + result.depth.get() + " ms=" + (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Deletes the tile directory of outputFile, after a failed or cancelled write.
+     */
+    public static void deleteTiles(File outputFile) {
+        File tileDirectory = tileDirectory(outputFile);
+        File[] tiles = tileDirectory.listFiles();
+        if (tiles != null) {
+            for (File tile : tiles) {
+                tile.delete();
+            }
+        }
+        tileDirectory.delete();
+    }
+
+    private static String tileName(int depth, int column, int row) {
+        return depth + "_" + column + "_" + row + ".kml";
+    }
+
+    private static double west(int depth, int column) {
+        return -180 + column * 360.0 / (1L << depth);
+    }
+
+    private static double south(int depth, int row) {
+        return -90 + row * 180.0 / (1L << depth);
+    }
+
+    /**
+     * State shared by the tile tasks of one write.
+     */
+    private class Context {
+        final WaypointStore store;
+        final File outputFile;
+        final File tileDirectory;
+        final BooleanSupplier cancelled;
+        final IntConsumer progress;
+        final Result result;
+        final AtomicInteger written = new AtomicInteger();
+
+        Context(WaypointStore store, File outputFile, File tileDirectory, BooleanSupplier cancelled,
+                IntConsumer progress, Result result) {
+            this.store = store;
+            this.outputFile = outputFile;
+            this.tileDirectory = tileDirectory;
+            this.cancelled = cancelled;
+            this.progress = progress;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Writes one tile and forks the tasks for its children.
+     */
+    private class TileTask extends RecursiveAction {
+        private final Context context;
+        private final int depth;
+        private final int column; // from west
+        private final int row; // from south
+        private final int[] indexes;
+
+        TileTask(Context context, int depth, int column, int row, int[] indexes) {
+            this.context = context;
+            this.depth = depth;
+            this.column = column;
+            this.row = row;
+            this.indexes = indexes;
+        }
+
+        @Override
+        protected void compute() {
+            if (context.cancelled.getAsBoolean()) throw new CancellationException("Tile pyramid cancelled.");
+            context.result.tiles.incrementAndGet();
+            context.result.depth.accumulateAndGet(depth, Math::max);
+
+            double west = west(depth, column);
+            double south = south(depth, row);
+            double east = west(depth, column + 1);
+            double north = south(depth, row + 1);
+            File file = depth == 0 ? context.outputFile : new File(context.tileDirectory, tileName(depth, column, row));
+            String tilePrefix = depth == 0 ? context.tileDirectory.getName() + "/" : ""; // hrefs are relative to the file
+
+            List<TileTask> children = new ArrayList<>(4);
+            try (KmlWriter output = new KmlWriter(file)) {
+                if (indexes.length <= maxPlacemarks || depth >= maxDepth || isSingleLocation()) {
+                    writePhotos(output, west, south, east, north);
+                } else {
+                    writeClusters(output, west, south, east, north);
+                    int[][] quadrants = split((west + east) / 2, (south + north) / 2);
+                    for (int quadrant = 0; quadrant < 4; quadrant++) {
+                        if (quadrants[quadrant].length == 0) continue;
+                        int childColumn = column * 2 + (quadrant & 1);
+                        int childRow = row * 2 + (quadrant >> 1);
+                        output.writeNetworkLink(quadrants[quadrant].length + " photos",
+                                tilePrefix + tileName(depth + 1, childColumn, childRow),
+                                west(depth + 1, childColumn), south(depth + 1, childRow),
+                                west(depth + 1, childColumn + 1), south(depth + 1, childRow + 1),
+                                CHILD_MIN_LOD_PIXELS, -1);
+                        children.add(new TileTask(context, depth + 1, childColumn, childRow, quadrants[quadrant]));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            invokeAll(children);
+        }
+
+        private void writePhotos(KmlWriter output, double west, double south, double east, double north) throws IOException {
+            output.beginFolder(indexes.length + " photos", west, south, east, north, depth == 0 ? 0 : CHILD_MIN_LOD_PIXELS, -1);
+            WaypointStore store = context.store;
+            for (int index : indexes) {
+                ExtractItem item = store.get(index);
+                output.writePlacemark(item.waypoint, item.file);
+            }
+            output.endFolder();
+            context.progress.accept(context.written.addAndGet(indexes.length));
+        }
+
+        /**
+         * Writes a CLUSTER_GRID x CLUSTER_GRID grid of cluster placemarks at the mean position of their photos.
+         * A cell with a single photo shows the photo itself.
+         */
+        private void writeClusters(KmlWriter output, double west, double south, double east, double north) throws IOException {
+            WaypointStore store = context.store;
+            int cells = CLUSTER_GRID * CLUSTER_GRID;
+            int[] counts = new int[cells];
+            int[] firstIndexes = new int[cells];
+            double[] sumX = new double[cells];
+            double[] sumY = new double[cells];
+            for (int index : indexes) {
+                double x = store.getX(index);
+                double y = store.getY(index);
+                int cell = cell(x, west, east) + cell(y, south, north) * CLUSTER_GRID;
+                if (counts[cell]++ == 0) {
+                    firstIndexes[cell] = index;
+                }
+                sumX[cell] += x;
+                sumY[cell] += y;
+            }
+
+            output.beginFolder(indexes.length + " photos", west, south, east, north,
+                    depth == 0 ? 0 : CHILD_MIN_LOD_PIXELS, CLUSTER_MAX_LOD_PIXELS);
+            for (int cell = 0; cell < cells; cell++) {
+                if (counts[cell] == 1) {
+                    ExtractItem item = store.get(firstIndexes[cell]);
+                    output.writePlacemark(item.waypoint, item.file);
+                } else if (counts[cell] > 1) {
+                    output.writePlacemark(new Waypoint(counts[cell] + " photos", null,
+                            sumX[cell] / counts[cell], sumY[cell] / counts[cell]));
+                }
+            }
+            output.endFolder();
+        }
+
+        /**
+         * Returns true if all photos are at the same spot, like a burst, which no amount of splitting separates.
+         */
+        private boolean isSingleLocation() {
+            WaypointStore store = context.store;
+            double x = store.getX(indexes[0]);
+            double y = store.getY(indexes[0]);
+            for (int index : indexes) {
+                if (store.getX(index) != x || store.getY(index) != y) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Splits indexes into the south west, south east, north west and north east quadrants, keeping their order.
+         */
+        private int[][] split(double middleX, double middleY) {
+            WaypointStore store = context.store;
+            byte[] quadrantOf = new byte[indexes.length];
+            int[] counts = new int[4];
+            for (int i = 0; i < indexes.length; i++) {
+                int quadrant = (store.getX(indexes[i]) >= middleX ? 1 : 0) | (store.getY(indexes[i]) >= middleY ? 2 : 0);
+                quadrantOf[i] = (byte) quadrant;
+                counts[quadrant]++;
+            }
+            int[][] quadrants = new int[4][];
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                quadrants[quadrant] = new int[counts[quadrant]];
+                counts[quadrant] = 0;
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                int quadrant = quadrantOf[i];
+                quadrants[quadrant][counts[quadrant]++] = indexes[i];
+            }
+            return quadrants;
+        }
+
+        private int cell(double value, double from, double to) {
+            int cell = (int) ((value - from) / (to - from) * CLUSTER_GRID);
+            return Math.max(0, Math.min(CLUSTER_GRID - 1, cell));
+        }
+    }
+
+    public static class Result {
+        final AtomicInteger tiles = new AtomicInteger();
+        final AtomicInteger depth = new AtomicInteger();
+        File tileDirectory;
+
+        public int getTiles() {
+            return tiles.get();
+        }
+
+        public int getDepth() {
+            return depth.get();
+        }
+
+        public File getTileDirectory() {
+            return tileDirectory;
+        }
+    }
+}
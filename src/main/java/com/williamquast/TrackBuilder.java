@@ -0,0 +1,295 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Turns geotagged photos into GPS tracks. Photos with a timestamp are ordered by time and split into segments
+ * wherever two neighbours are further apart than maxTimeGap or maxDistanceGap, so separate trips or days do not get
+ * joined by a straight line. Each segment is simplified with Douglas-Peucker as soon as it ends, dropping every
+ * point that is within tolerance meters of the simplified line, and handed to a SegmentListener.
+ *
+ * The sorted photos are read in a single pass and only the open segment is buffered, in primitive arrays that are
+ * reused for the next one. A drone flight of 100k frames typically comes down to a few hundred points.
+ */
+public class TrackBuilder {
+
+    private static final Logger log = LoggerFactory.getLogger(TrackBuilder.class);
+
+    public static final double DEFAULT_TOLERANCE = 5; // meters, about phone GPS accuracy
+    public static final long DEFAULT_MAX_TIME_GAP = 10 * 60 * 1000L; // ms
+    public static final double DEFAULT_MAX_DISTANCE_GAP = 2000; // meters
+
+    private static final double EARTH_RADIUS = 6_371_008.8; // mean radius, meters
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final int CANCEL_CHECK_INTERVAL = 4096; // points between cancel checks
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private double tolerance = DEFAULT_TOLERANCE;
+    private long maxTimeGap = DEFAULT_MAX_TIME_GAP;
+    private double maxDistanceGap = DEFAULT_MAX_DISTANCE_GAP;
+
+    // the open segment, reused between segments
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private double[] projectedX = new double[INITIAL_CAPACITY];
+    private double[] projectedY = new double[INITIAL_CAPACITY];
+    private boolean[] keep = new boolean[INITIAL_CAPACITY];
+    private int[] stack = new int[64];
+    private int count;
+
+    /**
+     * Sets the maximum distance in meters a dropped point may be from the simplified track. 0 keeps every point.
+     */
+    public TrackBuilder tolerance(final double tolerance) {
+        if (!(tolerance >= 0)) throw new IllegalArgumentException("Tolerance must be 0 or more meters. (" + tolerance + ")");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Starts a new segment when two photos are more than maxTimeGap ms apart.
+     */
+    public TrackBuilder maxTimeGap(final long maxTimeGap) {
+        if (maxTimeGap <= 0) throw new IllegalArgumentException("Time gap must be positive. (" + maxTimeGap + ")");
+        this.maxTimeGap = maxTimeGap;
+        return this;
+    }
+
+    /**
+     * Starts a new segment when two photos are more than maxDistanceGap meters apart.
+     */
+    public TrackBuilder maxDistanceGap(final double maxDistanceGap) {
+        if (!(maxDistanceGap > 0)) throw new IllegalArgumentException("Distance gap must be positive. (" + maxDistanceGap + ")");
+        this.maxDistanceGap = maxDistanceGap;
+        return this;
+    }
+
+    /**
+     * Builds the tracks of all successful items in store that have a timestamp, calling listener once per segment
+     * of at least two points, in time order. Checks cancelled while sorting and every few thousand points and
+     * throws CancellationException when it returns true. Not thread safe, use one TrackBuilder per thread.
+     */
+    public Result build(WaypointStore store, BooleanSupplier cancelled, SegmentListener listener) throws IOException {
+        return build(store, store.successIndexes(), cancelled, listener);
+    }
+
+    /**
+     * Builds the tracks of the successful items at indexes of store, like build over the whole store.
+     */
+    public Result build(WaypointStore store, int[] indexes, BooleanSupplier cancelled, SegmentListener listener) throws IOException {
+        long start = System.nanoTime();
+        int[] order = indexes.clone();
+        int timed = 0;
+        for (int index : order) {
+            if (store.hasTimestamp(index)) {
+                order[timed++] = index;
+            }
+        }
+        order = WaypointStore.parallelSort(Arrays.copyOf(order, timed), store.timestampSortComparator(), cancelled);
+
+        Result result = new Result();
+        result.points = timed;
+        result.untimedPoints = indexes.length - timed;
+        count = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0 && cancelled.getAsBoolean()) {
+                throw new CancellationException("Track building cancelled.");
+            }
+            int index = order[i];
+            double pointX = store.getX(index);
+            double pointY = store.getY(index);
+            long timestamp = store.getTimestamp(index);
+            if (count > 0 && (timestamp - timestamps[count - 1] > maxTimeGap
+                    || SpatialIndex.distance(x[count - 1], y[count - 1], pointX, pointY) > maxDistanceGap)) {
+                endSegment(result, listener);
+            }
+            append(pointX, pointY, timestamp);
+        }
+        endSegment(result, listener);
+
+        log.info("Built tracks. segments=" + result.segments + " points=" + result.points + " keptPoints=" + result.keptPoints
+                + " untimedPoints=" + result.untimedPoints + " ms=" + (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private void append(double pointX, double pointY, long timestamp) {
+        if (count == x.length) {
+            int capacity = count * 2;
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            projectedX = new double[capacity];
+            projectedY = new double[capacity];
+            keep = new boolean[capacity];
+        }
+        x[count] = pointX;
+        y[count] = pointY;
+        timestamps[count] = timestamp;
+        count++;
+    }
+
+    private void endSegment(Result result, SegmentListener listener) throws IOException {
+        int originalCount = count;
+        count = 0;
+        if (originalCount < 2) {
+            result.droppedPoints += originalCount; // a line needs two points
+            return;
+        }
+
+        simplify(originalCount);
+        int kept = 0;
+        for (int i = 0; i < originalCount; i++) {
+            if (keep[i]) {
+                x[kept] = x[i];
+                y[kept] = y[i];
+                timestamps[kept] = timestamps[i];
+                kept++;
+            }
+        }
+
+        result.segments++;
+        result.keptPoints += kept;
+        listener.onSegment(new Segment(result.segments, originalCount, kept, x, y, timestamps));
+    }
+
+    /**
+     * Marks the points of the open segment to keep with an iterative Douglas-Peucker. Points are projected to meters
+     * on a plane touching the first point, which is accurate to well under a percent over a few hundred kilometers.
+     */
+    private void simplify(int size) {
+        double originY = y[0];
+        double originX = x[0];
+        double metersPerDegreeX = METERS_PER_DEGREE * Math.cos(Math.toRadians(originY));
+        for (int i = 0; i < size; i++) {
+            projectedX[i] = longitudeDelta(originX, x[i]) * metersPerDegreeX;
+            projectedY[i] = (y[i] - originY) * METERS_PER_DEGREE;
+        }
+        Arrays.fill(keep, 0, size, tolerance == 0);
+        keep[0] = true;
+        keep[size - 1] = true;
+        if (tolerance == 0) return;
+
+        double toleranceSquared = tolerance * tolerance;
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(i, first, last);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > toleranceSquared) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+    }
+
+    /**
+     * Squared distance in meters from projected point i to the line segment first..last. A segment rather than an
+     * infinite line, so a walk that doubles back on itself keeps its turning point.
+     */
+    private double segmentDistanceSquared(int i, int first, int last) {
+        double ax = projectedX[first];
+        double ay = projectedY[first];
+        double dx = projectedX[last] - ax;
+        double dy = projectedY[last] - ay;
+        double px = projectedX[i] - ax;
+        double py = projectedY[i] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared > 0) {
+            double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+            px -= t * dx;
+            py -= t * dy;
+        }
+        return px * px + py * py;
+    }
+
+    /**
+     * to - from in degrees of longitude, the short way around across the antimeridian.
+     */
+    private static double longitudeDelta(double from, double to) {
+        double delta = to - from;
+        if (delta > 180) delta -= 360;
+        if (delta < -180) delta += 360;
+        return delta;
+    }
+
+    public interface SegmentListener {
+        void onSegment(Segment segment) throws IOException;
+    }
+
+    /**
+     * One simplified segment. The arrays are reused for the next segment, only the first count entries are valid
+     * and only until onSegment returns.
+     */
+    public static class Segment {
+        final int number; // 1 based, in time order
+        final int originalCount;
+        final int count;
+        final double[] x;
+        final double[] y;
+        final long[] timestamps;
+
+        Segment(int number, int originalCount, int count, double[] x, double[] y, long[] timestamps) {
+            this.number = number;
+            this.originalCount = originalCount;
+            this.count = count;
+            this.x = x;
+            this.y = y;
+            this.timestamps = timestamps;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getOriginalCount() {
+            return originalCount;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    public static class Result {
+        int segments;
+        int points; // successful items with a timestamp
+        int keptPoints;
+        int droppedPoints; // alone in their segment
+        int untimedPoints; // successful items without a timestamp, never part of a track
+
+        public int getSegments() {
+            return segments;
+        }
+
+        public int getPoints() {
+            return points;
+        }
+
+        public int getKeptPoints() {
+            return keptPoints;
+        }
+    }
+}
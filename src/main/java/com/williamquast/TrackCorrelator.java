@@ -0,0 +1,297 @@
+package com.williamquast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Geotags photos taken without GPS from track logs recorded at the same time, by a phone or GPS logger. The points
+ * of every loaded GPX or CSV file are kept in primitive arrays sorted by time. A photo is placed by a binary search
+ * for its capture time, corrected by clockOffset, and linear interpolation between the points before and after it.
+ * Points further apart than maxGap are not interpolated between, the photo then gets the nearer point if that is
+ * within maxGap, otherwise it keeps its failure.
+ *
+ * Load the logs first, correlate can then be called from any number of threads.
+ */
+public class TrackCorrelator {
+
+    private static final Logger log = LoggerFactory.getLogger(TrackCorrelator.class);
+
+    public static final long DEFAULT_MAX_GAP = 10 * 60 * 1000L; // ms, as TrackBuilder.DEFAULT_MAX_TIME_GAP
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long MAX_EPOCH_SECONDS = 100_000_000_000L; // larger numeric times are milliseconds
+
+    private long clockOffset; // ms the camera clock is ahead of UTC
+    private long maxGap = DEFAULT_MAX_GAP;
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * Sets the ms the camera clock is ahead of UTC. Cameras store local time without a zone, so a camera set to
+     * UTC+2 that is also 30 seconds fast has a clockOffset of 2 hours 30 seconds.
+     */
+    public TrackCorrelator clockOffset(final long clockOffset) {
+        this.clockOffset = clockOffset;
+        return this;
+    }
+
+    /**
+     * Sets the longest time in ms between two track points that a photo is interpolated across, and the furthest a
+     * photo may be in time from the point it is placed at otherwise.
+     */
+    public TrackCorrelator maxGap(final long maxGap) {
+        if (maxGap < 0) throw new IllegalArgumentException("Max gap must be 0 or more. (" + maxGap + ")");
+        this.maxGap = maxGap;
+        return this;
+    }
+
+    public int getPointCount() {
+        return count;
+    }
+
+    /**
+     * Adds the timed points of a track log, GPX for a .gpx file and CSV otherwise. Returns the number of points added.
+     */
+    public int load(File file) throws IOException {
+        long start = System.nanoTime();
+        int before = count;
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".gpx")) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                loadGpx(in);
+            } catch (XMLStreamException ex) {
+                throw new IOException("Failed reading GPX. (" + ex.getMessage() + ")", ex);
+            }
+        } else {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                loadCsv(reader);
+            }
+        }
+        sort();
+        log.info("Loaded track log. file=" + file.getPath() + " points=" + (count - before) + " total=" + count
+                + " ms=" + (System.nanoTime() - start) / 1_000_000);
+        return count - before;
+    }
+
+    /**
+     * Returns a geotagged copy of a failed item that has a capture time within the tracks, or item itself.
+     */
+    public ExtractItem correlate(ExtractItem item) {
+        if (item.success || item.captureTime == null || count == 0) return item;
+        long time = item.captureTime.getTime() - clockOffset;
+        int i = Arrays.binarySearch(times, 0, count, time);
+        double px;
+        double py;
+        if (i >= 0) {
+            px = x[i];
+            py = y[i];
+        } else {
+            int after = -i - 1;
+            int before = after - 1;
+            if (before >= 0 && after < count && times[after] - times[before] <= maxGap) {
+                double fraction = (time - times[before]) / (double) (times[after] - times[before]);
+                double dx = x[after] - x[before];
+                if (dx > 180) dx -= 360; // the short way across the antimeridian
+                else if (dx < -180) dx += 360;
+                px = x[before] + dx * fraction;
+                if (px > 180) px -= 360;
+                else if (px < -180) px += 360;
+                py = y[before] + (y[after] - y[before]) * fraction;
+            } else {
+                int nearest;
+                if (before < 0) nearest = after;
+                else if (after >= count) nearest = before;
+                else nearest = time - times[before] <= times[after] - time ? before : after;
+                if (Math.abs(time - times[nearest]) > maxGap) return item;
+                px = x[nearest];
+                py = y[nearest];
+            }
+        }
+        Date timestamp = new Date(time);
+        ExtractItem located = new ExtractItem(item.filename, timestamp, new Waypoint(item.filename, timestamp, px, py));
+        located.file = item.file;
+        return located;
+    }
+
+    private void loadGpx(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            double lat = Double.NaN;
+            double lon = Double.NaN;
+            boolean inPoint = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")) {
+                        inPoint = true;
+                        lat = parseDouble(reader.getAttributeValue(null, "lat"));
+                        lon = parseDouble(reader.getAttributeValue(null, "lon"));
+                    } else if (inPoint && name.equals("time")) {
+                        long time = parseTime(reader.getElementText().trim());
+                        if (time != Long.MIN_VALUE) add(time, lon, lat);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")) inPoint = false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads comma, semicolon or tab separated time, latitude and longitude. A header row names the columns, like
+     * "time,lat,lon" or "timestamp;latitude;longitude", without one they are time, latitude, longitude.
+     */
+    private void loadCsv(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) return;
+        if (line.startsWith("\uFEFF")) line = line.substring(1);
+        char separator = line.indexOf('\t') >= 0 ? '\t' : line.indexOf(';') >= 0 && line.indexOf(',') < 0 ? ';' : ',';
+        int timeColumn = 0;
+        int latColumn = 1;
+        int lonColumn = 2;
+
+        String[] header = split(line, separator);
+        if (header.length >= 3 && Double.isNaN(parseDouble(header[latColumn]))) {
+            timeColumn = latColumn = lonColumn = -1;
+            for (int i = 0; i < header.length; i++) {
+                String name = header[i].toLowerCase(Locale.ROOT);
+                if (timeColumn < 0 && (name.contains("time") || name.contains("date"))) timeColumn = i;
+                else if (latColumn < 0 && name.startsWith("lat")) latColumn = i;
+                else if (lonColumn < 0 && (name.startsWith("lon") || name.equals("lng"))) lonColumn = i;
+            }
+            if (timeColumn < 0 || latColumn < 0 || lonColumn < 0) {
+                throw new IOException("CSV header needs time, latitude and longitude columns. (" + line + ")");
+            }
+            line = reader.readLine();
+        }
+
+        int columns = Math.max(timeColumn, Math.max(latColumn, lonColumn)) + 1;
+        int skipped = 0;
+        for (; line != null; line = reader.readLine()) {
+            String[] fields = split(line, separator);
+            if (fields.length < columns) {
+                if (!line.isBlank()) skipped++;
+                continue;
+            }
+            long time = parseTime(fields[timeColumn]);
+            double lat = parseDouble(fields[latColumn]);
+            double lon = parseDouble(fields[lonColumn]);
+            if (time == Long.MIN_VALUE || !add(time, lon, lat)) skipped++;
+        }
+        if (skipped > 0) log.warn("Skipped unreadable track log lines. count=" + skipped);
+    }
+
+    private boolean add(long time, double lon, double lat) {
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) return false;
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+            x = Arrays.copyOf(x, count * 2);
+            y = Arrays.copyOf(y, count * 2);
+        }
+        times[count] = time;
+        x[count] = lon;
+        y[count] = lat;
+        count++;
+        return true;
+    }
+
+    /**
+     * Sorts the points by time. Logs are usually in order already, so that is checked first.
+     */
+    private void sort() {
+        boolean sorted = true;
+        for (int i = 1; i < count && sorted; i++) {
+            sorted = times[i - 1] <= times[i];
+        }
+        if (sorted) return;
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        WaypointStore.parallelSort(order, new WaypointStore.KeyedComparator(times, (a, b) -> 0));
+        long[] sortedTimes = new long[times.length];
+        double[] sortedX = new double[x.length];
+        double[] sortedY = new double[y.length];
+        for (int i = 0; i < count; i++) {
+            sortedTimes[i] = times[order[i]];
+            sortedX[i] = x[order[i]];
+            sortedY[i] = y[order[i]];
+        }
+        times = sortedTimes;
+        x = sortedX;
+        y = sortedY;
+    }
+
+    private static String[] split(String line, char separator) {
+        String[] fields = line.split(separator == '\t' ? "\t" : String.valueOf(separator), -1);
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i].trim();
+            if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"') {
+                field = field.substring(1, field.length() - 1);
+            }
+            fields[i] = field;
+        }
+        return fields;
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null) return Double.NaN;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parses an ISO 8601 time, UTC when it has no offset, or seconds or milliseconds since 1970. Returns
+     * Long.MIN_VALUE if it is none of those.
+     */
+    static long parseTime(String value) {
+        if (value.isEmpty()) return Long.MIN_VALUE;
+        char first = value.charAt(0);
+        if (first >= '0' && first <= '9' && value.indexOf('-') < 0 && value.indexOf(':') < 0) {
+            double number = parseDouble(value);
+            if (Double.isNaN(number)) return Long.MIN_VALUE;
+            return number < MAX_EPOCH_SECONDS ? Math.round(number * 1000) : Math.round(number);
+        }
+        String iso = value.replace(' ', 'T');
+        try {
+            return OffsetDateTime.parse(iso).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            try {
+                return LocalDateTime.parse(iso).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeParseException ex2) {
+                return Long.MIN_VALUE;
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class Waypoint {
     Date timestamp;
     double x;
     double y;
+    String description; // plain text shown above the thumbnail, or null
 
     public Waypoint(String name, Date timestamp, double x, double y) {
         this.name = name;
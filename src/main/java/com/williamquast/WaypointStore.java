@@ -0,0 +1,641 @@
+package com.williamquast;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Columnar store for extraction results. Instead of an ExtractItem, Waypoint, Date, File and name String per photo,
+ * each photo takes one slot in a set of primitive arrays: x/y as doubles, the timestamp as a long, a status code,
+ * an index into a shared table of directories and the file name as UTF-8 bytes in one shared pool.
+ * Failure messages are stored as a Status code, the full text is only kept in a side table for the rare failures
+ * that carry exception details. That is around 45 bytes per photo instead of several hundred.
+ *
+ * ExtractItem views are created on demand by get, so only what the UI shows or an export writes exists as objects.
+ *
+ * Not thread safe, a store is filled by one thread. Slots are never overwritten, so snapshot hands another thread
+ * a consistent, fixed size view without copying the columns.
+ */
+public class WaypointStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    private static final int NO_DIRECTORY = -1; // name holds the whole path, used for directory errors
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    private static final int PARALLEL_SORT_GRAIN = 64 * 1024; // ranges this small are sorted by one thread
+
+    /**
+     * Compares two slots by index, so sorting never has to create views.
+     */
+    public interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    /**
+     * Failure reasons produced by PhotoLocationWorker. Failures whose text differs from the message, because it
+     * carries exception details, keep their full text in the details side table.
+     */
+    public enum Status {
+        SUCCESS(null),
+        NOT_DIRECTORY("Source is not a directory."),
+        DIRECTORY_NOT_READABLE("Source directory is not readable. (permissions)"),
+        FILE_NOT_READABLE("Source file is not readable. (permissions)"),
+        FILE_NOT_FOUND("Source file not found."),
+        SEARCH_FAILED("Failed to search directory."),
+        ZERO_GEOLOCATION("GeoLocation data is invalid or corrupt. (lat/lng 0,0)"),
+        INVALID_GEOLOCATION("GeoLocation data is invalid or corrupt. (lat/lng out of range)"),
+        NO_GEOLOCATION("No GeoLocation data found."),
+        NO_GPS_DIRECTORY("No GpsDirectory data found."),
+        UNKNOWN_FILE_TYPE("Unknown media file type."),
+        METADATA_READ_FAILED("Failed to read photo metadata."),
+        FILE_READ_FAILED("Failed to read file."),
+        OTHER("Unknown failure while processing file.");
+
+        private static final Status[] VALUES = values();
+
+        final String message;
+
+        Status(String message) {
+            this.message = message;
+        }
+
+        static Status of(String failureReason) {
+            if (failureReason != null) {
+                for (int i = 1; i < VALUES.length; i++) {
+                    if (failureReason.startsWith(VALUES[i].message)) return VALUES[i];
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    private int size;
+    private double[] x;
+    private double[] y;
+    private long[] timestamps;
+    private byte[] statuses;
+    private int[] directoryIds;
+    private int[] nameOffsets; // name of slot i is namePool[nameOffsets[i] .. nameOffsets[i + 1])
+    private byte[] namePool;
+    private int namePoolSize;
+    private List<String> directories;
+    private Map<String, Integer> directoryIndex; // only used while adding, not shared with snapshots
+    private Map<Integer, String> details;
+    private Map<Integer, String> labels; // placemark names that differ from the file name, like de-duplicated groups
+    private int successCount;
+
+    public WaypointStore() {
+        clear();
+    }
+
+    private WaypointStore(WaypointStore source) {
+        size = source.size;
+        x = source.x;
+        y = source.y;
+        timestamps = source.timestamps;
+        statuses = source.statuses;
+        directoryIds = source.directoryIds;
+        nameOffsets = source.nameOffsets;
+        namePool = source.namePool;
+        namePoolSize = source.namePoolSize;
+        directories = new ArrayList<>(source.directories);
+        details = new HashMap<>(source.details);
+        labels = new HashMap<>(source.labels);
+        successCount = source.successCount;
+    }
+
+    /**
+     * Returns a read only store of the current contents. It shares the columns with this store, later adds go to
+     * slots the snapshot does not see, or to new arrays once the columns grow.
+     */
+    public WaypointStore snapshot() {
+        return new WaypointStore(this);
+    }
+
+    /**
+     * Removes all items. New arrays are allocated so existing snapshots are not affected.
+     */
+    public void clear() {
+        size = 0;
+        successCount = 0;
+        x = new double[INITIAL_CAPACITY];
+        y = new double[INITIAL_CAPACITY];
+        timestamps = new long[INITIAL_CAPACITY];
+        statuses = new byte[INITIAL_CAPACITY];
+        directoryIds = new int[INITIAL_CAPACITY];
+        nameOffsets = new int[INITIAL_CAPACITY + 1];
+        namePool = new byte[INITIAL_CAPACITY * 16];
+        namePoolSize = 0;
+        directories = new ArrayList<>();
+        directoryIndex = new HashMap<>();
+        details = new HashMap<>();
+        labels = new HashMap<>();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Appends item and returns its index. The item is not retained.
+     */
+    public int add(ExtractItem item) {
+        if (directoryIndex == null) throw new IllegalStateException("Snapshot is read only.");
+        ensureCapacity(size + 1);
+        int index = size;
+
+        String name = item.filename;
+        int directoryId = NO_DIRECTORY;
+        if (item.file != null && item.file.getName().equals(item.filename) && item.file.getParent() != null) {
+            directoryId = directoryIndex.computeIfAbsent(item.file.getParent(), directory -> {
+                directories.add(directory);
+                return directories.size() - 1;
+            });
+        }
+        directoryIds[index] = directoryId;
+        appendName(index, name);
+
+        timestamps[index] = item.timestamp != null ? item.timestamp.getTime() : NO_TIMESTAMP;
+        if (item.success) {
+            statuses[index] = (byte) Status.SUCCESS.ordinal();
+            x[index] = item.waypoint.x;
+            y[index] = item.waypoint.y;
+            if (item.waypoint.name != null && !item.waypoint.name.equals(name)) {
+                labels.put(index, item.waypoint.name);
+            }
+            successCount++;
+        } else {
+            Status status = Status.of(item.failureReason);
+            statuses[index] = (byte) status.ordinal();
+            if (!status.message.equals(item.failureReason)) {
+                details.put(index, item.failureReason);
+            }
+        }
+        size = index + 1;
+        return index;
+    }
+
+    public void addAll(List<ExtractItem> items) {
+        for (ExtractItem item : items) {
+            add(item);
+        }
+    }
+
+    /**
+     * Creates an ExtractItem view of slot index. Each call returns a new object.
+     */
+    public ExtractItem get(int index) {
+        checkIndex(index);
+        String name = getName(index);
+        Date timestamp = timestamps[index] != NO_TIMESTAMP ? new Date(timestamps[index]) : null;
+        ExtractItem item;
+        if (isSuccess(index)) {
+            item = new ExtractItem(name, timestamp, new Waypoint(labels.getOrDefault(index, name), timestamp, x[index], y[index]));
+        } else {
+            item = new ExtractItem(name, timestamp, getFailureReason(index));
+        }
+        item.file = getFile(index);
+        return item;
+    }
+
+    public boolean isSuccess(int index) {
+        checkIndex(index);
+        return statuses[index] == Status.SUCCESS.ordinal();
+    }
+
+    public Status getStatus(int index) {
+        checkIndex(index);
+        return Status.VALUES[statuses[index]];
+    }
+
+    public String getFailureReason(int index) {
+        String detail = details.get(index);
+        return detail != null ? detail : getStatus(index).message;
+    }
+
+    /**
+     * Longitude of a successful item.
+     */
+    public double getX(int index) {
+        checkIndex(index);
+        return x[index];
+    }
+
+    /**
+     * Latitude of a successful item.
+     */
+    public double getY(int index) {
+        checkIndex(index);
+        return y[index];
+    }
+
+    public boolean hasTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index] != NO_TIMESTAMP;
+    }
+
+    /**
+     * Timestamp in epoch millis, only meaningful if hasTimestamp.
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        int offset = nameOffsets[index];
+        return new String(namePool, offset, nameOffsets[index + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the names of two slots without creating Strings. UTF-8 byte order is code point order, which
+     * matches String.compareTo for everything outside the supplementary planes.
+     */
+    public int compareNames(int a, int b) {
+        checkIndex(a);
+        checkIndex(b);
+        return Arrays.compareUnsigned(namePool, nameOffsets[a], nameOffsets[a + 1], namePool, nameOffsets[b], nameOffsets[b + 1]);
+    }
+
+    /**
+     * Returns a comparator in the same order as compareNames that is much faster for sorting many slots. The key is
+     * the 8 name bytes after the prefix all names share, like IMG_, so only names that still tie are compared byte
+     * by byte.
+     */
+    public KeyedComparator nameSortComparator() {
+        int common = size > 0 ? nameOffsets[1] - nameOffsets[0] : 0;
+        for (int index = 1; index < size && common > 0; index++) {
+            int length = Math.min(common, nameOffsets[index + 1] - nameOffsets[index]);
+            int mismatch = Arrays.mismatch(namePool, nameOffsets[0], nameOffsets[0] + length,
+                    namePool, nameOffsets[index], nameOffsets[index] + length);
+            common = mismatch < 0 ? length : mismatch;
+        }
+
+        long[] keys = new long[size];
+        for (int index = 0; index < size; index++) {
+            long prefix = 0;
+            int offset = nameOffsets[index] + common;
+            int length = nameOffsets[index + 1] - offset;
+            for (int i = 0; i < Long.BYTES; i++) {
+                prefix = prefix << 8 | (i < length ? namePool[offset + i] & 0xFF : 0); // zero padding sorts first
+            }
+            keys[index] = prefix ^ Long.MIN_VALUE; // unsigned byte order as a signed long
+        }
+        return new KeyedComparator(keys, this::compareNames);
+    }
+
+    /**
+     * Returns a comparator in the same order as compareTimestamps that is much faster for sorting many slots.
+     */
+    public KeyedComparator timestampSortComparator() {
+        long[] keys = new long[size];
+        for (int index = 0; index < size; index++) {
+            keys[index] = timestamps[index] != NO_TIMESTAMP ? timestamps[index] : Long.MAX_VALUE;
+        }
+        return new KeyedComparator(keys, this::compareTimestamps);
+    }
+
+    /**
+     * Returns a comparator in the same order as compareLocations that is much faster for sorting many slots.
+     * The key is the latitude.
+     */
+    public KeyedComparator locationSortComparator() {
+        long[] keys = new long[size];
+        for (int index = 0; index < size; index++) {
+            long bits = Double.doubleToLongBits(y[index]);
+            keys[index] = bits ^ ((bits >> 63) & Long.MAX_VALUE); // same order as Double.compare
+        }
+        return new KeyedComparator(keys, this::compareLocations);
+    }
+
+    /**
+     * Compares timestamps of two slots, items without a timestamp last.
+     */
+    public int compareTimestamps(int a, int b) {
+        checkIndex(a);
+        checkIndex(b);
+        boolean hasA = timestamps[a] != NO_TIMESTAMP;
+        boolean hasB = timestamps[b] != NO_TIMESTAMP;
+        if (hasA != hasB) return hasA ? -1 : 1;
+        return Long.compare(timestamps[a], timestamps[b]);
+    }
+
+    /**
+     * Compares slots by latitude then longitude. Only meaningful for successful items.
+     */
+    public int compareLocations(int a, int b) {
+        int compare = Double.compare(y[a], y[b]);
+        return compare != 0 ? compare : Double.compare(x[a], x[b]);
+    }
+
+    /**
+     * Compares slots the way the table shows results: successful items first by latitude then longitude,
+     * then failures by reason.
+     */
+    public int compareResults(int a, int b) {
+        boolean successA = isSuccess(a);
+        boolean successB = isSuccess(b);
+        if (successA != successB) return successA ? -1 : 1;
+        if (successA) {
+            return compareLocations(a, b);
+        }
+        if (statuses[a] != statuses[b] || (!details.containsKey(a) && !details.containsKey(b))) {
+            return Integer.compare(statuses[a], statuses[b]); // the usual case, no Strings needed
+        }
+        return getFailureReason(a).compareTo(getFailureReason(b));
+    }
+
+    /**
+     * Returns the indexes of all successful items in insertion order.
+     */
+    public int[] successIndexes() {
+        int[] indexes = new int[successCount];
+        int count = 0;
+        for (int index = 0; index < size && count < indexes.length; index++) {
+            if (statuses[index] == Status.SUCCESS.ordinal()) {
+                indexes[count++] = index;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns 0 .. size - 1 stable sorted by comparator.
+     */
+    public static int[] sortedIndexes(int size, IndexComparator comparator) {
+        return sort(identity(size), comparator);
+    }
+
+    /**
+     * Returns 0 .. size - 1 stable sorted by comparator, using parallelSort.
+     */
+    public static int[] parallelSortedIndexes(int size, IndexComparator comparator) {
+        return parallelSort(identity(size), comparator);
+    }
+
+    private static int[] identity(int size) {
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    /**
+     * Stable merge sort of indexes in place. Returns indexes.
+     */
+    public static int[] sort(int[] indexes, IndexComparator comparator) {
+        return parallelSort(indexes, comparator, () -> false, false);
+    }
+
+    /**
+     * Stable merge sort of indexes in place, split over the common ForkJoinPool for large arrays.
+     * comparator is called from several threads and must only read. Returns indexes.
+     */
+    public static int[] parallelSort(int[] indexes, IndexComparator comparator) {
+        return parallelSort(indexes, comparator, () -> false);
+    }
+
+    /**
+     * parallelSort that checks cancelled between chunks of PARALLEL_SORT_GRAIN indexes, also when it runs on a
+     * single thread. Throws CancellationException once cancelled returns true, indexes are then left half sorted.
+     */
+    public static int[] parallelSort(int[] indexes, IndexComparator comparator, BooleanSupplier cancelled) {
+        return parallelSort(indexes, comparator, cancelled, ForkJoinPool.getCommonPoolParallelism() > 1);
+    }
+
+    /**
+     * Sorts the indexes together with a long sort key for each position, so most comparisons read two neighbouring
+     * longs instead of two random slots of the store. The key comes from a KeyedComparator, any other comparator
+     * gets equal keys and decides every comparison.
+     */
+    private static int[] parallelSort(int[] indexes, IndexComparator comparator, BooleanSupplier cancelled, boolean parallel) {
+        if (indexes.length <= 1) {
+            return indexes;
+        }
+        long[] keys = new long[indexes.length];
+        IndexComparator tieBreak = comparator;
+        if (comparator instanceof KeyedComparator) {
+            KeyedComparator keyed = (KeyedComparator) comparator;
+            for (int i = 0; i < indexes.length; i++) {
+                keys[i] = keyed.keys[indexes[i]];
+            }
+            tieBreak = keyed.tieBreak;
+        }
+        boolean fork = parallel && indexes.length > PARALLEL_SORT_GRAIN;
+        MergeSortTask task = new MergeSortTask(new Run(indexes, keys), new Run(indexes.clone(), keys.clone()),
+                0, indexes.length, tieBreak, cancelled, fork);
+        if (fork) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return indexes;
+    }
+
+    /**
+     * Comparator that orders slots by a precomputed long key and only calls tieBreak for equal keys. The sorts move
+     * the keys along with the indexes, which makes it much faster than a comparator reading the columns.
+     * keys is indexed by slot, tieBreak must agree with the key order.
+     */
+    public static class KeyedComparator implements IndexComparator {
+        private final long[] keys;
+        private final IndexComparator tieBreak;
+
+        public KeyedComparator(long[] keys, IndexComparator tieBreak) {
+            this.keys = keys;
+            this.tieBreak = tieBreak;
+        }
+
+        @Override
+        public int compare(int a, int b) {
+            int compare = Long.compare(keys[a], keys[b]);
+            return compare != 0 ? compare : tieBreak.compare(a, b);
+        }
+
+        /**
+         * Same key, with ties decided by tieBreak instead, which must agree with the key order.
+         */
+        public KeyedComparator thenBreakTiesWith(IndexComparator tieBreak) {
+            return new KeyedComparator(keys, tieBreak);
+        }
+
+        /**
+         * The reverse order, still keyed.
+         */
+        public KeyedComparator reversed() {
+            long[] reversedKeys = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                reversedKeys[i] = ~keys[i]; // exact order reversal, unlike negation which overflows for MIN_VALUE
+            }
+            IndexComparator ascending = tieBreak;
+            return new KeyedComparator(reversedKeys, (a, b) -> ascending.compare(b, a));
+        }
+    }
+
+    /**
+     * Indexes being sorted with the sort key of each position.
+     */
+    private static class Run {
+        final int[] indexes;
+        final long[] keys;
+
+        Run(int[] indexes, long[] keys) {
+            this.indexes = indexes;
+            this.keys = keys;
+        }
+
+        int compare(int i, int j, IndexComparator tieBreak) {
+            int compare = Long.compare(keys[i], keys[j]);
+            return compare != 0 ? compare : tieBreak.compare(indexes[i], indexes[j]);
+        }
+    }
+
+    /**
+     * Chunked merge sort. The halves are sorted as forked tasks, or one after the other when fork is false,
+     * and merged by this one.
+     */
+    private static class MergeSortTask extends RecursiveAction {
+        private final Run target;
+        private final Run source;
+        private final int from;
+        private final int to;
+        private final IndexComparator tieBreak;
+        private final BooleanSupplier cancelled;
+        private final boolean fork;
+
+        MergeSortTask(Run target, Run source, int from, int to, IndexComparator tieBreak,
+                      BooleanSupplier cancelled, boolean fork) {
+            this.target = target;
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            this.tieBreak = tieBreak;
+            this.cancelled = cancelled;
+            this.fork = fork;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.getAsBoolean()) throw new CancellationException("Sort cancelled.");
+            if (to - from <= PARALLEL_SORT_GRAIN) {
+                mergeSort(target, source, from, to, tieBreak);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            MergeSortTask left = new MergeSortTask(source, target, from, middle, tieBreak, cancelled, fork);
+            MergeSortTask right = new MergeSortTask(source, target, middle, to, tieBreak, cancelled, fork);
+            if (fork) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+            if (cancelled.getAsBoolean()) throw new CancellationException("Sort cancelled.");
+            merge(target, source, from, middle, to, tieBreak);
+        }
+    }
+
+    /**
+     * Sorts source[from, to) into target[from, to). Both runs start with the same contents.
+     */
+    private static void mergeSort(Run target, Run source, int from, int to, IndexComparator tieBreak) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            int[] indexes = target.indexes;
+            long[] keys = target.keys;
+            for (int i = from + 1; i < to; i++) {
+                int index = indexes[i];
+                long key = keys[i];
+                int j = i - 1;
+                while (j >= from && (keys[j] > key || (keys[j] == key && tieBreak.compare(indexes[j], index) > 0))) {
+                    indexes[j + 1] = indexes[j];
+                    keys[j + 1] = keys[j];
+                    j--;
+                }
+                indexes[j + 1] = index;
+                keys[j + 1] = key;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(source, target, from, middle, tieBreak);
+        mergeSort(source, target, middle, to, tieBreak);
+        merge(target, source, from, middle, to, tieBreak);
+    }
+
+    /**
+     * Merges the sorted runs source[from, middle) and source[middle, to) into target.
+     */
+    private static void merge(Run target, Run source, int from, int middle, int to, IndexComparator tieBreak) {
+        if (source.compare(middle - 1, middle, tieBreak) <= 0) {
+            System.arraycopy(source.indexes, from, target.indexes, from, to - from); // already in order
+            System.arraycopy(source.keys, from, target.keys, from, to - from);
+            return;
+        }
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            int next = right >= to || (left < middle && source.compare(left, right, tieBreak) <= 0) ? left++ : right++;
+            target.indexes[i] = source.indexes[next];
+            target.keys[i] = source.keys[next];
+        }
+    }
+
+    /**
+     * The photo file, or null for items that are not a file, like directory errors.
+     */
+    public File getFile(int index) {
+        checkIndex(index);
+        int directoryId = directoryIds[index];
+        return directoryId != NO_DIRECTORY ? new File(directories.get(directoryId), getName(index)) : null;
+    }
+
+    /**
+     * Approximate heap held by the columns, for logging.
+     */
+    public long getRetainedBytes() {
+        return x.length * 8L * 3 + statuses.length + directoryIds.length * 4L + nameOffsets.length * 4L + namePool.length;
+    }
+
+    private void appendName(int index, String name) {
+        byte[] bytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (namePoolSize + bytes.length > namePool.length) {
+            namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 2, namePoolSize + bytes.length));
+        }
+        System.arraycopy(bytes, 0, namePool, namePoolSize, bytes.length);
+        nameOffsets[index] = namePoolSize;
+        namePoolSize += bytes.length;
+        nameOffsets[index + 1] = namePoolSize;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= x.length) return;
+        int newCapacity = Math.max(capacity, x.length + (x.length >> 1));
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        statuses = Arrays.copyOf(statuses, newCapacity);
+        directoryIds = Arrays.copyOf(directoryIds, newCapacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, newCapacity + 1);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+    }
+}
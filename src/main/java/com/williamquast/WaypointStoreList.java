@@ -0,0 +1,248 @@
+package com.williamquast;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Read only ObservableList over a WaypointStore for the TableView, built to stay responsive with millions of rows.
+ *
+ * Appended items go into the store right away, but the table only hears about them once per animation pulse, as one
+ * add change covering everything appended since the last pulse. Sorting runs on a background thread with a parallel
+ * merge sort over the store columns, and the finished order is handed to the table as one permutation. Rows added
+ * while a sort is active are appended unsorted and trigger a new sort, so the table catches up without ever
+ * blocking the FX thread.
+ *
+ * Rows are Row views created when the table asks for them. The most recent ones are kept in a small cache, so a
+ * visible row keeps its identity and its formatted cell text between layouts.
+ *
+ * Must only be used from the JavaFX application thread.
+ */
+public class WaypointStoreList extends ObservableListBase<ExtractItem> {
+
+    private static final Logger log = LoggerFactory.getLogger(WaypointStoreList.class);
+
+    private static final int VIEW_CACHE_SIZE = 4096; // direct mapped by store index, comfortably more than one screen
+
+    private final WaypointStore store = new WaypointStore();
+    private int publishedSize; // rows the table knows about, the store may hold more
+    private int[] order; // row -> store index for the published rows, null while in insertion order
+    private final Row[] viewCache = new Row[VIEW_CACHE_SIZE];
+
+    private Function<WaypointStore, WaypointStore.IndexComparator> sortKey; // null when unsorted
+    private int sortGeneration; // bumped by every sort request, stale background results are dropped
+    private boolean sortRunning;
+    private boolean sortStale; // rows arrived or the key changed while a sort was running
+    private final ExecutorService sortExecutor = Executors.newSingleThreadExecutor(AdaptiveScheduler.daemonThreadFactory("table-sort-"));
+
+    private final AnimationTimer publisher = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            publish();
+        }
+    };
+
+    /**
+     * Row view of one store slot with lazily formatted cell text.
+     */
+    public static class Row extends ExtractItem {
+        final int index;
+        String timestampText;
+        String resultText;
+
+        Row(ExtractItem item, int index) {
+            super(item.filename, item.timestamp, item.success ? null : item.failureReason);
+            this.success = item.success;
+            this.waypoint = item.waypoint;
+            this.file = item.file;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Returns a consistent copy of the store, safe to read from another thread. It includes rows not yet published
+     * to the table. Rows are in insertion order there.
+     */
+    public WaypointStore snapshot() {
+        return store.snapshot();
+    }
+
+    @Override
+    public Row get(int row) {
+        if (row < 0 || row >= publishedSize) throw new IndexOutOfBoundsException("Row " + row + " out of bounds for size " + publishedSize);
+        int index = order != null ? order[row] : row;
+        int slot = index % VIEW_CACHE_SIZE;
+        Row view = viewCache[slot];
+        if (view == null || view.index != index) {
+            view = new Row(store.get(index), index);
+            viewCache[slot] = view;
+        }
+        return view;
+    }
+
+    @Override
+    public int size() {
+        return publishedSize;
+    }
+
+    /**
+     * Appends items to the store. The table sees them at the next animation pulse.
+     */
+    @Override
+    public boolean addAll(Collection<? extends ExtractItem> items) {
+        if (items.isEmpty()) return false;
+        for (ExtractItem item : items) {
+            store.add(item);
+        }
+        publisher.start();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        publisher.stop();
+        sortGeneration++;
+        if (publishedSize == 0) {
+            store.clear();
+            return;
+        }
+        WaypointStore removed = store.snapshot();
+        int[] removedOrder = order;
+        int removedSize = publishedSize;
+        store.clear();
+        publishedSize = 0;
+        order = null;
+        Arrays.fill(viewCache, null);
+        beginChange();
+        nextRemove(0, new AbstractList<ExtractItem>() { // removed rows as views, only created if a listener asks
+            @Override
+            public ExtractItem get(int row) {
+                return removed.get(removedOrder != null ? removedOrder[row] : row);
+            }
+
+            @Override
+            public int size() {
+                return removedSize;
+            }
+        });
+        endChange();
+    }
+
+    /**
+     * Sorts the rows in the background by the comparator that sortKey builds over a store snapshot, or restores
+     * insertion order right away if sortKey is null. The comparator must only read the store.
+     */
+    public void sortBy(Function<WaypointStore, WaypointStore.IndexComparator> sortKey) {
+        this.sortKey = sortKey;
+        sortGeneration++;
+        if (sortKey == null) {
+            applyOrder(null);
+        } else if (sortRunning) {
+            sortStale = true;
+        } else {
+            startSort();
+        }
+    }
+
+    /**
+     * Sorts with a comparator over the row views. Slow for large tables, prefer sortBy.
+     */
+    @Override
+    public void sort(Comparator<? super ExtractItem> comparator) {
+        sortBy(comparator == null ? null : snapshot -> (a, b) -> comparator.compare(snapshot.get(a), snapshot.get(b)));
+    }
+
+    private void publish() {
+        publisher.stop();
+        int size = store.size();
+        if (size == publishedSize) return;
+
+        int from = publishedSize;
+        if (order != null) {
+            order = Arrays.copyOf(order, size);
+            for (int index = from; index < size; index++) {
+                order[index] = index; // unsorted at the end until the sort catches up
+            }
+        }
+        publishedSize = size;
+        beginChange();
+        nextAdd(from, size);
+        endChange();
+
+        if (sortKey != null) {
+            if (sortRunning) {
+                sortStale = true;
+            } else {
+                startSort();
+            }
+        }
+    }
+
+    private void startSort() {
+        final int generation = sortGeneration;
+        final WaypointStore snapshot = store.snapshot();
+        final WaypointStore.IndexComparator comparator = sortKey.apply(snapshot);
+        final int size = Math.min(publishedSize, snapshot.size());
+        sortRunning = true;
+        sortStale = false;
+
+        sortExecutor.execute(() -> {
+            int[] sorted = null;
+            try {
+                long start = System.nanoTime();
+                sorted = WaypointStore.parallelSortedIndexes(size, comparator);
+                log.debug("Sorted rows=" + size + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            } catch (RuntimeException ex) {
+                log.error("Table sort failed.", ex);
+            }
+            final int[] result = sorted;
+            Platform.runLater(() -> finishSort(generation, result));
+        });
+    }
+
+    private void finishSort(int generation, int[] sorted) {
+        sortRunning = false;
+        if (generation == sortGeneration && sorted != null) {
+            int[] newOrder = Arrays.copyOf(sorted, publishedSize);
+            for (int index = sorted.length; index < publishedSize; index++) {
+                newOrder[index] = index; // published while sorting, sorted by the next pass
+            }
+            applyOrder(newOrder);
+        }
+        if (sortKey != null && (sortStale || generation != sortGeneration)) {
+            startSort();
+        }
+    }
+
+    /**
+     * Replaces the row order and tells the table with a single permutation change.
+     */
+    private void applyOrder(int[] newOrder) {
+        int[] oldOrder = order;
+        order = newOrder;
+        if (oldOrder == null && newOrder == null) return;
+
+        int size = publishedSize;
+        int[] rowOfIndex = new int[size];
+        for (int row = 0; row < size; row++) {
+            rowOfIndex[newOrder != null ? newOrder[row] : row] = row;
+        }
+        int[] permutation = new int[size];
+        for (int row = 0; row < size; row++) {
+            permutation[row] = rowOfIndex[oldOrder != null ? oldOrder[row] : row];
+        }
+        beginChange();
+        nextPermutation(0, size, permutation);
+        endChange();
+    }
+}
@@ -0,0 +1,202 @@
+package com.williamquast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+
+/**
+ * Minimal zip archive writer over a FileChannel. Unlike ZipOutputStream it accepts entry data that was already
+ * deflated elsewhere, which lets the KMZ writer compress doc.kml on several threads.
+ * Deflated entries are streamed and their local header is patched with the CRC and sizes afterwards, so no data
+ * descriptors are written. Zip64 records are added when the entry count or an offset needs them.
+ */
+class ZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private final FileChannel channel;
+    private final int dosTime;
+    private final int dosDate;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private final ByteBuffer header = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long entryCount;
+    private long entryOffset = -1; // local header offset of the open deflated entry, -1 when none is open
+    private byte[] entryName;
+
+    ZipWriter(File outputFile) throws IOException {
+        this.channel = FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() / 2;
+        this.dosDate = Math.max(0, now.getYear() - 1980) << 9 | now.getMonthValue() << 5 | now.getDayOfMonth();
+    }
+
+    /**
+     * Writes a complete entry without compression. Used for JPEG thumbnails, which do not deflate.
+     */
+    void putStored(String name, byte[] data) throws IOException {
+        checkNoOpenEntry();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long offset = channel.position();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeLocalHeader(nameBytes, METHOD_STORED, crc.getValue(), data.length, data.length);
+        writeFully(ByteBuffer.wrap(data));
+        addCentralRecord(nameBytes, METHOD_STORED, crc.getValue(), data.length, data.length, offset);
+    }
+
+    /**
+     * Starts a deflated entry and returns the channel its raw deflate data is written to.
+     * The entry must be ended with endDeflated before any other entry is written.
+     */
+    WritableByteChannel beginDeflated(String name) throws IOException {
+        checkNoOpenEntry();
+        entryOffset = channel.position();
+        entryName = name.getBytes(StandardCharsets.UTF_8);
+        writeLocalHeader(entryName, METHOD_DEFLATED, 0, 0, 0);
+
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // the archive stays open, the entry is ended by endDeflated
+            }
+        };
+    }
+
+    /**
+     * Ends the open deflated entry. crc and uncompressedSize describe the data before compression.
+     */
+    void endDeflated(long crc, long uncompressedSize) throws IOException {
+        if (entryOffset < 0) throw new IllegalStateException("No deflated entry is open.");
+        long compressedSize = channel.position() - entryOffset - 30 - entryName.length;
+        if (compressedSize >= MAX_32 || uncompressedSize >= MAX_32) {
+            throw new IOException("Zip entry larger than 4GB is not supported. (" + new String(entryName, StandardCharsets.UTF_8) + ")");
+        }
+
+        ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) crc).putInt((int) compressedSize).putInt((int) uncompressedSize).flip();
+        long position = entryOffset + LOCAL_HEADER_CRC_OFFSET;
+        while (patch.hasRemaining()) {
+            position += channel.write(patch, position);
+        }
+
+        addCentralRecord(entryName, METHOD_DEFLATED, crc, compressedSize, uncompressedSize, entryOffset);
+        entryOffset = -1;
+        entryName = null;
+    }
+
+    /**
+     * Writes the central directory and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            checkNoOpenEntry();
+            long centralOffset = channel.position();
+            writeFully(ByteBuffer.wrap(centralDirectory.toByteArray()));
+            long centralSize = channel.position() - centralOffset;
+
+            header.clear();
+            if (entryCount >= MAX_16 || centralOffset >= MAX_32 || centralSize >= MAX_32) {
+                long zip64EndOffset = channel.position();
+                header.putInt(ZIP64_END_SIGNATURE).putLong(44)
+                        .putShort((short) VERSION_ZIP64).putShort((short) VERSION_ZIP64)
+                        .putInt(0).putInt(0)
+                        .putLong(entryCount).putLong(entryCount)
+                        .putLong(centralSize).putLong(centralOffset);
+                header.putInt(ZIP64_LOCATOR_SIGNATURE).putInt(0).putLong(zip64EndOffset).putInt(1);
+            }
+            header.putInt(END_SIGNATURE).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) Math.min(entryCount, MAX_16)).putShort((short) Math.min(entryCount, MAX_16))
+                    .putInt((int) Math.min(centralSize, MAX_32)).putInt((int) Math.min(centralOffset, MAX_32))
+                    .putShort((short) 0);
+            header.flip();
+            writeFully(header);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the file without a central directory, after a failed or cancelled write.
+     */
+    void abort() throws IOException {
+        channel.close();
+    }
+
+    private void writeLocalHeader(byte[] name, int method, long crc, long compressedSize, long uncompressedSize) throws IOException {
+        if (compressedSize >= MAX_32 || uncompressedSize >= MAX_32) {
+            throw new IOException("Zip entry larger than 4GB is not supported. (" + new String(name, StandardCharsets.UTF_8) + ")");
+        }
+        header.clear();
+        header.putInt(LOCAL_HEADER_SIGNATURE).putShort((short) VERSION).putShort((short) FLAG_UTF8)
+                .putShort((short) method).putShort((short) dosTime).putShort((short) dosDate)
+                .putInt((int) crc).putInt((int) compressedSize).putInt((int) uncompressedSize)
+                .putShort((short) name.length).putShort((short) 0)
+                .put(name);
+        header.flip();
+        writeFully(header);
+    }
+
+    private void addCentralRecord(byte[] name, int method, long crc, long compressedSize, long uncompressedSize, long offset) {
+        boolean zip64 = offset >= MAX_32;
+        ByteBuffer record = ByteBuffer.allocate(46 + name.length + (zip64 ? 12 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER_SIGNATURE)
+                .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION)).putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                .putShort((short) FLAG_UTF8).putShort((short) method).putShort((short) dosTime).putShort((short) dosDate)
+                .putInt((int) crc).putInt((int) compressedSize).putInt((int) uncompressedSize)
+                .putShort((short) name.length).putShort((short) (zip64 ? 12 : 0)).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) (zip64 ? MAX_32 : offset))
+                .put(name);
+        if (zip64) {
+            record.putShort((short) ZIP64_EXTRA_ID).putShort((short) 8).putLong(offset);
+        }
+        centralDirectory.write(record.array(), 0, record.position());
+        entryCount++;
+    }
+
+    private void checkNoOpenEntry() {
+        if (entryOffset >= 0) throw new IllegalStateException("Deflated entry is still open.");
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -2,6 +2,7 @@ module com.williamquast {
     requires org.slf4j;
     requires org.apache.logging.log4j;
     requires java.desktop;
+    requires java.management;
     requires javafx.controls;
     requires javafx.fxml;
     opens com.williamquast to javafx.fxml;
@@ -0,0 +1,96 @@
+package com.williamquast;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeduplicatorTest {
+
+    private static final double LATITUDE = 45;
+    private static final double DEGREES_PER_METER = 1 / (6_371_008.8 * Math.PI / 180 * Math.cos(Math.toRadians(LATITUDE)));
+
+    private final List<ExtractItem> output = new ArrayList<>();
+
+    @Test
+    public void burstBecomesOnePlacemark() throws IOException {
+        Deduplicator deduplicator = new Deduplicator().sink(output::add);
+        deduplicator.accept(photo("IMG_1.JPG", 10, 1000));
+        deduplicator.accept(photo("IMG_2.JPG", 10 + 3 * DEGREES_PER_METER, 1500));
+        deduplicator.accept(photo("IMG_3.JPG", 10 + 6 * DEGREES_PER_METER, 2000));
+        deduplicator.finish();
+
+        assertEquals(1, output.size());
+        assertEquals("IMG_1.JPG (3 photos)", output.get(0).waypoint.name);
+    }
+
+    @Test
+    public void photosOutsideTimeWindowStaySeparate() throws IOException {
+        Deduplicator deduplicator = new Deduplicator().sink(output::add);
+        deduplicator.accept(photo("IMG_1.JPG", 10, 1000));
+        deduplicator.accept(photo("IMG_2.JPG", 10, 1000 + Deduplicator.DEFAULT_TIME_WINDOW + 1));
+        deduplicator.finish();
+
+        assertEquals(2, output.size());
+    }
+
+    /**
+     * The group is passed on as the JPEG of a RAW+JPEG pair, but distances are still measured from the first photo.
+     */
+    @Test
+    public void distanceIsMeasuredFromFirstPhoto() throws IOException {
+        Deduplicator deduplicator = new Deduplicator().sink(output::add);
+        deduplicator.accept(photo("IMG_1.CR2", 10, 1000));
+        deduplicator.accept(photo("IMG_1.JPG", 10 + 8 * DEGREES_PER_METER, 1000));
+        deduplicator.accept(photo("IMG_2.JPG", 10 - 9 * DEGREES_PER_METER, 1500)); // 17 m from the JPEG
+        deduplicator.accept(photo("IMG_3.JPG", 10 - 11 * DEGREES_PER_METER, 1600));
+        deduplicator.finish();
+
+        assertEquals(2, output.size());
+        assertEquals("IMG_1.JPG (3 photos)", output.get(0).waypoint.name);
+        assertEquals("IMG_3.JPG", output.get(1).waypoint.name);
+    }
+
+    @Test
+    public void photoWithoutTimeOrSiblingKeyIsPassedOn() throws IOException {
+        Deduplicator deduplicator = new Deduplicator().siblings(false).sink(output::add);
+        deduplicator.accept(photo("IMG_1.JPG", 10, -1));
+        deduplicator.finish();
+        assertEquals(1, output.size());
+
+        output.clear();
+        deduplicator = new Deduplicator().sink(output::add);
+        ExtractItem noFile = photo("IMG_2.JPG", 10, -1);
+        noFile.file = null;
+        deduplicator.accept(noFile);
+        deduplicator.finish();
+        assertEquals(1, output.size());
+        assertEquals(1, deduplicator.getOutputCount());
+    }
+
+    @Test
+    public void failedItemsArePassedOnUnchanged() throws IOException {
+        Deduplicator deduplicator = new Deduplicator().sink(output::add);
+        ExtractItem failed = new ExtractItem("IMG_1.JPG", new Date(1000), "No GeoLocation data found.");
+        deduplicator.accept(failed);
+        deduplicator.finish();
+
+        assertEquals(1, output.size());
+        assertEquals(failed, output.get(0));
+    }
+
+    /**
+     * A photo at longitude x, taken at millis, or without a time if millis is negative.
+     */
+    private static ExtractItem photo(String name, double x, long millis) {
+        Date timestamp = millis >= 0 ? new Date(millis) : null;
+        ExtractItem item = new ExtractItem(name, timestamp, new Waypoint(name, timestamp, x, LATITUDE));
+        item.file = new File("/photos", name);
+        return item;
+    }
+}
@@ -0,0 +1,342 @@
+package com.williamquast;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.ImageMetadataReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ExifGpsParser against metadata-extractor, which it replaces on the JPEG and TIFF fast paths.
+ */
+public class ExifGpsParserTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bigEndianMatchesMetadataExtractor() throws Exception {
+        Tiff tiff = photo(ByteOrder.BIG_ENDIAN, "N", "E");
+        PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+        assertTrue(metadata.hasGpsDirectory());
+        assertEquals(33 + 51 / 60.0 + 30.9 / 3600, metadata.getLatitude(), 1e-9);
+        assertEquals(151 + 12 / 60.0 + 40.5 / 3600, metadata.getLongitude(), 1e-9);
+        assertEquals(Date.from(Instant.parse("2020-01-02T03:04:05Z")), metadata.dateTime);
+        assertEquals(Date.from(Instant.parse("2020-01-02T03:04:00Z")), metadata.dateTimeOriginal);
+        assertEquals(Date.from(Instant.parse("2020-01-01T16:04:00Z")), metadata.gpsDate);
+    }
+
+    @Test
+    public void littleEndianMatchesMetadataExtractor() throws Exception {
+        Tiff tiff = photo(ByteOrder.LITTLE_ENDIAN, "N", "E");
+        PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+        assertEquals(33 + 51 / 60.0 + 30.9 / 3600, metadata.getLatitude(), 1e-9);
+        assertEquals(Date.from(Instant.parse("2020-01-01T16:04:00Z")), metadata.gpsDate);
+    }
+
+    @Test
+    public void southAndWestAreNegative() throws Exception {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            Tiff tiff = photo(order, "S", "W");
+            PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+            assertEquals(-(33 + 51 / 60.0 + 30.9 / 3600), metadata.getLatitude(), 1e-9);
+            assertEquals(-(151 + 12 / 60.0 + 40.5 / 3600), metadata.getLongitude(), 1e-9);
+        }
+    }
+
+    /**
+     * TIFF based RAW files are read through PositionalFileReader instead of a buffer.
+     */
+    @Test
+    public void tiffFileMatchesMetadataExtractor() throws Exception {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            File file = folder.newFile("photo-" + order + ".tif");
+            Files.write(file.toPath(), photo(order, "S", "E").build());
+            PhotoMetadata metadata = assertMatchesMetadataExtractor(file);
+
+            assertEquals(-(33 + 51 / 60.0 + 30.9 / 3600), metadata.getLatitude(), 1e-9);
+            assertEquals(Date.from(Instant.parse("2020-01-02T03:04:00Z")), metadata.dateTimeOriginal);
+        }
+    }
+
+    @Test
+    public void gpsTimeWithFractionalSeconds() throws Exception {
+        Tiff tiff = photo(ByteOrder.BIG_ENDIAN, "N", "E");
+        tiff.gps.set(4, Tiff.rationals(ExifGpsParser.TAG_GPS_TIME_STAMP, 23, 1, 59, 1, 5978, 100));
+        tiff.gps.set(5, Tiff.ascii(ExifGpsParser.TAG_GPS_DATE_STAMP, "2019:12:31"));
+        PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+        assertEquals(Date.from(Instant.parse("2019-12-31T23:59:59.780Z")), metadata.gpsDate);
+    }
+
+    /**
+     * A rational n/0 is infinite and 0/0 is zero, as in metadata-extractor. Infinite positions are rejected later
+     * by PhotoMetadata.isValidGeoLocation.
+     */
+    @Test
+    public void zeroDenominatorMatchesMetadataExtractor() throws Exception {
+        Tiff tiff = photo(ByteOrder.LITTLE_ENDIAN, "N", "E");
+        tiff.gps.set(1, Tiff.rationals(ExifGpsParser.TAG_GPS_LATITUDE, 33, 0, 51, 1, 0, 0));
+        PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+        assertEquals(Double.POSITIVE_INFINITY, metadata.getLatitude(), 0);
+        assertFalse(metadata.isValidGeoLocation());
+
+        tiff.gps.set(1, Tiff.rationals(ExifGpsParser.TAG_GPS_LATITUDE, 33, 1, 0, 0, 0, 0));
+        metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+        assertEquals(33, metadata.getLatitude(), 0);
+    }
+
+    @Test
+    public void missingRefHasNoLocation() throws Exception {
+        Tiff tiff = photo(ByteOrder.BIG_ENDIAN, "N", "E");
+        tiff.gps.remove(0);
+        PhotoMetadata metadata = assertMatchesMetadataExtractor(jpeg(tiff.build()));
+
+        assertTrue(metadata.hasGpsDirectory());
+        assertFalse(metadata.hasGeoLocation());
+    }
+
+    /**
+     * A cut off Exif block is read as far as it goes, with no exception.
+     */
+    @Test
+    public void truncatedIfdReadsWhatIsThere() throws Exception {
+        Tiff tiff = photo(ByteOrder.BIG_ENDIAN, "N", "E");
+        byte[] data = tiff.build();
+
+        // inside the values of the GPS IFD, the longitude is missing
+        PhotoMetadata metadata = parse(data, tiff.gpsValuesOffset + 24);
+        assertTrue(metadata.hasGpsDirectory());
+        assertFalse(metadata.hasGeoLocation());
+        assertEquals(Date.from(Instant.parse("2020-01-02T03:04:00Z")), metadata.dateTimeOriginal);
+
+        // inside the GPS IFD entries, only the first two fit
+        metadata = parse(data, tiff.gpsOffset + 2 + 2 * 12 + 5);
+        assertTrue(metadata.hasGpsDirectory());
+        assertFalse(metadata.hasGeoLocation());
+
+        // before the GPS IFD
+        metadata = parse(data, tiff.gpsOffset + 1);
+        assertFalse(metadata.hasGpsDirectory());
+        assertEquals(Date.from(Instant.parse("2020-01-02T03:04:05Z")), metadata.dateTime);
+
+        // inside the entries of IFD0, the value of the first one is out of reach
+        metadata = parse(data, 8 + 2 + 12 + 3);
+        assertFalse(metadata.hasGpsDirectory());
+        assertNull(metadata.dateTime);
+        assertNull(metadata.dateTimeOriginal);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedHeaderThrows() throws IOException {
+        parse(photo(ByteOrder.BIG_ENDIAN, "N", "E").build(), 7);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownByteOrderThrows() throws IOException {
+        byte[] data = photo(ByteOrder.BIG_ENDIAN, "N", "E").build();
+        data[0] = 'X';
+        parse(data, data.length);
+    }
+
+    @Test
+    public void parseDateTimeAcceptsBothSeparators() {
+        Date expected = Date.from(Instant.parse("2020-01-02T03:04:05Z"));
+        assertEquals(expected, ExifGpsParser.parseDateTime("2020:01:02 03:04:05"));
+        assertEquals(expected, ExifGpsParser.parseDateTime("2020-01-02 03:04:05"));
+        assertNull(ExifGpsParser.parseDateTime("0000:00:00 00:00:00"));
+        assertNull(ExifGpsParser.parseDateTime(""));
+    }
+
+    /**
+     * Reads file with PhotoMetadataReader, which takes the fast path for JPEG and TIFF files, and checks the result
+     * is the same as metadata-extractor's.
+     */
+    private static PhotoMetadata assertMatchesMetadataExtractor(File file) throws Exception {
+        PhotoMetadata actual = PhotoMetadataReader.read(file);
+        PhotoMetadata expected = PhotoMetadataReader.readWithMetadataExtractor(file, actual.getFileType(), ImageMetadataReader.readMetadata(file));
+        assertEquals(expected.hasGpsDirectory(), actual.hasGpsDirectory());
+        assertEquals(expected.latitude, actual.latitude);
+        assertEquals(expected.longitude, actual.longitude);
+        assertEquals(expected.gpsDate, actual.gpsDate);
+        assertEquals(expected.dateTimeOriginal, actual.dateTimeOriginal);
+        assertEquals(expected.dateTime, actual.dateTime);
+        return actual;
+    }
+
+    private static PhotoMetadata parse(byte[] tiff, int length) throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Jpeg);
+        new ExifGpsParser(Arrays.copyOf(tiff, length), 0, length).parse(metadata);
+        return metadata;
+    }
+
+    /**
+     * Writes tiff as the Exif segment of an otherwise empty JPEG.
+     */
+    private File jpeg(byte[] tiff) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1});
+        int length = 2 + 6 + tiff.length;
+        out.write(length >> 8);
+        out.write(length);
+        out.write(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        out.write(tiff);
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xD9});
+        File file = folder.newFile();
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+
+    /**
+     * A photo taken at 33°51'30.9" 151°12'40.5" at 16:04 UTC the day before its local time stamps.
+     */
+    private static Tiff photo(ByteOrder order, String latitudeRef, String longitudeRef) {
+        Tiff tiff = new Tiff(order);
+        tiff.ifd0.add(Tiff.ascii(ExifGpsParser.TAG_DATETIME, "2020:01:02 03:04:05"));
+        tiff.exif.add(Tiff.ascii(ExifGpsParser.TAG_DATETIME_ORIGINAL, "2020:01:02 03:04:00"));
+        tiff.gps.add(Tiff.ascii(ExifGpsParser.TAG_GPS_LATITUDE_REF, latitudeRef));
+        tiff.gps.add(Tiff.rationals(ExifGpsParser.TAG_GPS_LATITUDE, 33, 1, 51, 1, 309, 10));
+        tiff.gps.add(Tiff.ascii(ExifGpsParser.TAG_GPS_LONGITUDE_REF, longitudeRef));
+        tiff.gps.add(Tiff.rationals(ExifGpsParser.TAG_GPS_LONGITUDE, 151, 1, 12, 1, 4050, 100));
+        tiff.gps.add(Tiff.rationals(ExifGpsParser.TAG_GPS_TIME_STAMP, 16, 1, 4, 1, 0, 1));
+        tiff.gps.add(Tiff.ascii(ExifGpsParser.TAG_GPS_DATE_STAMP, "2020:01:01"));
+        return tiff;
+    }
+
+    /**
+     * Lays out a TIFF structure of IFD0, the Exif SubIFD and the GPS IFD, one after the other, each followed by the
+     * values too large to fit in its entries.
+     */
+    private static class Tiff {
+        private static final int TYPE_ASCII = 2;
+        private static final int TYPE_LONG = 4;
+        private static final int TYPE_RATIONAL = 5;
+
+        final ByteOrder order;
+        final List<Entry> ifd0 = new ArrayList<>();
+        final List<Entry> exif = new ArrayList<>();
+        final List<Entry> gps = new ArrayList<>();
+        int gpsOffset; // set by build
+        int gpsValuesOffset;
+
+        Tiff(ByteOrder order) {
+            this.order = order;
+        }
+
+        byte[] build() {
+            List<Entry> root = new ArrayList<>(ifd0);
+            root.add(new Entry(ExifGpsParser.TAG_EXIF_SUB_IFD_OFFSET, TYPE_LONG, 1, new byte[4]));
+            root.add(new Entry(ExifGpsParser.TAG_GPS_INFO_OFFSET, TYPE_LONG, 1, new byte[4]));
+            int exifOffset = 8 + size(root);
+            gpsOffset = exifOffset + size(exif);
+            gpsValuesOffset = gpsOffset + 2 + 12 * gps.size() + 4;
+            root.set(root.size() - 2, new Entry(ExifGpsParser.TAG_EXIF_SUB_IFD_OFFSET, TYPE_LONG, 1, int32(exifOffset)));
+            root.set(root.size() - 1, new Entry(ExifGpsParser.TAG_GPS_INFO_OFFSET, TYPE_LONG, 1, int32(gpsOffset)));
+
+            ByteBuffer buffer = ByteBuffer.allocate(gpsOffset + size(gps)).order(order);
+            buffer.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+            buffer.put(buffer.get(0));
+            buffer.putShort((short) 42);
+            buffer.putInt(8);
+            write(buffer, root);
+            write(buffer, exif);
+            write(buffer, gps);
+            return buffer.array();
+        }
+
+        private static int size(List<Entry> entries) {
+            int size = 2 + 12 * entries.size() + 4;
+            for (Entry entry : entries) {
+                if (entry.length() > 4) size += entry.length() + (entry.length() & 1);
+            }
+            return size;
+        }
+
+        private static void write(ByteBuffer buffer, List<Entry> entries) {
+            int valueOffset = buffer.position() + 2 + 12 * entries.size() + 4;
+            buffer.putShort((short) entries.size());
+            for (Entry entry : entries) {
+                buffer.putShort((short) entry.tag).putShort((short) entry.type).putInt(entry.count);
+                if (entry.length() <= 4) {
+                    buffer.put(Arrays.copyOf(entry.bytes(buffer.order()), 4));
+                } else {
+                    buffer.putInt(valueOffset);
+                    valueOffset += entry.length() + (entry.length() & 1);
+                }
+            }
+            buffer.putInt(0); // no next IFD
+            for (Entry entry : entries) {
+                if (entry.length() > 4) buffer.put(Arrays.copyOf(entry.bytes(buffer.order()), entry.length() + (entry.length() & 1)));
+            }
+        }
+
+        private byte[] int32(int value) {
+            return ByteBuffer.allocate(4).order(order).putInt(value).array();
+        }
+
+        static Entry ascii(int tag, String value) {
+            byte[] bytes = Arrays.copyOf(value.getBytes(StandardCharsets.US_ASCII), value.length() + 1);
+            return new Entry(tag, TYPE_ASCII, bytes.length, bytes);
+        }
+
+        /**
+         * Numerators and denominators in turn. The byte order is applied when the value is written.
+         */
+        static Entry rationals(int tag, long... values) {
+            return new Entry(tag, TYPE_RATIONAL, values.length / 2, null, values);
+        }
+    }
+
+    private static class Entry {
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] value; // already in the byte order of the TIFF, or null for numbers
+        final long[] numbers; // unsigned 32 bit values, written in the byte order of the TIFF
+
+        Entry(int tag, int type, int count, byte[] value) {
+            this(tag, type, count, value, null);
+        }
+
+        Entry(int tag, int type, int count, byte[] value, long[] numbers) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+            this.numbers = numbers;
+        }
+
+        int length() {
+            return value != null ? value.length : 4 * numbers.length;
+        }
+
+        byte[] bytes(ByteOrder order) {
+            if (value != null) return value;
+            ByteBuffer buffer = ByteBuffer.allocate(length()).order(order);
+            for (long number : numbers) buffer.putInt((int) number);
+            return buffer.array();
+        }
+    }
+}
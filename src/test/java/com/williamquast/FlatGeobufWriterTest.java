@@ -0,0 +1,300 @@
+package com.williamquast;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads files written by FlatGeobufWriter back with a minimal FlatBuffers reader and checks them against the
+ * FlatGeobuf layout: magic, size prefixed header, packed Hilbert R-tree, then the size prefixed features.
+ */
+public class FlatGeobufWriterTest {
+
+    private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_ITEM_BYTES = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void noFeatures() throws IOException {
+        roundTrip(0);
+    }
+
+    @Test
+    public void oneFeature() throws IOException {
+        List<Waypoint> waypoints = roundTrip(1);
+        assertEquals(1, waypoints.size());
+    }
+
+    @Test
+    public void seventeenFeaturesNeedTwoParentNodes() throws IOException {
+        roundTrip(17);
+    }
+
+    @Test
+    public void threeHundredFeaturesNeedFourLevels() throws IOException {
+        roundTrip(300);
+    }
+
+    @Test
+    public void samePositionEverywhere() throws IOException {
+        File output = new File(folder.getRoot(), "same.fgb");
+        List<Waypoint> written = new ArrayList<>();
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(output)) {
+            for (int i = 0; i < 20; i++) {
+                Waypoint waypoint = new Waypoint("IMG_" + i + ".JPG", null, 151.2, -33.9);
+                writer.writePlacemark(waypoint, null);
+                written.add(waypoint);
+            }
+        }
+        assertEquals(written.size(), read(output, written).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonFiniteCoordinateIsRejected() throws IOException {
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(new File(folder.getRoot(), "bad.fgb"))) {
+            writer.writePlacemark(new Waypoint("a.jpg", null, Double.NaN, 0), null);
+        }
+    }
+
+    @Test
+    public void temporaryFileIsDeleted() throws IOException {
+        roundTrip(3);
+        String[] names = folder.getRoot().list();
+        assertArrayEquals(new String[]{"photos.fgb"}, names);
+    }
+
+    /**
+     * Writes count random placemarks, each named after its index, reads the file back and returns its features in
+     * file order.
+     */
+    private List<Waypoint> roundTrip(int count) throws IOException {
+        Random random = new Random(count);
+        File output = new File(folder.getRoot(), "photos.fgb");
+        List<Waypoint> written = new ArrayList<>();
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(output)) {
+            for (int i = 0; i < count; i++) {
+                Waypoint waypoint = new Waypoint("IMG_" + i + ".JPG", new Date(1_500_000_000_000L + i * 1000L),
+                        random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+                waypoint.description = i % 2 == 0 ? "Photo " + i : null;
+                writer.writePlacemark(waypoint, new File("/photos", waypoint.name));
+                written.add(waypoint);
+            }
+            assertEquals(count, writer.getPlacemarkCount());
+        }
+        return read(output, written);
+    }
+
+    /**
+     * Checks the file against the FlatGeobuf layout and that it holds each of written exactly once.
+     */
+    private static List<Waypoint> read(File file, List<Waypoint> written) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int count = written.size();
+
+        byte[] magic = new byte[MAGIC.length];
+        bytes.get(magic);
+        assertArrayEquals(MAGIC, magic);
+
+        // header
+        int headerStart = MAGIC.length + 4;
+        int header = root(bytes, headerStart);
+        assertEquals(file.getName().substring(0, file.getName().lastIndexOf('.')), string(bytes, field(bytes, header, 0)));
+        assertEquals(1, bytes.get(field(bytes, header, 2))); // Point
+        assertEquals(count, bytes.getLong(field(bytes, header, 8)));
+        int nodeSizeField = field(bytes, header, 9);
+        assertEquals(count > 0 ? NODE_SIZE : 0, nodeSizeField != 0 ? bytes.getShort(nodeSizeField) : 0);
+        int crs = reference(bytes, field(bytes, header, 10));
+        assertEquals(4326, bytes.getInt(field(bytes, crs, 1)));
+        int columns = reference(bytes, field(bytes, header, 7));
+        String[] names = {"name", "timestamp", "description", "file"};
+        byte[] types = {11, 13, 11, 11};
+        assertEquals(names.length, bytes.getInt(columns));
+        for (int i = 0; i < names.length; i++) {
+            int column = reference(bytes, columns + 4 + 4 * i);
+            assertEquals(names[i], string(bytes, field(bytes, column, 0)));
+            assertEquals(types[i], bytes.get(field(bytes, column, 1)));
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (Waypoint waypoint : written) {
+            minX = Math.min(minX, waypoint.x);
+            minY = Math.min(minY, waypoint.y);
+            maxX = Math.max(maxX, waypoint.x);
+            maxY = Math.max(maxY, waypoint.y);
+        }
+        int envelope = field(bytes, header, 1);
+        if (count == 0) {
+            assertEquals(0, envelope);
+        } else {
+            envelope = reference(bytes, envelope);
+            assertEquals(4, bytes.getInt(envelope));
+            assertEquals(0, (envelope + 4 - MAGIC.length) % 8); // doubles aligned from the size prefix
+            assertArrayEquals(new double[]{minX, minY, maxX, maxY}, new double[]{bytes.getDouble(envelope + 4),
+                    bytes.getDouble(envelope + 12), bytes.getDouble(envelope + 20), bytes.getDouble(envelope + 28)}, 0);
+        }
+
+        // index, root first and leaves last
+        int indexStart = headerStart + bytes.getInt(MAGIC.length);
+        List<Integer> levelCounts = new ArrayList<>(); // root first
+        int nodeCount = 0;
+        if (count > 0) {
+            int n = count;
+            levelCounts.add(0, n);
+            do { // a root above the leaves even for a single feature, as the reference implementation
+                n = (n + NODE_SIZE - 1) / NODE_SIZE;
+                levelCounts.add(0, n);
+            } while (n != 1);
+            for (int levelCount : levelCounts) nodeCount += levelCount;
+        }
+        int featuresStart = indexStart + nodeCount * NODE_ITEM_BYTES;
+        int leafStart = nodeCount - count;
+        int levelStart = 0;
+        for (int level = 0; level < levelCounts.size() - 1; level++) {
+            int childLevelStart = levelStart + levelCounts.get(level);
+            int childLevelEnd = childLevelStart + levelCounts.get(level + 1);
+            for (int node = levelStart; node < childLevelStart; node++) {
+                long firstChild = node(bytes, indexStart, node, 4);
+                assertEquals(childLevelStart + (node - levelStart) * NODE_SIZE, firstChild);
+                double[] bounds = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                for (long child = firstChild; child < Math.min(firstChild + NODE_SIZE, childLevelEnd); child++) {
+                    bounds[0] = Math.min(bounds[0], nodeBound(bytes, indexStart, (int) child, 0));
+                    bounds[1] = Math.min(bounds[1], nodeBound(bytes, indexStart, (int) child, 1));
+                    bounds[2] = Math.max(bounds[2], nodeBound(bytes, indexStart, (int) child, 2));
+                    bounds[3] = Math.max(bounds[3], nodeBound(bytes, indexStart, (int) child, 3));
+                }
+                for (int i = 0; i < 4; i++) {
+                    assertEquals(bounds[i], nodeBound(bytes, indexStart, node, i), 0);
+                }
+            }
+            levelStart = childLevelStart;
+        }
+        if (count > 0) {
+            assertArrayEquals(new double[]{minX, minY, maxX, maxY}, new double[]{nodeBound(bytes, indexStart, 0, 0),
+                    nodeBound(bytes, indexStart, 0, 1), nodeBound(bytes, indexStart, 0, 2), nodeBound(bytes, indexStart, 0, 3)}, 0);
+        }
+
+        // features, one after the other in the order of the leaves
+        Map<String, Waypoint> byName = new HashMap<>();
+        for (Waypoint waypoint : written) byName.put(waypoint.name, waypoint);
+        List<Waypoint> features = new ArrayList<>();
+        int position = featuresStart;
+        long previousHilbert = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int leaf = leafStart + i;
+            assertEquals(position - featuresStart, node(bytes, indexStart, leaf, 4));
+
+            int feature = root(bytes, position + 4);
+            int geometry = reference(bytes, field(bytes, feature, 0));
+            int xy = reference(bytes, field(bytes, geometry, 1));
+            assertEquals(2, bytes.getInt(xy));
+            assertEquals(0, (xy + 4 - position) % 8);
+            double x = bytes.getDouble(xy + 4);
+            double y = bytes.getDouble(xy + 12);
+            assertArrayEquals(new double[]{x, y, x, y}, new double[]{nodeBound(bytes, indexStart, leaf, 0),
+                    nodeBound(bytes, indexStart, leaf, 1), nodeBound(bytes, indexStart, leaf, 2), nodeBound(bytes, indexStart, leaf, 3)}, 0);
+
+            Map<Integer, String> properties = properties(bytes, reference(bytes, field(bytes, feature, 1)));
+            Waypoint expected = byName.remove(properties.get(0));
+            assertEquals(expected.x, x, 0);
+            assertEquals(expected.y, y, 0);
+            assertEquals(expected.description, properties.get(2));
+            if (expected.timestamp != null) {
+                assertEquals(expected.timestamp.toInstant().toString(), properties.get(1));
+            }
+            features.add(expected);
+
+            // descending Hilbert value within the extent, as the reference implementation sorts
+            int hx = maxX != minX ? (int) Math.floor(0xFFFF * (x - minX) / (maxX - minX)) : 0;
+            int hy = maxY != minY ? (int) Math.floor(0xFFFF * (y - minY) / (maxY - minY)) : 0;
+            long hilbert = FlatGeobufWriter.hilbert(hx, hy) & 0xFFFFFFFFL;
+            assertTrue("not in Hilbert order at feature " + i, hilbert <= previousHilbert);
+            previousHilbert = hilbert;
+
+            position += 4 + bytes.getInt(position);
+        }
+        assertTrue("features missing " + byName.keySet(), byName.isEmpty());
+        assertEquals(bytes.limit(), position);
+        return features;
+    }
+
+    /**
+     * Returns the table a root offset at position points to.
+     */
+    private static int root(ByteBuffer bytes, int position) {
+        return position + bytes.getInt(position);
+    }
+
+    /**
+     * Returns the position of field id of table, or 0 if it is absent.
+     */
+    private static int field(ByteBuffer bytes, int table, int id) {
+        int vtable = table - bytes.getInt(table);
+        int vtableSize = bytes.getShort(vtable) & 0xFFFF;
+        if (4 + 2 * id >= vtableSize) return 0;
+        int offset = bytes.getShort(vtable + 4 + 2 * id) & 0xFFFF;
+        return offset == 0 ? 0 : table + offset;
+    }
+
+    /**
+     * Follows the offset stored at field.
+     */
+    private static int reference(ByteBuffer bytes, int field) {
+        assertTrue("field is absent", field != 0);
+        return field + bytes.getInt(field);
+    }
+
+    private static String string(ByteBuffer bytes, int field) {
+        int string = reference(bytes, field);
+        byte[] utf8 = new byte[bytes.getInt(string)];
+        bytes.duplicate().position(string + 4).get(utf8);
+        assertEquals(0, bytes.get(string + 4 + utf8.length));
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a properties vector of string columns: the column index, then the UTF-8 length and bytes.
+     */
+    private static Map<Integer, String> properties(ByteBuffer bytes, int vector) {
+        Map<Integer, String> properties = new HashMap<>();
+        int position = vector + 4;
+        int end = position + bytes.getInt(vector);
+        while (position < end) {
+            int column = bytes.getShort(position) & 0xFFFF;
+            byte[] utf8 = new byte[bytes.getInt(position + 2)];
+            bytes.duplicate().position(position + 6).get(utf8);
+            properties.put(column, new String(utf8, StandardCharsets.UTF_8));
+            position += 6 + utf8.length;
+        }
+        assertEquals(end, position);
+        return properties;
+    }
+
+    private static double nodeBound(ByteBuffer bytes, int indexStart, int node, int bound) {
+        return bytes.getDouble(indexStart + node * NODE_ITEM_BYTES + 8 * bound);
+    }
+
+    private static long node(ByteBuffer bytes, int indexStart, int node, int field) {
+        return bytes.getLong(indexStart + node * NODE_ITEM_BYTES + 8 * field);
+    }
+}
@@ -0,0 +1,105 @@
+package com.williamquast;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalKmlDocumentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replacedPhotoKeepsItsPlace() throws IOException {
+        IncrementalKmlDocument document = new IncrementalKmlDocument(folder.newFile("photos.kml"));
+        document.put(located(new File(folder.getRoot(), "a.jpg"), 1, 2));
+        document.put(located(new File(folder.getRoot(), "b.jpg"), 3, 4));
+        document.put(located(new File(folder.getRoot(), "a.jpg"), 5, 6));
+        document.flush();
+
+        assertEquals(2, document.size());
+        String kml = readParts(document);
+        assertTrue(kml.contains("<coordinates>5,6,0</coordinates>"));
+        assertFalse(kml.contains("<coordinates>1,2,0</coordinates>"));
+    }
+
+    @Test
+    public void itemWithoutFileIsIgnored() throws IOException {
+        IncrementalKmlDocument document = new IncrementalKmlDocument(folder.newFile("photos.kml"));
+        document.put(new ExtractItem("photos", null, "Failed to search directory. (denied)"));
+        assertEquals(0, document.size());
+    }
+
+    /**
+     * A path that is deleted before its batch is scanned, like a temp file during a long copy, removes its
+     * placemark and the scan still finishes.
+     */
+    @Test
+    public void vanishedPathInWatchBatchRemovesPlacemark() throws Exception {
+        File photo = new File(folder.getRoot(), "copying.jpg"); // never created, or already gone
+        IncrementalKmlDocument document = new IncrementalKmlDocument(folder.newFile("photos.kml"));
+        document.put(located(photo, 1, 2));
+        assertEquals(1, document.size());
+
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<ExtractItem> delivered = Collections.synchronizedList(new ArrayList<>());
+        new PhotoLocationWorker()
+                .sourceDirs(Collections.emptyList())
+                .pathList(new BufferedReader(new StringReader(photo.getPath() + "\n")))
+                .callbackExecutor(Runnable::run) // listeners run on the worker threads, as in the command line
+                .progressListener((found, processed, items) -> {
+                    if (items == null) return;
+                    for (ExtractItem item : items) {
+                        try {
+                            delivered.add(item);
+                            document.put(item);
+                        } catch (RuntimeException ex) {
+                            failure.compareAndSet(null, ex);
+                            throw ex;
+                        }
+                    }
+                })
+                .finishListener(result -> finished.countDown())
+                .start();
+
+        assertTrue("scan did not finish", finished.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals(1, delivered.size());
+        assertEquals("Source file not found.", delivered.get(0).getFailureReason());
+        assertEquals(0, document.size());
+    }
+
+    private static ExtractItem located(File file, double x, double y) {
+        ExtractItem item = new ExtractItem(file.getName(), new Date(1000), new Waypoint(file.getName(), new Date(1000), x, y));
+        item.file = file;
+        return item;
+    }
+
+    private static String readParts(IncrementalKmlDocument document) throws IOException {
+        StringBuilder kml = new StringBuilder();
+        for (File part : document.getPartsDir().listFiles()) {
+            kml.append(new String(Files.readAllBytes(part.toPath()), StandardCharsets.UTF_8));
+        }
+        return kml.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package com.williamquast;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KmlWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void imageDirectoryIsNamedAfterFile() {
+        File output = new File(folder.getRoot(), "photos.kml");
+        assertEquals(new File(folder.getRoot(), "photos_files"), KmlWriter.imageDirectory(output));
+    }
+
+    @Test
+    public void deleteImagesRemovesThumbnailsAndDirectory() throws IOException {
+        File output = new File(folder.getRoot(), "photos.kml");
+        File images = KmlWriter.imageDirectory(output);
+        assertTrue(images.mkdirs());
+        assertTrue(new File(images, "1.jpg").createNewFile());
+        assertTrue(new File(images, "2.jpg").createNewFile());
+
+        KmlWriter.deleteImages(output);
+        assertFalse(images.exists());
+    }
+
+    @Test
+    public void deleteImagesKeepsOtherFiles() throws IOException {
+        File output = new File(folder.getRoot(), "photos.kml");
+        File images = KmlWriter.imageDirectory(output);
+        assertTrue(images.mkdirs());
+        assertTrue(new File(images, "1.jpg").createNewFile());
+        assertTrue(new File(images, "notes.txt").createNewFile()); // not written by KmlWriter
+
+        KmlWriter.deleteImages(output);
+        assertFalse(new File(images, "1.jpg").exists());
+        assertTrue(new File(images, "notes.txt").exists());
+    }
+
+    @Test
+    public void exportWithThumbnailsDropsImagesOfLastExport() throws IOException {
+        File output = new File(folder.getRoot(), "photos.kml");
+        File images = KmlWriter.imageDirectory(output);
+        assertTrue(images.mkdirs());
+        assertTrue(new File(images, "7.jpg").createNewFile()); // from a longer export before
+
+        try (KmlWriter writer = KmlWriter.open(output, true)) {
+            writer.writePlacemark(new Waypoint("a.jpg", null, 1, 2), null);
+        }
+        assertFalse(new File(images, "7.jpg").exists());
+        assertTrue(output.isFile());
+    }
+}
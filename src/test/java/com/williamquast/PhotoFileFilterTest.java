@@ -0,0 +1,43 @@
+package com.williamquast;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoFileFilterTest {
+
+    private final PhotoFileFilter filter = new PhotoFileFilter();
+
+    @Test
+    public void keepsPhotos() {
+        assertTrue(filter.accept("IMG_0001.JPG", 4000));
+        assertTrue(filter.accept("IMG_0001.cr3", 4000));
+        assertTrue(filter.accept("MVI_0001.MOV", 4000));
+    }
+
+    @Test
+    public void keepsUnknownExtensions() {
+        assertTrue(filter.accept("DSC00001.HIF", 4000));
+        assertTrue(filter.accept("photo.jxl", 4000));
+        assertTrue(filter.accept("scan.fff", 4000));
+        assertTrue(filter.accept("IMG_0001.jpg_original", 4000));
+        assertTrue(filter.accept("IMG_0001", 4000));
+    }
+
+    @Test
+    public void skipsKnownNonPhotos() {
+        assertFalse(filter.accept("IMG_0001.xmp", 4000));
+        assertFalse(filter.accept("IMG_0001.AAE", 4000));
+        assertFalse(filter.accept("Thumbs.db", 4000));
+        assertFalse(filter.accept("notes.txt", 4000));
+        assertFalse(filter.accept("backup.zip", 4000));
+    }
+
+    @Test
+    public void skipsAppleDoubleAndTinyFiles() {
+        assertFalse(filter.accept("._IMG_0001.JPG", 4000));
+        assertFalse(filter.accept("IMG_0001.JPG", PhotoFileFilter.DEFAULT_MIN_SIZE - 1));
+        assertTrue(new PhotoFileFilter().minSize(0).accept("IMG_0001.JPG", 0));
+    }
+}
@@ -0,0 +1,252 @@
+package com.williamquast;
+
+import com.drew.imaging.FileType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuickTimeGpsParserTest {
+
+    private static final long QUICKTIME_EPOCH_OFFSET = 2_082_844_800L;
+    private static final Date CREATED = Date.from(Instant.parse("2019-05-06T03:14:15Z"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long bytesRead;
+
+    @Test
+    public void parseIso6709Degrees() {
+        assertArrayEquals(new double[]{37.7858, -122.4064}, QuickTimeGpsParser.parseIso6709("+37.7858-122.4064+012.345/"), 1e-9);
+        assertArrayEquals(new double[]{-33.8688, 151.2093}, QuickTimeGpsParser.parseIso6709("-33.8688+151.2093/"), 1e-9);
+        assertArrayEquals(new double[]{-33.8688, 151.2093}, QuickTimeGpsParser.parseIso6709("-33.8688+151.2093"), 1e-9);
+        assertArrayEquals(new double[]{5, -7}, QuickTimeGpsParser.parseIso6709("+05-007/"), 1e-9);
+    }
+
+    @Test
+    public void parseIso6709DegreesAndMinutes() {
+        assertArrayEquals(new double[]{37 + 47.148 / 60, -(122 + 24.384 / 60)},
+                QuickTimeGpsParser.parseIso6709("+3747.148-12224.384/"), 1e-9);
+    }
+
+    @Test
+    public void parseIso6709DegreesMinutesAndSeconds() {
+        assertArrayEquals(new double[]{37 + 47 / 60.0 + 8.88 / 3600, -(122 + 24 / 60.0 + 22.9 / 3600)},
+                QuickTimeGpsParser.parseIso6709("+374708.88-1222422.9+12.3/"), 1e-9);
+    }
+
+    @Test
+    public void parseIso6709RejectsInvalidPoints() {
+        assertNull(QuickTimeGpsParser.parseIso6709(""));
+        assertNull(QuickTimeGpsParser.parseIso6709("unknown"));
+        assertNull(QuickTimeGpsParser.parseIso6709("+37.7858/")); // no longitude
+        assertNull(QuickTimeGpsParser.parseIso6709("+91.0000+000.0000/"));
+        assertNull(QuickTimeGpsParser.parseIso6709("+00.0000+180.5000/"));
+        assertNull(QuickTimeGpsParser.parseIso6709("+37.78.58-122.4064/"));
+        assertNull(QuickTimeGpsParser.parseIso6709("+377-122.4064/")); // 3 digits is neither degrees nor DDMM
+    }
+
+    @Test
+    public void parseCreationDateKeepsLocalTime() {
+        assertEquals(Date.from(Instant.parse("2019-05-06T13:14:15Z")), QuickTimeGpsParser.parseCreationDate("2019-05-06T13:14:15+1000"));
+        assertEquals(Date.from(Instant.parse("2019-05-06T13:14:15Z")), QuickTimeGpsParser.parseCreationDate("2019-05-06T13:14:15Z"));
+        assertNull(QuickTimeGpsParser.parseCreationDate("2019-05-06"));
+        assertNull(QuickTimeGpsParser.parseCreationDate("not a date, but long enough"));
+    }
+
+    /**
+     * An Android or action camera movie: the location in udta (0xA9)xyz, moov after a large mdat.
+     */
+    @Test
+    public void udtaLocationAfterMediaData() throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Mp4);
+        assertTrue(parse(concat(
+                atom("ftyp", ascii("isom"), int32(0x200), ascii("isommp41")),
+                atom("mdat", new byte[1 << 20]),
+                atom("moov",
+                        mvhd(CREATED),
+                        atom("trak", atom("tkhd", new byte[84]), atom("mdia", new byte[4096])),
+                        atom("udta", xyz("+37.7858-122.4064+012.345/")))), metadata));
+
+        assertTrue(metadata.hasGpsDirectory());
+        assertEquals(37.7858, metadata.getLatitude(), 1e-9);
+        assertEquals(-122.4064, metadata.getLongitude(), 1e-9);
+        assertEquals(CREATED, metadata.dateTime);
+        assertTrue("media data was read, bytes=" + bytesRead, bytesRead <= 4 * PositionalFileReader.PAGE_SIZE);
+    }
+
+    /**
+     * An iPhone movie: the location and local creation date as keyed items in the moov meta atom.
+     */
+    @Test
+    public void appleKeyedMetadata() throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.QuickTime);
+        assertTrue(parse(concat(
+                atom("ftyp", ascii("qt  "), int32(0), ascii("qt  ")),
+                atom("wide"),
+                atom("mdat", new byte[10_000]),
+                atom("moov",
+                        mvhd64(CREATED),
+                        atom("meta",
+                                atom("hdlr", new byte[25]),
+                                atom("keys", int32(0), int32(3),
+                                        key("com.apple.quicktime.make"),
+                                        key("com.apple.quicktime.creationdate"),
+                                        key("com.apple.quicktime.location.ISO6709")),
+                                atom("ilst",
+                                        item(1, "Apple"),
+                                        item(3, "-33.8688+151.2093+025.000/"),
+                                        item(2, "2019-05-06T13:14:15+1000"))))), metadata));
+
+        assertTrue(metadata.hasGpsDirectory());
+        assertEquals(-33.8688, metadata.getLatitude(), 1e-9);
+        assertEquals(151.2093, metadata.getLongitude(), 1e-9);
+        assertEquals(Date.from(Instant.parse("2019-05-06T13:14:15Z")), metadata.dateTimeOriginal);
+        assertEquals(CREATED, metadata.dateTime);
+    }
+
+    /**
+     * An MP4 meta atom starts with version and flags and may name its items by atom type instead of by key.
+     */
+    @Test
+    public void mp4MetaWithVersionAndFlags() throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Mp4);
+        parse(concat(
+                atom("ftyp", ascii("mp42"), int32(0), ascii("mp42")),
+                atom("moov", atom("udta",
+                        atom("meta", int32(0), atom("hdlr", new byte[25]), atom("ilst",
+                                atom("\u00A9xyz", data("+48.8584+002.2945/"))))))), metadata);
+
+        assertEquals(48.8584, metadata.getLatitude(), 1e-9);
+        assertEquals(2.2945, metadata.getLongitude(), 1e-9);
+        assertNull(metadata.dateTime);
+    }
+
+    @Test
+    public void largeSizeAtomIsSkipped() throws IOException {
+        byte[] media = new byte[5000];
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Mp4);
+        parse(concat(
+                atom("ftyp", ascii("isom"), int32(0), ascii("isom")),
+                int32(1), ascii("mdat"), int64(16 + media.length), media,
+                atom("moov", atom("udta", xyz("+01.5000+002.5000/")))), metadata);
+
+        assertEquals(1.5, metadata.getLatitude(), 0);
+        assertEquals(2.5, metadata.getLongitude(), 0);
+    }
+
+    @Test
+    public void invalidLocationHasNoPosition() throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Mp4);
+        parse(atom("moov", atom("udta", xyz("+99.0000+000.0000/"))), metadata);
+
+        assertTrue(metadata.hasGpsDirectory());
+        assertFalse(metadata.hasGeoLocation());
+    }
+
+    @Test
+    public void canonRawIsNotParsed() throws IOException {
+        PhotoMetadata metadata = new PhotoMetadata(FileType.Mp4);
+        assertFalse(parse(concat(
+                atom("ftyp", ascii("crx "), int32(1), ascii("crx isom")),
+                atom("moov", atom("udta", xyz("+37.7858-122.4064/")))), metadata));
+        assertFalse(metadata.hasGpsDirectory());
+    }
+
+    @Test(expected = IOException.class)
+    public void atomLargerThanFileThrows() throws IOException {
+        byte[] movie = concat(atom("ftyp", ascii("isom"), int32(0), ascii("isom")), atom("mdat", new byte[100]));
+        ByteBuffer.wrap(movie).putInt(20, 1000); // mdat size
+        parse(movie, new PhotoMetadata(FileType.Mp4));
+    }
+
+    @Test(expected = IOException.class)
+    public void atomSmallerThanHeaderThrows() throws IOException {
+        parse(concat(atom("ftyp", ascii("isom")), int32(4), ascii("moov")), new PhotoMetadata(FileType.Mp4));
+    }
+
+    private boolean parse(byte[] movie, PhotoMetadata metadata) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), movie);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            PositionalFileReader reader = new PositionalFileReader(channel, movie.length, new byte[0], 0);
+            boolean parsed = new QuickTimeGpsParser(reader).parse(metadata);
+            bytesRead = reader.getBytesRead();
+            return parsed;
+        }
+    }
+
+    private static byte[] mvhd(Date created) {
+        long seconds = created.getTime() / 1000 + QUICKTIME_EPOCH_OFFSET;
+        return atom("mvhd", int32(0), int32((int) seconds), int32((int) seconds), int32(600), int32(0), new byte[80]);
+    }
+
+    private static byte[] mvhd64(Date created) {
+        long seconds = created.getTime() / 1000 + QUICKTIME_EPOCH_OFFSET;
+        return atom("mvhd", int32(1 << 24), int64(seconds), int64(seconds), int32(600), int64(0), new byte[80]);
+    }
+
+    /**
+     * A (0xA9)xyz atom as written to udta: string length, language code and the string.
+     */
+    private static byte[] xyz(String iso6709) {
+        byte[] value = ascii(iso6709);
+        return atom("\u00A9xyz", new byte[]{(byte) (value.length >> 8), (byte) value.length, 0x15, (byte) 0xC7}, value);
+    }
+
+    private static byte[] key(String name) {
+        byte[] value = ascii(name);
+        return concat(int32(8 + value.length), ascii("mdta"), value);
+    }
+
+    /**
+     * An ilst item for the key numbered index, holding a UTF-8 data atom.
+     */
+    private static byte[] item(int index, String value) {
+        byte[] content = data(value);
+        return concat(int32(8 + content.length), int32(index), content);
+    }
+
+    private static byte[] data(String value) {
+        return atom("data", int32(1), int32(0), ascii(value));
+    }
+
+    private static byte[] atom(String type, byte[]... contents) {
+        byte[] content = concat(contents);
+        return concat(int32(8 + content.length), type.getBytes(StandardCharsets.ISO_8859_1), content);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static byte[] int64(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,167 @@
+package com.williamquast;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File sourceDir;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = folder.newFolder("photos");
+        indexFile = new File(folder.getRoot(), "index/photos.idx");
+    }
+
+    @Test
+    public void reopenedIndexReturnsStoredItems() {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 151.2, -33.9));
+        index.put("b.jpg", 200, 2000, new ExtractItem("b.jpg", new Date(5000), "No GPS directory."));
+        index.close(false);
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertEquals(2, reopened.size());
+        ExtractItem a = reopened.lookup("a.jpg", 100, 1000);
+        assertNotNull(a);
+        assertTrue(a.isSuccess());
+        assertEquals(151.2, a.waypoint.x, 0);
+        assertEquals(-33.9, a.waypoint.y, 0);
+        ExtractItem b = reopened.lookup("b.jpg", 200, 2000);
+        assertNotNull(b);
+        assertFalse(b.isSuccess());
+        assertEquals("No GPS directory.", b.getFailureReason());
+        assertEquals(new Date(5000), b.timestamp);
+    }
+
+    @Test
+    public void changedFileIsNotReturned() {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.close(false);
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertNull(reopened.lookup("a.jpg", 101, 1000));
+        assertNull(reopened.lookup("a.jpg", 100, 1001));
+    }
+
+    @Test
+    public void truncatedTailKeepsCompleteRecords() throws IOException {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.put("b.jpg", 200, 2000, located("b.jpg", 3, 4));
+        index.put("c.jpg", 300, 3000, located("c.jpg", 5, 6));
+        index.close(false);
+
+        truncate(indexFile, 10); // a crash part way through writing the last record
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertEquals(2, reopened.size());
+        assertNotNull(reopened.lookup("a.jpg", 100, 1000));
+        assertNotNull(reopened.lookup("b.jpg", 200, 2000));
+        assertNull(reopened.lookup("c.jpg", 300, 3000));
+    }
+
+    @Test
+    public void appendAfterTruncatedTailStaysReadable() throws IOException {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.put("b.jpg", 200, 2000, located("b.jpg", 3, 4));
+        index.close(false);
+        truncate(indexFile, 3);
+
+        ScanIndex recovered = ScanIndex.open(indexFile, sourceDir);
+        recovered.put("c.jpg", 300, 3000, located("c.jpg", 5, 6));
+        recovered.close(false);
+
+        // the partial record must have been dropped, or the new one would be read from the wrong offset
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertEquals(2, reopened.size());
+        assertNotNull(reopened.lookup("a.jpg", 100, 1000));
+        assertNotNull(reopened.lookup("c.jpg", 300, 3000));
+    }
+
+    @Test
+    public void corruptLastRecordIsIgnored() throws IOException {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.put("b.jpg", 200, 2000, located("b.jpg", 3, 4));
+        index.close(false);
+
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            long position = file.length() - 8; // inside the payload of the last record, before its CRC
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.lookup("a.jpg", 100, 1000));
+    }
+
+    @Test
+    public void completeScanDropsFilesNotSeen() {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.put("b.jpg", 200, 2000, located("b.jpg", 3, 4));
+        index.close(true);
+
+        ScanIndex rescan = ScanIndex.open(indexFile, sourceDir);
+        assertNotNull(rescan.lookup("a.jpg", 100, 1000)); // b.jpg was deleted
+        rescan.close(true);
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.lookup("a.jpg", 100, 1000));
+    }
+
+    @Test
+    public void invalidCachedLocationIsParsedAgain() {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.put("b.jpg", 200, 2000, located("b.jpg", 7, Double.POSITIVE_INFINITY)); // a GPS rational n/0
+        index.close(false);
+
+        ScanIndex reopened = ScanIndex.open(indexFile, sourceDir);
+        assertNotNull(reopened.lookup("a.jpg", 100, 1000));
+        assertNull(reopened.lookup("b.jpg", 200, 2000));
+    }
+
+    @Test
+    public void indexOfAnotherSourceDirectoryIsEmpty() throws IOException {
+        ScanIndex index = ScanIndex.open(indexFile, sourceDir);
+        index.put("a.jpg", 100, 1000, located("a.jpg", 1, 2));
+        index.close(false);
+
+        assertEquals(0, ScanIndex.open(indexFile, folder.newFolder("other")).size());
+    }
+
+    private static ExtractItem located(String filename, double x, double y) {
+        return new ExtractItem(filename, new Date(1000), new Waypoint(filename, new Date(1000), x, y));
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - bytes);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.williamquast;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the index against brute force over random points. High latitudes and sparse data are where a node box
+ * bound that is not a true lower bound on the sphere returns the wrong neighbours.
+ */
+public class SpatialIndexTest {
+
+    private static final int QUERIES = 2000;
+    private static final int K = 10;
+
+    @Test
+    public void nearestMatchesBruteForceSparseHighLatitude() {
+        checkNearest(300, 50, 85, new Random(1));
+    }
+
+    @Test
+    public void nearestMatchesBruteForceHighLatitude() {
+        checkNearest(2000, 50, 85, new Random(2));
+    }
+
+    @Test
+    public void nearestMatchesBruteForceWholeGlobe() {
+        checkNearest(1000, 0, 90, new Random(3));
+    }
+
+    @Test
+    public void nearestAcrossAntimeridian() {
+        List<double[]> points = new ArrayList<>();
+        points.add(new double[]{179.9, 10});
+        points.add(new double[]{-179.9, 10});
+        points.add(new double[]{170, 10});
+        SpatialIndex index = SpatialIndex.build(store(points));
+        assertArrayEquals(new int[]{1, 0, 2}, index.nearest(-179.95, 10, 3));
+    }
+
+    @Test
+    public void nearestReturnsAllWhenCountExceedsSize() {
+        List<double[]> points = randomPoints(5, 0, 60, new Random(4));
+        assertEquals(5, SpatialIndex.build(store(points)).nearest(0, 0, 10).length);
+        assertEquals(0, SpatialIndex.build(new WaypointStore()).nearest(0, 0, 10).length);
+    }
+
+    @Test
+    public void radiusMatchesBruteForce() {
+        Random random = new Random(5);
+        List<double[]> points = randomPoints(2000, 0, 89, random);
+        SpatialIndex index = SpatialIndex.build(store(points));
+        for (int query = 0; query < QUERIES; query++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            double meters = random.nextDouble() * 2_000_000;
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < points.size(); i++) {
+                if (SpatialIndex.distance(x, y, points.get(i)[0], points.get(i)[1]) <= meters) expected.add(i);
+            }
+            int[] actual = index.radius(x, y, meters);
+            Arrays.sort(actual);
+            assertArrayEquals("radius " + meters + " at " + x + "," + y, toArray(expected), actual);
+        }
+    }
+
+    @Test
+    public void bboxMatchesBruteForce() {
+        Random random = new Random(6);
+        List<double[]> points = randomPoints(2000, 0, 90, random);
+        SpatialIndex index = SpatialIndex.build(store(points));
+        for (int query = 0; query < QUERIES; query++) {
+            double west = random.nextDouble() * 360 - 180;
+            double east = random.nextDouble() * 360 - 180; // west > east crosses the antimeridian
+            double south = random.nextDouble() * 180 - 90;
+            double north = south + random.nextDouble() * (90 - south);
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < points.size(); i++) {
+                double x = points.get(i)[0];
+                double y = points.get(i)[1];
+                boolean inX = west <= east ? x >= west && x <= east : x >= west || x <= east;
+                if (inX && y >= south && y <= north) expected.add(i);
+            }
+            int[] actual = index.bbox(west, south, east, north);
+            Arrays.sort(actual);
+            assertArrayEquals(toArray(expected), actual);
+        }
+    }
+
+    private static void checkNearest(int count, double minLatitude, double maxLatitude, Random random) {
+        List<double[]> points = randomPoints(count, minLatitude, maxLatitude, random);
+        SpatialIndex index = SpatialIndex.build(store(points));
+        for (int query = 0; query < QUERIES; query++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = (random.nextBoolean() ? 1 : -1) * (minLatitude + random.nextDouble() * (maxLatitude - minLatitude));
+
+            double[] expected = new double[points.size()];
+            for (int i = 0; i < points.size(); i++) {
+                expected[i] = SpatialIndex.distance(x, y, points.get(i)[0], points.get(i)[1]);
+            }
+            Arrays.sort(expected);
+
+            int[] actual = index.nearest(x, y, K);
+            assertEquals(K, actual.length);
+            for (int i = 0; i < K; i++) {
+                double distance = SpatialIndex.distance(x, y, points.get(actual[i])[0], points.get(actual[i])[1]);
+                // compare distances, not indexes, so equally distant points may come in either order
+                assertEquals("neighbour " + i + " of " + x + "," + y, expected[i], distance, 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Points with latitudes between minLatitude and maxLatitude, north or south, at any longitude.
+     */
+    private static List<double[]> randomPoints(int count, double minLatitude, double maxLatitude, Random random) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = (random.nextBoolean() ? 1 : -1) * (minLatitude + random.nextDouble() * (maxLatitude - minLatitude));
+            points.add(new double[]{x, y});
+        }
+        return points;
+    }
+
+    /**
+     * Store holding points in order, so store indexes are list indexes.
+     */
+    private static WaypointStore store(List<double[]> points) {
+        WaypointStore store = new WaypointStore();
+        for (int i = 0; i < points.size(); i++) {
+            double[] point = points.get(i);
+            store.add(new ExtractItem("p" + i + ".jpg", null, new Waypoint("p" + i, null, point[0], point[1])));
+        }
+        return store;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+}